@@ -101,7 +101,7 @@ public abstract class AbstractBlockChain {
     // also guaranteed to happen whilst BlockChain is synchronized (see setChainHead). The goal of this is to let
     // clients quickly access the chain head even whilst the block chain is downloading and thus the BlockChain is
     // locked most of the time.
-    private final Object chainHeadLock = new Object();
+    protected final Object chainHeadLock = new Object();
 
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
@@ -40,6 +40,9 @@ public class Address extends VersionedChecksummedBytes {
      */
     public static final int LENGTH = 20;
 
+    // The textual form, worked out the first time it is asked for, or kept from parsing.
+    private String encoded;
+
     /**
      * Construct an address from parameters, the address version, and the hash160 form. Example:<p>
      *
@@ -79,6 +82,16 @@ public class Address extends VersionedChecksummedBytes {
                 throw new WrongNetworkException(version, params.getAcceptableAddressCodes());
             }
         }
+        encoded = address;
+    }
+
+    @Override
+    public String toString() {
+        // Racing threads may both encode it, which is harmless.
+        String result = encoded;
+        if (result == null)
+            encoded = result = super.toString();
+        return result;
     }
 
     /** The (big endian) 20 byte hash that is the core of a Bitcoin address. */
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers the {@link Address}es most recently parsed from strings, so that a service which sees the same few
+ * addresses over and over, such as a payment processor's own receiving addresses, decodes and checksums each of them
+ * only once. Parsing a string that was seen before returns the same Address object, so callers must not modify the
+ * array returned by {@link Address#getHash160()}.</p>
+ *
+ * <p>The cache holds up to the number of addresses it is created with, evicting the least recently used first, and is
+ * safe to use from many threads at once. Strings that don't parse are never remembered.</p>
+ */
+public class AddressCache {
+    @Nullable private final NetworkParameters params;
+    private final Cache<String, Address> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache of up to maximumSize addresses, which are checked against the given network as
+     * {@link Address#Address(NetworkParameters, String)} does, or not at all if params is null.
+     */
+    public AddressCache(@Nullable NetworkParameters params, int maximumSize) {
+        checkArgument(maximumSize >= 0);
+        this.params = params;
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Returns the address with the given textual form, parsing it if it isn't remembered.
+     *
+     * @throws AddressFormatException if the given address doesn't parse or the checksum is invalid
+     * @throws WrongNetworkException if the given address is valid but for a different chain
+     */
+    public Address parse(String address) throws AddressFormatException {
+        Address result = cache.getIfPresent(address);
+        if (result != null) {
+            hitCount.incrementAndGet();
+            return result;
+        }
+        missCount.incrementAndGet();
+        result = new Address(params, address);
+        cache.put(address, result);
+        return result;
+    }
+
+    /** Returns the number of addresses currently remembered. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Forgets all the addresses, leaving the statistics alone. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /** Returns the number of strings that were answered from the cache. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Returns the number of strings that had to be parsed. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
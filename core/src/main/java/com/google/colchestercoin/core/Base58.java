@@ -16,7 +16,6 @@
 
 package com.google.colchestercoin.core;
 
-import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.Arrays;
 
@@ -50,92 +49,136 @@ public class Base58 {
         }
     }
 
+    // Five base58 digits fit in 30 bits, so the codec works in limbs of that many digits on one side and of 32 bits on
+    // the other, and the products of the two fit in a long.
+    private static final int DIGITS_PER_LIMB = 5;
+    private static final long LIMB_BASE = 58L * 58 * 58 * 58 * 58;
+    private static final long[] POWERS_OF_58 = {1, 58, 58 * 58, 58 * 58 * 58, 58 * 58 * 58 * 58, LIMB_BASE};
+
     /** Encodes the given bytes in base58. No checksum is appended. */
     public static String encode(byte[] input) {
-        if (input.length == 0) {
+        return encode(input, 0, input.length);
+    }
+
+    /** Encodes length bytes of the given array starting at offset in base58. No checksum is appended. */
+    public static String encode(byte[] input, int offset, int length) {
+        if (length == 0) {
             return "";
-        }       
-        input = copyOfRange(input, 0, input.length);
+        }
         // Count leading zeroes.
         int zeroCount = 0;
-        while (zeroCount < input.length && input[zeroCount] == 0) {
+        while (zeroCount < length && input[offset + zeroCount] == 0) {
             ++zeroCount;
         }
-        // The actual encoding.
-        byte[] temp = new byte[input.length * 2];
-        int j = temp.length;
-
-        int startAt = zeroCount;
-        while (startAt < input.length) {
-            byte mod = divmod58(input, startAt);
-            if (input[startAt] == 0) {
-                ++startAt;
+        // The number, least significant limb first, each limb holding five base58 digits. Bytes are taken four at a
+        // time, the first group holding what is left over.
+        long[] limbs = new long[(length - zeroCount) * 8 / 29 + 2];
+        int used = 0;
+        int i = zeroCount;
+        int group = (length - zeroCount) % 4;
+        if (group == 0)
+            group = 4;
+        while (i < length) {
+            long carry = 0;
+            for (int k = 0; k < group; k++)
+                carry = (carry << 8) | (input[offset + i++] & 0xFF);
+            int shift = group * 8;
+            for (int j = 0; j < used; j++) {
+                carry += limbs[j] << shift;
+                limbs[j] = carry % LIMB_BASE;
+                carry /= LIMB_BASE;
+            }
+            while (carry != 0) {
+                limbs[used++] = carry % LIMB_BASE;
+                carry /= LIMB_BASE;
             }
-            temp[--j] = (byte) ALPHABET[mod];
+            group = 4;
         }
-
-        // Strip extra '1' if there are some after decoding.
-        while (j < temp.length && temp[j] == ALPHABET[0]) {
+        // Write the digits from the least significant end, then drop the zeroes at the front of the top limb.
+        char[] output = new char[zeroCount + used * DIGITS_PER_LIMB];
+        int j = output.length;
+        for (int l = 0; l < used; l++) {
+            long limb = limbs[l];
+            for (int k = 0; k < DIGITS_PER_LIMB; k++) {
+                output[--j] = ALPHABET[(int) (limb % 58)];
+                limb /= 58;
+            }
+        }
+        while (j < output.length && output[j] == ALPHABET[0]) {
             ++j;
         }
         // Add as many leading '1' as there were leading zeros.
         while (--zeroCount >= 0) {
-            temp[--j] = (byte) ALPHABET[0];
-        }
-
-        byte[] output = copyOfRange(temp, j, temp.length);
-        try {
-            return new String(output, "US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+            output[--j] = ALPHABET[0];
         }
+        return new String(output, j, output.length - j);
     }
 
     public static byte[] decode(String input) throws AddressFormatException {
-        if (input.length() == 0) {
+        int length = input.length();
+        if (length == 0) {
             return new byte[0];
         }
-        byte[] input58 = new byte[input.length()];
-        // Transform the String to a base58 byte sequence
-        for (int i = 0; i < input.length(); ++i) {
-            char c = input.charAt(i);
-
-            int digit58 = -1;
-            if (c >= 0 && c < 128) {
-                digit58 = INDEXES[c];
-            }
-            if (digit58 < 0) {
-                throw new AddressFormatException("Illegal character " + c + " at " + i);
-            }
-
-            input58[i] = (byte) digit58;
-        }
-        // Count leading zeroes
+        // Count leading zeroes, checking them as we go.
         int zeroCount = 0;
-        while (zeroCount < input58.length && input58[zeroCount] == 0) {
+        while (zeroCount < length && input.charAt(zeroCount) == ALPHABET[0]) {
             ++zeroCount;
         }
-        // The encoding
-        byte[] temp = new byte[input.length()];
-        int j = temp.length;
-
-        int startAt = zeroCount;
-        while (startAt < input58.length) {
-            byte mod = divmod256(input58, startAt);
-            if (input58[startAt] == 0) {
-                ++startAt;
+        // The number, least significant limb first, each limb holding 32 bits. Digits are taken five at a time, the
+        // first group holding what is left over.
+        long[] limbs = new long[(length - zeroCount) * 6 / 32 + 2];
+        int used = 0;
+        int i = zeroCount;
+        int group = (length - zeroCount) % DIGITS_PER_LIMB;
+        if (group == 0)
+            group = DIGITS_PER_LIMB;
+        while (i < length) {
+            long carry = 0;
+            for (int k = 0; k < group; k++, i++)
+                carry = carry * 58 + digit(input, i);
+            long multiplier = POWERS_OF_58[group];
+            for (int j = 0; j < used; j++) {
+                carry += limbs[j] * multiplier;
+                limbs[j] = carry & 0xFFFFFFFFL;
+                carry >>>= 32;
             }
-
-            temp[--j] = mod;
+            while (carry != 0) {
+                limbs[used++] = carry & 0xFFFFFFFFL;
+                carry >>>= 32;
+            }
+            group = DIGITS_PER_LIMB;
         }
-        // Do no add extra leading zeroes, move j to first non null byte.
-        while (j < temp.length && temp[j] == 0) {
-            ++j;
+        // Count the bytes of the top limb that aren't zero, then write the limbs out big endian after the zeroes.
+        int topBytes = 0;
+        if (used > 0) {
+            long top = limbs[used - 1];
+            while (top != 0) {
+                topBytes++;
+                top >>>= 8;
+            }
         }
+        int byteCount = used == 0 ? 0 : (used - 1) * 4 + topBytes;
+        byte[] output = new byte[zeroCount + byteCount];
+        int j = output.length;
+        for (int l = 0; l < used; l++) {
+            long limb = limbs[l];
+            for (int k = 0; k < 4 && j > zeroCount; k++) {
+                output[--j] = (byte) limb;
+                limb >>>= 8;
+            }
+        }
+        return output;
+    }
 
-        return copyOfRange(temp, j - zeroCount, temp.length);
+    private static int digit(String input, int i) throws AddressFormatException {
+        char c = input.charAt(i);
+        int digit58 = c < 128 ? INDEXES[c] : -1;
+        if (digit58 < 0) {
+            throw new AddressFormatException("Illegal character " + c + " at " + i);
+        }
+        return digit58;
     }
-    
+
     public static BigInteger decodeToBigInteger(String input) throws AddressFormatException {
         return new BigInteger(1, decode(input));
     }
@@ -147,58 +190,25 @@ public class Base58 {
      * @throws AddressFormatException if the input is not base 58 or the checksum does not validate.
      */
     public static byte[] decodeChecked(String input) throws AddressFormatException {
-        byte tmp [] = decode(input);
-        if (tmp.length < 4)
-            throw new AddressFormatException("Input too short");
-        byte[] bytes = copyOfRange(tmp, 0, tmp.length - 4);
-        byte[] checksum = copyOfRange(tmp, tmp.length - 4, tmp.length);
-        
-        tmp = Utils.doubleDigest(bytes);
-        byte[] hash = copyOfRange(tmp, 0, 4);
-        if (!Arrays.equals(checksum, hash)) 
-            throw new AddressFormatException("Checksum does not validate");
-        
-        return bytes;
-    }
-    
-    //
-    // number -> number / 58, returns number % 58
-    //
-    private static byte divmod58(byte[] number, int startAt) {
-        int remainder = 0;
-        for (int i = startAt; i < number.length; i++) {
-            int digit256 = (int) number[i] & 0xFF;
-            int temp = remainder * 256 + digit256;
-
-            number[i] = (byte) (temp / 58);
-
-            remainder = temp % 58;
-        }
-
-        return (byte) remainder;
+        byte[] tmp = decodeWithChecksum(input);
+        return Arrays.copyOf(tmp, tmp.length - 4);
     }
 
-    //
-    // number -> number / 256, returns number % 256
-    //
-    private static byte divmod256(byte[] number58, int startAt) {
-        int remainder = 0;
-        for (int i = startAt; i < number58.length; i++) {
-            int digit58 = (int) number58[i] & 0xFF;
-            int temp = remainder * 58 + digit58;
-
-            number58[i] = (byte) (temp / 256);
-
-            remainder = temp % 256;
+    /**
+     * Decodes the input and verifies the checksum in its last 4 bytes, as {@link #decodeChecked(String)} does, but
+     * returns the decoded data with the checksum still on the end, so callers that copy out part of it anyway can
+     * skip a copy.
+     */
+    static byte[] decodeWithChecksum(String input) throws AddressFormatException {
+        byte[] tmp = decode(input);
+        if (tmp.length < 4)
+            throw new AddressFormatException("Input too short");
+        int length = tmp.length - 4;
+        byte[] hash = Utils.doubleDigest(tmp, 0, length);
+        for (int i = 0; i < 4; i++) {
+            if (hash[i] != tmp[length + i])
+                throw new AddressFormatException("Checksum does not validate");
         }
-
-        return (byte) remainder;
-    }
-
-    private static byte[] copyOfRange(byte[] source, int from, int to) {
-        byte[] range = new byte[to - from];
-        System.arraycopy(source, from, range, 0, range.length);
-
-        return range;
+        return tmp;
     }
 }
@@ -66,6 +66,8 @@ public class BitcoinSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
+        names.put(FilterClearMessage.class, "filterclear");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -233,6 +235,10 @@ public class BitcoinSerializer {
             return new AlertMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(params, payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
+        } else if (command.equals("filterclear")) {
+            return new FilterClearMessage();
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>A read only view of a serialized block, which goes through its transactions one after another with a single
+ * {@link TransactionView}, without making a {@link Transaction} for any of them. Use it to pick the few transactions
+ * that matter out of a full block:</p>
+ *
+ * <pre>
+ * BlockView block = BlockView.of(params, bytes);
+ * for (TransactionView tx = block.nextTransaction(); tx != null; tx = block.nextTransaction()) {
+ *     if (filter.matches(tx))
+ *         matched.add(tx.toTransaction());
+ * }
+ * </pre>
+ *
+ * <p>The view returned by {@link #nextTransaction()} is the same object each time, moved along, so anything kept from
+ * it must be copied out first.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public final class BlockView {
+    private final NetworkParameters params;
+    private final byte[] bytes;
+    private final int offset;
+    private final int transactionCount;
+    private final int firstTransaction;
+    private final TransactionView transaction;
+    private int next;
+    private int index;
+
+    /** Makes a view of the block that starts at the given offset. */
+    public BlockView(NetworkParameters params, byte[] bytes, int offset) throws ProtocolException {
+        this.params = params;
+        this.bytes = bytes;
+        this.offset = offset;
+        if (bytes.length < offset + Block.HEADER_SIZE)
+            throw new ProtocolException("Block is shorter than its header");
+        int cursor = offset + Block.HEADER_SIZE;
+        if (cursor == bytes.length) {
+            // Just a header.
+            transactionCount = 0;
+        } else {
+            VarInt count = new VarInt(bytes, cursor);
+            if (count.value < 0 || count.value > bytes.length - cursor)
+                throw new ProtocolException("Count of " + count.value + " transactions is larger than the block");
+            transactionCount = (int) count.value;
+            cursor += count.getOriginalSizeInBytes();
+        }
+        firstTransaction = cursor;
+        transaction = new TransactionView(params);
+        rewind();
+    }
+
+    public static BlockView of(NetworkParameters params, byte[] bytes) throws ProtocolException {
+        return new BlockView(params, bytes, 0);
+    }
+
+    /**
+     * Makes a view of the given block, using the bytes it was parsed from if it kept them and hasn't changed since.
+     */
+    public static BlockView of(Block block) throws ProtocolException {
+        return new BlockView(block.getParams(), block.unsafeBitcoinSerialize(), 0);
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /**
+     * Moves the view to the next transaction and returns it, or returns null after the last one. Every call returns
+     * the same view.
+     */
+    public TransactionView nextTransaction() throws ProtocolException {
+        if (index == transactionCount)
+            return null;
+        transaction.wrap(bytes, next);
+        next += transaction.getLength();
+        index++;
+        return transaction;
+    }
+
+    /** Goes back to before the first transaction. */
+    public void rewind() {
+        next = firstTransaction;
+        index = 0;
+    }
+
+    /** The array holding the block. Don't change it. */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /** Hashes the header, giving the same hash as {@link Block#getHash()}. */
+    public Sha256Hash getHash() {
+        return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, Block.HEADER_SIZE)));
+    }
+
+    /** Makes a full block out of the header, leaving out the transactions. */
+    public Block toHeader() throws ProtocolException {
+        return new Block(params, Arrays.copyOfRange(bytes, offset, offset + Block.HEADER_SIZE));
+    }
+}
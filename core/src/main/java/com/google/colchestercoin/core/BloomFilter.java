@@ -21,6 +21,7 @@ import com.google.common.base.Objects;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -74,7 +75,7 @@ public class BloomFilter extends Message {
      * rate when the given number of elements have been inserted.</p>
      * 
      * <p>If the filter would otherwise be larger than the maximum allowed size, it will be
-     * automatically downsized to the maximum size.</p>
+     * automatically downsized to the maximum size. It always has at least one hash function.</p>
      * 
      * <p>To check the theoretical false positive rate of a given filter, use {@link BloomFilter#getFalsePositiveRate(int)}</p>
      * 
@@ -106,8 +107,10 @@ public class BloomFilter extends Message {
         int size = Math.min((int)(-1  / (Math.pow(Math.log(2), 2)) * elements * Math.log(falsePositiveRate)),
                             (int)MAX_FILTER_SIZE * 8) / 8;
         data = new byte[size <= 0 ? 1 : size];
-        // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = Math.min((int)(data.length * 8 / (double)elements * Math.log(2)), MAX_HASH_FUNCS);
+        // Optimal number of hash functions for a given filter size and element count. A wallet with so many elements
+        // that the filter can't grow enough for them would round down to none, which matches everything, so it gets
+        // one.
+        hashFuncs = Math.max(1, Math.min((int)(data.length * 8 / (double)elements * Math.log(2)), MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
@@ -133,6 +136,9 @@ public class BloomFilter extends Message {
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
+        // Hash functions map objects to the bits of the filter, and with no bits at all there is nowhere to map them.
+        if (data.length == 0 && hashFuncs > 0)
+            throw new ProtocolException("Empty Bloom filter with " + hashFuncs + " hash functions");
         
         nTweak = readUint32();
         
@@ -157,80 +163,240 @@ public class BloomFilter extends Message {
         // Do nothing, lazy parsing isn't useful for bloom filters.
     }
 
-    private int ROTL32 (int x, int r) {
+    private static int ROTL32 (int x, int r) {
         return (x << r) | (x >>> (32 - r));
     }
-    
-    private int hash(int hashNum, byte[] object) {
-        // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
-        final int c1 = 0xcc9e2d51;
-        final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
-        // body
-        for(int i = 0; i < numBlocks; i += 4) {
-            int k1 = (object[i] & 0xFF) |
-                  ((object[i+1] & 0xFF) << 8) |
-                  ((object[i+2] & 0xFF) << 16) |
-                  ((object[i+3] & 0xFF) << 24);
-            
-            k1 *= c1;
-            k1 = ROTL32(k1,15);
-            k1 *= c2;
-
-            h1 ^= k1;
-            h1 = ROTL32(h1,13); 
-            h1 = h1*5+0xe6546b64;
-        }
-        
+    // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
+    // split up so that the parts which don't depend on the seed can be shared between hash functions.
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private long seed(int hashNum) {
+        return hashNum * 0xFBA4C795L + nTweak;
+    }
+
+    private static int readBlock(byte[] object, int i) {
+        return (object[i] & 0xFF) |
+              ((object[i+1] & 0xFF) << 8) |
+              ((object[i+2] & 0xFF) << 16) |
+              ((object[i+3] & 0xFF) << 24);
+    }
+
+    private static int mixBlock(int k1) {
+        k1 *= C1;
+        k1 = ROTL32(k1,15);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static int mixState(int h1, int k1) {
+        h1 ^= k1;
+        h1 = ROTL32(h1,13);
+        return h1*5+0xe6546b64;
+    }
+
+    // The bytes after the last whole block, mixed, or 0 if there are none.
+    private static int mixTail(byte[] object, int tail, int length) {
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = ROTL32(k1,15); k1 *= c2; h1 ^= k1;
-                // Fall through.
+                k1 ^= (object[tail] & 0xff);
+                return mixBlock(k1);
             default:
-                // Do nothing.
-                break;
+                return 0;
         }
+    }
 
-        // finalization
-        h1 ^= object.length;
+    // Finalizes the hash and maps it to a bit of the filter.
+    private static int toBit(int h1, int length, int bits) {
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return (int)((h1&0xFFFFFFFFL) % bits);
     }
-    
+
+    private int hash(int hashNum, byte[] object, int offset, int length) {
+        int h1 = (int) seed(hashNum);
+        int numBlocks = offset + (length / 4) * 4;
+        // body
+        for(int i = offset; i < numBlocks; i += 4)
+            h1 = mixState(h1, mixBlock(readBlock(object, i)));
+        // tail, which mixing in 0 leaves as it is
+        h1 ^= mixTail(object, numBlocks, length);
+        return toBit(h1, length, data.length * 8);
+    }
+
+    /**
+     * Works out the bits of every hash function for the given bytes in one pass over them, reading and mixing each
+     * block of four bytes once rather than once per hash function. The bits go in the start of the given array, which
+     * must have room for one per hash function.
+     */
+    private void hashAll(byte[] object, int offset, int length, int[] bits) {
+        int count = (int) hashFuncs;
+        for (int j = 0; j < count; j++)
+            bits[j] = (int) seed(j);
+        int numBlocks = offset + (length / 4) * 4;
+        for (int i = offset; i < numBlocks; i += 4) {
+            int k1 = mixBlock(readBlock(object, i));
+            for (int j = 0; j < count; j++)
+                bits[j] = mixState(bits[j], k1);
+        }
+        int k1 = mixTail(object, numBlocks, length);
+        int size = data.length * 8;
+        for (int j = 0; j < count; j++)
+            bits[j] = toBit(bits[j] ^ k1, length, size);
+    }
+
     /**
      * Returns true if the given object matches the filter
      * (either because it was inserted, or because we have a false-positive)
      */
     public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /**
+     * Returns true if the given range of bytes matches the filter, as {@link #contains(byte[])} would for a copy of
+     * them.
+     */
+    public boolean contains(byte[] object, int offset, int length) {
+        // Most objects that aren't in the filter miss on the first hash function or two, so unlike insert this works
+        // out one hash function at a time and stops at the first bit that isn't set.
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
+            if (!Utils.checkBitLE(data, hash(i, object, offset, length)))
                 return false;
         }
         return true;
     }
+
+    /**
+     * Checks each of the given objects against the filter, returning an array holding whether each one matches, in
+     * the same order.
+     */
+    public boolean[] contains(List<byte[]> objects) {
+        boolean[] results = new boolean[objects.size()];
+        for (int i = 0; i < results.length; i++)
+            results[i] = contains(objects.get(i));
+        return results;
+    }
+
+    /** Returns true if any of the given objects matches the filter. */
+    public boolean containsAny(List<byte[]> objects) {
+        for (byte[] object : objects) {
+            if (contains(object))
+                return true;
+        }
+        return false;
+    }
     
     /**
      * Insert the given arbitrary data into the filter
      */
     public void insert(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+        insert(object, new int[(int) hashFuncs]);
+    }
+
+    /**
+     * Inserts all the given objects, as {@link #insert(byte[])} would one at a time. To fill a filter with the keys
+     * and outpoints of a large wallet, gather them into a list made large enough up front and insert them in one go.
+     */
+    public void insert(List<byte[]> objects) {
+        int[] bits = new int[(int) hashFuncs];
+        for (byte[] object : objects)
+            insert(object, bits);
+    }
+
+    private void insert(byte[] object, int[] bits) {
+        hashAll(object, 0, object.length, bits);
+        for (int bit : bits)
+            Utils.setBitLE(data, bit);
+    }
+
+    /**
+     * Returns true if the given transaction matches the filter the way a remote peer would match it, by its hash, any
+     * data pushed by its output scripts, the outpoints it spends or any data pushed by its input scripts. The filter
+     * isn't updated with the outpoints of matching outputs. Only the scripts of the transaction are looked at, so this
+     * doesn't parse its inputs and outputs.
+     */
+    public boolean matches(TransactionView tx) {
+        return match(tx, Utils.doubleDigest(tx.getBytes(), tx.getOffset(), tx.getLength()), 0, false);
+    }
+
+    /** Returns true if the given transaction matches the filter, see {@link #matches(TransactionView)}. */
+    public boolean matches(Transaction tx) throws ProtocolException {
+        return matches(TransactionView.of(tx));
+    }
+
+    /**
+     * Matches the given transaction as {@link #matches(TransactionView)} does, and then updates the filter the way a
+     * remote peer that was sent it does: the outpoint of each matching output is inserted if the {@link BloomUpdate}
+     * flag is UPDATE_ALL, or if it is UPDATE_P2PUBKEY_ONLY and the output pays to a key or to multisig. Transactions
+     * spending those outputs match from then on. Use this to filter blocks for a peer that sent us this filter.
+     */
+    public boolean matchAndUpdate(TransactionView tx) {
+        return match(tx, Utils.doubleDigest(tx.getBytes(), tx.getOffset(), tx.getLength()), 0, true);
+    }
+
+    /** As {@link #matchAndUpdate(TransactionView)}, for a transaction whose hash is in wire order at the given place. */
+    boolean matchAndUpdate(TransactionView tx, byte[] hash, int hashOffset) {
+        return match(tx, hash, hashOffset, true);
+    }
+
+    private boolean match(TransactionView tx, byte[] hash, int hashOffset, boolean update) {
+        boolean found = contains(hash, hashOffset, 32);
+        if (found && !update)
+            return true;
+        int flag = nFlags & 3;
+        for (int i = 0; i < tx.getOutputCount(); i++) {
+            if (!containsAnyData(tx, tx.getScriptPubKeyOffset(i), tx.getScriptPubKeyLength(i)))
+                continue;
+            found = true;
+            if (!update)
+                return true;
+            if (flag == BloomUpdate.UPDATE_ALL.ordinal() || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY.ordinal() &&
+                    (tx.findPubKey(i) >= 0 || tx.isSentToMultiSig(i)))) {
+                byte[] outpoint = new byte[36];
+                System.arraycopy(hash, hashOffset, outpoint, 0, 32);
+                Utils.uint32ToByteArrayLE(i, outpoint, 32);
+                insert(outpoint);
+            }
+        }
+        if (found)
+            return true;
+        byte[] bytes = tx.getBytes();
+        for (int i = 0; i < tx.getInputCount(); i++) {
+            if (contains(bytes, tx.getOutPointOffset(i), 36))
+                return true;
+            if (containsAnyData(tx, tx.getScriptSigOffset(i), tx.getScriptSigLength(i)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean containsAnyData(TransactionView tx, int offset, int length) {
+        // A script that doesn't parse is matched on the chunks before the point it goes wrong, as the reference
+        // client does.
+        int count = tx.chunks(offset, length);
+        if (count < 0)
+            count = -1 - count;
+        for (int i = 0; i < count; i++) {
+            int dataOffset = tx.chunkOffsets[i];
+            int dataLength = tx.chunkLengths[i];
+            if (dataOffset >= 0 && dataLength > 0 && contains(tx.getBytes(), dataOffset, dataLength))
+                return true;
+        }
+        return false;
     }
 
     /**
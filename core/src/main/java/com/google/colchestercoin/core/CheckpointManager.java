@@ -46,9 +46,10 @@ import static com.google.common.base.Preconditions.*;
  * </ol>
  *
  * <p>Checkpoints are used by the SPV {@link BlockChain} to initialize fresh
- * {@link com.google.colchestercoin.store.SPVBlockStore}s. They are not used by fully validating mode, which instead has a
- * different concept of checkpoints that are used to hard-code the validity of blocks that violate BIP30 (duplicate
- * coinbase transactions). Those "checkpoints" can be found in NetworkParameters.</p>
+ * {@link com.google.colchestercoin.store.SPVBlockStore}s. Fully validating mode has a different concept of checkpoints
+ * that are used to hard-code the validity of blocks that violate BIP30 (duplicate coinbase transactions). Those
+ * "checkpoints" can be found in NetworkParameters. It only uses these to skip running scripts when importing blocks in
+ * bulk, see {@link FullPrunedBlockChain#beginBulkImport(StoredBlock, int)}.</p>
  *
  * <p>The file format consists of the string "CHECKPOINTS 1", followed by a uint32 containing the number of signatures
  * to read. The value may not be larger than 256 (so it could have been a byte but isn't for historical reasons).
@@ -131,6 +132,11 @@ public class CheckpointManager {
         }
     }
 
+    /** Returns the checkpoint highest in the chain. */
+    public StoredBlock getLatestCheckpoint() {
+        return checkpoints.lastEntry().getValue();
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
         return checkpoints.size();
@@ -20,8 +20,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.colchestercoin.crypto.EncryptedPrivateKey;
 import com.google.colchestercoin.crypto.KeyCrypter;
 import com.google.colchestercoin.crypto.KeyCrypterException;
+import com.google.colchestercoin.crypto.PublicKeyCache;
+import com.google.colchestercoin.crypto.Secp256k1;
 import com.google.common.base.Preconditions;
 import com.google.colchestercoin.crypto.TransactionSignature;
+import com.google.colchestercoin.utils.Threading;
 import org.colchestercoin.NativeSecp256k1;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +48,11 @@ import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -117,6 +124,15 @@ public class ECKey implements Serializable {
      * (32 for the co-ordinate and 1 byte to represent the y bit).
      */
     public ECKey() {
+        creationTimeSeconds = Utils.now().getTime() / 1000;
+        if (backend == Backend.SECP256K1) {
+            BigInteger n = CURVE.getN();
+            do {
+                priv = new BigInteger(n.bitLength(), secureRandom);
+            } while (priv.signum() == 0 || priv.compareTo(n) >= 0);
+            pub = Secp256k1.publicKeyFromPrivate(priv, true);
+            return;
+        }
         ECKeyPairGenerator generator = new ECKeyPairGenerator();
         ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(CURVE, secureRandom);
         generator.init(keygenParams);
@@ -129,8 +145,6 @@ public class ECKey implements Serializable {
         ECPoint uncompressed = pubParams.getQ();
         ECPoint compressed = compressPoint(uncompressed);
         pub = compressed.getEncoded();
-
-        creationTimeSeconds = Utils.now().getTime() / 1000;
     }
 
     private static ECPoint compressPoint(ECPoint uncompressed) {
@@ -248,6 +262,8 @@ public class ECKey implements Serializable {
      * new BigInteger(1, bytes);</tt>
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        if (backend == Backend.SECP256K1)
+            return Secp256k1.publicKeyFromPrivate(privKey, compressed);
         ECPoint point = CURVE.getG().multiply(privKey);
         if (compressed)
             point = compressPoint(point);
@@ -256,8 +272,9 @@ public class ECKey implements Serializable {
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
     public byte[] getPubKeyHash() {
+        // A copy, as the cache's array is shared with everyone else who asks for the hash of this key.
         if (pubKeyHash == null)
-            pubKeyHash = Utils.sha256hash160(this.pub);
+            pubKeyHash = PublicKeyCache.getDefault().getHash160(this.pub).clone();
         return pubKeyHash;
     }
 
@@ -306,8 +323,7 @@ public class ECKey implements Serializable {
      * the RIPEMD-160 hash of the public key and is not the public key itself (which is too large to be convenient).
      */
     public Address toAddress(NetworkParameters params) {
-        byte[] hash160 = Utils.sha256hash160(pub);
-        return new Address(params, hash160);
+        return new Address(params, getPubKeyHash());
     }
 
     /**
@@ -421,6 +437,33 @@ public class ECKey implements Serializable {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    /** The implementations of the elliptic curve maths that can be used when native verification isn't enabled. */
+    public enum Backend {
+        /** Bouncy Castle's general purpose code, which works on any curve. */
+        BOUNCY_CASTLE,
+        /**
+         * {@link Secp256k1}, which only does secp256k1 but is several times faster. It is also stricter about public
+         * key encodings, as the reference client is.
+         */
+        SECP256K1
+    }
+
+    private static volatile Backend backend = Backend.BOUNCY_CASTLE;
+
+    /**
+     * Sets the implementation used for key generation, signing, verification and deriving public keys, including for
+     * {@link com.google.colchestercoin.crypto.DeterministicKey}s. The default is {@link Backend#BOUNCY_CASTLE}; set
+     * {@link Backend#SECP256K1} to use the faster code.
+     */
+    public static void setBackend(Backend backend) {
+        ECKey.backend = Preconditions.checkNotNull(backend);
+    }
+
+    /** Returns the implementation set by {@link #setBackend(Backend)}. */
+    public static Backend getBackend() {
+        return backend;
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using DER format, so you want {@link com.google.colchestercoin.core.ECKey.ECDSASignature#encodeToDER()}
@@ -460,10 +503,15 @@ public class ECKey implements Serializable {
             }
         }
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
+        BigInteger[] components;
+        if (backend == Backend.SECP256K1) {
+            components = Secp256k1.sign(input.getBytes(), privateKeyForSigning, secureRandom);
+        } else {
+            ECDSASigner signer = new ECDSASigner();
+            ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
+            signer.init(true, privKey);
+            components = signer.generateSignature(input.getBytes());
+        }
         final ECDSASignature signature = new ECDSASignature(components[0], components[1]);
         signature.ensureCanonical();
         return signature;
@@ -486,8 +534,11 @@ public class ECKey implements Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        if (backend == Backend.SECP256K1)
+            return Secp256k1.verify(data, signature.r, signature.s, pub);
+
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        ECPublicKeyParameters params = new ECPublicKeyParameters(PublicKeyCache.getDefault().getPoint(pub), CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -513,6 +564,73 @@ public class ECKey implements Serializable {
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /** A signature to be checked by {@link ECKey#verifyBatch(List)}: the hash that was signed, the signature and key. */
+    public static class SignatureCheck {
+        public final byte[] data;
+        public final ECDSASignature signature;
+        public final byte[] pub;
+
+        public SignatureCheck(byte[] data, ECDSASignature signature, byte[] pub) {
+            this.data = data;
+            this.signature = signature;
+            this.pub = pub;
+        }
+    }
+
+    // Below this many signatures per thread it costs more to hand the work to other threads than it saves.
+    private static final int MIN_SIGNATURES_PER_THREAD = 8;
+    private static final int BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * <p>Verifies many signatures, spreading the work across the {@link Threading#getCpuPool() CPU pool}. Each one is checked with
+     * {@link #verify(byte[], ECDSASignature, byte[])}, so native ECDSA verification is used when it is enabled.</p>
+     *
+     * <p>Unlike the single signature methods, a public key that can't be decoded just makes its signature invalid
+     * rather than throwing.</p>
+     *
+     * @return whether each signature is valid, in the same order as the checks
+     */
+    public static boolean[] verifyBatch(final List<SignatureCheck> checks) {
+        final boolean[] results = new boolean[checks.size()];
+        int threads = Math.max(1, Math.min(BATCH_THREADS, checks.size() / MIN_SIGNATURES_PER_THREAD));
+        int perThread = (checks.size() + threads - 1) / threads;
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(threads);
+        // Hand out all but the first share to the pool and do that one on this thread.
+        for (int start = perThread; start < checks.size(); start += perThread) {
+            final int from = start, to = Math.min(start + perThread, checks.size());
+            FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    verifyRange(checks, from, to, results);
+                }
+            }, null);
+            Threading.getCpuPool().execute(future);
+            futures.add(future);
+        }
+        verifyRange(checks, 0, Math.min(perThread, checks.size()), results);
+        try {
+            Threading.runOrAwait(futures);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    private static void verifyRange(List<SignatureCheck> checks, int from, int to, boolean[] results) {
+        if (FAKE_SIGNATURES) {
+            Arrays.fill(results, from, to, true);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            SignatureCheck check = checks.get(i);
+            try {
+                results[i] = verify(check.data, check.signature, check.pub);
+            } catch (RuntimeException e) {
+                results[i] = false;  // Spongycastle reports bad key encodings in various ways.
+            }
+        }
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.store.BlockStoreException;
+import com.google.colchestercoin.store.FullPrunedBlockStore;
+import com.google.colchestercoin.utils.Sha256HashMap;
+import com.google.colchestercoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link MemoryPool} that also holds on to the transactions it is given, up to a limit on their total size in
+ * bytes, and knows what each of them pays. A transaction's fee is worked out from the outputs it spends, which must
+ * belong to other transactions in the pool, be connected (as a wallet's own transactions are) or be found in the
+ * unspent outputs of a {@link FullPrunedBlockChain}, see {@link #setBlockChain(AbstractBlockChain)}. It can also be
+ * given to {@link #add(Transaction, BigInteger)}. A transaction whose fee isn't known counts as paying nothing, so
+ * without a full chain the fees of most relayed transactions, which spend confirmed outputs, are unknown.</p>
+ *
+ * <p>The pool tracks which of its transactions spend each other. When it is full it throws away the transaction with
+ * the lowest score, along with everything that spends it. The score is the higher of a transaction's own fee per
+ * kilobyte and that of it and all its descendants together, so a transaction that a well paying child depends on is
+ * kept. Of transactions with the same score, the oldest goes first. Transactions with more than {@link #MAX_ANCESTORS}
+ * ancestors in the pool, or that would give one of them more than {@link #MAX_DESCENDANTS} descendants, aren't kept.
+ * Transactions leave the pool once they are in the best chain.</p>
+ *
+ * <p>Lookups don't take any lock. Changes are made one at a time.</p>
+ */
+public class FeeRateMemoryPool extends MemoryPool {
+    private static final Logger log = LoggerFactory.getLogger(FeeRateMemoryPool.class);
+
+    /** The most ancestors a transaction in the pool can have, as in the reference client. */
+    public static final int MAX_ANCESTORS = 25;
+    /** The most descendants a transaction in the pool can have, as in the reference client. */
+    public static final int MAX_DESCENDANTS = 25;
+
+    // Few transactions are smaller than this, so it bounds how many a pool can hold, which is how many the underlying
+    // MemoryPool needs to track.
+    private static final int SMALL_TRANSACTION_SIZE = 200;
+
+    private final long maxBytes;
+    private final ReentrantLock indexLock = Threading.lock("feeratepool");
+    private final ConcurrentHashMap<Sha256Hash, Entry> entries = new ConcurrentHashMap<Sha256Hash, Entry>();
+    private final ConcurrentSkipListSet<Score> byScore = new ConcurrentSkipListSet<Score>();
+    // The transactions in the pool by the hash of each transaction they spend, whether or not that one is in the pool.
+    @GuardedBy("indexLock") private final Sha256HashMap<Set<Entry>> spenders = new Sha256HashMap<Set<Entry>>();
+    @GuardedBy("indexLock") private long nextSequence;
+    private volatile long totalBytes;
+    private volatile long evictions;
+    // Where the values of confirmed outputs are looked up, if anywhere.
+    @Nullable private volatile FullPrunedBlockStore unspentOutputs;
+
+    // Takes transactions out of the pool once they are in the best chain.
+    private final TransactionConfidence.Listener confirmationListener = new TransactionConfidence.Listener() {
+        @Override
+        public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+            if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                remove(tx.getHash());
+        }
+    };
+    private final AbstractBlockChainListener blockListener = new AbstractBlockChainListener() {
+        @Override
+        public boolean isTransactionRelevant(Transaction tx) {
+            return contains(tx.getHash());
+        }
+
+        @Override
+        public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                     int relativityOffset) {
+            if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+                remove(tx.getHash());
+        }
+
+        @Override
+        public void notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, BlockChain.NewBlockType blockType,
+                                               int relativityOffset) {
+            if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+                remove(txHash);
+        }
+    };
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash hash;
+        final int size;
+        @Nullable final BigInteger givenFee;
+        // The values of the outputs spent that were known when the transaction was added, or -1 for those that weren't.
+        @Nullable final long[] inputValues;
+        // Orders transactions with the same score, oldest first.
+        final long sequence;
+        // The fee can only go from unknown to known, when a transaction it spends turns up.
+        volatile long fee;
+        volatile boolean feeKnown;
+        // The rest is guarded by indexLock.
+        final Set<Entry> parents = new HashSet<Entry>();
+        final Set<Entry> children = new HashSet<Entry>();
+        int descendantCount;
+        Score score;
+
+        Entry(Transaction tx, @Nullable BigInteger givenFee, @Nullable long[] inputValues, long sequence) {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.size = tx.getMessageSize();
+            this.givenFee = givenFee;
+            this.inputValues = inputValues;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Score implements Comparable<Score> {
+        final long feePerKb;
+        final Entry entry;
+
+        Score(long feePerKb, Entry entry) {
+            this.feePerKb = feePerKb;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Score other) {
+            if (feePerKb != other.feePerKb)
+                return feePerKb < other.feePerKb ? -1 : 1;
+            if (entry.sequence != other.entry.sequence)
+                return entry.sequence < other.entry.sequence ? -1 : 1;
+            return 0;
+        }
+    }
+
+    /**
+     * Creates a pool that holds transactions adding up to at most maxBytes when serialized, and tracks the confidence
+     * of as many as could fit in that space.
+     */
+    public FeeRateMemoryPool(long maxBytes) {
+        super((int) Math.min(Integer.MAX_VALUE, Math.max(MAX_SIZE, maxBytes / SMALL_TRANSACTION_SIZE)));
+        checkArgument(maxBytes > 0);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Has the pool drop transactions as blocks including them arrive on the given chain. If it is a
+     * {@link FullPrunedBlockChain}, the values of the confirmed outputs that transactions spend are also looked up in
+     * its unspent outputs, so that their fees are known. A {@link PeerGroup} does this for the pool and chain it's given.
+     */
+    public void setBlockChain(AbstractBlockChain chain) {
+        chain.addListener(blockListener);
+        if (chain instanceof FullPrunedBlockChain)
+            unspentOutputs = ((FullPrunedBlockChain) chain).blockStore;
+    }
+
+    /**
+     * As {@link MemoryPool#intern(Transaction)}, then adds the transaction to the pool. Transactions that peers send
+     * are added this way.
+     */
+    @Override
+    public Transaction intern(Transaction tx) {
+        Transaction interned = super.intern(tx);
+        add(interned, null);
+        return interned;
+    }
+
+    /**
+     * Adds the transaction to the pool, unless it is already there. Coinbase transactions are never added, nor are
+     * transactions already in the best chain.
+     *
+     * @param fee the fee the transaction pays, if the caller knows it, or null to work it out from the outputs spent.
+     * @return true if the transaction is in the pool, false if it had too many relatives or was the first to be thrown
+     * away to make room.
+     */
+    public boolean add(Transaction tx, @Nullable BigInteger fee) {
+        if (entries.containsKey(tx.getHash()))
+            return true;
+        if (tx.isCoinBase() || tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            return false;
+        // Looked up before taking the lock, as it may mean reading the store.
+        long[] inputValues = fee == null ? inputValues(tx) : null;
+        indexLock.lock();
+        try {
+            if (entries.containsKey(tx.getHash()))
+                return true;
+            Entry entry = new Entry(tx, fee, inputValues, nextSequence++);
+            for (TransactionInput input : tx.getInputs()) {
+                Entry parent = entries.get(input.getOutpoint().getHash());
+                if (parent != null)
+                    entry.parents.add(parent);
+            }
+            Set<Entry> ancestors = ancestors(entry);
+            if (ancestors.size() > MAX_ANCESTORS) {
+                log.debug("Not keeping {}, it has {} ancestors", entry.hash, ancestors.size());
+                return false;
+            }
+            for (Entry ancestor : ancestors) {
+                if (ancestor.descendantCount >= MAX_DESCENDANTS) {
+                    log.debug("Not keeping {}, {} already has {} descendants", entry.hash, ancestor.hash,
+                            ancestor.descendantCount);
+                    return false;
+                }
+            }
+
+            for (Entry parent : entry.parents)
+                parent.children.add(entry);
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash spent = input.getOutpoint().getHash();
+                Set<Entry> set = spenders.get(spent);
+                if (set == null)
+                    spenders.put(spent, set = new HashSet<Entry>());
+                set.add(entry);
+            }
+            // Anything that arrived before this transaction and spends it.
+            Set<Entry> waiting = spenders.get(entry.hash);
+            if (waiting != null) {
+                for (Entry child : waiting) {
+                    child.parents.add(entry);
+                    entry.children.add(child);
+                }
+            }
+            entries.put(entry.hash, entry);
+            totalBytes += entry.size;
+            tx.getConfidence().addEventListener(confirmationListener);
+
+            // The new transaction's fee, and perhaps those of its children, are now known, which changes the scores of
+            // all their ancestors.
+            Set<Entry> changed = new HashSet<Entry>(ancestors);
+            changed.add(entry);
+            updateFee(entry);
+            for (Entry child : entry.children) {
+                updateFee(child);
+                changed.add(child);
+                changed.addAll(ancestors(child));
+            }
+            for (Entry e : changed)
+                rescore(e);
+
+            while (totalBytes > maxBytes) {
+                Entry worst = byScore.first().entry;
+                Set<Entry> evicted = descendants(worst);
+                evicted.add(worst);
+                log.debug("Pool is full, evicting {} and {} descendants", worst.hash, evicted.size() - 1);
+                remove(evicted);
+                evictions += evicted.size();
+            }
+            return entries.containsKey(entry.hash);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the transaction from the pool, for instance because it has been included in a block, leaving anything
+     * that spends it in place.
+     *
+     * @return true if it was in the pool.
+     */
+    public boolean remove(Sha256Hash hash) {
+        indexLock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            if (entry == null)
+                return false;
+            remove(Collections.singleton(entry));
+            return true;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    @GuardedBy("indexLock")
+    private void remove(Set<Entry> removed) {
+        Set<Entry> affected = new HashSet<Entry>();
+        for (Entry entry : removed)
+            affected.addAll(ancestors(entry));
+        affected.removeAll(removed);
+        for (Entry entry : removed) {
+            entries.remove(entry.hash);
+            entry.tx.getConfidence().removeEventListener(confirmationListener);
+            byScore.remove(entry.score);
+            totalBytes -= entry.size;
+            for (Entry parent : entry.parents)
+                parent.children.remove(entry);
+            for (Entry child : entry.children)
+                child.parents.remove(entry);
+            for (TransactionInput input : entry.tx.getInputs()) {
+                Sha256Hash spent = input.getOutpoint().getHash();
+                Set<Entry> set = spenders.get(spent);
+                if (set != null && set.remove(entry) && set.isEmpty())
+                    spenders.remove(spent);
+            }
+        }
+        for (Entry entry : affected)
+            rescore(entry);
+    }
+
+    // The values of the outputs the transaction spends that can be found outside the pool: connected ones, and those in
+    // the store of unspent outputs if there is one. Ones that can't are -1.
+    private long[] inputValues(Transaction tx) {
+        FullPrunedBlockStore store = unspentOutputs;
+        List<TransactionInput> inputs = tx.getInputs();
+        long[] values = new long[inputs.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = -1;
+            TransactionInput input = inputs.get(i);
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null) {
+                values[i] = connected.getValue().longValue();
+            } else if (store != null && !entries.containsKey(input.getOutpoint().getHash())) {
+                try {
+                    StoredTransactionOutput output = store.getTransactionOutput(input.getOutpoint().getHash(),
+                            input.getOutpoint().getIndex());
+                    if (output != null)
+                        values[i] = output.getValue().longValue();
+                } catch (BlockStoreException e) {
+                    log.warn("Could not look up the output spent by " + tx.getHashAsString(), e);
+                }
+            }
+        }
+        return values;
+    }
+
+    @GuardedBy("indexLock")
+    private void updateFee(Entry entry) {
+        if (entry.feeKnown)
+            return;
+        if (entry.givenFee != null) {
+            entry.fee = entry.givenFee.longValue();
+            entry.feeKnown = true;
+            return;
+        }
+        long valueIn = 0;
+        List<TransactionInput> inputs = entry.tx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            if (entry.inputValues != null && entry.inputValues[i] >= 0) {
+                valueIn += entry.inputValues[i];
+                continue;
+            }
+            TransactionOutput spent = input.getConnectedOutput();
+            if (spent == null) {
+                Entry parent = entries.get(input.getOutpoint().getHash());
+                long index = input.getOutpoint().getIndex();
+                if (parent == null || index >= parent.tx.getOutputs().size())
+                    return;
+                spent = parent.tx.getOutput((int) index);
+            }
+            valueIn += spent.getValue().longValue();
+        }
+        long valueOut = 0;
+        for (TransactionOutput output : entry.tx.getOutputs())
+            valueOut += output.getValue().longValue();
+        if (valueIn < valueOut)
+            return;  // Not a valid transaction, so treat it as paying nothing.
+        entry.fee = valueIn - valueOut;
+        entry.feeKnown = true;
+    }
+
+    @GuardedBy("indexLock")
+    private void rescore(Entry entry) {
+        Set<Entry> descendants = descendants(entry);
+        long fee = entry.fee, size = entry.size;
+        for (Entry descendant : descendants) {
+            fee += descendant.fee;
+            size += descendant.size;
+        }
+        entry.descendantCount = descendants.size();
+        if (entry.score != null)
+            byScore.remove(entry.score);
+        entry.score = new Score(Math.max(entry.fee * 1000 / entry.size, fee * 1000 / size), entry);
+        byScore.add(entry.score);
+    }
+
+    @GuardedBy("indexLock")
+    private static Set<Entry> ancestors(Entry entry) {
+        Set<Entry> result = new HashSet<Entry>();
+        LinkedList<Entry> queue = new LinkedList<Entry>(entry.parents);
+        while (!queue.isEmpty()) {
+            Entry next = queue.poll();
+            if (result.add(next))
+                queue.addAll(next.parents);
+        }
+        return result;
+    }
+
+    @GuardedBy("indexLock")
+    private static Set<Entry> descendants(Entry entry) {
+        Set<Entry> result = new HashSet<Entry>();
+        LinkedList<Entry> queue = new LinkedList<Entry>(entry.children);
+        while (!queue.isEmpty()) {
+            Entry next = queue.poll();
+            if (result.add(next))
+                queue.addAll(next.children);
+        }
+        return result;
+    }
+
+    /** Returns true if the transaction is in the pool. */
+    public boolean contains(Sha256Hash hash) {
+        return entries.containsKey(hash);
+    }
+
+    /** Returns the fee the transaction pays, or null if it isn't in the pool or its fee isn't known. */
+    @Nullable
+    public BigInteger getFee(Sha256Hash hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null || !entry.feeKnown)
+            return null;
+        return BigInteger.valueOf(entry.fee);
+    }
+
+    /**
+     * Returns the fee the transaction pays per 1000 bytes of its size, or null if it isn't in the pool or its fee
+     * isn't known.
+     */
+    @Nullable
+    public BigInteger getFeePerKb(Sha256Hash hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null || !entry.feeKnown)
+            return null;
+        return BigInteger.valueOf(entry.fee * 1000 / entry.size);
+    }
+
+    /**
+     * Returns up to maxCount transactions with the highest scores first. While the pool is changing the list may
+     * include transactions that have just been removed or miss some that were just added.
+     */
+    public List<Transaction> getTransactionsByScore(int maxCount) {
+        List<Transaction> result = new ArrayList<Transaction>(Math.min(maxCount, entries.size()));
+        for (Iterator<Score> it = byScore.descendingIterator(); it.hasNext() && result.size() < maxCount; )
+            result.add(it.next().entry.tx);
+        return result;
+    }
+
+    /** Returns the hashes of the transactions in the pool that the given one depends on, directly or not. */
+    public Set<Sha256Hash> getAncestors(Sha256Hash hash) {
+        indexLock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry == null ? Collections.<Sha256Hash>emptySet() : hashes(ancestors(entry));
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /** Returns the hashes of the transactions in the pool that depend on the given one, directly or not. */
+    public Set<Sha256Hash> getDescendants(Sha256Hash hash) {
+        indexLock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry == null ? Collections.<Sha256Hash>emptySet() : hashes(descendants(entry));
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private static Set<Sha256Hash> hashes(Set<Entry> entries) {
+        Set<Sha256Hash> result = new HashSet<Sha256Hash>();
+        for (Entry entry : entries)
+            result.add(entry.hash);
+        return result;
+    }
+
+    /** Returns the number of transactions in the pool. */
+    public int getTransactionCount() {
+        return entries.size();
+    }
+
+    /** Returns the total serialized size of the transactions in the pool. */
+    public long getSizeInBytes() {
+        return totalBytes;
+    }
+
+    /** Returns the most bytes of transactions the pool will hold. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Returns the number of transactions that have been thrown away to make room for better paying ones. */
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d transactions, %d of %d KB, %d evicted", entries.size(), totalBytes / 1024,
+                maxBytes / 1024, evictions);
+    }
+}
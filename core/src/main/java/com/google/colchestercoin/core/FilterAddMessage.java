@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The "filteradd" message of BIP 37 asks a remote peer to insert one more object into the Bloom filter loaded on the
+ * connection with a filterload message, without sending the whole filter again. The object can be no bigger than the
+ * biggest data push a script may contain.
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Creates a message asking for the given object to be inserted into the peer's filter. */
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= Script.MAX_SCRIPT_ELEMENT_SIZE, "Object too big for a filteradd");
+        this.data = data;
+    }
+
+    /** Returns the object to insert into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("filteradd object too big: " + data.length + " bytes");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {}
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+}
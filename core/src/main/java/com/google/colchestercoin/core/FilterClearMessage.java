@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The "filterclear" message of BIP 37 asks a remote peer to drop the Bloom filter loaded on the connection, so that
+ * it goes back to relaying everything. The filterclear message has no fields.
+ */
+public class FilterClearMessage extends Message {
+    @Override
+    void parse() throws ProtocolException {}
+
+    @Override
+    protected void parseLite() throws ProtocolException {}
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {}
+}
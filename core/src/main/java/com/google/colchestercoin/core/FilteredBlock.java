@@ -40,6 +40,17 @@ public class FilteredBlock extends Message {
     public FilteredBlock(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
         super(params, payloadBytes, 0);
     }
+
+    /**
+     * Makes a filtered block to send to a peer out of the header of a block and the partial tree of its transactions
+     * that matched the peer's filter.
+     */
+    public FilteredBlock(NetworkParameters params, Block header, PartialMerkleTree pmt) {
+        super(params);
+        this.header = header;
+        this.merkleTree = pmt;
+        length = Block.HEADER_SIZE + pmt.getMessageSize();
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         if (header.transactions == null)
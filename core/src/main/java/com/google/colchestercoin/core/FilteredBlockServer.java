@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Serves filtered blocks to light clients, as a full node does for BIP 37. A client sends a Bloom filter in a
+ * filterload message and then asks for blocks with getdata items of type {@link InventoryItem.Type#FilteredBlock}.
+ * Each is answered with a {@link FilteredBlock} holding the partial Merkle tree of the transactions that matched,
+ * followed by those transactions. Matching updates the client's filter as its {@link BloomFilter.BloomUpdate} flag
+ * asks, just as the reference client does.</p>
+ *
+ * <p>Give one to {@link PeerGroup#setFilteredBlockServer(FilteredBlockServer)}. It then keeps the filter of every
+ * connected peer and the most recent full blocks downloaded, and answers getdata through the group. More blocks can be
+ * added with {@link #addBlock(Block)}.</p>
+ *
+ * <p>Everything that doesn't depend on the filter is worked out once per block when it is added: where each
+ * transaction starts, their hashes and the whole Merkle tree. Serving a block to a peer is then only a matter of
+ * running the peer's filter over the transactions, without parsing them, and picking hashes out of the tree.</p>
+ *
+ * <p>Clients may also add to their filter with filteradd, or drop it with filterclear, after which nothing is served
+ * to them until they load another.</p>
+ *
+ * <p>This class is thread safe. Each peer's filter is only used on that peer's thread.</p>
+ */
+public class FilteredBlockServer extends AbstractPeerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(FilteredBlockServer.class);
+
+    /** How many blocks are kept to be served, unless a different number is given. */
+    public static final int DEFAULT_BLOCKS_KEPT = 144;
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Threading.lock("filteredblockserver");
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, ServedBlock> blocks;
+    private final ConcurrentHashMap<Peer, BloomFilter> filters = new ConcurrentHashMap<Peer, BloomFilter>();
+
+    // A block ready to be filtered for any number of peers.
+    private static class ServedBlock {
+        final Block header;
+        final byte[] bytes;
+        final int[] offsets;
+        // Every level of the Merkle tree, starting with the transaction hashes, in wire order.
+        final byte[] tree;
+
+        ServedBlock(Block block) throws VerificationException {
+            header = block.cloneAsHeader();
+            bytes = block.bitcoinSerialize();
+            BlockView view = BlockView.of(block.getParams(), bytes);
+            int count = view.getTransactionCount();
+            if (count == 0)
+                throw new VerificationException("Block " + block.getHashAsString() + " has no transactions");
+            offsets = new int[count];
+            byte[] leaves = new byte[count * 32];
+            for (int i = 0; i < count; i++) {
+                TransactionView tx = view.nextTransaction();
+                offsets[i] = tx.getOffset();
+                Utils.doubleDigest(bytes, tx.getOffset(), tx.getLength(), leaves, i * 32);
+            }
+            tree = MerkleTree.calculateTree(leaves, count);
+            byte[] root = header.getMerkleRoot().getBytes();
+            for (int j = 0; j < 32; j++) {
+                if (tree[tree.length - 1 - j] != root[j])
+                    throw new VerificationException("Merkle root of block " + block.getHashAsString() +
+                            " doesn't match its transactions");
+            }
+        }
+    }
+
+    public FilteredBlockServer(NetworkParameters params) {
+        this(params, DEFAULT_BLOCKS_KEPT);
+    }
+
+    /** Makes a server that keeps the given number of the blocks most recently added. */
+    public FilteredBlockServer(NetworkParameters params, final int blocksKept) {
+        checkArgument(blocksKept > 0, "Must keep at least one block");
+        this.params = params;
+        this.blocks = new LinkedHashMap<Sha256Hash, ServedBlock>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, ServedBlock> eldest) {
+                return size() > blocksKept;
+            }
+        };
+    }
+
+    /**
+     * Makes the given full block available to be served, putting aside the least recently served one if there are
+     * already as many as this server keeps.
+     *
+     * @throws VerificationException if the block has no transactions, or they don't parse or don't match its Merkle
+     * root
+     */
+    public void addBlock(Block block) throws VerificationException {
+        ServedBlock served = new ServedBlock(block);
+        lock.lock();
+        try {
+            blocks.put(block.getHash(), served);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the block with the given hash can be served. */
+    public boolean hasBlock(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return blocks.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Filters the block with the given hash for a client, updating the filter as the client expects. Returns the
+     * {@link FilteredBlock} followed by the transactions that matched, in block order, or null if the block isn't kept
+     * here. The filter mustn't be used by another thread at the same time.
+     */
+    @Nullable
+    public List<Message> serve(Sha256Hash blockHash, BloomFilter filter) throws ProtocolException {
+        ServedBlock block;
+        lock.lock();
+        try {
+            block = blocks.get(blockHash);
+        } finally {
+            lock.unlock();
+        }
+        if (block == null)
+            return null;
+        TransactionView tx = new TransactionView(params);
+        boolean[] matched = new boolean[block.offsets.length];
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(null);
+        for (int i = 0; i < matched.length; i++) {
+            tx.wrap(block.bytes, block.offsets[i]);
+            if (filter.matchAndUpdate(tx, block.tree, i * 32)) {
+                matched[i] = true;
+                messages.add(tx.toTransaction());
+            }
+        }
+        PartialMerkleTree partialTree = PartialMerkleTree.buildFromTree(params, matched, block.tree);
+        messages.set(0, new FilteredBlock(params, block.header, partialTree));
+        return messages;
+    }
+
+    /**
+     * Answers the filtered block items of a getdata from the given peer, with the filter it loaded. Items for blocks
+     * that aren't kept here are left out, as is everything if the peer never loaded a filter.
+     */
+    public List<Message> serve(Peer peer, GetDataMessage getdata) {
+        BloomFilter filter = filters.get(peer);
+        if (filter == null)
+            return Collections.emptyList();
+        List<Message> messages = new ArrayList<Message>();
+        for (InventoryItem item : getdata.getItems()) {
+            if (item.type != InventoryItem.Type.FilteredBlock)
+                continue;
+            try {
+                List<Message> served = serve(item.hash, filter);
+                if (served != null)
+                    messages.addAll(served);
+            } catch (ProtocolException e) {
+                // Can't happen, the block was parsed when it was added.
+                throw new RuntimeException(e);
+            }
+        }
+        return messages;
+    }
+
+    /** Returns the filter the given peer loaded, or null if it didn't. */
+    @Nullable
+    public BloomFilter getFilter(Peer peer) {
+        return filters.get(peer);
+    }
+
+    /** Forgets the filter of a peer that went away. */
+    public void removePeer(Peer peer) {
+        filters.remove(peer);
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        if (m instanceof BloomFilter) {
+            // A new filter replaces the old one, along with everything matching added to it.
+            filters.put(peer, (BloomFilter) m);
+            return null;
+        }
+        if (m instanceof FilterAddMessage) {
+            BloomFilter filter = filters.get(peer);
+            if (filter == null)
+                log.debug("{}: filteradd without a filter loaded", peer);
+            else
+                filter.insert(((FilterAddMessage) m).getData());
+            return null;
+        }
+        if (m instanceof FilterClearMessage) {
+            filters.remove(peer);
+            return null;
+        }
+        return m;
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+        // Blocks downloaded by a light client come without their transactions, and there is nothing to serve in them.
+        if (block.transactions == null)
+            return;
+        try {
+            addBlock(block);
+        } catch (VerificationException e) {
+            log.warn("{}: Not serving block {}: {}", peer, block.getHashAsString(), e.getMessage());
+        }
+    }
+}
@@ -17,18 +17,23 @@
 package com.google.colchestercoin.core;
 
 import com.google.colchestercoin.script.Script;
+import com.google.colchestercoin.script.SignatureCache;
 import com.google.colchestercoin.store.BlockStoreException;
 import com.google.colchestercoin.store.FullPrunedBlockStore;
+import com.google.colchestercoin.utils.Threading;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -48,6 +53,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Bulk import state, see beginBulkImport().
+    @GuardedBy("lock") private boolean bulkImport;
+    @GuardedBy("lock") private int blocksPerCommit;
+    @GuardedBy("lock") private int blocksSinceCommit;
+    @GuardedBy("lock") @Nullable private StoredBlock trustedCheckpoint;
+
+    // Time spent on each part of connecting blocks, see getImportStatistics().
+    @GuardedBy("lock") private int blocksConnected, commits;
+    @GuardedBy("lock") private long connectNanos, scriptNanos, commitNanos;
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -108,17 +123,167 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public void setRunScripts(boolean value) {
         this.runScripts = value;
     }
+
+    /**
+     * <p>Starts importing blocks in bulk, for instance from the reference client's block files with a
+     * {@link com.google.colchestercoin.utils.BlockFileLoader}. Until {@link #endBulkImport()} is called:</p>
+     *
+     * <ul>
+     *     <li>Blocks are written to the store in batches of blocksPerCommit, instead of in a database transaction
+     *     each. If a block fails to verify, the blocks added since the last commit are thrown away with it and the chain
+     *     head goes back to the last block that was committed.</li>
+     *     <li>If trustedCheckpoint isn't null, scripts aren't run for blocks at or below its height, provided the block
+     *     at its height is the checkpoint. Everything else, including the unspent outputs, BIP30, sigops, values and
+     *     fees, is still checked. {@link CheckpointManager#getLatestCheckpoint()} is the usual choice. As whether the
+     *     blocks lead to the checkpoint is only known once its height is reached, nothing is committed until then: the
+     *     blocks up to the checkpoint go into the store in one batch, which it must be able to hold. If the block at the
+     *     checkpoint's height is another one, a VerificationException is thrown and the whole batch is thrown away,
+     *     as it is if the import ends before the checkpoint is reached.</li>
+     * </ul>
+     *
+     * <p>Blocks are read ahead and parsed in parallel by the loader, and scripts are run on all cores while the
+     * unspent outputs are updated, but commits happen on the thread adding blocks, as the store's batch belongs to
+     * it. The time spent on each is recorded from here on, see {@link #getImportStatistics()}.</p>
+     */
+    public void beginBulkImport(@Nullable StoredBlock trustedCheckpoint, int blocksPerCommit) {
+        checkArgument(blocksPerCommit > 0);
+        lock.lock();
+        try {
+            checkState(!bulkImport, "Already importing in bulk");
+            bulkImport = true;
+            this.blocksPerCommit = blocksPerCommit;
+            this.trustedCheckpoint = trustedCheckpoint;
+            blocksSinceCommit = 0;
+            blocksConnected = commits = 0;
+            connectNanos = scriptNanos = commitNanos = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the blocks added since the last commit and goes back to committing each block as it is added. If the
+     * trusted checkpoint wasn't reached, the blocks whose scripts weren't run are thrown away instead.
+     */
+    public void endBulkImport() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkState(bulkImport, "Not importing in bulk");
+            if (isBelowTrustedCheckpoint(chainHead))
+                abortBatch();
+            else if (blocksSinceCommit > 0)
+                commit(chainHead);
+            bulkImport = false;
+            trustedCheckpoint = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks have been connected and where the time went, since bulk import was begun. */
+    public ImportStatistics getImportStatistics() {
+        lock.lock();
+        try {
+            return new ImportStatistics(blocksConnected, commits, connectNanos, scriptNanos, commitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The work done connecting blocks, as returned by {@link #getImportStatistics()}. */
+    public static class ImportStatistics {
+        private final int blocks, commits;
+        private final long connectNanos, scriptNanos, commitNanos;
+
+        ImportStatistics(int blocks, int commits, long connectNanos, long scriptNanos, long commitNanos) {
+            this.blocks = blocks;
+            this.commits = commits;
+            this.connectNanos = connectNanos;
+            this.scriptNanos = scriptNanos;
+            this.commitNanos = commitNanos;
+        }
+
+        /** Returns the number of blocks whose transactions were connected to the best chain. */
+        public int getBlocks() {
+            return blocks;
+        }
+
+        /** Returns the number of times a batch of blocks was committed to the store. */
+        public int getCommits() {
+            return commits;
+        }
+
+        /** Returns the nanoseconds spent checking transactions against the unspent outputs and updating them. */
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        /** Returns the nanoseconds spent waiting for scripts to finish running once the outputs were updated. */
+        public long getScriptNanos() {
+            return scriptNanos;
+        }
+
+        /** Returns the nanoseconds spent committing to the store. */
+        public long getCommitNanos() {
+            return commitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks in %d commits: %d ms connecting, %d ms waiting for scripts, %d ms committing",
+                    blocks, commits, connectNanos / 1000000, scriptNanos / 1000000, commitNanos / 1000000);
+        }
+    }
+
+    // Whether the block at the given height is covered by the trusted checkpoint, so its scripts needn't be run.
+    private boolean isTrusted(int height, Sha256Hash hash) throws VerificationException {
+        if (trustedCheckpoint == null || height > trustedCheckpoint.getHeight())
+            return false;
+        if (height == trustedCheckpoint.getHeight() && !hash.equals(trustedCheckpoint.getHeader().getHash()))
+            throw new VerificationException("Block at height " + height + " is not the trusted checkpoint");
+        return true;
+    }
+
+    // Whether the given head may include blocks whose scripts weren't run, as the checkpoint hasn't been reached yet.
+    private boolean isBelowTrustedCheckpoint(StoredBlock head) {
+        return trustedCheckpoint != null && head.getHeight() < trustedCheckpoint.getHeight();
+    }
     
     //TODO: Remove lots of duplicated code in the two connectTransactions
+
+    // Waits for the script checks handed to the CPU pool, running any that no thread has started yet on this one.
+    private static void awaitScriptVerification(List<FutureTask<VerificationException>> futures) throws VerificationException {
+        for (FutureTask<VerificationException> future : futures) {
+            future.run();
+            VerificationException e;
+            try {
+                e = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            if (e != null)
+                throw e;
+        }
+    }
+
+    // The pool is shared, so rather than shutting it down, drop the checks of a failed block that haven't started.
+    private static void cancelScriptVerification(List<FutureTask<VerificationException>> futures) {
+        for (FutureTask<VerificationException> future : futures)
+            future.cancel(false);
+    }
     
     // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-    /** A job submitted to the executor which verifies signatures. */
+    /**
+     * A job submitted to the executor which verifies signatures. The signature checks of standard pay to address
+     * inputs are left in deferredChecks, to be done for the whole block at once by {@link #verifyDeferredChecks(List)}.
+     */
     private static class Verifier implements Callable<VerificationException> {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final boolean enforcePayToScriptHash;
+        final List<ECKey.SignatureCheck> deferredChecks = new ArrayList<ECKey.SignatureCheck>();
 
         public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
             this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
@@ -129,7 +294,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             try{
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
                 for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(),
+                            enforcePayToScriptHash, deferredChecks);
                 }
             } catch (VerificationException e) {
                 return e;
@@ -137,6 +303,28 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             return null;
         }
     }
+
+    // Verifies the signature checks left by the given verifiers, which must all have finished, as one batch spread
+    // across all the cores.
+    private static void verifyDeferredChecks(List<Verifier> verifiers) throws VerificationException {
+        List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+        for (Verifier verifier : verifiers)
+            checks.addAll(verifier.deferredChecks);
+        for (boolean valid : SignatureCache.getDefault().verifyBatch(checks))
+            if (!valid)
+                throw new ScriptException("Script resulted in a non-true stack");
+    }
+
+    // Adds a value to a running total of values, both in nanocoins, throwing if either is out of range. Checking as
+    // the total grows keeps it from overflowing a long.
+    private static long addValue(long total, long value, String message) throws VerificationException {
+        if (value < 0 || value > NetworkParameters.MAX_MONEY_NANOCOINS)
+            throw new VerificationException(message);
+        total += value;
+        if (total > NetworkParameters.MAX_MONEY_NANOCOINS)
+            throw new VerificationException(message);
+        return total;
+    }
     
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
@@ -146,6 +334,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
+        final boolean checkScripts = runScripts && !isTrusted(height, block.getHash());
+        long start = System.nanoTime();
 
         blockStore.beginDatabaseBatchWrite();
 
@@ -154,10 +344,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        List<FutureTask<VerificationException>> listScriptVerificationResults = new ArrayList<FutureTask<VerificationException>>(block.transactions.size());
+        List<Verifier> verifiers = new ArrayList<Verifier>(block.transactions.size());
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -173,12 +361,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
-            BigInteger totalFees = BigInteger.ZERO;
-            BigInteger coinbaseValue = null;
+            long totalFees = 0;
+            long coinbaseValue = 0;
             for (final Transaction tx : block.transactions) {
                 boolean isCoinBase = tx.isCoinBase();
-                BigInteger valueIn = BigInteger.ZERO;
-                BigInteger valueOut = BigInteger.ZERO;
+                long valueIn = 0;
+                long valueOut = 0;
                 final List<Script> prevOutScripts = new LinkedList<Script>();
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -195,7 +383,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
                             throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
                         // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
-                        valueIn = valueIn.add(prevOut.getValue());
+                        valueIn = addValue(valueIn, prevOut.getValueAsLong(), "Transaction input value out of range");
                         if (enforcePayToScriptHash) {
                             if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
                                 sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
@@ -213,54 +401,49 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 Sha256Hash hash = tx.getHash();
                 for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
+                    valueOut = addValue(valueOut, out.getValueAsLong(), "Transaction output value out of rage");
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
+                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValueAsLong(),
                             height, isCoinBase, out.getScriptBytes());
                     blockStore.addUnspentTransactionOutput(newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
                 // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
+                if (valueOut < 0 || valueOut > NetworkParameters.MAX_MONEY_NANOCOINS)
                     throw new VerificationException("Transaction output value out of rage");
                 if (isCoinBase) {
                     coinbaseValue = valueOut;
                 } else {
-                    if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
+                    if (valueIn < valueOut || valueIn > NetworkParameters.MAX_MONEY_NANOCOINS)
                         throw new VerificationException("Transaction input value out of range");
-                    totalFees = totalFees.add(valueIn.subtract(valueOut));
+                    totalFees = addValue(totalFees, valueIn - valueOut, "Transaction fees out of range");
                 }
                 
-                if (!isCoinBase && runScripts) {
+                if (!isCoinBase && checkScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
+                    Verifier verifier = new Verifier(tx, prevOutScripts, enforcePayToScriptHash);
+                    verifiers.add(verifier);
+                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
+                    Threading.getCpuPool().execute(future);
                     listScriptVerificationResults.add(future);
                 }
             }
-            if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
+            if (block.getBlockInflation(height).longValue() + totalFees < coinbaseValue)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            long scriptStart = System.nanoTime();
+            connectNanos += scriptStart - start;
+            awaitScriptVerification(listScriptVerificationResults);
+            verifyDeferredChecks(verifiers);
+            scriptNanos += System.nanoTime() - scriptStart;
+            blocksConnected++;
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            cancelScriptVerification(listScriptVerificationResults);
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            cancelScriptVerification(listScriptVerificationResults);
+            abortBatch();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
@@ -275,15 +458,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
+        final boolean checkScripts = !isTrusted(newBlock.getHeight(), newBlock.getHeader().getHash());
         
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
             // We're trying to re-org too deep and the data needed has been deleted.
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        List<FutureTask<VerificationException>> listScriptVerificationResults = new ArrayList<FutureTask<VerificationException>>(0);
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -298,16 +483,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
-                BigInteger totalFees = BigInteger.ZERO;
-                BigInteger coinbaseValue = null;
+                long totalFees = 0;
+                long coinbaseValue = 0;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                listScriptVerificationResults = new ArrayList<FutureTask<VerificationException>>(transactions.size());
+                List<Verifier> verifiers = new ArrayList<Verifier>(transactions.size());
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
-                    BigInteger valueIn = BigInteger.ZERO;
-                    BigInteger valueOut = BigInteger.ZERO;
+                    long valueIn = 0;
+                    long valueOut = 0;
                     final List<Script> prevOutScripts = new LinkedList<Script>();
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -318,7 +502,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
                                 throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
-                            valueIn = valueIn.add(prevOut.getValue());
+                            valueIn = addValue(valueIn, prevOut.getValueAsLong(), "Transaction input value out of range");
                             if (enforcePayToScriptHash) {
                                 Script script = new Script(prevOut.getScriptBytes());
                                 if (script.isPayToScriptHash())
@@ -335,8 +519,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     Sha256Hash hash = tx.getHash();
                     for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
+                        valueOut = addValue(valueOut, out.getValueAsLong(), "Transaction output value out of rage");
+                        StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValueAsLong(),
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
                         blockStore.addUnspentTransactionOutput(newOut);
@@ -344,40 +528,30 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
                     // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                    if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
+                    if (valueOut < 0 || valueOut > NetworkParameters.MAX_MONEY_NANOCOINS)
                         throw new VerificationException("Transaction output value out of rage");
                     if (isCoinBase) {
                         coinbaseValue = valueOut;
                     } else {
-                        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
+                        if (valueIn < valueOut || valueIn > NetworkParameters.MAX_MONEY_NANOCOINS)
                             throw new VerificationException("Transaction input value out of range");
-                        totalFees = totalFees.add(valueIn.subtract(valueOut));
+                        totalFees = addValue(totalFees, valueIn - valueOut, "Transaction fees out of range");
                     }
                     
-                    if (!isCoinBase) {
+                    if (!isCoinBase && checkScripts) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
+                        Verifier verifier = new Verifier(tx, prevOutScripts, enforcePayToScriptHash);
+                        verifiers.add(verifier);
+                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
+                        Threading.getCpuPool().execute(future);
                         listScriptVerificationResults.add(future);
                     }
                 }
-                if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
-                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
+                if (newBlock.getHeader().getBlockInflation(newBlock.getHeight()).longValue() + totalFees < coinbaseValue)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                awaitScriptVerification(listScriptVerificationResults);
+                verifyDeferredChecks(verifiers);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -392,12 +566,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            cancelScriptVerification(listScriptVerificationResults);
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            cancelScriptVerification(listScriptVerificationResults);
+            abortBatch();
             throw e;
         }
         return txOutChanges;
@@ -420,10 +594,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             for(StoredTransactionOutput out : txOutChanges.txOutsCreated)
                 blockStore.removeUnspentTransactionOutput(out);
         } catch (PrunedException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw e;
         } catch (BlockStoreException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortBatch();
             throw e;
         }
     }
@@ -431,13 +605,41 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        if (bulkImport && (++blocksSinceCommit < blocksPerCommit || isBelowTrustedCheckpoint(chainHead)))
+            return;
+        commit(chainHead);
+    }
+
+    private void commit(StoredBlock chainHead) throws BlockStoreException {
+        long start = System.nanoTime();
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        blocksSinceCommit = 0;
+        commits++;
+        commitNanos += System.nanoTime() - start;
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
-        blockStore.abortDatabaseBatchWrite();
+        abortBatch();
+    }
+
+    // Throws away the open batch. When importing in bulk that may include blocks that are already the chain head, so
+    // the head goes back to the last one committed.
+    private void abortBatch() throws BlockStoreException {
+        lock.lock();
+        try {
+            blockStore.abortDatabaseBatchWrite();
+            if (bulkImport && blocksSinceCommit > 0) {
+                log.warn("Discarding the {} blocks added since the last commit", blocksSinceCommit);
+                blocksSinceCommit = 0;
+                synchronized (chainHeadLock) {
+                    chainHead = blockStore.getVerifiedChainHead();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
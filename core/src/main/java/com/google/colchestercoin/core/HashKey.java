@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+/**
+ * <p>A 32 byte hash held as four longs, for use as a map key where there are a great many of them. A
+ * {@link Sha256Hash} is an object pointing at a separate array, about 64 bytes in all, whereas a HashKey is a single
+ * object of 48 bytes. Equal hashes make equal keys, and a key has the same hash code as the {@link Sha256Hash} it was
+ * made from.</p>
+ *
+ * <p>Maps that hold the longs directly, without any key object at all, are in
+ * {@link com.google.colchestercoin.utils.Sha256HashLongMap} and {@link com.google.colchestercoin.utils.Sha256HashMap}.
+ * </p>
+ */
+public final class HashKey {
+    final long a, b, c, d;
+
+    HashKey(long a, long b, long c, long d) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    public static HashKey of(Sha256Hash hash) {
+        return of(hash.getBytes(), 0);
+    }
+
+    /** Makes a key from the 32 bytes starting at the given offset, in the same order as {@link Sha256Hash}. */
+    public static HashKey of(byte[] bytes, int offset) {
+        return new HashKey(readLong(bytes, offset), readLong(bytes, offset + 8), readLong(bytes, offset + 16),
+                readLong(bytes, offset + 24));
+    }
+
+    public Sha256Hash toSha256Hash() {
+        byte[] bytes = new byte[32];
+        writeLong(a, bytes, 0);
+        writeLong(b, bytes, 8);
+        writeLong(c, bytes, 16);
+        writeLong(d, bytes, 24);
+        return new Sha256Hash(bytes);
+    }
+
+    /** Returns the given eight bytes as a big endian long. */
+    public static long readLong(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFFL) << 56) | ((bytes[offset + 1] & 0xFFL) << 48) |
+               ((bytes[offset + 2] & 0xFFL) << 40) | ((bytes[offset + 3] & 0xFFL) << 32) |
+               ((bytes[offset + 4] & 0xFFL) << 24) | ((bytes[offset + 5] & 0xFFL) << 16) |
+               ((bytes[offset + 6] & 0xFFL) << 8) | (bytes[offset + 7] & 0xFFL);
+    }
+
+    /** Writes the given long as eight big endian bytes. */
+    public static void writeLong(long value, byte[] bytes, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HashKey)) return false;
+        HashKey other = (HashKey) o;
+        return a == other.a && b == other.b && c == other.c && d == other.d;
+    }
+
+    @Override
+    public int hashCode() {
+        // The last four bytes, as Sha256Hash uses.
+        return (int) d;
+    }
+
+    @Override
+    public String toString() {
+        return toSha256Hash().toString();
+    }
+}
@@ -25,9 +25,10 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,9 +44,19 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every inv and tx message from every peer passes through here, so there is no lock over the whole pool: entries
+ * live in a concurrent map and each one is locked on its own while it changes, so peers relaying different
+ * transactions don't wait for each other.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
+
+    /**
+     * @deprecated The pool is no longer guarded by one lock, and none of its methods take this one, so holding it
+     * doesn't stop them running. It is only kept so subclasses that use it still compile.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
@@ -64,22 +75,34 @@ public class MemoryPool {
         }
     }
     private static class Entry {
-        // Invariants: one of the two fields must be null, to indicate which is used.
+        final Sha256Hash hash;
+        // Invariants: one of the two fields must be null, to indicate which is used. Both are only changed whilst
+        // holding the entry's own monitor, and so is whether the entry is in the map.
         Set<PeerAddress> addresses;
         // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
         // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
         // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
         // allowing us to delete the associated entry (the tx itself has already gone away).
-        WeakTransactionReference tx;
+        volatile WeakTransactionReference tx;
+
+        Entry(Sha256Hash hash) {
+            this.hash = hash;
+        }
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
+    private final ConcurrentHashMap<Sha256Hash, Entry> memoryPool;
+    // Entries in the order they were added, so the oldest can be forgotten once there are too many, and how many of
+    // them are still in the map. An entry is taken out of the queue when it is removed from the map, though one racing
+    // with its own removal may be left behind, and is skipped over when it comes up.
+    private final ConcurrentLinkedQueue<Entry> insertionOrder;
+    private final AtomicInteger insertionOrderSize;
+    private final int size;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
     // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    private final ReferenceQueue<Transaction> referenceQueue;
 
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
@@ -90,14 +113,10 @@ public class MemoryPool {
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        this.size = size;
+        memoryPool = new ConcurrentHashMap<Sha256Hash, Entry>();
+        insertionOrder = new ConcurrentLinkedQueue<Entry>();
+        insertionOrderSize = new AtomicInteger();
         referenceQueue = new ReferenceQueue<Transaction>();
     }
 
@@ -116,50 +135,82 @@ public class MemoryPool {
      * are relevant to any of our wallets.
      */
     private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
+        Reference<? extends Transaction> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed.
+            Entry entry = memoryPool.get(txRef.hash);
+            if (entry != null && entry.tx == txRef)
+                remove(entry);
+        }
+    }
+
+    // Takes the entry out of the map and the insertion order.
+    private void remove(Entry entry) {
+        if (forget(entry))
+            insertionOrder.remove(entry);
+    }
+
+    // Takes the entry out of the map, under its monitor so that nobody is changing it at the same time. Returns false
+    // if it was already gone.
+    private boolean forget(Entry entry) {
+        synchronized (entry) {
+            if (!memoryPool.remove(entry.hash, entry))
+                return false;
+        }
+        insertionOrderSize.decrementAndGet();
+        return true;
+    }
+
+    // Adds a new entry unless there already is one for its hash, in which case that one is returned. Forgets the oldest
+    // entries if there are now too many.
+    @Nullable
+    private Entry putIfAbsent(Entry entry) {
+        Entry existing = memoryPool.putIfAbsent(entry.hash, entry);
+        if (existing != null)
+            return existing;
+        insertionOrder.add(entry);
+        // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+        // of some kind of DoS attack.
+        if (insertionOrderSize.incrementAndGet() > size) {
+            // Keep going until an entry that was still in the map is forgotten.
+            Entry eldest;
+            while ((eldest = insertionOrder.poll()) != null) {
+                if (forget(eldest))
+                    break;
             }
-        } finally {
-            lock.unlock();
         }
+        return null;
     }
 
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
-            if (entry == null) {
-                // No such TX known.
-                return 0;
-            } else if (entry.tx == null) {
+        cleanPool();
+        Entry entry = memoryPool.get(txHash);
+        if (entry == null) {
+            // No such TX known.
+            return 0;
+        }
+        synchronized (entry) {
+            if (entry.tx == null) {
                 // We've seen at least one peer announce with an inv.
                 checkNotNull(entry.addresses);
                 return entry.addresses.size();
-            } else {
-                final Transaction tx = entry.tx.get();
-                if (tx == null) {
-                    // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
-                    // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
-                    // just delete it from the map.
-                    memoryPool.remove(txHash);
-                    return 0;
-                } else {
-                    checkState(entry.addresses == null);
-                    return tx.getConfidence().numBroadcastPeers();
-                }
             }
-        } finally {
-            lock.unlock();
+        }
+        final Transaction tx = entry.tx.get();
+        if (tx == null) {
+            // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
+            // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
+            // just delete it from the map.
+            remove(entry);
+            return 0;
+        } else {
+            checkState(entry.addresses == null);
+            return tx.getConfidence().numBroadcastPeers();
         }
     }
 
@@ -169,11 +220,27 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
-        try {
-            cleanPool();
+        cleanPool();
+        Set<PeerAddress> addrs;
+        while (true) {
             Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
+            if (entry == null) {
+                entry = new Entry(tx.getHash());
+                entry.tx = new WeakTransactionReference(tx, referenceQueue);
+                Entry existing = putIfAbsent(entry);
+                if (existing == null) {
+                    // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+                    // dependencies of a relevant transaction (see Peer.downloadDependencies).
+                    log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+                    return tx;
+                }
+                // Another peer got there first.
+                entry = existing;
+            }
+            synchronized (entry) {
+                // If the entry was forgotten since we looked it up, start again rather than update one nobody sees.
+                if (memoryPool.get(entry.hash) != entry)
+                    continue;
                 // This TX or its hash have been previously interned.
                 if (entry.tx != null) {
                     // We already interned it (but may have thrown it away).
@@ -186,32 +253,22 @@ public class MemoryPool {
                         tx = transaction;
                     }
                     return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
                 }
-            } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                checkNotNull(entry.addresses);
+                addrs = entry.addresses;
+                entry.addresses = null;
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
-                return tx;
+                break;
             }
-        } finally {
-            lock.unlock();
         }
+        TransactionConfidence confidence = tx.getConfidence();
+        log.debug("Adding tx [{}] {} to the memory pool",
+                confidence.numBroadcastPeers(), tx.getHashAsString());
+        for (PeerAddress a : addrs) {
+            markBroadcast(a, tx);
+        }
+        return tx;
     }
 
     /**
@@ -221,14 +278,9 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
-        try {
-            final Transaction interned = intern(tx);
-            markBroadcast(byPeer, interned);
-            return interned;
-        } finally {
-            lock.unlock();
-        }
+        final Transaction interned = intern(tx);
+        markBroadcast(byPeer, interned);
+        return interned;
     }
 
     /**
@@ -236,45 +288,53 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
-        try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
-            if (entry != null) {
-                // This TX or its hash have been previously announced.
-                if (entry.tx != null) {
-                    checkState(entry.addresses == null);
-                    Transaction tx = entry.tx.get();
-                    if (tx != null) {
-                        markBroadcast(byPeer, tx);
-                        log.debug("{}: Peer announced transaction we have seen before [{}] {}",
-                                byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
-                    } else {
-                        // The inv is telling us about a transaction that we previously downloaded, and threw away
-                        // because nothing found it interesting enough to keep around. So do nothing.
-                    }
-                } else {
+        cleanPool();
+        Entry entry;
+        while (true) {
+            entry = memoryPool.get(hash);
+            if (entry == null) {
+                // This TX has never been seen before.
+                entry = new Entry(hash);
+                // TODO: Using hashsets here is inefficient compared to just having an array.
+                entry.addresses = new HashSet<PeerAddress>();
+                entry.addresses.add(byPeer);
+                Entry existing = putIfAbsent(entry);
+                if (existing == null) {
+                    log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
+                    return;
+                }
+                // Another peer got there first.
+                entry = existing;
+            }
+            // This TX or its hash have been previously announced.
+            synchronized (entry) {
+                // If the entry was forgotten since we looked it up, start again rather than count the peer in one
+                // nobody sees.
+                if (memoryPool.get(hash) != entry)
+                    continue;
+                if (entry.tx == null) {
                     checkNotNull(entry.addresses);
                     entry.addresses.add(byPeer);
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
                             byPeer, entry.addresses.size(), hash);
+                    return;
                 }
-            } else {
-                // This TX has never been seen before.
-                entry = new Entry();
-                // TODO: Using hashsets here is inefficient compared to just having an array.
-                entry.addresses = new HashSet<PeerAddress>();
-                entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
-                log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
+                checkState(entry.addresses == null);
+                break;
             }
-        } finally {
-            lock.unlock();
+        }
+        Transaction tx = entry.tx.get();
+        if (tx != null) {
+            markBroadcast(byPeer, tx);
+            log.debug("{}: Peer announced transaction we have seen before [{}] {}",
+                    byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
+        } else {
+            // The inv is telling us about a transaction that we previously downloaded, and threw away
+            // because nothing found it interesting enough to keep around. So do nothing.
         }
     }
 
     private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -287,18 +347,11 @@ public class MemoryPool {
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            Entry entry = memoryPool.get(hash);
-            if (entry == null) return null;  // Unknown.
-            if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
-        } finally {
-            lock.unlock();
-        }
+        Entry entry = memoryPool.get(hash);
+        if (entry == null) return null;  // Unknown.
+        WeakTransactionReference ref = entry.tx;
+        if (ref == null) return null;  // Seen but only in advertisements.
+        return ref.get();  // Null if it was downloaded but garbage collected.
     }
 
     /**
@@ -307,12 +360,6 @@ public class MemoryPool {
      * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
-        try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
-        } finally {
-            lock.unlock();
-        }
+        return memoryPool.containsKey(hash);
     }
 }
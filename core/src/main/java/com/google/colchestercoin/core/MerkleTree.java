@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.utils.Threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates Merkle roots over a flat array of 32 byte hashes, in the order they have on the wire, which is the
+ * reverse of {@link Sha256Hash#getBytes()}. Each level of the tree is hashed pair by pair over the level below:</p>
+ *
+ * <pre>
+ *         root
+ *        /     \
+ *       1        5
+ *     /   \     / \
+ *    2     3    4  4
+ *  / \   / \   / \
+ * t1 t2 t3 t4 t5 t5
+ * </pre>
+ *
+ * <p>where a level with an odd number of hashes pairs the last one with itself. On one thread each level overwrites
+ * the start of the level below, so the whole tree is worked out in the array holding the leaves. On a machine with
+ * more than one core, a level with enough pairs is split between threads of the {@link Threading#getCpuPool() CPU
+ * pool}, which write to a second array half the size so that no thread overwrites a hash another has yet to read.
+ * Big blocks also have their transactions hashed across threads.</p>
+ */
+public final class MerkleTree {
+    // Below this many pairs or transactions per thread it costs more to hand the work to other threads than it saves.
+    private static final int MIN_PAIRS_PER_THREAD = 256;
+    private static final int MIN_TRANSACTIONS_PER_THREAD = 64;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private MerkleTree() {}
+
+    /** Calculates the Merkle root of the given transactions, as it appears in the header of a block holding them. */
+    public static Sha256Hash calculateRoot(List<Transaction> transactions) {
+        return calculateRoot(transactions, THREADS);
+    }
+
+    static Sha256Hash calculateRoot(final List<Transaction> transactions, int threads) {
+        checkArgument(!transactions.isEmpty());
+        final byte[] hashes = new byte[transactions.size() * 32];
+        forEachRange(transactions.size(), MIN_TRANSACTIONS_PER_THREAD, threads, new Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    byte[] hash = transactions.get(i).getHash().getBytes();
+                    for (int j = 0; j < 32; j++)
+                        hashes[i * 32 + j] = hash[31 - j];
+                }
+            }
+        });
+        calculateRoot(hashes, transactions.size(), threads);
+        byte[] root = new byte[32];
+        for (int j = 0; j < 32; j++)
+            root[j] = hashes[31 - j];
+        return new Sha256Hash(root);
+    }
+
+    /**
+     * Calculates the Merkle root of the given number of hashes at the start of the array and leaves it in the first 32
+     * bytes, in wire order. The rest of the array is overwritten.
+     */
+    public static void calculateRoot(byte[] hashes, int count) {
+        calculateRoot(hashes, count, THREADS);
+    }
+
+    static void calculateRoot(byte[] hashes, int count, int threads) {
+        checkArgument(count > 0 && hashes.length >= count * 32, "Bad hash count: %s", count);
+        byte[] from = hashes;
+        byte[] scratch = null;
+        while (count > 1) {
+            int pairs = (count + 1) / 2;
+            if (threads > 1 && pairs >= 2 * MIN_PAIRS_PER_THREAD) {
+                if (scratch == null)
+                    scratch = new byte[pairs * 32];
+                byte[] to = from == hashes ? scratch : hashes;
+                hashLevel(from, count, to, threads);
+                from = to;
+            } else {
+                hashPairs(from, count, from, 0, pairs);
+            }
+            count = pairs;
+        }
+        if (from != hashes)
+            System.arraycopy(from, 0, hashes, 0, 32);
+    }
+
+    /**
+     * Works out every level of the tree over the given number of hashes at the start of the array, and returns them
+     * one level after another in a new array, the leaves first and the root last, all in wire order. Building
+     * {@link PartialMerkleTree}s from it for different sets of matched transactions needs no more hashing.
+     */
+    public static byte[] calculateTree(byte[] hashes, int count) {
+        checkArgument(count > 0 && hashes.length >= count * 32, "Bad hash count: %s", count);
+        int size = count;
+        for (int width = count; width > 1; width = (width + 1) / 2)
+            size += (width + 1) / 2;
+        byte[] tree = Arrays.copyOf(hashes, size * 32);
+        int level = 0;
+        for (int width = count; width > 1; width = (width + 1) / 2) {
+            int next = level + width;
+            for (int i = 0; i < (width + 1) / 2; i++) {
+                int left = level + 2 * i;
+                int right = level + Math.min(2 * i + 1, width - 1);
+                Utils.doubleDigestTwoBuffers(tree, left * 32, 32, tree, right * 32, 32, tree, (next + i) * 32);
+            }
+            level = next;
+        }
+        return tree;
+    }
+
+    private static void hashLevel(final byte[] from, final int count, final byte[] to, int threads) {
+        forEachRange((count + 1) / 2, MIN_PAIRS_PER_THREAD, threads, new Range() {
+            @Override
+            public void run(int first, int last) {
+                hashPairs(from, count, to, first, last);
+            }
+        });
+    }
+
+    // Hashes the pairs numbered from first to last of a level of count hashes. The hash of each pair goes where the
+    // pair's own number puts it, which in the same array is never after the pair itself.
+    private static void hashPairs(byte[] from, int count, byte[] to, int first, int last) {
+        for (int i = first; i < last; i++) {
+            int left = 2 * i;
+            int right = Math.min(left + 1, count - 1);
+            Utils.doubleDigestTwoBuffers(from, left * 32, 32, from, right * 32, 32, to, i * 32);
+        }
+    }
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    /** Splits the numbers up to count between threads, doing the first share on this one. */
+    private static void forEachRange(int count, int minPerThread, int threads, final Range range) {
+        threads = Math.max(1, Math.min(threads, count / minPerThread));
+        int perThread = (count + threads - 1) / threads;
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(threads);
+        for (int start = perThread; start < count; start += perThread) {
+            final int from = start, to = Math.min(start + perThread, count);
+            FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    range.run(from, to);
+                }
+            }, null);
+            Threading.getCpuPool().execute(future);
+            futures.add(future);
+        }
+        range.run(0, Math.min(perThread, count));
+        try {
+            Threading.runOrAwait(futures);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -136,6 +136,9 @@ public abstract class   NetworkParameters implements Serializable {
      */
     public static final BigInteger MAX_MONEY = new BigInteger("84000000", 10).multiply(COIN);
 
+    /** {@link #MAX_MONEY} in nanocoins, for arithmetic on longs. */
+    public static final long MAX_MONEY_NANOCOINS = MAX_MONEY.longValue();
+
     /** Alias for TestNet3Params.get(), use that instead. */
     @Deprecated
     public static NetworkParameters testNet() {
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+/**
+ * A transaction hash and output index, as four longs and an int, for use as a map key instead of a
+ * {@link TransactionOutPoint}, which is a whole message with its parameters, parent and cached bytes. See
+ * {@link HashKey}, and {@link com.google.colchestercoin.utils.OutPointLongMap} for a map that needs no key objects.
+ */
+public final class OutPointKey {
+    private final long a, b, c, d;
+    private final int index;
+
+    public OutPointKey(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        this.a = HashKey.readLong(bytes, 0);
+        this.b = HashKey.readLong(bytes, 8);
+        this.c = HashKey.readLong(bytes, 16);
+        this.d = HashKey.readLong(bytes, 24);
+        this.index = (int) index;
+    }
+
+    public static OutPointKey of(TransactionOutPoint outPoint) {
+        return new OutPointKey(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    public Sha256Hash getHash() {
+        return new HashKey(a, b, c, d).toSha256Hash();
+    }
+
+    /** Returns the index of the output, which is unsigned. */
+    public long getIndex() {
+        return index & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof OutPointKey)) return false;
+        OutPointKey other = (OutPointKey) o;
+        return index == other.index && a == other.a && b == other.b && c == other.c && d == other.d;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) d * 31 + index;
+    }
+
+    @Override
+    public String toString() {
+        return getHash() + ":" + getIndex();
+    }
+}
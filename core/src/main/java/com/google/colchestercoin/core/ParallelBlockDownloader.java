@@ -0,0 +1,835 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.store.BlockStore;
+import com.google.colchestercoin.store.BlockStoreException;
+import com.google.colchestercoin.utils.ListenerRegistration;
+import com.google.colchestercoin.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Catches up the block chain using all connected peers at once.</p>
+ *
+ * <p>The regular download driven by {@link Peer#startBlockChainDownload()} walks the chain with getblocks, one batch
+ * of inventory at a time, from a single peer, so catching up after a long time offline is bounded by that one peer's
+ * latency. This class first fetches the header chain from whichever peer claims the best chain, which tells us exactly
+ * which blocks are needed. It then keeps a sliding window of block requests spread over every peer it is given,
+ * buffers blocks that arrive out of order and hands them to {@link AbstractBlockChain#add(Block)} strictly in chain
+ * order. Requests a peer doesn't answer within the stall timeout are given to another peer.</p>
+ *
+ * <p>Headers of blocks older than the fast catchup time (see {@link #setDownloadParameters(long, boolean)}) go straight
+ * into the chain and their bodies are never requested, so an SPV wallet syncs the header chain as fast as the headers
+ * can be verified, and only fetches (optionally Bloom filtered) blocks for the part of the chain after its earliest key.
+ * Checking proof of work means computing a scrypt hash per header, so each batch of headers is checked on all
+ * available cores at once.</p>
+ *
+ * <p>Normally you don't use this class directly, see {@link PeerGroup#setParallelBlockDownload(boolean)}.</p>
+ */
+public class ParallelBlockDownloader {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    /** The default number of blocks that may be requested or buffered ahead of the chain head. */
+    public static final int DEFAULT_WINDOW_SIZE = 512;
+    /** The default number of block requests outstanding against a single peer. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_PEER = 32;
+    /** The default time after which an unanswered request is taken away from a peer and given to another. */
+    public static final long DEFAULT_STALL_TIMEOUT_MSEC = 15 * 1000;
+
+    // How many verified header hashes we keep queued up before asking for more headers.
+    private static final int MAX_QUEUED_HEADERS = 4 * HeadersMessage.MAX_HEADERS;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+    // Held by whichever thread is currently adding blocks to the chain, so they go in one at a time and in order.
+    private final ReentrantLock deliveryLock = Threading.lock("paralleldownload-delivery");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int windowSize;
+    private final int maxRequestsPerPeer;
+    private final long stallTimeoutMsec;
+    private final SettableFuture<StoredBlock> future = SettableFuture.create();
+    private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> eventListeners;
+
+    private static class PeerState {
+        int requestsInFlight;
+        int stalls;
+        long lastStallTimeMsec;
+    }
+
+    private static class Request {
+        final Peer peer;
+        final Sha256Hash hash;
+        final long timeMsec;
+        final ListenableFuture<? extends Message> future;
+
+        Request(Peer peer, Sha256Hash hash, long timeMsec, ListenableFuture<? extends Message> future) {
+            this.peer = peer;
+            this.hash = hash;
+            this.timeMsec = timeMsec;
+            this.future = future;
+        }
+    }
+
+    @GuardedBy("lock") private final LinkedHashMap<Peer, PeerState> peers = new LinkedHashMap<Peer, PeerState>();
+    // Hashes of verified headers whose blocks we haven't requested yet, in chain order.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> unrequested = new LinkedList<Sha256Hash>();
+    // Hashes of requested blocks in chain order, starting with the next one to be added to the chain. Its size is
+    // bounded by windowSize, which bounds the number of blocks we may have to buffer.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> window = new LinkedList<Sha256Hash>();
+    // Hashes in the window whose request was abandoned (stalled, failed or peer gone) and must be sent again.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> retry = new LinkedList<Sha256Hash>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Request> inFlight = new HashMap<Sha256Hash, Request>();
+    // Blocks, filtered blocks or bare headers that can't be added to the chain until the ones before them are in.
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Message> received = new HashMap<Sha256Hash, Message>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Peer> receivedFrom = new HashMap<Sha256Hash, Peer>();
+
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private Peer headersPeer;
+    @GuardedBy("lock") private ListenableFuture<List<Block>> headersRequest;
+    @GuardedBy("lock") private long headersRequestTimeMsec;
+    @GuardedBy("lock") private boolean headersDone;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    // Set once we reach the first header after the fast catchup time, from then on we need the block bodies.
+    @GuardedBy("lock") private boolean downloadBlockBodies;
+    @GuardedBy("lock") private boolean started;
+    @GuardedBy("lock") private Timer stallTimer;
+    // Set once the download is over, the future is completed with these outside of the lock.
+    @GuardedBy("lock") private StoredBlock result;
+    @GuardedBy("lock") private Throwable failure;
+
+    @GuardedBy("lock") private long startTimeMsec;
+    @GuardedBy("lock") private long headersReceived;
+    @GuardedBy("lock") private long blocksDelivered;
+    @GuardedBy("lock") private long requestsReassigned;
+
+    /**
+     * Creates a downloader that adds blocks to the given chain, using the default window size, per peer request limit
+     * and stall timeout.
+     */
+    public ParallelBlockDownloader(NetworkParameters params, AbstractBlockChain chain) {
+        this(params, chain, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_REQUESTS_PER_PEER, DEFAULT_STALL_TIMEOUT_MSEC);
+    }
+
+    /**
+     * Creates a downloader that adds blocks to the given chain.
+     *
+     * @param windowSize How many blocks past the chain head may be requested or waiting to be added at once.
+     * @param maxRequestsPerPeer How many block requests may be outstanding against a single peer.
+     * @param stallTimeoutMsec How long to wait for a peer to answer a request before asking another peer.
+     */
+    public ParallelBlockDownloader(NetworkParameters params, AbstractBlockChain chain, int windowSize,
+                                   int maxRequestsPerPeer, long stallTimeoutMsec) {
+        checkArgument(windowSize > 0 && maxRequestsPerPeer > 0 && stallTimeoutMsec > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.windowSize = windowSize;
+        this.maxRequestsPerPeer = maxRequestsPerPeer;
+        this.stallTimeoutMsec = stallTimeoutMsec;
+        this.eventListeners = new CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>>();
+    }
+
+    /**
+     * Registers a listener that receives {@link PeerEventListener#onChainDownloadStarted(Peer, int)} and
+     * {@link PeerEventListener#onBlocksDownloaded(Peer, Block, int)} events as blocks are added to the chain.
+     */
+    public void addEventListener(PeerEventListener listener, Executor executor) {
+        eventListeners.add(new ListenerRegistration<PeerEventListener>(checkNotNull(listener), executor));
+    }
+
+    public boolean removeEventListener(PeerEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, eventListeners);
+    }
+
+    /**
+     * Sets which blocks need their bodies downloaded. Blocks created before the given time are only added to the chain
+     * as headers, as a wallet whose keys are all younger can't have any transactions in them. Later blocks are
+     * downloaded as filtered blocks if useFilteredBlocks is set (the peers must already have our Bloom filter), or as
+     * full blocks otherwise. By default every block is downloaded in full. Must be called before {@link #start()}.
+     *
+     * @param fastCatchupTimeSecs Time in seconds since the epoch, or 0 to always download block bodies.
+     */
+    public void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            checkState(!started, "Already started");
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a peer to download from. Peers can be added at any time, before or during the download. */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.containsKey(peer) || result != null || failure != null)
+                return;
+            peers.put(peer, new PeerState());
+            if (started) {
+                requestHeaders();
+                fillWindow();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops using the given peer, for instance because it disconnected. Its outstanding requests go to other peers. */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            for (Sha256Hash hash : window) {
+                Request request = inFlight.get(hash);
+                if (request != null && request.peer == peer) {
+                    inFlight.remove(hash);
+                    request.future.cancel(false);
+                    retry.add(hash);
+                    requestsReassigned++;
+                }
+            }
+            if (headersPeer == peer)
+                abandonHeadersRequest();
+            if (started) {
+                requestHeaders();
+                fillWindow();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts downloading. The returned future completes with the new chain head once every block up to the end of
+     * the header chain we were given has been added to the chain, or fails if a peer sent us something that doesn't
+     * verify (in which case the caller should fall back to the regular download).
+     */
+    public ListenableFuture<StoredBlock> start() {
+        lock.lock();
+        try {
+            checkState(!started, "Already started");
+            started = true;
+            startTimeMsec = System.currentTimeMillis();
+            lastHeaderHash = chain.getChainHead().getHeader().getHash();
+            final int blocksLeft = Math.max(0, getBestPeerHeight() - chain.getBestChainHeight());
+            log.info("Starting parallel block chain download of ~{} blocks from {} peers", blocksLeft, peers.size());
+            final Peer peer = peers.isEmpty() ? null : peers.keySet().iterator().next();
+            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onChainDownloadStarted(peer, blocksLeft);
+                    }
+                });
+            }
+            stallTimer = new Timer("Parallel block download stall checker", true);
+            long period = Math.max(stallTimeoutMsec / 2, 1);
+            stallTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkForStalls();
+                }
+            }, period, period);
+            requestHeaders();
+        } finally {
+            lock.unlock();
+        }
+        completeFutureIfDone();
+        return future;
+    }
+
+    /** Abandons the download, cancelling the future returned by {@link #start()}. */
+    public void stop() {
+        lock.lock();
+        try {
+            if (result == null && failure == null)
+                finish(null, new CancellationException("Parallel block download stopped"));
+        } finally {
+            lock.unlock();
+        }
+        completeFutureIfDone();
+    }
+
+    /** Returns the future that completes when the download is over. */
+    public ListenableFuture<StoredBlock> getFuture() {
+        return future;
+    }
+
+    /** Returns how many blocks this downloader has added to the chain so far. */
+    public long getBlocksDelivered() {
+        lock.lock();
+        try {
+            return blocksDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many block requests were taken away from a slow or disconnected peer and given to another. */
+    public long getRequestsReassigned() {
+        lock.lock();
+        try {
+            return requestsReassigned;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many block requests are currently outstanding across all peers. */
+    public int getRequestsInFlight() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks have arrived but are waiting for earlier blocks before they can be added. */
+    public int getBlocksBuffered() {
+        lock.lock();
+        try {
+            return received.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTimeMsec);
+            return String.format("Parallel download: %d headers, %d blocks added (%.1f/sec), %d in flight, " +
+                    "%d buffered, %d reassigned, %d peers", headersReceived, blocksDelivered,
+                    blocksDelivered * 1000.0 / elapsed, inFlight.size(), received.size(), requestsReassigned,
+                    peers.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private int getBestPeerHeight() {
+        int best = 0;
+        for (Peer peer : peers.keySet())
+            best = Math.max(best, (int) peer.getBestHeight());
+        return best;
+    }
+
+    // Asks the peer with the best chain for the next batch of headers, if we need more and haven't asked already.
+    @GuardedBy("lock")
+    private void requestHeaders() {
+        if (!started || headersDone || headersPeer != null || unrequested.size() >= MAX_QUEUED_HEADERS)
+            return;
+        if (result != null || failure != null)
+            return;
+        final long now = Utils.now().getTime();
+        Peer best = null;
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            Peer peer = entry.getKey();
+            if (now - entry.getValue().lastStallTimeMsec < stallTimeoutMsec && peers.size() > 1)
+                continue;  // Recently too slow, give somebody else a go.
+            if (best == null || peer.getBestHeight() > best.getBestHeight() ||
+                    (peer.getBestHeight() == best.getBestHeight() &&
+                     peer.getScore().getScore() > best.getScore().getScore()))
+                best = peer;
+        }
+        if (best == null)
+            return;
+        final Peer peer = best;
+        final ListenableFuture<List<Block>> request = peer.getBlockHeaders(buildLocator(), Sha256Hash.ZERO_HASH);
+        headersPeer = peer;
+        headersRequest = request;
+        headersRequestTimeMsec = now;
+        Futures.addCallback(request, new FutureCallback<List<Block>>() {
+            @Override
+            public void onSuccess(List<Block> headers) {
+                try {
+                    verifyHeaders(headers);
+                } catch (VerificationException e) {
+                    peer.getScore().recordMisbehaviour();
+                    fail(e);
+                    return;
+                }
+                lock.lock();
+                try {
+                    if (request == headersRequest)
+                        processHeaders(peer, headers);
+                } finally {
+                    lock.unlock();
+                }
+                // Headers from before the fast catchup time are ready to go straight into the chain.
+                deliverBlocks();
+                lock.lock();
+                try {
+                    fillWindow();
+                    requestHeaders();
+                    maybeFinish();
+                } finally {
+                    lock.unlock();
+                }
+                completeFutureIfDone();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // Only happens if we cancelled the request because the peer stalled or went away.
+            }
+        });
+    }
+
+    // Checks the proof of work of the given headers, spread over the CPU pool. Called without holding the lock.
+    private static void verifyHeaders(List<Block> headers) throws VerificationException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = Math.max(1, (headers.size() + threads - 1) / threads);
+        List<FutureTask<Void>> results = new ArrayList<FutureTask<Void>>(threads);
+        for (int i = 0; i < headers.size(); i += chunkSize) {
+            final List<Block> chunk = headers.subList(i, Math.min(headers.size(), i + chunkSize));
+            FutureTask<Void> result = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws VerificationException {
+                    for (Block header : chunk)
+                        header.verifyHeader();
+                    return null;
+                }
+            });
+            Threading.getCpuPool().execute(result);
+            results.add(result);
+        }
+        try {
+            Threading.runOrAwait(results);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VerificationException)
+                throw (VerificationException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocator() {
+        // The end of the header chain we verified so far, then the recent chain in case the peer is on another fork.
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(12);
+        locator.add(lastHeaderHash);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 10; cursor != null && i > 0; i--) {
+                Sha256Hash hash = cursor.getHeader().getHash();
+                if (!hash.equals(lastHeaderHash))
+                    locator.add(hash);
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    @GuardedBy("lock")
+    private void processHeaders(Peer peer, List<Block> headers) {
+        headersPeer = null;
+        headersRequest = null;
+        if (result != null || failure != null)
+            return;
+        try {
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    // Only acceptable for the very first header, if the peer is telling us our chain head is on a
+                    // fork: it then starts from a block we have and the chain will reorganize as blocks are added.
+                    boolean forkPoint = headersReceived == 0 && unrequested.isEmpty() && window.isEmpty() &&
+                            chain.getBlockStore().get(header.getPrevBlockHash()) != null;
+                    if (!forkPoint) {
+                        peer.getScore().recordMisbehaviour();
+                        throw new ProtocolException(peer + " sent headers that don't connect: " + header.getHashAsString());
+                    }
+                }
+                // Proof of work was already checked by verifyHeaders().
+                lastHeaderHash = header.getHash();
+                headersReceived++;
+                if (!downloadBlockBodies && header.getTimeSeconds() >= fastCatchupTimeSecs) {
+                    log.info("Passed the fast catchup time at {}, downloading blocks from here on", lastHeaderHash);
+                    downloadBlockBodies = true;
+                }
+                if (downloadBlockBodies) {
+                    unrequested.add(lastHeaderHash);
+                } else {
+                    // Nothing to download, the header just has to wait its turn to be added to the chain.
+                    window.add(lastHeaderHash);
+                    received.put(lastHeaderHash, header);
+                    receivedFrom.put(lastHeaderHash, peer);
+                }
+            }
+        } catch (VerificationException e) {
+            finish(null, e);
+            return;
+        } catch (BlockStoreException e) {
+            finish(null, e);
+            return;
+        }
+        if (headers.size() < HeadersMessage.MAX_HEADERS) {
+            log.info("Header chain complete after {} headers from {}", headersReceived, peer);
+            headersDone = true;
+        }
+    }
+
+    // Hands out block requests to the least loaded peers until the window is full or every peer is busy.
+    @GuardedBy("lock")
+    private void fillWindow() {
+        if (!started || result != null || failure != null)
+            return;
+        final long now = Utils.now().getTime();
+        Map<Peer, List<Sha256Hash>> batches = new LinkedHashMap<Peer, List<Sha256Hash>>();
+        while (true) {
+            boolean fromRetry = !retry.isEmpty();
+            if (!fromRetry && (unrequested.isEmpty() || window.size() >= windowSize))
+                break;
+            Peer peer = pickPeer(now);
+            if (peer == null)
+                break;
+            Sha256Hash hash = fromRetry ? retry.removeFirst() : unrequested.removeFirst();
+            if (!fromRetry)
+                window.add(hash);
+            peers.get(peer).requestsInFlight++;
+            List<Sha256Hash> batch = batches.get(peer);
+            if (batch == null) {
+                batch = new ArrayList<Sha256Hash>();
+                batches.put(peer, batch);
+            }
+            batch.add(hash);
+        }
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : batches.entrySet()) {
+            final Peer peer = entry.getKey();
+            List<Sha256Hash> hashes = entry.getValue();
+            List<? extends ListenableFuture<? extends Message>> futures;
+            try {
+                if (useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                    futures = peer.getFilteredBlocks(hashes);
+                else
+                    futures = peer.getBlocks(hashes);
+            } catch (IOException e) {
+                log.warn("{}: Failed to request blocks, trying elsewhere", peer);
+                peers.get(peer).requestsInFlight -= hashes.size();
+                retry.addAll(0, hashes);
+                continue;
+            }
+            for (int i = 0; i < hashes.size(); i++) {
+                final Sha256Hash hash = hashes.get(i);
+                ListenableFuture<? extends Message> blockFuture = futures.get(i);
+                inFlight.put(hash, new Request(peer, hash, now, blockFuture));
+                Futures.addCallback(blockFuture, new FutureCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message block) {
+                        blockReceived(peer, hash, block);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        if (!(throwable instanceof CancellationException))
+                            requestFailed(peer, hash);
+                    }
+                });
+            }
+        }
+    }
+
+    // Returns the usable peer with the fewest outstanding requests, or null if all are busy or recently stalled.
+    @GuardedBy("lock")
+    private Peer pickPeer(long now) {
+        Peer best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            PeerState state = entry.getValue();
+            if (state.requestsInFlight >= maxRequestsPerPeer)
+                continue;
+            if (now - state.lastStallTimeMsec < stallTimeoutMsec)
+                continue;
+            if (state.requestsInFlight < bestLoad) {
+                best = entry.getKey();
+                bestLoad = state.requestsInFlight;
+            }
+        }
+        return best;
+    }
+
+    @GuardedBy("lock")
+    private void requestCompleted(Request request) {
+        inFlight.remove(request.hash);
+        PeerState state = peers.get(request.peer);
+        if (state != null)
+            state.requestsInFlight--;
+    }
+
+    private void blockReceived(Peer peer, Sha256Hash hash, Message block) {
+        lock.lock();
+        try {
+            Request request = inFlight.get(hash);
+            if (request == null || request.peer != peer)
+                return;  // Reassigned in the meantime, we'll take the block from whoever has it now.
+            requestCompleted(request);
+            if (!block.getHash().equals(hash)) {
+                log.warn("{}: Sent block {} when asked for {}", peer, block.getHash(), hash);
+                retry.addFirst(hash);
+            } else {
+                received.put(hash, block);
+                receivedFrom.put(hash, peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliverBlocks();
+        lock.lock();
+        try {
+            fillWindow();
+            requestHeaders();
+            maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+        completeFutureIfDone();
+    }
+
+    private void requestFailed(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            Request request = inFlight.get(hash);
+            if (request == null || request.peer != peer)
+                return;
+            requestCompleted(request);
+            retry.addFirst(hash);
+            requestsReassigned++;
+            fillWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds every buffered block that directly follows the chain head, in order. Only one thread does this at a time;
+    // if another thread is already at it, it will pick up whatever we just buffered.
+    private void deliverBlocks() {
+        while (deliveryLock.tryLock()) {
+            try {
+                while (true) {
+                    Message block;
+                    Peer from;
+                    lock.lock();
+                    try {
+                        if (window.isEmpty() || result != null || failure != null)
+                            break;
+                        Sha256Hash next = window.getFirst();
+                        block = received.remove(next);
+                        if (block == null)
+                            break;
+                        from = receivedFrom.remove(next);
+                        window.removeFirst();
+                    } finally {
+                        lock.unlock();
+                    }
+                    // Add to the chain without holding our lock, as the chain will call out to wallets and listeners.
+                    Block header;
+                    try {
+                        boolean connected;
+                        if (block instanceof FilteredBlock) {
+                            header = ((FilteredBlock) block).getBlockHeader();
+                            connected = chain.add((FilteredBlock) block);
+                        } else {
+                            header = (Block) block;
+                            connected = chain.add(header);
+                        }
+                        if (!connected)
+                            throw new VerificationException("Downloaded block does not connect: " + block.getHash());
+                    } catch (VerificationException e) {
+                        fail(e);
+                        return;
+                    } catch (PrunedException e) {
+                        fail(e);
+                        return;
+                    }
+                    lock.lock();
+                    try {
+                        blocksDelivered++;
+                    } finally {
+                        lock.unlock();
+                    }
+                    invokeOnBlocksDownloaded(from, header);
+                }
+            } finally {
+                deliveryLock.unlock();
+            }
+            // Another thread may have buffered the next block whilst we were finishing up.
+            lock.lock();
+            try {
+                if (window.isEmpty() || !received.containsKey(window.getFirst()))
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        lock.lock();
+        try {
+            finish(null, t);
+        } finally {
+            lock.unlock();
+        }
+        completeFutureIfDone();
+    }
+
+    private void invokeOnBlocksDownloaded(final Peer peer, final Block block) {
+        int targetHeight;
+        lock.lock();
+        try {
+            targetHeight = Math.max(getBestPeerHeight(),
+                    chain.getBestChainHeight() + window.size() + unrequested.size());
+        } finally {
+            lock.unlock();
+        }
+        final int blocksLeft = Math.max(0, targetHeight - chain.getBestChainHeight());
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onBlocksDownloaded(peer, block, blocksLeft);
+                }
+            });
+        }
+    }
+
+    /** Gives requests that have been outstanding for longer than the stall timeout to other peers. */
+    void checkForStalls() {
+        lock.lock();
+        try {
+            if (!started || result != null || failure != null)
+                return;
+            final long now = Utils.now().getTime();
+            // Walk the window rather than the map so the oldest blocks, which hold up everything else, go first.
+            List<Sha256Hash> stalled = new ArrayList<Sha256Hash>();
+            for (Sha256Hash hash : window) {
+                Request request = inFlight.get(hash);
+                if (request != null && now - request.timeMsec >= stallTimeoutMsec) {
+                    stalled.add(hash);
+                    requestCompleted(request);
+                    request.future.cancel(false);
+                    markStalled(request.peer, now);
+                }
+            }
+            if (!stalled.isEmpty()) {
+                log.info("{} block requests stalled, reassigning", stalled.size());
+                retry.addAll(0, stalled);
+                requestsReassigned += stalled.size();
+            }
+            if (headersPeer != null && now - headersRequestTimeMsec >= stallTimeoutMsec) {
+                log.info("{}: Headers request stalled, asking another peer", headersPeer);
+                markStalled(headersPeer, now);
+                abandonHeadersRequest();
+                requestHeaders();
+            }
+            fillWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void abandonHeadersRequest() {
+        // Cancelling means a late answer completes nothing, so it can't be mistaken for the answer to a new request.
+        headersRequest.cancel(false);
+        headersRequest = null;
+        headersPeer = null;
+    }
+
+    @GuardedBy("lock")
+    private void markStalled(Peer peer, long now) {
+        PeerState state = peers.get(peer);
+        if (state == null)
+            return;
+        if (state.lastStallTimeMsec != now) {
+            state.stalls++;
+            peer.getScore().recordStall();
+        }
+        state.lastStallTimeMsec = now;
+    }
+
+    @GuardedBy("lock")
+    private void maybeFinish() {
+        if (headersDone && unrequested.isEmpty() && window.isEmpty() && result == null && failure == null)
+            finish(chain.getChainHead(), null);
+    }
+
+    @GuardedBy("lock")
+    private void finish(StoredBlock head, Throwable t) {
+        result = head;
+        failure = t;
+        if (stallTimer != null)
+            stallTimer.cancel();
+        for (Request request : inFlight.values())
+            request.future.cancel(false);
+        inFlight.clear();
+        if (headersRequest != null)
+            abandonHeadersRequest();
+        received.clear();
+        receivedFrom.clear();
+        if (t == null)
+            log.info("Parallel block chain download finished at height {}. {}", head.getHeight(), this);
+        else
+            log.warn("Parallel block chain download failed. " + this, t);
+    }
+
+    // Completes the future outside of our lock, as its listeners are likely to go and take other locks.
+    private void completeFutureIfDone() {
+        StoredBlock head;
+        Throwable t;
+        lock.lock();
+        try {
+            head = result;
+            t = failure;
+        } finally {
+            lock.unlock();
+        }
+        if (t != null) {
+            if (t instanceof CancellationException)
+                future.cancel(false);
+            else
+                future.setException(t);
+        } else if (head != null) {
+            future.set(head);
+        }
+    }
+}
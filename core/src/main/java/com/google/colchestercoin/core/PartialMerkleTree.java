@@ -19,9 +19,11 @@ package com.google.colchestercoin.core;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>A data structure that contains proofs of block inclusion for one or more transactions, in an efficient manner.</p>
  *
@@ -55,19 +57,104 @@ public class PartialMerkleTree extends Message {
     // node-is-parent-of-matched-txid bits
     byte[] matchedChildBits;
 
-    // txids and internal hashes
-    List<Sha256Hash> hashes;
+    // txids and internal hashes, 32 bytes each in the order they have on the wire
+    byte[] hashes;
+    int hashCount;
     
     public PartialMerkleTree(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
         super(params, payloadBytes, offset);
     }
+
+    private PartialMerkleTree(NetworkParameters params) {
+        super(params);
+    }
+
+    /**
+     * Builds the partial tree for the transactions of a block that matched, as the reference client's TraverseAndBuild
+     * does.
+     *
+     * @param matched whether each transaction of the block matched, in block order
+     * @param txids the hashes of all the transactions of the block, in block order
+     */
+    public static PartialMerkleTree buildFromLeaves(NetworkParameters params, boolean[] matched,
+                                                    List<Sha256Hash> txids) {
+        checkArgument(matched.length == txids.size(), "Got %s matches for %s transactions", matched.length,
+                txids.size());
+        byte[] leaves = new byte[txids.size() * 32];
+        for (int i = 0; i < txids.size(); i++) {
+            byte[] hash = txids.get(i).getBytes();
+            for (int j = 0; j < 32; j++)
+                leaves[i * 32 + j] = hash[31 - j];
+        }
+        return buildFromTree(params, matched, MerkleTree.calculateTree(leaves, txids.size()));
+    }
+
+    /**
+     * Builds the partial tree for the transactions of a block that matched, given every level of the block's Merkle
+     * tree as {@link MerkleTree#calculateTree(byte[], int)} works them out. Nothing is hashed, so this is the way to
+     * build trees for many different filters over the same block.
+     *
+     * @param matched whether each transaction of the block matched, in block order
+     * @param tree the levels of the Merkle tree of the block, one after another from the leaves up, in wire order
+     */
+    public static PartialMerkleTree buildFromTree(NetworkParameters params, boolean[] matched, byte[] tree) {
+        int count = matched.length;
+        checkArgument(count > 0, "No transactions");
+        int height = 0;
+        while (getTreeWidth(count, height) > 1)
+            height++;
+        // Where each level starts in the tree, and how many matches come before each transaction, so that whether a
+        // node is the parent of a match is a subtraction.
+        int[] levels = new int[height + 1];
+        for (int h = 1; h <= height; h++)
+            levels[h] = levels[h-1] + getTreeWidth(count, h-1);
+        checkArgument(tree.length >= (levels[height] + 1) * 32, "Tree is too small for %s transactions", count);
+        int[] matchesBefore = new int[count + 1];
+        for (int i = 0; i < count; i++)
+            matchesBefore[i + 1] = matchesBefore[i] + (matched[i] ? 1 : 0);
+        // A hash for each match and for the sibling of each node on the way up from it, and a bit for each of those
+        // and for the nodes on the way up.
+        int maxHashes = Math.min(count, matchesBefore[count] * (height + 1)) + 1;
+        PartialMerkleTree partialTree = new PartialMerkleTree(params);
+        partialTree.transactionCount = count;
+        partialTree.hashes = new byte[maxHashes * 32];
+        partialTree.matchedChildBits = new byte[(2 * maxHashes + height + 7) / 8];
+        ValuesUsed used = new ValuesUsed();
+        partialTree.traverseAndBuild(height, 0, used, tree, levels, matchesBefore);
+        partialTree.hashCount = used.hashesUsed;
+        partialTree.matchedChildBits = Arrays.copyOf(partialTree.matchedChildBits, (used.bitsUsed + 7) / 8);
+        partialTree.length = 4 + VarInt.sizeOf(partialTree.hashCount) + partialTree.hashCount * 32 +
+                VarInt.sizeOf(partialTree.matchedChildBits.length) + partialTree.matchedChildBits.length;
+        return partialTree;
+    }
+
+    // recursive function that traverses tree nodes, storing the data as bits and hashes, as TraverseAndBuild does.
+    private void traverseAndBuild(int height, int pos, ValuesUsed used, byte[] tree, int[] levels,
+                                  int[] matchesBefore) {
+        // determine whether this node is the parent of at least one matched txid
+        int first = pos << height;
+        int last = Math.min((pos + 1) << height, transactionCount);
+        boolean parentOfMatch = matchesBefore[last] > matchesBefore[first];
+        // store as flag bit
+        if (parentOfMatch)
+            Utils.setBitLE(matchedChildBits, used.bitsUsed);
+        used.bitsUsed++;
+        if (height == 0 || !parentOfMatch) {
+            // if at height 0, or nothing interesting below, store hash and stop
+            System.arraycopy(tree, (levels[height] + pos) * 32, hashes, used.hashesUsed++ * 32, 32);
+        } else {
+            // otherwise, don't store any hash, but descend into the subtrees
+            traverseAndBuild(height-1, pos*2, used, tree, levels, matchesBefore);
+            if (pos*2+1 < getTreeWidth(transactionCount, height-1))
+                traverseAndBuild(height-1, pos*2+1, used, tree, levels, matchesBefore);
+        }
+    }
     
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         Utils.uint32ToByteStreamLE(transactionCount, stream);
 
-        stream.write(new VarInt(hashes.size()).encode());
-        for (Sha256Hash hash : hashes)
-            stream.write(Utils.reverseBytes(hash.getBytes()));
+        stream.write(new VarInt(hashCount).encode());
+        stream.write(hashes, 0, hashCount * 32);
 
         stream.write(new VarInt(matchedChildBits.length).encode());
         stream.write(matchedChildBits);
@@ -77,10 +164,11 @@ public class PartialMerkleTree extends Message {
     void parse() throws ProtocolException {
         transactionCount = (int)readUint32();
 
-        int nHashes = (int) readVarInt();
-        hashes = new ArrayList<Sha256Hash>(nHashes);
-        for (int i = 0; i < nHashes; i++)
-            hashes.add(readHash());
+        long nHashes = readVarInt();
+        if (nHashes < 0 || nHashes * 32 > bytes.length - cursor)
+            throw new ProtocolException("Count of " + nHashes + " hashes is larger than the message");
+        hashCount = (int) nHashes;
+        hashes = readBytes(hashCount * 32);
 
         int nFlagBytes = (int) readVarInt();
         matchedChildBits = readBytes(nFlagBytes);
@@ -95,6 +183,10 @@ public class PartialMerkleTree extends Message {
     
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
     private int getTreeWidth(int height) {
+        return getTreeWidth(transactionCount, height);
+    }
+
+    private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount+(1 << height)-1) >> height;
     }
     
@@ -103,8 +195,11 @@ public class PartialMerkleTree extends Message {
     }
     
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
+    // it writes the hash of the respective node to scratch at the given offset, in wire order. The children of a node
+    // at height h are worked out side by side at offset (h-1)*64, so one buffer of 64 bytes per level does for the
+    // whole tree and nothing is allocated but the matched hashes.
+    private void recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes,
+                                        byte[] scratch, int offset) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("CPartialMerkleTree overflowed its bits array");
@@ -112,26 +207,33 @@ public class PartialMerkleTree extends Message {
         boolean parentOfMatch = Utils.checkBitLE(matchedChildBits, used.bitsUsed++);
         if (height == 0 || !parentOfMatch) {
             // if at height 0, or nothing interesting below, use stored hash and do not descend
-            if (used.hashesUsed >= hashes.size()) {
+            if (used.hashesUsed >= hashCount) {
                 // overflowed the hash array - failure
                 throw new VerificationException("CPartialMerkleTree overflowed its hash array");
             }
+            int hash = used.hashesUsed++ * 32;
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
-                matchedHashes.add(hashes.get(used.hashesUsed));
-            return hashes.get(used.hashesUsed++);
+                matchedHashes.add(new Sha256Hash(reversed(hashes, hash)));
+            System.arraycopy(hashes, hash, scratch, offset, 32);
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes).getBytes(), right;
+            int children = (height-1) * 64;
+            recursiveExtractHashes(height-1, pos*2, used, matchedHashes, scratch, children);
             if (pos*2+1 < getTreeWidth(height-1))
-                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes).getBytes();
+                recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes, scratch, children + 32);
             else
-                right = left;
+                System.arraycopy(scratch, children, scratch, children + 32, 32);
             // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+            Utils.doubleDigest(scratch, children, 64, scratch, offset);
         }
     }
+
+    private static byte[] reversed(byte[] bytes, int offset) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = bytes[offset + 31 - i];
+        return hash;
+    }
     
     /**
      * Extracts tx hashes that are in this merkle tree
@@ -155,10 +257,10 @@ public class PartialMerkleTree extends Message {
         if (transactionCount > Block.MAX_BLOCK_SIZE / 60) // 60 is the lower bound for the size of a serialized CTransaction
             throw new VerificationException("Got a CPartialMerkleTree with more transactions than is possible");
         // there can never be more hashes provided than one for every txid
-        if (hashes.size() > transactionCount)
+        if (hashCount > transactionCount)
             throw new VerificationException("Got a CPartialMerkleTree with more hashes than transactions");
         // there must be at least one bit per node in the partial tree, and at least one node per hash
-        if (matchedChildBits.length*8 < hashes.size())
+        if (matchedChildBits.length*8 < hashCount)
             throw new VerificationException("Got a CPartialMerkleTree with fewer matched bits than hashes");
         // calculate height of tree
         int height = 0;
@@ -166,13 +268,14 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashes);
+        byte[] scratch = new byte[(height+1) * 64];
+        recursiveExtractHashes(height, 0, used, matchedHashes, scratch, height * 64);
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
-                used.hashesUsed != hashes.size())
+                used.hashesUsed != hashCount)
             throw new VerificationException("Got a CPartialMerkleTree that didn't need all the data it provided");
         
-        return merkleRoot;
+        return new Sha256Hash(reversed(scratch, height * 64));
     }
 }
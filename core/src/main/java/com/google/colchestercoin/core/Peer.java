@@ -123,6 +123,17 @@ public class Peer {
         long nonce;
     }
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // When an API user explicitly requests headers with getBlockHeaders(), headers messages complete these futures in
+    // order instead of being fed into the chain download logic. Peers answer getheaders in the order they're sent.
+    @GuardedBy("lock") private final LinkedList<SettableFuture<List<Block>>> pendingHeadersRequests =
+            new LinkedList<SettableFuture<List<Block>>>();
+
+    // How well the peer has served us so far, used to choose between peers.
+    private volatile PeerScore vScore = new PeerScore();
+
+    // Broadcast transactions ruled out by a wallet's prefilter without taking the wallet's lock.
+    private static final int PREFILTER_LOG_INTERVAL = 10000;
+    @GuardedBy("lock") private long prefilterRejections;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -249,6 +260,8 @@ public class Peer {
                 log.info(s + " - " + cause.getMessage());
             } else {
                 log.warn(s + " - ", cause);
+                if (cause instanceof VerificationException)
+                    vScore.recordMisbehaviour();
                 Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
                 if (handler != null)
                     handler.uncaughtException(Thread.currentThread(), cause);
@@ -296,17 +309,17 @@ public class Peer {
         } else if (m instanceof InventoryMessage) {
             processInv((InventoryMessage) m);
         } else if (m instanceof Block) {
+            vScore.recordBlock(m.getMessageSize());
             processBlock((Block) m);
         } else if (m instanceof FilteredBlock) {
+            vScore.recordBlock(m.getMessageSize());
             startFilteredBlock((FilteredBlock) m);
         } else if (m instanceof Transaction) {
             processTransaction((Transaction) m);
         } else if (m instanceof GetDataMessage) {
             processGetData((GetDataMessage) m);
         } else if (m instanceof AddressMessage) {
-            // We don't care about addresses of the network right now. But in future,
-            // we should save them in the wallet so we don't put too much load on the seed nodes and can
-            // properly explore the network.
+            // Nothing to do here, PeerGroup remembers the addresses in its PeerAddressDatabase if it has one.
         } else if (m instanceof HeadersMessage) {
             processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
@@ -405,6 +418,20 @@ public class Peer {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        SettableFuture<List<Block>> headersRequest;
+        lock.lock();
+        try {
+            headersRequest = pendingHeadersRequests.poll();
+        } finally {
+            lock.unlock();
+        }
+        if (headersRequest != null) {
+            // Requested by getBlockHeaders(), let the caller decide what to do with them. If the caller already gave up
+            // on the request and cancelled the future, this does nothing.
+            headersRequest.set(m.getBlockHeaders());
+            return;
+        }
+
         lock.lock();
         try {
             if (blockChain == null) {
@@ -469,6 +496,7 @@ public class Peer {
             }
         } catch (VerificationException e) {
             log.warn("Block header verification failed", e);
+            vScore.recordMisbehaviour();
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
@@ -524,7 +552,7 @@ public class Peer {
             // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
             for (final Wallet wallet : wallets) {
                 try {
-                    if (wallet.isPendingTransactionRelevant(fTx)) {
+                    if (isPossiblyRelevant(wallet, fTx) && wallet.isPendingTransactionRelevant(fTx)) {
                         // This transaction seems interesting to us, so let's download its dependencies. This has several
                         // purposes: we can check that the sender isn't attacking us by engaging in protocol abuse games,
                         // like depending on a time-locked transaction that will never confirm, or building huge chains
@@ -575,6 +603,16 @@ public class Peer {
         }
     }
 
+    // Asks the wallet's prefilter about the transaction, keeping count of those it rules out.
+    @GuardedBy("lock")
+    private boolean isPossiblyRelevant(Wallet wallet, Transaction tx) {
+        if (wallet.isTransactionPossiblyRelevant(tx))
+            return true;
+        if (++prefilterRejections % PREFILTER_LOG_INTERVAL == 0)
+            log.info("{}: Wallet prefilters ruled out {} txns", vAddress, prefilterRejections);
+        return false;
+    }
+
     /**
      * <p>Returns a future that wraps a list of all transactions that the given transaction depends on, recursively.
      * Only transactions in peers memory pools are included; the recursion stops at transactions that are in the
@@ -782,6 +820,7 @@ public class Peer {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: Block verification failed", vAddress, e);
+            vScore.recordMisbehaviour();
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
@@ -793,6 +832,8 @@ public class Peer {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", vAddress, m.getHash().toString());
         }
+        // Was this block requested by getFilteredBlocks()?
+        if (maybeHandleRequestedData(m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHash().toString());
             return;
@@ -851,6 +892,7 @@ public class Peer {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: FilteredBlock verification failed", vAddress, e);
+            vScore.recordMisbehaviour();
         } catch (PrunedException e) {
             // We pruned away some of the data we need to properly handle this block. We need to request the needed
             // data from the remote peer and fix things. Or just give up.
@@ -1025,6 +1067,66 @@ public class Peer {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for all the given blocks using a single getdata message, and returns a future for each
+     * of them in the same order. This lets callers keep many block requests in flight on one connection without
+     * paying a round trip per block.
+     */
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) throws IOException {
+        return sendBatchedGetData(InventoryItem.Type.Block, blockHashes);
+    }
+
+    /**
+     * Like {@link #getBlocks(List)} but asks for filtered blocks, which contain only the transactions matching the
+     * Bloom filter previously given to the peer. Each future completes once the matching transactions following the
+     * filtered block have arrived.
+     */
+    public List<ListenableFuture<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) throws IOException {
+        checkState(vPeerVersionMessage.isBloomFilteringSupported(), "Peer does not support Bloom filtering");
+        List<ListenableFuture<FilteredBlock>> futures = sendBatchedGetData(InventoryItem.Type.FilteredBlock, blockHashes);
+        // The transactions of a filtered block don't say when they end, so make sure a non-tx message follows the last
+        // one (see startFilteredBlock).
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return futures;
+    }
+
+    private <T extends Message> List<ListenableFuture<T>> sendBatchedGetData(InventoryItem.Type type,
+                                                                             List<Sha256Hash> hashes) throws IOException {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<T>> futures = new ArrayList<ListenableFuture<T>>(hashes.size());
+        List<GetDataRequest> requests = new ArrayList<GetDataRequest>(hashes.size());
+        for (Sha256Hash hash : hashes) {
+            getdata.addItem(new InventoryItem(type, hash));
+            SettableFuture<T> future = SettableFuture.create();
+            GetDataRequest req = new GetDataRequest();
+            req.future = future;
+            req.hash = hash;
+            requests.add(req);
+            futures.add(future);
+        }
+        getDataFutures.addAll(requests);
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for up to {@link HeadersMessage#MAX_HEADERS} block headers following the first hash in
+     * the given locator that it knows about, and returns a future for the headers it sends back. Headers received
+     * this way are not added to the block chain.
+     */
+    public ListenableFuture<List<Block>> getBlockHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        SettableFuture<List<Block>> future = SettableFuture.create();
+        lock.lock();
+        try {
+            pendingHeadersRequests.add(future);
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(new GetHeadersMessage(params, blockLocator, stopHash));
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1239,6 +1341,7 @@ public class Peer {
             checkNotNull(future, "Already completed");
             Long elapsed = Utils.now().getTime() - startTimeMsec;
             Peer.this.addPingTimeData(elapsed);
+            vScore.recordPingTime(getPingTime());
             log.debug("{}: ping time is {} msec", Peer.this.toString(), elapsed);
             future.set(elapsed);
             future = null;
@@ -1366,6 +1469,33 @@ public class Peer {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Returns the record of how well this peer has served us, see {@link PeerScore}. {@link PeerGroup} replaces it
+     * with the record it keeps for the peer's address when the peer connects.
+     */
+    public PeerScore getScore() {
+        return vScore;
+    }
+
+    /**
+     * Returns how many times a transaction broadcast by this peer was ruled out by
+     * {@link Wallet#isTransactionPossiblyRelevant(Transaction)}, so that the wallet's lock wasn't taken and its full
+     * check not run. A transaction is counted once for each wallet that ruled it out.
+     */
+    public long getPrefilterRejections() {
+        lock.lock();
+        try {
+            return prefilterRejections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the object that records how well this peer serves us. */
+    public void setScore(PeerScore score) {
+        vScore = checkNotNull(score);
+    }
+
     /**
      * @return the IP address and port of peer.
      */
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of nodes we heard about (from addr messages and peer discovery) or successfully connected
+ * to, so that a restart can go straight to nodes that are known to work instead of repeating DNS lookups and trial and
+ * error connections. Give one to {@link PeerGroup#setPeerAddressDatabase(PeerAddressDatabase)}.</p>
+ *
+ * <p>Addresses are kept in two bucketed tables, in the same way as the reference client's address manager. "New"
+ * holds addresses we have only heard about and "tried" holds addresses we connected to at least once. Which bucket an
+ * address goes into is decided by a keyed hash of its network group (the /16 for IPv4) and, for new addresses, the
+ * group of the node that told us about it. Buckets have a fixed size, so a single node or network can only ever fill a
+ * small part of the database with addresses of its choosing. {@link #select(Set)} picks tried and new addresses about
+ * equally often, favouring ones that were seen recently and didn't fail their last connection attempts.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class PeerAddressDatabase {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressDatabase.class);
+
+    public static final int NEW_BUCKET_COUNT = 256;
+    public static final int TRIED_BUCKET_COUNT = 64;
+    public static final int BUCKET_SIZE = 64;
+    // How many of the new buckets addresses from a single source group may end up in.
+    private static final int NEW_BUCKETS_PER_SOURCE_GROUP = 32;
+    // How many of the tried buckets addresses from a single group may end up in.
+    private static final int TRIED_BUCKETS_PER_GROUP = 8;
+
+    private static final long HORIZON_SECS = 30 * 86400;
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_FAILURES = 10;
+    private static final long MIN_FAIL_SECS = 7 * 86400;
+    private static final int FILE_MAGIC = 0x41444442;  // "ADDB"
+    private static final int FILE_VERSION = 1;
+
+    private static class Entry {
+        final InetSocketAddress address;
+        final byte[] sourceGroup;
+        long services;
+        long lastSeenSecs, lastSuccessSecs, lastAttemptSecs;
+        int attempts;
+        boolean tried;
+        int bucket;
+
+        Entry(InetSocketAddress address, byte[] sourceGroup) {
+            this.address = address;
+            this.sourceGroup = sourceGroup;
+        }
+
+        // Addresses not worth keeping around: not seen for a month, from the future, or that keep failing.
+        boolean isTerrible(long now) {
+            if (lastAttemptSecs > 0 && now - lastAttemptSecs < 60)
+                return false;  // Give it a chance, we only just tried it.
+            if (lastSeenSecs > now + 10 * 60)
+                return true;
+            if (lastSeenSecs == 0 || now - lastSeenSecs > HORIZON_SECS)
+                return true;
+            if (lastSuccessSecs == 0 && attempts >= MAX_RETRIES)
+                return true;
+            return now - lastSuccessSecs > MIN_FAIL_SECS && attempts >= MAX_FAILURES;
+        }
+
+        // Relative chance of picking this address: much less if we just tried it, less for every failed attempt.
+        double getChance(long now) {
+            double chance = 1.0;
+            if (now - lastAttemptSecs < 10 * 60)
+                chance *= 0.01;
+            return chance * Math.pow(0.66, Math.min(attempts, 8));
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("peeraddressdb");
+    @Nullable private final File file;
+    private final Random random = new SecureRandom();
+    // Secret that makes our bucket assignment unpredictable to other nodes.
+    private final long key;
+
+    @GuardedBy("lock") private final HashMap<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    @GuardedBy("lock") private final List<List<Entry>> newTable = createTable(NEW_BUCKET_COUNT);
+    @GuardedBy("lock") private final List<List<Entry>> triedTable = createTable(TRIED_BUCKET_COUNT);
+    @GuardedBy("lock") private int newCount, triedCount;
+    @GuardedBy("lock") private boolean dirty;
+
+    /** Creates an empty database that is only kept in memory. */
+    public PeerAddressDatabase() {
+        this.file = null;
+        this.key = random.nextLong();
+    }
+
+    /**
+     * Creates a database that is kept in the given file, loading it if the file exists. Use {@link #save()} to write
+     * it back; {@link PeerGroup} does this periodically and when it shuts down.
+     */
+    public PeerAddressDatabase(File file) throws IOException {
+        this.file = checkNotNull(file);
+        if (!file.exists()) {
+            this.key = random.nextLong();
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("Not a peer address database: " + file);
+            this.key = in.readLong();
+            int count = in.readInt();
+            long now = Utils.now().getTime() / 1000;
+            lock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    InetSocketAddress address = new InetSocketAddress(readAddress(in), in.readUnsignedShort());
+                    byte[] sourceGroup = new byte[in.readUnsignedByte()];
+                    in.readFully(sourceGroup);
+                    Entry entry = new Entry(address, sourceGroup);
+                    entry.services = in.readLong();
+                    entry.lastSeenSecs = in.readLong();
+                    entry.lastSuccessSecs = in.readLong();
+                    entry.lastAttemptSecs = in.readLong();
+                    entry.attempts = in.readInt();
+                    boolean tried = in.readBoolean();
+                    if (entries.containsKey(address) || entry.isTerrible(now))
+                        continue;
+                    if (tried)
+                        addToTried(entry);
+                    else
+                        addToNew(entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            in.close();
+        }
+        log.info("Loaded {} peer addresses from {}", size(), file);
+    }
+
+    private static List<List<Entry>> createTable(int buckets) {
+        List<List<Entry>> table = new ArrayList<List<Entry>>(buckets);
+        for (int i = 0; i < buckets; i++)
+            table.add(new ArrayList<Entry>());
+        return table;
+    }
+
+    /**
+     * Adds an address we heard about. Returns true if it was not already known.
+     *
+     * @param source The node that told us about it, or null if it came from peer discovery.
+     */
+    public boolean add(PeerAddress address, @Nullable InetAddress source) {
+        InetSocketAddress socketAddress = address.toSocketAddress();
+        if (address.getPort() == 0 || socketAddress.getAddress().isAnyLocalAddress())
+            return false;
+        long now = Utils.now().getTime() / 1000;
+        long time = address.getTime();
+        // Don't believe timestamps from the future or from before this protocol existed.
+        if (time <= 100000000 || time > now + 10 * 60)
+            time = now - 5 * 86400;
+        lock.lock();
+        try {
+            Entry entry = entries.get(socketAddress);
+            if (entry != null) {
+                entry.lastSeenSecs = Math.max(entry.lastSeenSecs, time);
+                entry.services |= servicesOf(address);
+                return false;
+            }
+            entry = new Entry(socketAddress, getGroup(source == null ? socketAddress.getAddress() : source));
+            entry.lastSeenSecs = time;
+            entry.services = servicesOf(address);
+            addToNew(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds all the given addresses, for instance from an addr message. Returns how many were not already known. */
+    public int add(List<PeerAddress> addresses, @Nullable InetAddress source) {
+        int added = 0;
+        for (PeerAddress address : addresses) {
+            if (add(address, source))
+                added++;
+        }
+        return added;
+    }
+
+    private static long servicesOf(PeerAddress address) {
+        BigInteger services = address.getServices();
+        return services == null ? 0 : services.longValue();
+    }
+
+    /** Records that we're trying to connect to the given address. */
+    public void markAttempt(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null)
+                return;
+            entry.lastAttemptSecs = Utils.now().getTime() / 1000;
+            entry.attempts++;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a successful connection to the given address, moving it into the tried table. */
+    public void markGood(InetSocketAddress address) {
+        long now = Utils.now().getTime() / 1000;
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null) {
+                entry = new Entry(address, getGroup(address.getAddress()));
+            } else if (entry.tried) {
+                entry.lastSeenSecs = entry.lastSuccessSecs = entry.lastAttemptSecs = now;
+                entry.attempts = 0;
+                dirty = true;
+                return;
+            } else {
+                removeFromNew(entry);
+            }
+            entry.lastSeenSecs = entry.lastSuccessSecs = entry.lastAttemptSecs = now;
+            entry.attempts = 0;
+            addToTried(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks an address to connect to, or returns null if there are none other than the excluded ones (typically
+     * those we are already connected to).
+     */
+    @Nullable
+    public PeerAddress select(Set<InetSocketAddress> exclude) {
+        long now = Utils.now().getTime() / 1000;
+        lock.lock();
+        try {
+            if (entries.size() <= exclude.size() && exclude.containsAll(entries.keySet()))
+                return null;
+            double factor = 1.0;
+            for (int i = 0; i < 10000; i++) {
+                boolean useTried = triedCount > 0 && (newCount == 0 || random.nextBoolean());
+                List<List<Entry>> table = useTried ? triedTable : newTable;
+                // Start from a random bucket and take the first non-empty one.
+                int start = random.nextInt(table.size());
+                List<Entry> bucket = null;
+                for (int j = 0; j < table.size() && (bucket == null || bucket.isEmpty()); j++)
+                    bucket = table.get((start + j) % table.size());
+                Entry entry = bucket.get(random.nextInt(bucket.size()));
+                if (exclude.contains(entry.address))
+                    continue;
+                if (random.nextDouble() < factor * entry.getChance(now)) {
+                    PeerAddress address = new PeerAddress(entry.address);
+                    address.setServices(BigInteger.valueOf(entry.services));
+                    address.setTime(entry.lastSeenSecs);
+                    return address;
+                }
+                factor *= 1.2;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses known. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses we successfully connected to at some point. */
+    public int getTriedCount() {
+        lock.lock();
+        try {
+            return triedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the database to the file it was created with, if anything changed since it was loaded or last saved. */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            File temp = new File(file.getAbsolutePath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeLong(key);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    writeAddress(out, entry.address.getAddress());
+                    out.writeShort(entry.address.getPort());
+                    out.writeByte(entry.sourceGroup.length);
+                    out.write(entry.sourceGroup);
+                    out.writeLong(entry.services);
+                    out.writeLong(entry.lastSeenSecs);
+                    out.writeLong(entry.lastSuccessSecs);
+                    out.writeLong(entry.lastAttemptSecs);
+                    out.writeInt(entry.attempts);
+                    out.writeBoolean(entry.tried);
+                }
+            } finally {
+                out.close();
+            }
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                canonical.delete();
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addToNew(Entry entry) {
+        int hash1 = (int) (hash(getGroup(entry.address.getAddress()), entry.sourceGroup) % NEW_BUCKETS_PER_SOURCE_GROUP);
+        entry.bucket = (int) (hash(entry.sourceGroup, new byte[] { (byte) hash1 }) % NEW_BUCKET_COUNT);
+        entry.tried = false;
+        List<Entry> bucket = newTable.get(entry.bucket);
+        if (bucket.size() >= BUCKET_SIZE)
+            removeFromNew(selectVictim(bucket));
+        bucket.add(entry);
+        entries.put(entry.address, entry);
+        newCount++;
+        dirty = true;
+    }
+
+    @GuardedBy("lock")
+    private void removeFromNew(Entry entry) {
+        newTable.get(entry.bucket).remove(entry);
+        entries.remove(entry.address);
+        newCount--;
+        dirty = true;
+    }
+
+    @GuardedBy("lock")
+    private void addToTried(Entry entry) {
+        byte[] group = getGroup(entry.address.getAddress());
+        int hash1 = (int) (hash(addressBytes(entry.address), new byte[0]) % TRIED_BUCKETS_PER_GROUP);
+        entry.bucket = (int) (hash(group, new byte[] { (byte) hash1 }) % TRIED_BUCKET_COUNT);
+        List<Entry> bucket = triedTable.get(entry.bucket);
+        if (bucket.size() >= BUCKET_SIZE) {
+            // Make room by demoting the address that has gone longest without a successful connection.
+            Entry oldest = bucket.get(0);
+            for (Entry e : bucket) {
+                if (e.lastSuccessSecs < oldest.lastSuccessSecs)
+                    oldest = e;
+            }
+            bucket.remove(oldest);
+            entries.remove(oldest.address);
+            triedCount--;
+            addToNew(oldest);
+        }
+        entry.tried = true;
+        bucket.add(entry);
+        entries.put(entry.address, entry);
+        triedCount++;
+        dirty = true;
+    }
+
+    // Picks what to throw out of a full new bucket: anything terrible, otherwise the one seen longest ago.
+    @GuardedBy("lock")
+    private Entry selectVictim(List<Entry> bucket) {
+        long now = Utils.now().getTime() / 1000;
+        Entry oldest = bucket.get(0);
+        for (Entry e : bucket) {
+            if (e.isTerrible(now))
+                return e;
+            if (e.lastSeenSecs < oldest.lastSeenSecs)
+                oldest = e;
+        }
+        return oldest;
+    }
+
+    private long hash(byte[] a, byte[] b) {
+        byte[] input = new byte[8 + a.length + b.length];
+        Utils.uint64ToByteArrayLE(key, input, 0);
+        System.arraycopy(a, 0, input, 8, a.length);
+        System.arraycopy(b, 0, input, 8 + a.length, b.length);
+        return Utils.readUint32(Sha256Hash.create(input).getBytes(), 0);
+    }
+
+    // The network group of an address: the /16 for IPv4, the /32 for IPv6, prefixed with the address family.
+    private static byte[] getGroup(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address)
+            return new byte[] { 4, bytes[0], bytes[1] };
+        return new byte[] { 6, bytes[0], bytes[1], bytes[2], bytes[3] };
+    }
+
+    private static byte[] addressBytes(InetSocketAddress address) {
+        byte[] ip = address.getAddress().getAddress();
+        byte[] bytes = Arrays.copyOf(ip, ip.length + 2);
+        bytes[ip.length] = (byte) (address.getPort() >> 8);
+        bytes[ip.length + 1] = (byte) address.getPort();
+        return bytes;
+    }
+
+    private static void writeAddress(DataOutputStream out, InetAddress address) throws IOException {
+        byte[] bytes = address.getAddress();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static InetAddress readAddress(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+}
@@ -75,6 +75,12 @@ import static com.google.common.base.Preconditions.checkState;
 public class PeerGroup extends AbstractIdleService implements TransactionBroadcaster {
     private static final int DEFAULT_CONNECTIONS = 4;
 
+    /** How long the download peer may go without delivering a block whilst we're behind, before it is replaced. */
+    public static final long DOWNLOAD_PEER_STALL_TIMEOUT_MSEC = 30 * 1000;
+    /** How much better than the download peer another peer must score before we switch to it. */
+    public static final double DOWNLOAD_PEER_SWITCH_MARGIN = 25;
+    private static final long DOWNLOAD_PEER_CHECK_INTERVAL_MSEC = 10 * 1000;
+
     private static final Logger log = LoggerFactory.getLogger(PeerGroup.class);
     protected final ReentrantLock lock = Threading.lock("peergroup");
 
@@ -88,8 +94,18 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
 
     // The peer that has been selected for the purposes of downloading announced data.
     @GuardedBy("lock") private Peer downloadPeer;
+    // When the download peer was selected, so we can tell whether it stalled.
+    @GuardedBy("lock") private long downloadPeerSinceMsec;
+    // How well each address we connected to has served us, kept across reconnections.
+    @GuardedBy("lock") private final Map<InetSocketAddress, PeerScore> peerScores = new HashMap<InetSocketAddress, PeerScore>();
     // Callback for events related to chain download
     @GuardedBy("lock") private PeerEventListener downloadListener;
+    // Whether chain download catches up using all peers at once, see setParallelBlockDownload().
+    @GuardedBy("lock") private boolean parallelBlockDownload;
+    // Set when a parallel download was asked for but there were no peers to start it with yet.
+    @GuardedBy("lock") private boolean parallelDownloadPending;
+    // The parallel download in progress, if any. Whilst it runs there is no download peer.
+    @GuardedBy("lock") private ParallelBlockDownloader parallelDownloader;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
@@ -123,9 +139,28 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     private final AbstractPeerEventListener getDataListener = new AbstractPeerEventListener() {
         @Override
         public List<Message> getData(Peer peer, GetDataMessage m) {
-            return handleGetData(m);
+            List<Message> items = handleGetData(m);
+            FilteredBlockServer server = vFilteredBlockServer;
+            if (server != null)
+                items.addAll(server.serve(peer, m));
+            return items;
+        }
+    };
+
+    // Added to every peer when there is an address database, so what they tell us about the network gets remembered.
+    private final AbstractPeerEventListener addressListener = new AbstractPeerEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressDatabase db = vAddressDatabase;
+            if (db != null && m instanceof AddressMessage)
+                db.add(((AddressMessage) m).getAddresses(), peer.getAddress().getAddr());
+            return m;
         }
     };
+    private volatile PeerAddressDatabase vAddressDatabase;
+    private volatile FilteredBlockServer vFilteredBlockServer;
+    /** How often the address database is written to disk, if it changed. */
+    public static final long ADDRESS_DATABASE_SAVE_INTERVAL_MSEC = 5 * 60 * 1000;
 
     private ClientBootstrap bootstrap;
     private int minBroadcastConnections = 0;
@@ -204,6 +239,15 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
      * bootstrap will be modified to have one that sets up the pipelines correctly.</p>
      */
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, @Nullable ClientBootstrap bootstrap) {
+        this(params, chain, bootstrap, new MemoryPool());
+    }
+
+    /**
+     * As {@link PeerGroup#PeerGroup(NetworkParameters, AbstractBlockChain, ClientBootstrap)}, but the peers record the
+     * transactions they see in the given {@link MemoryPool}, for example a {@link FeeRateMemoryPool}.
+     */
+    public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, @Nullable ClientBootstrap bootstrap,
+                     MemoryPool memoryPool) {
         this.params = checkNotNull(params);
         this.chain = chain;
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
@@ -219,7 +263,9 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         // We never request that the remote node wait for a bloom filter yet, as we have no wallets
         this.versionMessage = new VersionMessage(params, height, true);
 
-        memoryPool = new MemoryPool();
+        this.memoryPool = checkNotNull(memoryPool);
+        if (memoryPool instanceof FeeRateMemoryPool && chain != null)
+            ((FeeRateMemoryPool) memoryPool).setBlockChain(chain);
 
         // Configure Netty. The "ClientBootstrap" creates connections to other nodes. It can be configured in various
         // ways to control the network.
@@ -542,6 +588,11 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         } finally {
             lock.unlock();
         }
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db != null) {
+            for (PeerAddress address : addressSet)
+                db.add(address, null);
+        }
         log.info("Peer discovery took {}msec", System.currentTimeMillis() - start);
     }
 
@@ -550,9 +601,16 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         final State state = state();
         if (!(state == State.STARTING || state == State.RUNNING)) return;
 
-        final PeerAddress addr;
+        PeerAddress addr;
+        final PeerAddressDatabase db = vAddressDatabase;
         lock.lock();
         try {
+            if (inactives.size() == 0 && db != null) {
+                // Addresses that worked last time are usually a much quicker way to get connected than discovery.
+                addr = db.select(getConnectedAndPendingAddresses());
+                if (addr != null)
+                    inactives.add(addr);
+            }
             if (inactives.size() == 0) {
                 discoverPeers();
             }
@@ -560,7 +618,7 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
                 log.debug("Peer discovery didn't provide us any more peers, not trying to build new connection.");
                 return;
             }
-            addr = inactives.remove(inactives.size() - 1);
+            addr = inactives.remove(selectInactive());
         } finally {
             lock.unlock();
         }
@@ -571,13 +629,131 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         // This method eventually constructs a Peer and puts it into pendingPeers. If the connection fails to establish,
         // handlePeerDeath will be called, which will potentially call this method again to replace the dead or failed
         // connection.
+        if (db != null)
+            db.markAttempt(addr.toSocketAddress());
         connectTo(addr.toSocketAddress(), false);
     }
 
+    private Set<InetSocketAddress> getConnectedAndPendingAddresses() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<InetSocketAddress> result = Sets.newHashSet();
+        for (Peer peer : peers)
+            result.add(peer.getAddress().toSocketAddress());
+        for (Peer peer : pendingPeers)
+            result.add(peer.getAddress().toSocketAddress());
+        return result;
+    }
+
+    /**
+     * Sets the database used to remember the addresses of nodes on the network between runs. When set, every new peer
+     * is asked for the addresses it knows, and when more connections are needed addresses from the database are tried
+     * before falling back to peer discovery. The database is saved every
+     * {@link #ADDRESS_DATABASE_SAVE_INTERVAL_MSEC} milliseconds and when the group shuts down. Set this before
+     * starting the group.
+     */
+    public void setPeerAddressDatabase(@Nullable PeerAddressDatabase db) {
+        vAddressDatabase = db;
+    }
+
+    /** Returns the database set with {@link #setPeerAddressDatabase(PeerAddressDatabase)}, or null. */
+    @Nullable
+    public PeerAddressDatabase getPeerAddressDatabase() {
+        return vAddressDatabase;
+    }
+
+    /**
+     * Sets the server that answers peers asking for filtered blocks, the way a full node serves light clients. Peers
+     * that connect after this is set have their filters kept and the full blocks they send remembered by the server,
+     * and getdata for filtered blocks answered from it. Set this before starting the group.
+     */
+    public void setFilteredBlockServer(@Nullable FilteredBlockServer server) {
+        vFilteredBlockServer = server;
+    }
+
+    /** Returns the server set with {@link #setFilteredBlockServer(FilteredBlockServer)}, or null. */
+    @Nullable
+    public FilteredBlockServer getFilteredBlockServer() {
+        return vFilteredBlockServer;
+    }
+
+    private void saveAddressDatabase() {
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db == null)
+            return;
+        try {
+            db.save();
+        } catch (IOException e) {
+            log.error("Failed to save the peer address database", e);
+        }
+    }
+
+    // Returns the index of the best scoring address in inactives. Of equals, the most recently added one wins.
+    private int selectInactive() {
+        checkState(lock.isHeldByCurrentThread());
+        int best = inactives.size() - 1;
+        double bestScore = getScore(inactives.get(best));
+        for (int i = best - 1; i >= 0; i--) {
+            double score = getScore(inactives.get(i));
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private double getScore(PeerAddress address) {
+        PeerScore score = peerScores.get(address.toSocketAddress());
+        return score == null ? PeerScore.UNKNOWN_SCORE : score.getScore();
+    }
+
+    private PeerScore getOrCreateScore(@Nullable PeerAddress address) {
+        checkState(lock.isHeldByCurrentThread());
+        if (address == null)
+            return new PeerScore();
+        InetSocketAddress key = address.toSocketAddress();
+        PeerScore score = peerScores.get(key);
+        if (score == null) {
+            score = new PeerScore();
+            peerScores.put(key, score);
+        }
+        return score;
+    }
+
+    /**
+     * Returns how well each address we have been connected to served us: ping time, block throughput, stalls and
+     * misbehaviour. See {@link PeerScore}. The scores of connected peers are also available from
+     * {@link Peer#getScore()}.
+     */
+    public Map<InetSocketAddress, PeerScore> getPeerScores() {
+        lock.lock();
+        try {
+            return new HashMap<InetSocketAddress, PeerScore>(peerScores);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     protected void startUp() throws Exception {
         // This is run in a background thread by the AbstractIdleService implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    checkDownloadPeer();
+                } catch (Exception e) {
+                    log.warn("Exception whilst checking the download peer", e);
+                }
+            }
+        }, DOWNLOAD_PEER_CHECK_INTERVAL_MSEC, DOWNLOAD_PEER_CHECK_INTERVAL_MSEC);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                saveAddressDatabase();
+            }
+        }, ADDRESS_DATABASE_SAVE_INTERVAL_MSEC, ADDRESS_DATABASE_SAVE_INTERVAL_MSEC);
         // Bring up the requested number of connections. If a connect attempt fails,
         // new peers will be tried until there is a success, so just calling connectToAnyPeer for the wanted number
         // of peers is sufficient.
@@ -595,6 +771,9 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the AbstractIdleService implementation.
         vPingTimer.cancel();
+        ParallelBlockDownloader downloader = getParallelBlockDownloader();
+        if (downloader != null)
+            downloader.stop();
         // Blocking close of all sockets. TODO: there is a race condition here, for the solution see:
         // http://biasedbit.com/netty-releaseexternalresources-hangs/
         channels.close().await();
@@ -603,6 +782,7 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
             peerDiscovery.shutdown();
         }
+        saveAddressDatabase();
     }
 
     /**
@@ -819,7 +999,13 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             // TODO: be more nuanced about which peer to download from.  We can also try
             // downloading from multiple peers and handle the case when a new peer comes along
             // with a longer chain after we thought we were done.
-            if (!peers.isEmpty()) {
+            if (parallelBlockDownload && chain != null) {
+                if (parallelDownloader != null)
+                    return;
+                parallelDownloadPending = true;
+                if (!peers.isEmpty())
+                    startParallelDownload();
+            } else if (!peers.isEmpty()) {
                 startBlockChainDownloadFromPeer(peers.iterator().next());
             }
         } finally {
@@ -827,6 +1013,94 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         }
     }
 
+    /**
+     * <p>If enabled, {@link #startBlockChainDownload(PeerEventListener)} catches up the chain using every connected
+     * peer at once rather than walking it with a single download peer: the whole header chain is fetched first, then
+     * blocks after the fast catchup time are requested from all peers in parallel and added to the chain in order. Once caught up (or if the parallel
+     * download fails), a single download peer is selected to follow new blocks as usual.</p>
+     *
+     * <p>Must be set before the chain download is started. Disabled by default.</p>
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        lock.lock();
+        try {
+            this.parallelBlockDownload = parallelBlockDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain is caught up using all peers at once, see {@link #setParallelBlockDownload(boolean)}. */
+    public boolean isParallelBlockDownload() {
+        lock.lock();
+        try {
+            return parallelBlockDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the parallel chain download currently in progress, or null if there isn't one. */
+    @Nullable
+    public ParallelBlockDownloader getParallelBlockDownloader() {
+        lock.lock();
+        try {
+            return parallelDownloader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startParallelDownload() {
+        checkState(lock.isHeldByCurrentThread());
+        parallelDownloadPending = false;
+        // Nobody follows announced blocks whilst we catch up, they'd only race with the parallel download.
+        setDownloadPeer(null);
+        final ParallelBlockDownloader downloader = new ParallelBlockDownloader(params, chain);
+        // Headers first, then (filtered) blocks only for the part of the chain the wallets care about.
+        downloader.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
+        if (downloadListener != null)
+            downloader.addEventListener(downloadListener, Threading.SAME_THREAD);
+        for (ListenerRegistration<PeerEventListener> registration : peerEventListeners)
+            downloader.addEventListener(registration.listener, registration.executor);
+        for (Peer peer : peers)
+            downloader.addPeer(peer);
+        parallelDownloader = downloader;
+        Futures.addCallback(downloader.start(), new FutureCallback<StoredBlock>() {
+            @Override
+            public void onSuccess(StoredBlock head) {
+                parallelDownloadFinished(downloader);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                log.warn("Parallel block chain download did not complete, continuing with a single peer: {}",
+                        throwable.toString());
+                parallelDownloadFinished(downloader);
+            }
+        });
+    }
+
+    private void parallelDownloadFinished(ParallelBlockDownloader downloader) {
+        lock.lock();
+        try {
+            if (parallelDownloader != downloader)
+                return;
+            parallelDownloader = null;
+            // Hand over to a single peer, which follows new blocks as they're announced, and finishes off the chain
+            // if the parallel download failed.
+            Peer newDownloadPeer = selectDownloadPeer(peers);
+            if (newDownloadPeer != null) {
+                if (downloadListener != null && isRunning())
+                    startBlockChainDownloadFromPeer(newDownloadPeer);
+                else
+                    setDownloadPeer(newDownloadPeer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Download the blockchain from peers. Convenience that uses a {@link DownloadListener} for you.<p>
      * 
@@ -853,6 +1127,10 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             pendingPeers.remove(peer);
             peers.add(peer);
             newSize = peers.size();
+            // Carry over what we know about this address from previous connections.
+            PeerScore score = getOrCreateScore(peer.getAddress());
+            score.recordConnected();
+            peer.setScore(score);
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
@@ -868,17 +1146,34 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
-            // Re-evaluate download peers.
-            Peer newDownloadPeer = selectDownloadPeer(peers);
-            if (downloadPeer != newDownloadPeer) {
-                setDownloadPeer(newDownloadPeer);
-                boolean shouldDownloadChain = downloadListener != null && chain != null;
-                if (shouldDownloadChain) {
-                    startBlockChainDownloadFromPeer(downloadPeer);
+            if (parallelDownloader != null) {
+                // Catching up in parallel, put the new peer to work as well.
+                parallelDownloader.addPeer(peer);
+            } else if (parallelDownloadPending) {
+                startParallelDownload();
+            } else {
+                // Re-evaluate download peers.
+                Peer newDownloadPeer = selectDownloadPeer(peers);
+                if (shouldSwitchDownloadPeer(newDownloadPeer)) {
+                    setDownloadPeer(newDownloadPeer);
+                    boolean shouldDownloadChain = downloadListener != null && chain != null;
+                    if (shouldDownloadChain) {
+                        startBlockChainDownloadFromPeer(downloadPeer);
+                    }
                 }
             }
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(getDataListener, Threading.SAME_THREAD);
+            FilteredBlockServer server = vFilteredBlockServer;
+            if (server != null)
+                peer.addEventListener(server, Threading.SAME_THREAD);
+            PeerAddressDatabase db = vAddressDatabase;
+            if (db != null) {
+                // Remember that this address works, and learn about more from it.
+                db.markGood(peer.getAddress().toSocketAddress());
+                peer.addEventListener(addressListener, Threading.SAME_THREAD);
+                peer.sendMessage(new GetAddrMessage(params));
+            }
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
             for (ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
                 peer.addEventListener(registration.listener, registration.executor);
@@ -968,6 +1263,7 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            downloadPeerSinceMsec = Utils.now().getTime();
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 downloadPeer.setDownloadData(true);
@@ -1034,10 +1330,15 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            if (pendingPeers.remove(peer)) {
+                // Never got as far as the version handshake.
+                getOrCreateScore(peer.getAddress()).recordConnectionFailure();
+            }
             peers.remove(peer);
             log.info("{}: Peer died", peer.getAddress());
-            if (peer == downloadPeer) {
+            if (parallelDownloader != null) {
+                parallelDownloader.removePeer(peer);
+            } else if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
@@ -1063,6 +1364,12 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             }
         }
         peer.removeEventListener(getDataListener);
+        peer.removeEventListener(addressListener);
+        FilteredBlockServer server = vFilteredBlockServer;
+        if (server != null) {
+            peer.removeEventListener(server);
+            server.removePeer(peer);
+        }
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
@@ -1314,11 +1621,6 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         return freqHeights[s - 1];
     }
 
-    private static class PeerAndPing {
-        Peer peer;
-        long pingTime;
-    }
-
     /**
      * Given a list of Peers, return a Peer to be used as the download peer. If you don't want PeerGroup to manage
      * download peer statuses for you, just override this and always return null.
@@ -1327,9 +1629,26 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Score: ping time, throughput, stalls and misbehaviour.
+        // Of the candidates, take the one that has served us best so far, see PeerScore. Ties go to the lower ping.
+        Peer best = null;
+        double bestScore = 0;
+        for (Peer peer : getDownloadPeerCandidates(peers)) {
+            double score = peer.getScore().getScore();
+            if (best == null || score > bestScore ||
+                    (score == bestScore && peer.getPingTime() < best.getPingTime())) {
+                best = peer;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // Returns the peers that are on the most common chain height and have a good enough protocol version to download
+    // from, whatever their scores.
+    private List<Peer> getDownloadPeerCandidates(List<Peer> peers) {
         if (peers.isEmpty())
-            return null;
+            return Collections.emptyList();
         // Make sure we don't select a peer that is behind/synchronizing itself.
         int mostCommonChainHeight = getMostCommonChainHeight(peers);
         List<Peer> candidates = new ArrayList<Peer>();
@@ -1346,28 +1665,60 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             highestVersion = Math.max(peer.getPeerVersionMessage().clientVersion, highestVersion);
             preferredVersion = Math.min(highestVersion, PREFERRED_VERSION);
         }
-        List<PeerAndPing> candidates2 = new ArrayList<PeerAndPing>();
+        List<Peer> result = new ArrayList<Peer>(candidates.size());
         for (Peer peer : candidates) {
-            if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
-                PeerAndPing pap = new PeerAndPing();
-                pap.peer = peer;
-                pap.pingTime = peer.getPingTime();
-                candidates2.add(pap);
-            }
+            if (peer.getPeerVersionMessage().clientVersion >= preferredVersion)
+                result.add(peer);
         }
-        // Sort by ping time.
-        Collections.sort(candidates2, new Comparator<PeerAndPing>() {
-            public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                if (peerAndPing.pingTime < peerAndPing2.pingTime)
-                    return -1;
-                else if (peerAndPing.pingTime == peerAndPing2.pingTime)
-                    return 0;
-                else
-                    return 1;
+        return result;
+    }
 
+    // Whether to move the chain download to the given peer. Unless the current download peer no longer qualifies, the
+    // other one has to score better by DOWNLOAD_PEER_SWITCH_MARGIN, so new connections don't keep restarting it.
+    private boolean shouldSwitchDownloadPeer(@Nullable Peer newDownloadPeer) {
+        checkState(lock.isHeldByCurrentThread());
+        if (newDownloadPeer == downloadPeer)
+            return false;
+        if (downloadPeer == null || newDownloadPeer == null || !getDownloadPeerCandidates(peers).contains(downloadPeer))
+            return true;
+        return newDownloadPeer.getScore().getScore() >= downloadPeer.getScore().getScore() + DOWNLOAD_PEER_SWITCH_MARGIN;
+    }
+
+    /**
+     * Replaces the download peer if it has stopped delivering blocks whilst we're behind the rest of the network, or
+     * if another peer now scores much better (see {@link PeerScore}). Runs periodically whilst the group is running.
+     */
+    void checkDownloadPeer() {
+        lock.lock();
+        try {
+            if (chain == null || downloadPeer == null || parallelDownloader != null)
+                return;
+            final Peer current = downloadPeer;
+            final PeerScore currentScore = current.getScore();
+            List<Peer> candidates = new ArrayList<Peer>(peers);
+            boolean behind = chain.getBestChainHeight() < getMostCommonChainHeight(peers);
+            long lastProgress = Math.max(downloadPeerSinceMsec, currentScore.getLastBlockTime());
+            boolean stalled = behind && Utils.now().getTime() - lastProgress >= DOWNLOAD_PEER_STALL_TIMEOUT_MSEC;
+            if (stalled) {
+                log.info("{}: Download peer stalled", current);
+                currentScore.recordStall();
+                candidates.remove(current);
             }
-        });
-        return candidates2.get(0).peer;
+            Peer newDownloadPeer = selectDownloadPeer(candidates);
+            if (newDownloadPeer == null || newDownloadPeer == current)
+                return;
+            if (!stalled && newDownloadPeer.getScore().getScore() < currentScore.getScore() + DOWNLOAD_PEER_SWITCH_MARGIN)
+                return;
+            log.info("Switching download peer from {} to {}", current, newDownloadPeer);
+            if (downloadListener != null) {
+                current.removeEventListener(downloadListener);
+                startBlockChainDownloadFromPeer(newDownloadPeer);
+            } else {
+                setDownloadPeer(newDownloadPeer);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     private static class PeerGroupThreadFactory implements ThreadFactory {
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Keeps track of how well a remote node has served us: its ping time, how quickly it delivers blocks, how often it
+ * stalled whilst we were waiting for data and whether it sent us anything invalid. These are combined into a single
+ * number by {@link #getScore()}, where higher is better and an address we know nothing about scores
+ * {@link #UNKNOWN_SCORE}.</p>
+ *
+ * <p>{@link PeerGroup} keeps one of these per address, so a node's record survives reconnections, and uses the scores
+ * to choose the download peer and which addresses to try first. Penalties for stalls and misbehaviour are forgiven
+ * over time, halving every {@link #PENALTY_HALF_LIFE_SECS} seconds.</p>
+ */
+public class PeerScore {
+    public static final int PENALTY_HALF_LIFE_SECS = 60 * 60;
+
+    // Weights of the various components of the score.
+    private static final double MAX_PING_PENALTY = 50;
+
+    /**
+     * The score of an address we know nothing about. A ping time that hasn't been measured yet counts as the slowest,
+     * so a peer that has only just connected doesn't rank above ones that answer pings.
+     */
+    public static final double UNKNOWN_SCORE = -MAX_PING_PENALTY;
+    private static final double MAX_THROUGHPUT_BONUS = 50;
+    private static final double CONNECTED_BONUS = 10;
+    private static final double STALL_PENALTY = 10;
+    private static final double MISBEHAVIOUR_PENALTY = 50;
+    private static final double CONNECTION_FAILURE_PENALTY = 10;
+    private static final int MAX_CONNECTION_FAILURES = 5;
+    // Gaps between blocks longer than this mean we weren't asking for any, so they don't count against throughput.
+    private static final long IDLE_GAP_MSEC = 10 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("peerscore");
+
+    @GuardedBy("lock") private long pingTimeMsec = Long.MAX_VALUE;
+    @GuardedBy("lock") private double bytesPerSec;
+    @GuardedBy("lock") private long blocksReceived;
+    @GuardedBy("lock") private long lastBlockTimeMsec;
+    @GuardedBy("lock") private int stalls, misbehaviours, connectionFailures;
+    @GuardedBy("lock") private double stallPenalty, misbehaviourPenalty;
+    @GuardedBy("lock") private long penaltyTimeMsec;
+    @GuardedBy("lock") private long lastConnectedTimeMsec;
+
+    /** Records the current average ping time of the peer. */
+    public void recordPingTime(long pingTimeMsec) {
+        lock.lock();
+        try {
+            this.pingTimeMsec = pingTimeMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a block (or filtered block) of the given size arrived, updating the throughput estimate. */
+    public void recordBlock(int bytes) {
+        lock.lock();
+        try {
+            long now = Utils.now().getTime();
+            long gap = now - lastBlockTimeMsec;
+            if (lastBlockTimeMsec > 0 && gap < IDLE_GAP_MSEC) {
+                // Exponentially weighted moving average, so a peer that slows down is noticed within a few blocks.
+                double sample = bytes * 1000.0 / Math.max(1, gap);
+                bytesPerSec = bytesPerSec == 0 ? sample : 0.8 * bytesPerSec + 0.2 * sample;
+            }
+            lastBlockTimeMsec = now;
+            blocksReceived++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the peer failed to answer a request for data in time. */
+    public void recordStall() {
+        lock.lock();
+        try {
+            decayPenalties();
+            stalls++;
+            stallPenalty += 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the peer sent us something that failed verification. */
+    public void recordMisbehaviour() {
+        lock.lock();
+        try {
+            decayPenalties();
+            misbehaviours++;
+            misbehaviourPenalty += 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a successful connection (version handshake completed) to this address. */
+    public void recordConnected() {
+        lock.lock();
+        try {
+            lastConnectedTimeMsec = Utils.now().getTime();
+            connectionFailures = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a failed attempt to connect to this address. */
+    public void recordConnectionFailure() {
+        lock.lock();
+        try {
+            connectionFailures = Math.min(connectionFailures + 1, MAX_CONNECTION_FAILURES);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void decayPenalties() {
+        long now = Utils.now().getTime();
+        if (penaltyTimeMsec > 0 && now > penaltyTimeMsec) {
+            double halfLives = (now - penaltyTimeMsec) / (PENALTY_HALF_LIFE_SECS * 1000.0);
+            double factor = Math.pow(0.5, halfLives);
+            stallPenalty *= factor;
+            misbehaviourPenalty *= factor;
+        }
+        penaltyTimeMsec = now;
+    }
+
+    /**
+     * Returns the combined score, higher is better. Nodes that answer pings quickly, deliver blocks fast and that we
+     * have connected to before score above {@link #UNKNOWN_SCORE}; nodes that recently stalled, misbehaved or could not
+     * be reached score below it.
+     */
+    public double getScore() {
+        lock.lock();
+        try {
+            decayPenalties();
+            double score = 0;
+            if (lastConnectedTimeMsec > 0)
+                score += CONNECTED_BONUS;
+            score -= Math.min(MAX_PING_PENALTY, pingTimeMsec / 40.0);
+            if (bytesPerSec > 0) {
+                // 5 points for every doubling of throughput, reaching the maximum at about 1MB/sec.
+                double log2 = Math.log(1 + bytesPerSec / 1024) / Math.log(2);
+                score += Math.min(MAX_THROUGHPUT_BONUS, 5 * log2);
+            }
+            score -= STALL_PENALTY * stallPenalty;
+            score -= MISBEHAVIOUR_PENALTY * misbehaviourPenalty;
+            score -= CONNECTION_FAILURE_PENALTY * connectionFailures;
+            return score;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the last recorded average ping time, or Long.MAX_VALUE if there is none. */
+    public long getPingTime() {
+        lock.lock();
+        try {
+            return pingTimeMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated rate at which the peer delivers block data, in bytes per second. */
+    public double getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bytesPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks the peer has delivered. */
+    public long getBlocksReceived() {
+        lock.lock();
+        try {
+            return blocksReceived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the time of the last block delivered by the peer, in milliseconds since the epoch, or 0 if none. */
+    public long getLastBlockTime() {
+        lock.lock();
+        try {
+            return lastBlockTimeMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total number of stalls recorded, including forgiven ones. */
+    public int getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total number of times the peer misbehaved, including forgiven ones. */
+    public int getMisbehaviours() {
+        lock.lock();
+        try {
+            return misbehaviours;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("score %.1f: ping %s, %.1f KB/sec over %d blocks, %d stalls, %d misbehaviours, " +
+                    "%d connection failures", getScore(),
+                    pingTimeMsec == Long.MAX_VALUE ? "unknown" : pingTimeMsec + "ms", bytesPerSec / 1024,
+                    blocksReceived, stalls, misbehaviours, connectionFailures);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
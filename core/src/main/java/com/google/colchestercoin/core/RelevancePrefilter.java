@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.script.Script;
+
+/**
+ * <p>Everything that can make a transaction relevant to a {@link Wallet}, in a form that can be checked without taking
+ * the wallet's lock: the hashes and public keys of its keys, its watched scripts, the hashes of its transactions and
+ * the outpoints its pending transactions spend. A transaction this rules out is one the wallet would find irrelevant
+ * too, see {@link Wallet#isTransactionPossiblyRelevant(Transaction)}.</p>
+ *
+ * <p>Each of them is held as a 64 bit fingerprint in an open addressing table of longs. Two different things sharing a
+ * fingerprint is very rare, and when it happens the only harm is that a transaction goes on to the wallet's full
+ * check. The same goes for things the wallet has forgotten, which stay in the set until the wallet makes a new one.</p>
+ *
+ * <p>The wallet only adds to the set whilst holding its lock, so there is one writer at a time, and any number of
+ * threads can check transactions at once. A check sees everything added before it started. The table never grows:
+ * when it is full the add methods return false and the wallet replaces the set with a bigger one.</p>
+ */
+final class RelevancePrefilter {
+    private static final int MIN_CAPACITY = 64;
+
+    // Zero marks an empty slot, and no fingerprint is zero.
+    private final long[] table;
+    private final int mask;
+    private final int maxSize;
+    // Written after the slot, so a reader that reads the size first sees every slot filled before it.
+    private volatile int size;
+
+    /** Makes a set with room for at least the given number of things. */
+    RelevancePrefilter(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity *= 2;
+        table = new long[capacity];
+        mask = capacity - 1;
+        maxSize = capacity * 3 / 4;
+    }
+
+    /** Returns how many different fingerprints are in the set. */
+    int size() {
+        return size;
+    }
+
+    /** Adds the hash and public key of the key, returning false if there was no room. */
+    boolean addKey(ECKey key) {
+        byte[] hash = key.getPubKeyHash();
+        byte[] pubkey = key.getPubKey();
+        return add(fingerprint(hash, 0, hash.length)) && add(fingerprint(pubkey, 0, pubkey.length));
+    }
+
+    /** Adds a watched output script, returning false if there was no room. */
+    boolean addScript(Script script) {
+        byte[] program = script.getProgram();
+        return add(fingerprint(program, 0, program.length));
+    }
+
+    /**
+     * Adds the hash of a wallet transaction and, for a pending one, the outpoints it spends, returning false if there
+     * was no room.
+     */
+    boolean addTransaction(Transaction tx, boolean pending) {
+        byte[] outpoint = new byte[36];
+        System.arraycopy(Utils.reverseBytes(tx.getHash().getBytes()), 0, outpoint, 0, 32);
+        if (!add(fingerprint(outpoint, 0, 32)))
+            return false;
+        if (pending) {
+            for (TransactionInput input : tx.getInputs()) {
+                TransactionOutPoint spent = input.getOutpoint();
+                System.arraycopy(Utils.reverseBytes(spent.getHash().getBytes()), 0, outpoint, 0, 32);
+                Utils.uint32ToByteArrayLE(spent.getIndex(), outpoint, 32);
+                if (!add(fingerprint(outpoint, 0, 36)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the viewed transaction has no output to a key or watched script in the set, and spends nothing
+     * from a transaction in the set or that a pending transaction also spends.
+     */
+    boolean mightBeRelevant(TransactionView tx) {
+        if (size == 0)
+            return false;
+        byte[] bytes = tx.getBytes();
+        for (int i = 0; i < tx.getOutputCount(); i++) {
+            int start = tx.getScriptPubKeyOffset(i);
+            int length = tx.getScriptPubKeyLength(i);
+            if (contains(fingerprint(bytes, start, length)))
+                return true;
+            int hash = tx.findPubKeyHash(i);
+            if (hash >= 0 && contains(fingerprint(bytes, hash, Address.LENGTH)))
+                return true;
+            int pubkey = tx.findPubKey(i);
+            if (pubkey >= 0 && contains(fingerprint(bytes, pubkey, start + length - 1 - pubkey)))
+                return true;
+        }
+        for (int i = 0; i < tx.getInputCount(); i++) {
+            int outpoint = tx.getOutPointOffset(i);
+            if (contains(fingerprint(bytes, outpoint, 32)) || contains(fingerprint(bytes, outpoint, 36)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean add(long fingerprint) {
+        int i = (int) fingerprint & mask;
+        while (table[i] != 0) {
+            if (table[i] == fingerprint)
+                return true;
+            i = (i + 1) & mask;
+        }
+        if (size >= maxSize)
+            return false;
+        table[i] = fingerprint;
+        size = size + 1;
+        return true;
+    }
+
+    private boolean contains(long fingerprint) {
+        if (size == 0)
+            return false;
+        int i = (int) fingerprint & mask;
+        long slot;
+        while ((slot = table[i]) != 0) {
+            if (slot == fingerprint)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    // A 64 bit hash of the range, mixing in eight bytes at a time with the finalizer of MurmurHash3.
+    static long fingerprint(byte[] bytes, int offset, int length) {
+        long h = length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            h = mix(h ^ HashKey.readLong(bytes, offset + i));
+        long tail = 0;
+        for (; i < length; i++)
+            tail = (tail << 8) | (bytes[offset + i] & 0xFF);
+        h = mix(h ^ tail ^ 0x9E3779B97F4A7C15L);
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -19,6 +19,8 @@ package com.google.colchestercoin.core;
 import java.io.*;
 import java.math.BigInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A StoredTransactionOutput message contains the information necessary to check a spending transaction.
  * It avoids having to store the entire parentTransaction just to get the hash and index.
@@ -29,8 +31,10 @@ public class StoredTransactionOutput implements Serializable {
 
     /**
      *  A transaction output has some value and a script used for authenticating that the redeemer is allowed to spend
-     *  this output.
+     *  this output. The value is kept as a long and the BigInteger made when first asked for, which is also the
+     *  form Java serialization writes.
      */
+    private transient long longValue;
     private BigInteger value;
     private byte[] scriptBytes;
 
@@ -54,9 +58,18 @@ public class StoredTransactionOutput implements Serializable {
      * @param scriptBytes
      */
     public StoredTransactionOutput(Sha256Hash hash, long index, BigInteger value, int height, boolean isCoinbase, byte[] scriptBytes) {
+        this(hash, index, value.longValue(), height, isCoinbase, scriptBytes);
+        checkArgument(value.bitLength() <= 63, "Value does not fit in a long: %s", value);
+        this.value = value;
+    }
+
+    /**
+     * Creates a stored transaction output with the value given in nanocoins.
+     */
+    public StoredTransactionOutput(Sha256Hash hash, long index, long value, int height, boolean isCoinbase, byte[] scriptBytes) {
         this.hash = hash;
         this.index = index;
-        this.value = value;
+        this.longValue = value;
         this.height = isCoinbase ? height : NONCOINBASE_HEIGHT;
         this.scriptBytes = scriptBytes;
     }
@@ -64,7 +77,7 @@ public class StoredTransactionOutput implements Serializable {
     public StoredTransactionOutput(Sha256Hash hash, TransactionOutput out, int height, boolean isCoinbase) {
         this.hash = hash;
         this.index = out.getIndex();
-        this.value = out.getValue();
+        this.longValue = out.getValueAsLong();
         this.height = isCoinbase ? height : NONCOINBASE_HEIGHT;
         this.scriptBytes = out.getScriptBytes();
     }
@@ -73,7 +86,7 @@ public class StoredTransactionOutput implements Serializable {
         byte[] valueBytes = new byte[8];
         if (in.read(valueBytes, 0, 8) != 8)
             throw new EOFException();
-        value = BigInteger.valueOf(Utils.readInt64(valueBytes, 0));
+        longValue = Utils.readInt64(valueBytes, 0);
         
         int scriptBytesLength = ((in.read() & 0xFF) << 0) |
                                 ((in.read() & 0xFF) << 8) |
@@ -104,7 +117,17 @@ public class StoredTransactionOutput implements Serializable {
      * @return the value
      */
     public BigInteger getValue() {
-        return value;
+        BigInteger result = value;
+        if (result == null)
+            value = result = BigInteger.valueOf(longValue);
+        return result;
+    }
+
+    /**
+     * The value which this Transaction output holds, in nanocoins, without making a BigInteger.
+     */
+    public long getValueAsLong() {
+        return longValue;
     }
 
     /**
@@ -139,7 +162,7 @@ public class StoredTransactionOutput implements Serializable {
     }
 
     public String toString() {
-        return String.format("Stored TxOut of %s (%s:%d)", Utils.bitcoinValueToFriendlyString(value), hash.toString(), index);
+        return String.format("Stored TxOut of %s (%s:%d)", Utils.bitcoinValueToFriendlyString(getValue()), hash.toString(), index);
     }
 
     public int hashCode() {
@@ -153,7 +176,7 @@ public class StoredTransactionOutput implements Serializable {
     }
 
     public void serializeToStream(OutputStream bos) throws IOException {
-        Utils.uint64ToByteStreamLE(value, bos);
+        Utils.int64ToByteStreamLE(longValue, bos);
         
         bos.write(0xFF & scriptBytes.length >> 0);
         bos.write(0xFF & scriptBytes.length >> 8);
@@ -169,4 +192,14 @@ public class StoredTransactionOutput implements Serializable {
         bos.write(0xFF & (height >> 16));
         bos.write(0xFF & (height >> 24));
     }
-}
\ No newline at end of file
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getValue();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        longValue = value.longValue();
+    }
+}
@@ -190,8 +190,10 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            // A transaction still holding the bytes it was parsed from, usually part of a whole block or message, is
+            // hashed where it lies instead of being copied out first.
+            byte[] bits = bytes != null ? doubleDigest(bytes, offset, length) : doubleDigest(unsafeBitcoinSerialize());
+            hash = new Sha256Hash(reverseBytes(bits));
         }
         return hash;
     }
@@ -217,13 +219,13 @@ public class Transaction extends ChildMessage implements Serializable {
     BigInteger getValueSentToMe(Wallet wallet, boolean includeSpent) {
         maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionOutput o : outputs) {
             if (!o.isMineOrWatched(wallet)) continue;
             if (!includeSpent && !o.isAvailableForSpending()) continue;
-            v = v.add(o.getValue());
+            v += o.getValueAsLong();
         }
-        return v;
+        return BigInteger.valueOf(v);
     }
 
     /*
@@ -327,7 +329,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public BigInteger getValueSentFromMe(Wallet wallet) throws ScriptException {
         maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionInput input : inputs) {
             // This input is taking value from a transaction in our wallet. To discover the value,
             // we must find the connected transaction.
@@ -342,9 +344,9 @@ public class Transaction extends ChildMessage implements Serializable {
             // case we ignore it.
             if (!connected.isMineOrWatched(wallet))
                 continue;
-            v = v.add(connected.getValue());
+            v += connected.getValueAsLong();
         }
-        return v;
+        return BigInteger.valueOf(v);
     }
 
     /**
@@ -1034,13 +1036,13 @@ public class Transaction extends ChildMessage implements Serializable {
                 this.inputs.add(input);
             }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
             bitcoinSerialize(bos);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
             uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
+            Sha256Hash hash = new Sha256Hash(bos.doubleDigest());
             bos.close();
 
             // Put the transaction back to how we found it.
@@ -1184,13 +1186,18 @@ public class Transaction extends ChildMessage implements Serializable {
         if (this.getMessageSize() > Block.MAX_BLOCK_SIZE)
             throw new VerificationException("Transaction larger than MAX_BLOCK_SIZE");
 
-        BigInteger valueOut = BigInteger.ZERO;
+        // The total is only added up while it is in range, so it can't overflow.
+        final long maxMoney = NetworkParameters.MAX_MONEY_NANOCOINS;
+        long valueOut = 0;
+        boolean tooLarge = false;
         for (TransactionOutput output : outputs) {
-            if (output.getValue().compareTo(BigInteger.ZERO) < 0)
+            long value = output.getValueAsLong();
+            if (value < 0)
                 throw new VerificationException("Transaction output negative");
-            valueOut = valueOut.add(output.getValue());
+            if (value > maxMoney || (valueOut += value) > maxMoney)
+                tooLarge = true;
         }
-        if (valueOut.compareTo(params.MAX_MONEY) > 0)
+        if (tooLarge)
             throw new VerificationException("Total transaction output value greater than possible");
 
         if (isCoinBase()) {
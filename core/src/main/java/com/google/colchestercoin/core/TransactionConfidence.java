@@ -274,11 +274,15 @@ public class TransactionConfidence implements Serializable {
      *
      * @param address IP address of the peer, used as a proxy for identity.
      */
-    public synchronized boolean markBroadcastBy(PeerAddress address) {
+    public boolean markBroadcastBy(PeerAddress address) {
+        // Every peer relaying the transaction gets here, most of them after it has already been marked, so only take
+        // the lock when this peer is new.
         if (!broadcastBy.addIfAbsent(address))
             return false;  // Duplicate.
-        if (getConfidenceType() == ConfidenceType.UNKNOWN) {
-            this.confidenceType = ConfidenceType.PENDING;
+        synchronized (this) {
+            if (getConfidenceType() == ConfidenceType.UNKNOWN) {
+                this.confidenceType = ConfidenceType.PENDING;
+            }
         }
         return true;
     }
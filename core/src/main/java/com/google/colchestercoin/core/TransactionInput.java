@@ -279,6 +279,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @return The TransactionOutput or null if the transactions map doesn't contain the referenced tx.
      */
     TransactionOutput getConnectedOutput(Map<Sha256Hash, Transaction> transactions) {
+        maybeParse();
         Transaction tx = transactions.get(outpoint.getHash());
         if (tx == null)
             return null;
@@ -301,6 +302,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @return NO_SUCH_TX if the prevtx wasn't found, ALREADY_SPENT if there was a conflict, SUCCESS if not.
      */
     public ConnectionResult connect(Map<Sha256Hash, Transaction> transactions, ConnectMode mode) {
+        maybeParse();
         Transaction tx = transactions.get(outpoint.getHash());
         if (tx == null) {
             return TransactionInput.ConnectionResult.NO_SUCH_TX;
@@ -318,6 +320,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @return NO_SUCH_TX if transaction is not the prevtx, ALREADY_SPENT if there was a conflict, SUCCESS if not.
      */
     public ConnectionResult connect(Transaction transaction, ConnectMode mode) {
+        maybeParse();
         if (!transaction.getHash().equals(outpoint.getHash()))
             return ConnectionResult.NO_SUCH_TX;
         checkElementIndex((int) outpoint.getIndex(), transaction.getOutputs().size(), "Corrupt transaction");
@@ -350,6 +353,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @return true if the disconnection took place, false if it was not connected.
      */
     public boolean disconnect() {
+        maybeParse();
         if (outpoint.fromTx == null) return false;
         TransactionOutput output = outpoint.fromTx.getOutput((int) outpoint.getIndex());
         if (output.getSpentBy() == this) {
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -41,7 +42,9 @@ public class TransactionOutput extends ChildMessage implements Serializable {
     private static final long serialVersionUID = -590332479859256824L;
 
     // A transaction output has some value and a script used for authenticating that the redeemer is allowed to spend
-    // this output.
+    // this output. The value always fits in a long, which is what the arithmetic on hot paths uses, and the BigInteger
+    // is only made when first asked for. The BigInteger is also what Java serialization writes, as it always has.
+    private transient long longValue;
     private BigInteger value;
     private byte[] scriptBytes;
 
@@ -113,6 +116,7 @@ public class TransactionOutput extends ChildMessage implements Serializable {
         checkArgument(value.compareTo(BigInteger.ZERO) >= 0 || value.equals(Utils.NEGATIVE_ONE), "Negative values not allowed");
         checkArgument(value.compareTo(NetworkParameters.MAX_MONEY) < 0, "Values larger than MAX_MONEY not allowed");
         this.value = value;
+        this.longValue = value.longValue();
         this.scriptBytes = scriptBytes;
         parentTransaction = parent;
         availableForSpending = true;
@@ -128,11 +132,10 @@ public class TransactionOutput extends ChildMessage implements Serializable {
     }
 
     protected void parseLite() throws ProtocolException {
-        // TODO: There is no reason to use BigInteger for values, they are always smaller than 21 million * COIN
-        // The only reason to use BigInteger would be to properly read values from the reference implementation, however
-        // the reference implementation uses signed 64-bit integers for its values as well (though it probably shouldn't)
-        long outputValue = readInt64();
-        value = BigInteger.valueOf(outputValue);
+        // The reference implementation uses signed 64-bit integers for values too, so they are read as a long and
+        // only turned into a BigInteger if someone asks for one.
+        longValue = readInt64();
+        value = null;
         scriptLen = (int) readVarInt();
         length = cursor - offset + scriptLen;
     }
@@ -144,7 +147,7 @@ public class TransactionOutput extends ChildMessage implements Serializable {
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         checkNotNull(scriptBytes);
-        Utils.int64ToByteStreamLE(getValue().longValue(), stream);
+        Utils.int64ToByteStreamLE(getValueAsLong(), stream);
         // TODO: Move script serialization into the Script class, where it belongs.
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
@@ -156,7 +159,18 @@ public class TransactionOutput extends ChildMessage implements Serializable {
      */
     public BigInteger getValue() {
         maybeParse();
-        return value;
+        BigInteger result = value;
+        if (result == null)
+            value = result = BigInteger.valueOf(longValue);
+        return result;
+    }
+
+    /**
+     * Returns the value of this output in nanocoins, as {@link #getValue()} does but without making a BigInteger.
+     */
+    public long getValueAsLong() {
+        maybeParse();
+        return longValue;
     }
 
     /**
@@ -166,6 +180,7 @@ public class TransactionOutput extends ChildMessage implements Serializable {
         checkNotNull(value);
         unCache();
         this.value = value;
+        this.longValue = value.longValue();
     }
 
     int getIndex() {
@@ -296,7 +311,7 @@ public class TransactionOutput extends ChildMessage implements Serializable {
      */
     public String toString() {
         try {
-            return "TxOut of " + Utils.bitcoinValueToFriendlyString(value) + " to " +
+            return "TxOut of " + Utils.bitcoinValueToFriendlyString(getValue()) + " to " +
                     getScriptPubKey().getToAddress(params).toString() + " script:" + getScriptPubKey().toString();
         } catch (ScriptException e) {
             throw new RuntimeException(e);
@@ -325,6 +340,13 @@ public class TransactionOutput extends ChildMessage implements Serializable {
      */
     private void writeObject(ObjectOutputStream out) throws IOException {
         maybeParse();
+        getValue();
         out.defaultWriteObject();
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (value != null)
+            longValue = value.longValue();
+    }
 }
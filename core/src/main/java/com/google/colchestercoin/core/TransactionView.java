@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import java.util.Arrays;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>A read only view of a serialized transaction. The inputs and outputs are found by their offsets in the bytes
+ * rather than parsed into {@link TransactionInput} and {@link TransactionOutput} objects with arrays of their own, and
+ * scripts are given as an offset and length into {@link #getBytes()}. This is all that's needed to decide whether a
+ * transaction matches a wallet or a {@link BloomFilter}, which for most transactions in a block it won't, and
+ * {@link #toTransaction()} makes a full Transaction for the few that do.</p>
+ *
+ * <p>A view can be moved to another transaction with {@link #wrap(byte[], int)}, which reuses its arrays, so going
+ * through every transaction of a {@link BlockView} allocates next to nothing. Hashes are in the order they have on
+ * the wire, which is the reverse of {@link Sha256Hash#getBytes()}.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public final class TransactionView {
+    // The smallest input is a 36 byte outpoint, an empty script and a sequence number, the smallest output a value
+    // and an empty script. Counts are checked against these so a bad count can't make us allocate huge arrays.
+    private static final int MIN_INPUT_SIZE = 41;
+    private static final int MIN_OUTPUT_SIZE = 9;
+
+    private final NetworkParameters params;
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int cursor;
+
+    private int inputCount;
+    // Each input's outpoint, then the offset and length of its script.
+    private int[] inputs = new int[3 * 4];
+    private int outputCount;
+    // Each output's value, then the offset and length of its script.
+    private int[] outputs = new int[3 * 4];
+
+    // The chunks of the last script given to chunks(): where each one's data starts and how long it is, or -1 and the
+    // opcode for a chunk that isn't data.
+    int[] chunkOffsets = new int[8];
+    int[] chunkLengths = new int[8];
+
+    public TransactionView(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Returns a view of the given transaction. If it still has the bytes it was parsed from they are used as they
+     * are, without parsing its inputs and outputs or copying anything, otherwise it is serialized.
+     */
+    public static TransactionView of(Transaction tx) throws ProtocolException {
+        return new TransactionView(tx.getParams()).wrap(tx);
+    }
+
+    /** Points this view at the transaction starting at the given offset. */
+    public TransactionView wrap(byte[] bytes, int offset) throws ProtocolException {
+        this.bytes = bytes;
+        this.offset = offset;
+        try {
+            cursor = offset + 4;  // Version.
+            inputCount = readCount(MIN_INPUT_SIZE);
+            if (inputs.length < inputCount * 3)
+                inputs = new int[Math.max(inputCount * 3, inputs.length * 2)];
+            for (int i = 0; i < inputCount; i++) {
+                inputs[i * 3] = cursor;
+                cursor += 36;
+                int scriptLength = readCount(1);
+                inputs[i * 3 + 1] = cursor;
+                inputs[i * 3 + 2] = scriptLength;
+                cursor += scriptLength + 4;  // And the sequence number.
+            }
+            outputCount = readCount(MIN_OUTPUT_SIZE);
+            if (outputs.length < outputCount * 3)
+                outputs = new int[Math.max(outputCount * 3, outputs.length * 2)];
+            for (int i = 0; i < outputCount; i++) {
+                outputs[i * 3] = cursor;
+                cursor += 8;
+                int scriptLength = readCount(1);
+                outputs[i * 3 + 1] = cursor;
+                outputs[i * 3 + 2] = scriptLength;
+                cursor += scriptLength;
+            }
+            cursor += 4;  // Lock time.
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException("Transaction is truncated", e);
+        }
+        if (cursor > bytes.length)
+            throw new ProtocolException("Transaction is truncated");
+        length = cursor - offset;
+        return this;
+    }
+
+    /** Points this view at the given transaction, see {@link #of(Transaction)}. */
+    public TransactionView wrap(Transaction tx) throws ProtocolException {
+        // A transaction parsed with its bytes retained, including one lazily parsed out of a block, still has them
+        // until something about it changes.
+        byte[] retained = tx.bytes;
+        if (retained != null)
+            return wrap(retained, tx.offset);
+        return wrap(tx.unsafeBitcoinSerialize(), 0);
+    }
+
+    // Reads a var int that counts things of at least the given size, which must fit in what's left.
+    private int readCount(int minSize) throws ProtocolException {
+        int first = bytes[cursor] & 0xFF;
+        long value;
+        if (first < 253) {
+            value = first;
+            cursor += 1;
+        } else if (first == 253) {
+            value = (bytes[cursor + 1] & 0xFF) | ((bytes[cursor + 2] & 0xFF) << 8);
+            cursor += 3;
+        } else if (first == 254) {
+            value = Utils.readUint32(bytes, cursor + 1);
+            cursor += 5;
+        } else {
+            value = Utils.readInt64(bytes, cursor + 1);
+            cursor += 9;
+        }
+        if (value < 0 || value > (bytes.length - cursor) / minSize)
+            throw new ProtocolException("Count of " + value + " is larger than the transaction");
+        return (int) value;
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /** The array holding the transaction. Don't change it. */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** Where the transaction starts in {@link #getBytes()}. */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** The length of the serialized transaction. */
+    public int getLength() {
+        return length;
+    }
+
+    /** Hashes the transaction. This is the only thing a view does that costs much, so call it once. */
+    public Sha256Hash getHash() {
+        return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, length)));
+    }
+
+    public long getVersion() {
+        return Utils.readUint32(bytes, offset);
+    }
+
+    public long getLockTime() {
+        return Utils.readUint32(bytes, offset + length - 4);
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    /** Where the 36 byte outpoint of the given input, its hash followed by its index, starts. */
+    public int getOutPointOffset(int input) {
+        return inputs[checkInput(input) * 3];
+    }
+
+    /** Makes a hash of the transaction that the given input spends an output of. */
+    public Sha256Hash getOutPointHash(int input) {
+        int start = getOutPointOffset(input);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = bytes[start + 31 - i];
+        return new Sha256Hash(hash);
+    }
+
+    public long getOutPointIndex(int input) {
+        return Utils.readUint32(bytes, getOutPointOffset(input) + 32);
+    }
+
+    /** Returns whether the given input spends the given outpoint, without making a hash out of the bytes. */
+    public boolean spends(int input, TransactionOutPoint outpoint) {
+        int start = getOutPointOffset(input);
+        if (Utils.readUint32(bytes, start + 32) != outpoint.getIndex())
+            return false;
+        byte[] hash = outpoint.getHash().getBytes();
+        for (int i = 0; i < 32; i++) {
+            if (bytes[start + i] != hash[31 - i])
+                return false;
+        }
+        return true;
+    }
+
+    public boolean isCoinBase() {
+        if (inputCount != 1 || getOutPointIndex(0) != 0xFFFFFFFFL)
+            return false;
+        int start = getOutPointOffset(0);
+        for (int i = 0; i < 32; i++) {
+            if (bytes[start + i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public int getScriptSigOffset(int input) {
+        return inputs[checkInput(input) * 3 + 1];
+    }
+
+    public int getScriptSigLength(int input) {
+        return inputs[checkInput(input) * 3 + 2];
+    }
+
+    public long getSequenceNumber(int input) {
+        return Utils.readUint32(bytes, getScriptSigOffset(input) + getScriptSigLength(input));
+    }
+
+    public int getOutputCount() {
+        return outputCount;
+    }
+
+    /** Returns the value of the given output in nanocoins. */
+    public long getValue(int output) {
+        return Utils.readInt64(bytes, outputs[checkOutput(output) * 3]);
+    }
+
+    public int getScriptPubKeyOffset(int output) {
+        return outputs[checkOutput(output) * 3 + 1];
+    }
+
+    public int getScriptPubKeyLength(int output) {
+        return outputs[checkOutput(output) * 3 + 2];
+    }
+
+    /**
+     * If the given output pays to an address, either the hash of a key or of a script, returns where the 20 byte hash
+     * is. Otherwise returns -1. Matches the forms {@link com.google.colchestercoin.script.Script#getPubKeyHash()}
+     * accepts.
+     */
+    public int findPubKeyHash(int output) {
+        int count = chunks(getScriptPubKeyOffset(output), getScriptPubKeyLength(output));
+        if (count == 5 && isOpCode(0, OP_DUP) && isOpCode(1, OP_HASH160) && chunkLengths[2] == Address.LENGTH &&
+                isOpCode(3, OP_EQUALVERIFY) && isOpCode(4, OP_CHECKSIG))
+            return chunkOffsets[2];
+        if (count == 3 && isOpCode(0, OP_HASH160) && chunkLengths[1] == Address.LENGTH && isOpCode(2, OP_EQUAL))
+            return chunkOffsets[1];
+        return -1;
+    }
+
+    /**
+     * If the given output pays straight to a public key, returns where the key is. It runs up to the OP_CHECKSIG that
+     * ends the script. Otherwise returns -1. Matches
+     * {@link com.google.colchestercoin.script.Script#isSentToRawPubKey()}.
+     */
+    public int findPubKey(int output) {
+        int count = chunks(getScriptPubKeyOffset(output), getScriptPubKeyLength(output));
+        if (count == 2 && chunkOffsets[0] >= 0 && chunkLengths[0] > 1 && isOpCode(1, OP_CHECKSIG))
+            return chunkOffsets[0];
+        return -1;
+    }
+
+    /**
+     * Returns whether the given output pays to several keys, [n] [keys...] [m] CHECKMULTISIG. Matches
+     * {@link com.google.colchestercoin.script.Script#isSentToMultiSig()}.
+     */
+    public boolean isSentToMultiSig(int output) {
+        int count = chunks(getScriptPubKeyOffset(output), getScriptPubKeyLength(output));
+        if (count < 4 || !(isOpCode(count - 1, OP_CHECKMULTISIG) || isOpCode(count - 1, OP_CHECKMULTISIGVERIFY)))
+            return false;
+        int keys = smallNumber(count - 2);
+        if (keys < 1 || count != 3 + keys)
+            return false;
+        for (int i = 1; i < count - 2; i++) {
+            if (chunkOffsets[i] < 0)
+                return false;
+        }
+        return smallNumber(0) >= 1;
+    }
+
+    // The number pushed by an OP_1 to OP_16 chunk, or -1 for any other.
+    private int smallNumber(int chunk) {
+        if (chunkOffsets[chunk] >= 0 || chunkLengths[chunk] < OP_1 || chunkLengths[chunk] > OP_16)
+            return -1;
+        return chunkLengths[chunk] - OP_1 + 1;
+    }
+
+    /**
+     * Makes a full transaction out of this one. It gets a copy of the bytes, so it doesn't keep the whole of a block
+     * in memory.
+     */
+    public Transaction toTransaction() throws ProtocolException {
+        return new Transaction(params, Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    /**
+     * Splits the script at the given place into chunks the way {@link com.google.colchestercoin.script.Script} does,
+     * into {@link #chunkOffsets} and {@link #chunkLengths}, and returns how many there are. If the script doesn't parse,
+     * returns -1 minus the number of chunks before the one that goes wrong.
+     */
+    int chunks(int start, int scriptLength) {
+        int end = start + scriptLength;
+        int count = 0;
+        int i = start;
+        while (i < end) {
+            int opcode = bytes[i++] & 0xFF;
+            long dataLength;
+            if (opcode < OP_PUSHDATA1) {
+                dataLength = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (end - i < 1) return -1 - count;
+                dataLength = bytes[i] & 0xFF;
+                i += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (end - i < 2) return -1 - count;
+                dataLength = (bytes[i] & 0xFF) | ((bytes[i + 1] & 0xFF) << 8);
+                i += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (end - i < 4) return -1 - count;
+                dataLength = Utils.readUint32(bytes, i);
+                i += 4;
+            } else {
+                dataLength = -1;
+            }
+            if (count == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, count * 2);
+                chunkLengths = Arrays.copyOf(chunkLengths, count * 2);
+            }
+            if (dataLength < 0) {
+                chunkOffsets[count] = -1;
+                chunkLengths[count] = opcode;
+            } else {
+                if (dataLength > end - i) return -1 - count;
+                chunkOffsets[count] = i;
+                chunkLengths[count] = (int) dataLength;
+                i += dataLength;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private boolean isOpCode(int chunk, int opcode) {
+        return chunkOffsets[chunk] < 0 && chunkLengths[chunk] == opcode;
+    }
+
+    /** Returns whether the given range of the first array holds the same bytes as the whole of the second. */
+    static boolean rangeEquals(byte[] a, int start, int length, byte[] b) {
+        if (length != b.length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (a[start + i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int checkInput(int input) {
+        if (input < 0 || input >= inputCount)
+            throw new IndexOutOfBoundsException("Input " + input + " of " + inputCount);
+        return input;
+    }
+
+    private int checkOutput(int output) {
+        if (output < 0 || output >= outputCount)
+            throw new IndexOutOfBoundsException("Output " + output + " of " + outputCount);
+        return output;
+    }
+}
@@ -112,6 +112,14 @@ public class UnsafeByteArrayOutputStream extends ByteArrayOutputStream {
         return count == buf.length ? buf : Utils.copyOf(buf, count);
     }
 
+    /**
+     * Calculates the double SHA-256 hash of the current contents of this output stream, hashing them where they
+     * are rather than copying them out first.
+     */
+    public byte[] doubleDigest() {
+        return Utils.doubleDigest(buf, 0, count);
+    }
+
     /**
      * Returns the current size of the buffer.
      *
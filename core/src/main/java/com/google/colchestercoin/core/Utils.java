@@ -27,6 +27,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -40,10 +42,19 @@ import static com.google.common.base.Preconditions.checkArgument;
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
+    // Each thread hashes with its own digest, so threads hashing blocks, transactions and messages at the same time
+    // never wait for each other. The digest is reset before every use and never handed out.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
+        }
+    };
+
+    /** Returns a new SHA-256 digest, for hashing data that arrives in pieces. */
+    public static MessageDigest newSha256Digest() {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);  // Can't happen.
         }
@@ -191,20 +202,37 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the remaining bytes of the given buffer, which may be direct or memory
+     * mapped, without copying them into an array. The buffer's position is moved to its limit.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given bytes.
+     */
+    public static byte[] singleDigest(byte[] input) {
+        return singleDigest(input, 0, input.length);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -212,12 +240,47 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the given byte range and writes it to the output at the given offset,
+     * without allocating. The output may overlap the input.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        try {
+            digest.digest(output, outputOffset, 32);
+            digest.update(output, outputOffset, 32);
+            digest.digest(output, outputOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, there is always room for the hash.
+        }
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) and writes it to the output at the given offset, without
+     * allocating. The output may overlap the inputs.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1, byte[] input2, int offset2,
+                                              int length2, byte[] output, int outputOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        try {
+            digest.digest(output, outputOffset, 32);
+            digest.update(output, outputOffset, 32);
+            digest.digest(output, outputOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, there is always room for the hash.
         }
     }
 
@@ -317,16 +380,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
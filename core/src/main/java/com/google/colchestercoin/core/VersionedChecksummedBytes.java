@@ -33,10 +33,11 @@ public class VersionedChecksummedBytes {
     protected byte[] bytes;
 
     protected VersionedChecksummedBytes(String encoded) throws AddressFormatException {
-        byte[] tmp = Base58.decodeChecked(encoded);
+        byte[] tmp = Base58.decodeWithChecksum(encoded);
+        if (tmp.length < 5)
+            throw new AddressFormatException("Input too short");
         version = tmp[0] & 0xFF;
-        bytes = new byte[tmp.length - 1];
-        System.arraycopy(tmp, 1, bytes, 0, tmp.length - 1);
+        bytes = Arrays.copyOfRange(tmp, 1, tmp.length - 4);
     }
 
     protected VersionedChecksummedBytes(int version, byte[] bytes) {
@@ -23,6 +23,7 @@ import com.google.colchestercoin.core.WalletTransaction.Pool;
 import com.google.colchestercoin.crypto.KeyCrypter;
 import com.google.colchestercoin.crypto.KeyCrypterException;
 import com.google.colchestercoin.crypto.KeyCrypterScrypt;
+import com.google.colchestercoin.crypto.PublicKeyCache;
 import com.google.colchestercoin.script.Script;
 import com.google.colchestercoin.script.ScriptBuilder;
 import com.google.colchestercoin.script.ScriptChunk;
@@ -171,6 +172,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private transient CoinSelector coinSelector = new DefaultCoinSelector();
 
+    // Reused by isTransactionRelevant to look at the bytes of transactions that still have them.
+    @GuardedBy("lock") private transient TransactionView relevanceView;
+    // Everything that can make a transaction relevant, so that most can be ruled out without taking the lock. Added to
+    // whilst holding the lock, and replaced with a new one when it fills up or the transactions are cleared.
+    private transient volatile RelevancePrefilter vRelevancePrefilter;
+
     // The keyCrypter for the wallet. This specifies the algorithm used for encrypting and decrypting the private keys.
     private KeyCrypter keyCrypter;
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
@@ -237,6 +244,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
         };
         acceptRiskyTransactions = false;
+        rebuildRelevancePrefilter();
+    }
+
+    // Makes a new prefilter of everything in the wallet, with room to grow. Called from the constructors, or whilst
+    // holding the lock.
+    private void rebuildRelevancePrefilter() {
+        int size = keychain.size() * 2 + watchedScripts.size() + transactions.size();
+        for (Transaction tx : pending.values())
+            size += tx.getInputs().size();
+        RelevancePrefilter prefilter = new RelevancePrefilter(size * 2);
+        for (ECKey key : keychain)
+            checkState(prefilter.addKey(key));
+        for (Script script : watchedScripts)
+            checkState(prefilter.addScript(script));
+        for (Transaction tx : transactions.values())
+            checkState(prefilter.addTransaction(tx, pending.containsKey(tx.getHash())));
+        vRelevancePrefilter = prefilter;
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -718,6 +742,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Returns false if the given transaction certainly isn't relevant to this wallet, in which case
+     * {@link #isPendingTransactionRelevant(Transaction)} and {@link #isTransactionRelevant(Transaction)} would return
+     * false too. Unlike them this doesn't take the wallet's lock, and only looks up the transaction's output scripts and
+     * outpoints in a set of fingerprints that the wallet keeps up to date as keys, watched scripts and transactions are
+     * added. A {@link Peer} uses it to throw away the many broadcast transactions that only matched its Bloom filter by
+     * chance, without waiting for or holding up anything else using the wallet.</p>
+     *
+     * <p>A true result means only that the full check is needed.</p>
+     */
+    public boolean isTransactionPossiblyRelevant(Transaction tx) {
+        RelevancePrefilter prefilter = vRelevancePrefilter;
+        try {
+            return prefilter.mightBeRelevant(TransactionView.of(tx));
+        } catch (ProtocolException e) {
+            // Leave it to the full check.
+            return true;
+        }
+    }
+
     /**
      * <p>Returns true if the given transaction sends coins to any of our keys, or has inputs spending any of our outputs,
      * and if includeDoubleSpending is true, also returns true if tx has inputs that are spending outputs which are
@@ -729,6 +773,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
         lock.lock();
         try {
+            // A transaction that still has the bytes it was parsed from, like one lazily parsed out of a block, can
+            // nearly always be ruled out by the prefilter without parsing its inputs and outputs.
+            if (tx.isCached()) {
+                if (relevanceView == null)
+                    relevanceView = new TransactionView(params);
+                try {
+                    if (!vRelevancePrefilter.mightBeRelevant(relevanceView.wrap(tx)))
+                        return false;
+                } catch (ProtocolException e) {
+                    // Leave it to the full check below.
+                }
+            }
             return tx.getValueSentFromMe(this).compareTo(BigInteger.ZERO) > 0 ||
                    tx.getValueSentToMe(this).compareTo(BigInteger.ZERO) > 0 ||
                    checkForDoubleSpendAgainstPending(tx, false);
@@ -737,6 +793,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns true if the viewed transaction is relevant, in the same way as {@link #isTransactionRelevant(Transaction)}.
+     * Most transactions are ruled out from the view by the prefilter, without taking the wallet's lock, and only those
+     * that might be relevant are made into full transactions to check.
+     */
+    public boolean isTransactionRelevant(TransactionView tx) throws ScriptException, ProtocolException {
+        return vRelevancePrefilter.mightBeRelevant(tx) && isTransactionRelevant(tx.toTransaction());
+    }
+
     /**
      * Checks if "tx" is spending any inputs of pending transactions. Not a general check, but it can work even if
      * the double spent inputs are not ours. Returns the pending tx that was double spent or null if none found.
@@ -1340,6 +1405,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        if (!vRelevancePrefilter.addTransaction(tx, pool == Pool.PENDING || pool == Pool.PENDING_INACTIVE))
+            rebuildRelevancePrefilter();
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener);
@@ -1416,6 +1483,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                rebuildRelevancePrefilter();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -2025,6 +2093,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                if (!vRelevancePrefilter.addKey(key))
+                    rebuildRelevancePrefilter();
                 added++;
             }
             queueOnKeysAdded(keys);
@@ -2094,6 +2164,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                if (!vRelevancePrefilter.addScript(script))
+                    rebuildRelevancePrefilter();
                 added++;
             }
 
@@ -2170,7 +2242,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns true if this wallet contains a keypair with the given public key.
      */
     public boolean isPubKeyMine(byte[] pubkey) {
-        return findKeyFromPubKey(pubkey) != null;
+        // Keys are matched by hash, which the keys in the keychain already have and which is usually cached for the
+        // given key too, as it's often the output of one of our own transactions.
+        return isPubKeyHashMine(PublicKeyCache.getDefault().getHash160(pubkey));
     }
 
     /**
@@ -2215,9 +2289,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
                 LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                long value = 0;
+                for (TransactionOutput out : all) value += out.getValueAsLong();
+                return BigInteger.valueOf(value);
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -3010,11 +3084,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        // Everything is gathered up first, into a list that is big enough from the start, and inserted in one go.
+        List<byte[]> elements;
         lock.lock();
         try {
+            elements = new ArrayList<byte[]>(Math.max(size, keychain.size() * 2 + watchedScripts.size()));
             for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
             }
 
             for (Script script : watchedScripts) {
@@ -3023,7 +3100,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     // If any long constants become popular in scripts, we will need logic
                     // here to exclude them.
                     if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
+                        elements.add(chunk.data);
                     }
                 }
             }
@@ -3037,13 +3114,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     if ((out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
                             out.isWatched(this)) {
                         TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
+                        elements.add(outPoint.bitcoinSerialize());
                     }
                 } catch (ScriptException e) {
                     throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
                 }
             }
         }
+        filter.insert(elements);
 
         return filter;
     }
@@ -109,7 +109,7 @@ public class DeterministicKey implements Serializable {
     ECPoint getPubPoint() {
         if (publicAsPoint == null) {
             checkNotNull(privateAsFieldElement);
-            publicAsPoint = HDUtils.getEcParams().getG().multiply(privateAsFieldElement);
+            publicAsPoint = HDUtils.getCurve().decodePoint(ECKey.publicKeyFromPrivate(privateAsFieldElement, false));
         }
         return HDUtils.compressedCopy(publicAsPoint);
     }
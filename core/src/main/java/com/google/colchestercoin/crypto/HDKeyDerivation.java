@@ -16,6 +16,7 @@
 
 package com.google.colchestercoin.crypto;
 
+import com.google.colchestercoin.core.ECKey;
 import com.google.common.collect.ImmutableList;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.ECPoint;
@@ -125,10 +126,15 @@ public final class HDKeyDerivation {
             keyBytes = ki.toByteArray();
         } else {
             checkArgument(!childNumber.isPrivateDerivation(), "Can't use private derivation with public keys only.");
-            ECPoint Ki = HDUtils.getEcParams().getG().multiply(ilInt).add(parent.getPubPoint());
-            checkArgument(!Ki.equals(HDUtils.getCurve().getInfinity()),
-                    "Illegal derived key: derived public key equals infinity.");
-            keyBytes = HDUtils.toCompressed(Ki.getEncoded());
+            if (ECKey.getBackend() == ECKey.Backend.SECP256K1) {
+                keyBytes = Secp256k1.multiplyGAndAdd(ilInt, parentPublicKey, true);
+                checkArgument(keyBytes != null, "Illegal derived key: derived public key equals infinity.");
+            } else {
+                ECPoint Ki = HDUtils.getEcParams().getG().multiply(ilInt).add(parent.getPubPoint());
+                checkArgument(!Ki.equals(HDUtils.getCurve().getInfinity()),
+                        "Illegal derived key: derived public key equals infinity.");
+                keyBytes = HDUtils.toCompressed(Ki.getEncoded());
+            }
         }
         return new RawKeyBytes(keyBytes, chainCode);
     }
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.crypto;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.Utils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers what has been calculated from recently used public keys: their hash160 (the part of an address that
+ * identifies the key), and the decoded curve point needed to verify signatures, in whichever form the current
+ * {@link ECKey.Backend} uses. The same keys turn up again and again, in a wallet's own outputs and in the outputs and
+ * scriptSigs of busy addresses, and decoding a compressed key means taking a square root in the field.</p>
+ *
+ * <p>The cache holds as many keys as fit in the memory budget it is created with, evicting the least recently used
+ * first, and is safe to use from many threads at once. Keys that can't be decoded are never remembered. Table slots are
+ * chosen with a hash that has a random seed, so a peer can't fill one slot with keys it has chosen.</p>
+ *
+ * <p>Signature verification, {@link ECKey#getPubKeyHash()}, {@link com.google.colchestercoin.core.Wallet#isPubKeyMine}
+ * and {@link com.google.colchestercoin.script.Script#getFromAddress} use the cache returned by {@link #getDefault()}.</p>
+ */
+public class PublicKeyCache {
+    /** The memory budget of the default cache, enough for about 5,000 keys. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    // Rough size of an entry with everything filled in: the key bytes, the hash, a prepared Secp256k1 key (32 points)
+    // or a Bouncy Castle point, and the cache's own entry object and table slot.
+    static final int ENTRY_SIZE = 3200;
+
+    private static volatile PublicKeyCache defaultCache = new PublicKeyCache(DEFAULT_MEMORY_BUDGET);
+
+    private final long memoryBudget;
+    private final HashFunction hashFunction;
+    private final Cache<Key, Entry> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final class Key {
+        final byte[] pub;
+        final int hashCode;
+
+        Key(byte[] pub) {
+            this.pub = pub;
+            this.hashCode = hashFunction.hashBytes(pub).asInt();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(pub, ((Key) o).pub);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // Each part is filled in the first time it is asked for. Racing threads may both calculate a part, which is harmless.
+    private static final class Entry {
+        volatile byte[] hash160;
+        volatile Secp256k1.PreparedKey preparedKey;
+        volatile ECPoint point;
+    }
+
+    /**
+     * Creates a cache that uses roughly no more than the given number of bytes. A budget of zero makes a cache that
+     * never remembers anything.
+     */
+    public PublicKeyCache(long memoryBudget) {
+        checkArgument(memoryBudget >= 0);
+        this.memoryBudget = memoryBudget;
+        hashFunction = Hashing.murmur3_32(new SecureRandom().nextInt());
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(memoryBudget / ENTRY_SIZE)
+                .build();
+    }
+
+    /** Returns the cache used by signature verification, wallets and scripts. */
+    public static PublicKeyCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the default cache, for example with one of a different size, or one with a budget of zero to turn
+     * caching off.
+     */
+    public static void setDefault(PublicKeyCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    private Entry entry(byte[] pub) {
+        Entry entry = cache.getIfPresent(new Key(pub));
+        if (entry == null) {
+            entry = new Entry();
+            // Copy the key, as the caller's array might be changed later.
+            cache.put(new Key(pub.clone()), entry);
+        }
+        return entry;
+    }
+
+    private void count(boolean hit) {
+        (hit ? hitCount : missCount).incrementAndGet();
+    }
+
+    /**
+     * Returns RIPEMD160(SHA256(pub)), as {@link Utils#sha256hash160(byte[])} does. The returned array is shared and
+     * must not be modified.
+     */
+    public byte[] getHash160(byte[] pub) {
+        Entry entry = entry(pub);
+        byte[] hash160 = entry.hash160;
+        count(hash160 != null);
+        if (hash160 == null)
+            entry.hash160 = hash160 = Utils.sha256hash160(pub);
+        return hash160;
+    }
+
+    /**
+     * Returns the key decoded and ready for {@link Secp256k1} to verify signatures with.
+     *
+     * @throws IllegalArgumentException if pub isn't a valid public key
+     */
+    Secp256k1.PreparedKey getPreparedKey(byte[] pub) {
+        Entry entry = cache.getIfPresent(new Key(pub));
+        Secp256k1.PreparedKey preparedKey = entry == null ? null : entry.preparedKey;
+        count(preparedKey != null);
+        if (preparedKey == null) {
+            // Decode first, so an invalid key leaves nothing behind.
+            preparedKey = Secp256k1.prepare(pub);
+            entry(pub).preparedKey = preparedKey;
+        }
+        return preparedKey;
+    }
+
+    /**
+     * Returns the key decoded by Bouncy Castle, as {@code ECKey.CURVE.getCurve().decodePoint(pub)} does, throwing
+     * the same exceptions if it can't be decoded.
+     */
+    public ECPoint getPoint(byte[] pub) {
+        Entry entry = cache.getIfPresent(new Key(pub));
+        ECPoint point = entry == null ? null : entry.point;
+        count(point != null);
+        if (point == null) {
+            point = ECKey.CURVE.getCurve().decodePoint(pub);
+            entry(pub).point = point;
+        }
+        return point;
+    }
+
+    /** Returns the number of keys currently remembered. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Returns roughly how many bytes the remembered keys take up. */
+    public long getMemoryUsage() {
+        return cache.size() * ENTRY_SIZE;
+    }
+
+    /** Returns the number of bytes the cache was created to stay within. */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Forgets all the keys, leaving the statistics alone. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /** Returns the number of lookups that were answered from the cache. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Returns the number of lookups that had to calculate the answer. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** Returns the fraction of lookups answered from the cache, or 1.0 if there haven't been any. */
+    public double getHitRate() {
+        long hits = hitCount.get(), total = hits + missCount.get();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d public keys cached (about %d of %d KB), %d hits, %d misses (%.1f%% hit rate)",
+                cache.size(), getMemoryUsage() / 1024, memoryBudget / 1024, hitCount.get(), missCount.get(),
+                getHitRate() * 100);
+    }
+}
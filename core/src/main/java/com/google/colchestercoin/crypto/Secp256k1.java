@@ -0,0 +1,676 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Pure Java elliptic curve arithmetic specialised for secp256k1, used by {@link com.google.colchestercoin.core.ECKey}
+ * and {@link HDKeyDerivation} in place of Bouncy Castle's generic {@code BigInteger} based implementation, which is
+ * many times slower.</p>
+ *
+ * <p>Field elements are eight 32 bit words, multiplied with 64 bit arithmetic and reduced using the special form of
+ * the prime, 2<sup>256</sup> - 2<sup>32</sup> - 977. Points are kept in Jacobian co-ordinates so that no inversions
+ * are needed until the end. Multiples of the generator come from a table of precomputed points, which takes one
+ * addition per four bits of the scalar and no doublings. Other points are multiplied by splitting the scalar into two
+ * halves with the curve's efficient endomorphism (GLV) and processing both halves at once in width 5 NAF form, which
+ * halves the number of doublings.</p>
+ *
+ * <p>Public keys are decoded strictly, as the reference client does: they must be exactly 33 or 65 bytes long and the
+ * point must be on the curve. Like Bouncy Castle, this code makes no attempt to run in constant time.</p>
+ */
+public final class Secp256k1 {
+    private Secp256k1() { }
+
+    /** The field prime. */
+    public static final BigInteger P = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+    /** The order of the generator. */
+    public static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    private static final long M = 0xFFFFFFFFL;
+    private static final int[] ONE = fe(BigInteger.ONE);
+    private static final int[] SEVEN = fe(BigInteger.valueOf(7));
+    private static final BigInteger SQRT_EXPONENT = P.add(BigInteger.ONE).shiftRight(2);
+
+    private static final Affine G = new Affine(
+            fe(new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16)),
+            fe(new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16)));
+
+    // The endomorphism: lambda * (x, y) = (beta * x, y). The scalar is split as k = k1 + k2 * lambda (mod n) using
+    // the short basis {(A1, B1), (A2, B2)} of the lattice of pairs with a + b * lambda = 0 (mod n).
+    private static final int[] BETA = fe(new BigInteger(
+            "7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16));
+    static final BigInteger LAMBDA = new BigInteger(
+            "5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+    private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+    private static final BigInteger B1 = new BigInteger("-E4437ED6010E88286F547FA90ABFE4C3", 16);
+    private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+    private static final BigInteger B2 = A1;
+
+    private static final int WINDOW = 5;
+
+    /**
+     * Returns the public key for the given private key, in the same encoding as
+     * {@link com.google.colchestercoin.core.ECKey#publicKeyFromPrivate(BigInteger, boolean)}.
+     */
+    public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        BigInteger k = privKey.mod(N);
+        checkArgument(k.signum() != 0, "Private key is a multiple of the curve order");
+        return encodePoint(toAffine(multiplyG(k)), compressed);
+    }
+
+    /**
+     * Returns k * G + pub, encoded as the given kind of public key, or null if the result is the point at infinity. This
+     * is the calculation done by public key derivation in BIP 32.
+     *
+     * @throws IllegalArgumentException if pub isn't a valid public key
+     */
+    public static byte[] multiplyGAndAdd(BigInteger k, byte[] pub, boolean compressed) {
+        Affine q = decodePoint(pub);
+        Point sum = addAffine(multiplyG(k.mod(N)), q.x, q.y);
+        return sum.isInfinity() ? null : encodePoint(toAffine(sum), compressed);
+    }
+
+    /**
+     * Returns the uncompressed (65 byte) form of the given public key.
+     *
+     * @throws IllegalArgumentException if pub isn't a valid public key
+     */
+    public static byte[] decompress(byte[] pub) {
+        return encodePoint(decodePoint(pub), false);
+    }
+
+    /**
+     * Creates an ECDSA signature over the given hash, as Bouncy Castle's {@code ECDSASigner} does, with a random nonce.
+     *
+     * @return the r and s components, s not yet made canonical
+     */
+    public static BigInteger[] sign(byte[] data, BigInteger privKey, SecureRandom random) {
+        BigInteger e = calculateE(data);
+        while (true) {
+            BigInteger k;
+            do {
+                k = new BigInteger(N.bitLength(), random);
+            } while (k.signum() == 0 || k.compareTo(N) >= 0);
+            BigInteger r = toBigInteger(toAffine(multiplyG(k)).x).mod(N);
+            if (r.signum() == 0)
+                continue;
+            BigInteger s = k.modInverse(N).multiply(e.add(privKey.multiply(r))).mod(N);
+            if (s.signum() != 0)
+                return new BigInteger[] {r, s};
+        }
+    }
+
+    /**
+     * Verifies an ECDSA signature over the given hash. The public key is decoded through
+     * {@link PublicKeyCache#getDefault()}.
+     *
+     * @throws IllegalArgumentException if pub isn't a valid public key
+     */
+    public static boolean verify(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        return verify(data, r, s, PublicKeyCache.getDefault().getPreparedKey(pub));
+    }
+
+    static boolean verify(byte[] data, BigInteger r, BigInteger s, PreparedKey q) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        BigInteger w = s.modInverse(N);
+        BigInteger u1 = calculateE(data).multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+        Point point = add(multiplyG(u1), multiply(q, u2));
+        if (point.isInfinity())
+            return false;
+        // Check x mod n == r without converting to affine co-ordinates: X == x * Z^2 for x = r or, if it is still in
+        // the field, r + n.
+        int[] zz = new int[8];
+        mul(point.z, point.z, zz);
+        int[] candidate = new int[8];
+        mul(fe(r), zz, candidate);
+        if (Arrays.equals(candidate, point.x))
+            return true;
+        BigInteger rPlusN = r.add(N);
+        if (rPlusN.compareTo(P) >= 0)
+            return false;
+        mul(fe(rPlusN), zz, candidate);
+        return Arrays.equals(candidate, point.x);
+    }
+
+    // As in Bouncy Castle, the hash is truncated to the bit length of the order if it's longer.
+    private static BigInteger calculateE(byte[] data) {
+        BigInteger e = new BigInteger(1, data);
+        int bits = data.length * 8;
+        if (bits > N.bitLength())
+            e = e.shiftRight(bits - N.bitLength());
+        return e;
+    }
+
+    //
+    // Field arithmetic. Elements are always fully reduced, so equal elements have equal words. Outputs may be the same
+    // arrays as inputs.
+    //
+
+    static int[] fe(BigInteger value) {
+        int[] words = new int[8];
+        for (int i = 0; i < 8; i++)
+            words[i] = value.shiftRight(32 * i).intValue();
+        return words;
+    }
+
+    static BigInteger toBigInteger(int[] x) {
+        byte[] bytes = new byte[32];
+        encode(x, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+
+    private static void encode(int[] x, byte[] out, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int word = x[7 - i];
+            out[offset + 4 * i] = (byte) (word >>> 24);
+            out[offset + 4 * i + 1] = (byte) (word >>> 16);
+            out[offset + 4 * i + 2] = (byte) (word >>> 8);
+            out[offset + 4 * i + 3] = (byte) word;
+        }
+    }
+
+    // Reads a big endian field element, which must be less than P.
+    private static int[] decode(byte[] in, int offset) {
+        int[] x = new int[8];
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 4 * (7 - i);
+            x[i] = (in[o] & 0xFF) << 24 | (in[o + 1] & 0xFF) << 16 | (in[o + 2] & 0xFF) << 8 | (in[o + 3] & 0xFF);
+        }
+        checkArgument(!geP(x), "Co-ordinate is not less than the field prime");
+        return x;
+    }
+
+    private static boolean isZero(int[] x) {
+        for (int word : x)
+            if (word != 0)
+                return false;
+        return true;
+    }
+
+    private static boolean geP(int[] x) {
+        for (int i = 7; i >= 2; i--)
+            if (x[i] != -1)
+                return false;
+        long x1 = x[1] & M;
+        return x1 > 0xFFFFFFFEL || (x1 == 0xFFFFFFFEL && (x[0] & M) >= 0xFFFFFC2FL);
+    }
+
+    // Adds top * 2^256 to z, which is the same as adding top * (2^32 + 977), then reduces z below P.
+    private static void reduce(int[] z, long top) {
+        while (top != 0) {
+            long c = (z[0] & M) + top * 977;
+            z[0] = (int) c;
+            c >>>= 32;
+            c += (z[1] & M) + top;
+            z[1] = (int) c;
+            c >>>= 32;
+            for (int i = 2; i < 8 && c != 0; i++) {
+                c += z[i] & M;
+                z[i] = (int) c;
+                c >>>= 32;
+            }
+            top = c;
+        }
+        if (geP(z)) {
+            // Subtracting P is the same as adding 2^32 + 977 and dropping the carry.
+            long c = (z[0] & M) + 977;
+            z[0] = (int) c;
+            c >>>= 32;
+            c += (z[1] & M) + 1;
+            z[1] = (int) c;
+            c >>>= 32;
+            for (int i = 2; i < 8; i++) {
+                c += z[i] & M;
+                z[i] = (int) c;
+                c >>>= 32;
+            }
+        }
+    }
+
+    private static void add(int[] x, int[] y, int[] z) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (x[i] & M) + (y[i] & M);
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+        reduce(z, c);
+    }
+
+    private static void sub(int[] x, int[] y, int[] z) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (x[i] & M) - (y[i] & M);
+            z[i] = (int) c;
+            c >>= 32;
+        }
+        if (c != 0) {
+            // It went below zero, leaving x - y + 2^256. Adding P means subtracting 2^32 + 977 and dropping the borrow.
+            c = (z[0] & M) - 977;
+            z[0] = (int) c;
+            c >>= 32;
+            c += (z[1] & M) - 1;
+            z[1] = (int) c;
+            c >>= 32;
+            for (int i = 2; i < 8; i++) {
+                c += z[i] & M;
+                z[i] = (int) c;
+                c >>= 32;
+            }
+        }
+    }
+
+    private static void neg(int[] x, int[] z) {
+        sub(new int[8], x, z);
+    }
+
+    private static void mulSmall(int[] x, int k, int[] z) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (x[i] & M) * k;
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+        reduce(z, c);
+    }
+
+    static void mul(int[] x, int[] y, int[] z) {
+        // Schoolbook multiplication into 16 words. Each step fits in an unsigned 64 bit long.
+        int[] t = new int[16];
+        for (int i = 0; i < 8; i++) {
+            long xi = x[i] & M;
+            long c = 0;
+            for (int j = 0; j < 8; j++) {
+                c += xi * (y[j] & M) + (t[i + j] & M);
+                t[i + j] = (int) c;
+                c >>>= 32;
+            }
+            t[i + 8] = (int) c;
+        }
+        // The high half H is worth H * (2^32 + 977): add it in shifted by one word and multiplied by 977.
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (t[i] & M) + (t[i + 8] & M) * 977;
+            if (i > 0)
+                c += t[i + 7] & M;
+            z[i] = (int) c;
+            c >>>= 32;
+        }
+        reduce(z, c + (t[15] & M));
+    }
+
+    static int[] inverse(int[] x) {
+        return fe(toBigInteger(x).modInverse(P));
+    }
+
+    // Returns a square root of x, or null if there isn't one. As P = 3 mod 4, it is x^((P + 1) / 4) if anything.
+    static int[] sqrt(int[] x) {
+        int[] r = ONE.clone();
+        for (int i = SQRT_EXPONENT.bitLength() - 1; i >= 0; i--) {
+            mul(r, r, r);
+            if (SQRT_EXPONENT.testBit(i))
+                mul(r, x, r);
+        }
+        int[] check = new int[8];
+        mul(r, r, check);
+        return Arrays.equals(check, x) ? r : null;
+    }
+
+    //
+    // Points.
+    //
+
+    private static final class Affine {
+        final int[] x, y;
+
+        Affine(int[] x, int[] y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // A point in Jacobian co-ordinates, (X / Z^2, Y / Z^3). Z is zero for the point at infinity.
+    private static final class Point {
+        final int[] x, y, z;
+
+        Point(int[] x, int[] y, int[] z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        boolean isInfinity() {
+            return isZero(z);
+        }
+    }
+
+    private static final Point INFINITY = new Point(ONE, ONE, new int[8]);
+
+    private static Affine decodePoint(byte[] pub) {
+        checkArgument(pub.length > 0, "Empty public key");
+        int prefix = pub[0];
+        if (pub.length == 33 && (prefix == 2 || prefix == 3)) {
+            int[] x = decode(pub, 1);
+            int[] y = sqrt(curveRightSide(x));
+            checkArgument(y != null, "Invalid point compression");
+            if ((y[0] & 1) != (prefix & 1))
+                neg(y, y);
+            return new Affine(x, y);
+        } else if (pub.length == 65 && (prefix == 4 || prefix == 6 || prefix == 7)) {
+            int[] x = decode(pub, 1);
+            int[] y = decode(pub, 33);
+            int[] yy = new int[8];
+            mul(y, y, yy);
+            checkArgument(Arrays.equals(yy, curveRightSide(x)), "Point is not on the curve");
+            // Hybrid encodings also give the parity of y, which must be right.
+            checkArgument(prefix == 4 || (y[0] & 1) == (prefix & 1), "Invalid hybrid point encoding");
+            return new Affine(x, y);
+        }
+        throw new IllegalArgumentException("Invalid point encoding");
+    }
+
+    // x^3 + 7
+    private static int[] curveRightSide(int[] x) {
+        int[] r = new int[8];
+        mul(x, x, r);
+        mul(r, x, r);
+        add(r, SEVEN, r);
+        return r;
+    }
+
+    private static byte[] encodePoint(Affine point, boolean compressed) {
+        byte[] out = new byte[compressed ? 33 : 65];
+        out[0] = (byte) (compressed ? 2 + (point.y[0] & 1) : 4);
+        encode(point.x, out, 1);
+        if (!compressed)
+            encode(point.y, out, 33);
+        return out;
+    }
+
+    private static Affine toAffine(Point p) {
+        checkArgument(!p.isInfinity());
+        int[] zInv = inverse(p.z);
+        int[] zInv2 = new int[8];
+        mul(zInv, zInv, zInv2);
+        int[] x = new int[8], y = new int[8];
+        mul(p.x, zInv2, x);
+        mul(p.y, zInv2, y);
+        mul(y, zInv, y);
+        return new Affine(x, y);
+    }
+
+    // Converts many points with a single inversion (Montgomery's trick). None may be the point at infinity.
+    private static Affine[] toAffine(Point[] points) {
+        int[][] products = new int[points.length][];
+        int[] product = ONE;
+        for (int i = 0; i < points.length; i++) {
+            products[i] = product;
+            int[] next = new int[8];
+            mul(product, points[i].z, next);
+            product = next;
+        }
+        int[] inv = inverse(product);  // 1 / (z0 * z1 * ... * zn)
+        Affine[] result = new Affine[points.length];
+        for (int i = points.length - 1; i >= 0; i--) {
+            int[] zInv = new int[8];
+            mul(inv, products[i], zInv);  // 1 / zi
+            mul(inv, points[i].z, inv);  // 1 / (z0 * ... * z(i-1))
+            int[] zInv2 = new int[8];
+            mul(zInv, zInv, zInv2);
+            int[] x = new int[8], y = new int[8];
+            mul(points[i].x, zInv2, x);
+            mul(points[i].y, zInv2, y);
+            mul(y, zInv, y);
+            result[i] = new Affine(x, y);
+        }
+        return result;
+    }
+
+    private static Point twice(Point p) {
+        if (p.isInfinity())
+            return p;
+        int[] a = new int[8], b = new int[8], c = new int[8], d = new int[8], e = new int[8], f = new int[8];
+        mul(p.x, p.x, a);                           // A = X^2
+        mul(p.y, p.y, b);                           // B = Y^2
+        mul(b, b, c);                               // C = B^2
+        add(p.x, b, d);
+        mul(d, d, d);
+        sub(d, a, d);
+        sub(d, c, d);
+        add(d, d, d);                               // D = 2 * ((X + B)^2 - A - C)
+        mulSmall(a, 3, e);                          // E = 3 * A
+        mul(e, e, f);                               // F = E^2
+        int[] x3 = new int[8], y3 = new int[8], z3 = new int[8];
+        add(d, d, x3);
+        sub(f, x3, x3);                             // X3 = F - 2 * D
+        sub(d, x3, y3);
+        mul(e, y3, y3);
+        mulSmall(c, 8, c);
+        sub(y3, c, y3);                             // Y3 = E * (D - X3) - 8 * C
+        mul(p.y, p.z, z3);
+        add(z3, z3, z3);                            // Z3 = 2 * Y * Z
+        return new Point(x3, y3, z3);
+    }
+
+    // Adds the affine point (x2, y2) to p.
+    private static Point addAffine(Point p, int[] x2, int[] y2) {
+        if (p.isInfinity())
+            return new Point(x2, y2, ONE);
+        int[] z1z1 = new int[8], u2 = new int[8], s2 = new int[8], h = new int[8], r = new int[8];
+        mul(p.z, p.z, z1z1);
+        mul(x2, z1z1, u2);                          // U2 = X2 * Z1^2
+        mul(y2, p.z, s2);
+        mul(s2, z1z1, s2);                          // S2 = Y2 * Z1^3
+        sub(u2, p.x, h);                            // H = U2 - X1
+        sub(s2, p.y, r);                            // R = S2 - Y1
+        return finishAdd(p, p.x, p.y, h, r, p.z);
+    }
+
+    private static Point add(Point p, Point q) {
+        if (p.isInfinity())
+            return q;
+        if (q.isInfinity())
+            return p;
+        int[] z1z1 = new int[8], z2z2 = new int[8], u1 = new int[8], u2 = new int[8], s1 = new int[8], s2 = new int[8];
+        mul(p.z, p.z, z1z1);
+        mul(q.z, q.z, z2z2);
+        mul(p.x, z2z2, u1);                         // U1 = X1 * Z2^2
+        mul(q.x, z1z1, u2);                         // U2 = X2 * Z1^2
+        mul(p.y, q.z, s1);
+        mul(s1, z2z2, s1);                          // S1 = Y1 * Z2^3
+        mul(q.y, p.z, s2);
+        mul(s2, z1z1, s2);                          // S2 = Y2 * Z1^3
+        int[] h = new int[8], r = new int[8], zz = new int[8];
+        sub(u2, u1, h);                             // H = U2 - U1
+        sub(s2, s1, r);                             // R = S2 - S1
+        mul(p.z, q.z, zz);
+        return finishAdd(p, u1, s1, h, r, zz);
+    }
+
+    // The part of addition shared by both forms, given U1, S1, H, R and the product of the Z co-ordinates.
+    private static Point finishAdd(Point p, int[] u1, int[] s1, int[] h, int[] r, int[] zz) {
+        if (isZero(h))
+            return isZero(r) ? twice(p) : INFINITY;
+        int[] hh = new int[8], hhh = new int[8], v = new int[8];
+        mul(h, h, hh);
+        mul(h, hh, hhh);                            // H^3
+        mul(u1, hh, v);                             // V = U1 * H^2
+        int[] x3 = new int[8], y3 = new int[8], z3 = new int[8];
+        mul(r, r, x3);
+        sub(x3, hhh, x3);
+        sub(x3, v, x3);
+        sub(x3, v, x3);                             // X3 = R^2 - H^3 - 2 * V
+        sub(v, x3, y3);
+        mul(r, y3, y3);
+        mul(s1, hhh, hhh);
+        sub(y3, hhh, y3);                           // Y3 = R * (V - X3) - S1 * H^3
+        mul(zz, h, z3);                             // Z3 = Z1 * Z2 * H
+        return new Point(x3, y3, z3);
+    }
+
+    //
+    // Scalar multiplication.
+    //
+
+    // GENERATOR_TABLE[i * 15 + j - 1] is j * 16^i * G, for j from 1 to 15.
+    private static class GeneratorTable {
+        static final Affine[] TABLE;
+
+        static {
+            Point[] points = new Point[64 * 15];
+            Point base = new Point(G.x, G.y, ONE);
+            for (int i = 0; i < 64; i++) {
+                Point multiple = base;
+                points[i * 15] = base;
+                for (int j = 2; j <= 15; j++) {
+                    multiple = add(multiple, base);
+                    points[i * 15 + j - 1] = multiple;
+                }
+                base = twice(twice(twice(twice(base))));
+            }
+            TABLE = toAffine(points);
+        }
+    }
+
+    // Returns k * G for 0 <= k < n, adding one table entry for each non-zero group of four bits.
+    private static Point multiplyG(BigInteger k) {
+        byte[] bytes = k.toByteArray();
+        Affine[] table = GeneratorTable.TABLE;
+        Point result = INFINITY;
+        for (int i = 0; i < 64; i++) {
+            int index = bytes.length - 1 - i / 2;
+            if (index < 0)
+                break;
+            int nibble = (i & 1) == 0 ? bytes[index] & 0xF : (bytes[index] >> 4) & 0xF;
+            if (nibble != 0) {
+                Affine entry = table[i * 15 + nibble - 1];
+                result = addAffine(result, entry.x, entry.y);
+            }
+        }
+        return result;
+    }
+
+    // Splits k into k1 + k2 * lambda (mod n), where k1 and k2 are at most 128 bits long but may be negative.
+    static BigInteger[] splitScalar(BigInteger k) {
+        BigInteger c1 = B2.multiply(k).add(HALF_N).divide(N);  // round(b2 * k / n)
+        BigInteger c2 = B1.negate().multiply(k).add(HALF_N).divide(N);  // round(-b1 * k / n)
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(B1).add(c2.multiply(B2)).negate();
+        return new BigInteger[] {k1, k2};
+    }
+
+    // Returns k (which must not be negative) in width WINDOW non-adjacent form, least significant digit first. Each
+    // digit is zero or odd with an absolute value below 2^(WINDOW - 1), and each non-zero digit is followed by at least
+    // WINDOW - 1 zeros.
+    static int[] wnaf(BigInteger k) {
+        int[] digits = new int[k.bitLength() + 1];
+        int[] words = new int[(k.bitLength() + 32) / 32 + 1];
+        for (int i = 0; i < words.length; i++)
+            words[i] = k.shiftRight(32 * i).intValue();
+        for (int pos = 0; !isZero(words); pos++) {
+            if ((words[0] & 1) != 0) {
+                int digit = words[0] & ((1 << WINDOW) - 1);
+                if (digit >= 1 << (WINDOW - 1))
+                    digit -= 1 << WINDOW;
+                digits[pos] = digit;
+                long c = (words[0] & M) - digit;
+                words[0] = (int) c;
+                c >>= 32;
+                for (int i = 1; i < words.length && c != 0; i++) {
+                    c += words[i] & M;
+                    words[i] = (int) c;
+                    c >>= 32;
+                }
+            }
+            for (int i = 0; i < words.length - 1; i++)
+                words[i] = (words[i] >>> 1) | (words[i + 1] << 31);
+            words[words.length - 1] >>>= 1;
+        }
+        return digits;
+    }
+
+    /**
+     * A decoded public key together with its odd multiples q, 3q, ... 15q and the same multiples of lambda * q, which
+     * are what multiplying it by a scalar needs. Preparing a key costs about a fifth of a verification, so keys that
+     * are seen often are kept prepared by {@link PublicKeyCache}.
+     */
+    static final class PreparedKey {
+        private final Affine[] table1, table2;
+
+        private PreparedKey(Affine q) {
+            Point[] odd = new Point[1 << (WINDOW - 2)];
+            Point p = new Point(q.x, q.y, ONE);
+            Point twiceP = twice(p);
+            odd[0] = p;
+            for (int i = 1; i < odd.length; i++)
+                odd[i] = add(odd[i - 1], twiceP);
+            table1 = toAffine(odd);
+            table2 = new Affine[table1.length];
+            for (int i = 0; i < table1.length; i++) {
+                int[] x = new int[8];
+                mul(table1[i].x, BETA, x);
+                table2[i] = new Affine(x, table1[i].y);
+            }
+        }
+    }
+
+    /**
+     * Decodes the given public key and precomputes what is needed to verify signatures with it.
+     *
+     * @throws IllegalArgumentException if pub isn't a valid public key
+     */
+    static PreparedKey prepare(byte[] pub) {
+        return new PreparedKey(decodePoint(pub));
+    }
+
+    // Returns k * q for 0 <= k < n.
+    private static Point multiply(PreparedKey q, BigInteger k) {
+        BigInteger[] split = splitScalar(k);
+        int[] digits1 = wnaf(split[0].abs());
+        int[] digits2 = wnaf(split[1].abs());
+        boolean negate1 = split[0].signum() < 0, negate2 = split[1].signum() < 0;
+
+        Point result = INFINITY;
+        for (int i = Math.max(digits1.length, digits2.length) - 1; i >= 0; i--) {
+            result = twice(result);
+            if (i < digits1.length && digits1[i] != 0)
+                result = addDigit(result, q.table1, negate1 ? -digits1[i] : digits1[i]);
+            if (i < digits2.length && digits2[i] != 0)
+                result = addDigit(result, q.table2, negate2 ? -digits2[i] : digits2[i]);
+        }
+        return result;
+    }
+
+    private static Point addDigit(Point p, Affine[] table, int digit) {
+        Affine entry = table[(Math.abs(digit) - 1) / 2];
+        if (digit > 0)
+            return addAffine(p, entry.x, entry.y);
+        int[] y = new int[8];
+        neg(entry.y, y);
+        return addAffine(p, entry.x, y);
+    }
+}
@@ -18,9 +18,12 @@ package com.google.colchestercoin.protocols.niowrapper;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
 import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.colchestercoin.utils.Threading;
 import org.slf4j.LoggerFactory;
@@ -29,19 +32,41 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
-* A simple connection handler which handles all the business logic of a connection
-*/
+ * <p>A simple connection handler which handles all the business logic of a connection.</p>
+ *
+ * <p>Outbound data is appended to a per-connection queue and flushed with gathering writes, so many small frames
+ * written in quick succession leave in as few system calls as possible. Whatever the socket does not accept
+ * immediately is flushed when the selector reports the channel as writable again. Once more than
+ * {@link #READ_THROTTLE_BYTES} are waiting we stop reading from the remote end (which is usually what generates the
+ * replies we are queueing) until the queue drains, and if more than {@link #MAX_QUEUED_BYTES} ever pile up the peer
+ * is considered too slow and the connection is closed.</p>
+ */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
+    /** The number of queued outbound bytes above which we stop reading from the connection until it drains. */
+    static final int READ_THROTTLE_BYTES = 1024 * 1024;
+    /** The number of queued outbound bytes above which the connection is closed. */
+    static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    // The maximum number of buffers handed to a single gathering write
+    private static final int MAX_GATHER_BUFFERS = 64;
+
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
     private final ByteBuffer dbuf;
     private final SocketChannel channel;
     final StreamParser parser;
-    private boolean closeCalled = false;
+    @GuardedBy("lock") private boolean closeCalled = false;
+
+    // The key this connection is registered under, or null if it has not been registered with a selector yet. Until it
+    // is set, writes are only queued.
+    @GuardedBy("lock") private SelectionKey key;
+    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private long bytesQueued = 0;
+    @GuardedBy("lock") private long writeStalls = 0;
+    @GuardedBy("lock") private boolean readsThrottled = false;
 
     ConnectionHandler(StreamParserFactory parserFactory, SocketChannel channel) throws IOException {
         this.channel = checkNotNull(channel);
@@ -55,12 +80,77 @@ class ConnectionHandler implements MessageWriteTarget {
         newParser.setWriteTarget(this);
     }
 
+    ConnectionHandler(StreamParser parser, SocketChannel channel) {
+        this.channel = checkNotNull(channel);
+        this.parser = checkNotNull(parser);
+        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        parser.setWriteTarget(this);
+    }
+
+    /**
+     * Sets the key under which the (non-blocking) channel was registered with its selector and flushes anything
+     * which was written before registration.
+     */
+    void setKey(SelectionKey key) throws IOException {
+        lock.lock();
+        try {
+            this.key = checkNotNull(key);
+            tryWriteBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes as much of the queue as the socket will take and updates the interest set to match what is left.
+    @GuardedBy("lock")
+    private void tryWriteBytes() throws IOException {
+        while (!bytesToWrite.isEmpty()) {
+            ByteBuffer[] buffers = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_GATHER_BUFFERS)];
+            int i = 0;
+            for (ByteBuffer buff : bytesToWrite) {
+                if (i == buffers.length)
+                    break;
+                buffers[i++] = buff;
+            }
+            long written = channel.write(buffers);
+            bytesQueued -= written;
+            while (!bytesToWrite.isEmpty() && !bytesToWrite.getFirst().hasRemaining())
+                bytesToWrite.removeFirst();
+            if (written == 0)
+                break;
+        }
+        boolean blocked = !bytesToWrite.isEmpty();
+        if (readsThrottled && bytesQueued < READ_THROTTLE_BYTES / 2)
+            readsThrottled = false;
+        int ops = (readsThrottled ? 0 : SelectionKey.OP_READ) | (blocked ? SelectionKey.OP_WRITE : 0);
+        try {
+            int oldOps = key.interestOps();
+            if (blocked && (oldOps & SelectionKey.OP_WRITE) == 0)
+                writeStalls++; // The socket just filled up, we now have to wait for it to drain
+            if (oldOps != ops) {
+                key.interestOps(ops);
+                // Interest changes made outside the selector thread only take effect on the next select()
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed, nothing left to do
+        }
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
         lock.lock();
         try {
-            if (channel.write(ByteBuffer.wrap(message)) != message.length)
-                throw new IOException("Couldn't write all of message to socket");
+            if (bytesQueued + message.length > MAX_QUEUED_BYTES)
+                throw new IOException("Outbound queue limit of " + MAX_QUEUED_BYTES + " bytes exceeded, peer too slow");
+            bytesToWrite.add(ByteBuffer.wrap(message));
+            bytesQueued += message.length;
+            if (bytesQueued > READ_THROTTLE_BYTES && !readsThrottled) {
+                log.debug("{} bytes queued for {}, throttling reads", bytesQueued, channel);
+                readsThrottled = true;
+            }
+            if (key != null)
+                tryWriteBytes();
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
@@ -70,6 +160,26 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    /** Returns the number of bytes which have been written to this connection but not yet sent to the socket. */
+    long getBytesQueued() {
+        lock.lock();
+        try {
+            return bytesQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of times the socket filled up and we had to wait for it to become writable again. */
+    long getWriteStalls() {
+        lock.lock();
+        try {
+            return writeStalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void closeConnection() {
         try {
@@ -86,6 +196,8 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            bytesToWrite.clear();
+            bytesQueued = 0;
         } finally {
             lock.unlock();
         }
@@ -97,9 +209,22 @@ class ConnectionHandler implements MessageWriteTarget {
     static void handleKey(SelectionKey key) throws IOException {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
-            if (!key.isValid() && handler != null)
+            if (handler == null)
+                return;
+            if (!key.isValid()) {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
-            else if (handler != null && key.isReadable()) {
+                return;
+            }
+            if (key.isWritable()) {
+                // The socket has room again, flush some more of the write queue
+                handler.lock.lock();
+                try {
+                    handler.tryWriteBytes();
+                } finally {
+                    handler.lock.unlock();
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
                 // Do a socket read and invoke the parser's receiveBytes message
                 int read = handler.channel.read(handler.dbuf);
                 if (read == 0)
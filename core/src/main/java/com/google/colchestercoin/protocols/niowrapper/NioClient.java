@@ -18,27 +18,29 @@ package com.google.colchestercoin.protocols.niowrapper;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
 import javax.annotation.Nonnull;
 
 import org.slf4j.LoggerFactory;
 
-import static com.google.common.base.Preconditions.checkState;
-
 /**
- * Creates a simple connection to a server using a {@link StreamParser} to process data.
+ * <p>Creates a simple connection to a server using a {@link StreamParser} to process data.</p>
+ *
+ * <p>Writes are queued and flushed by the network thread as the socket becomes writable, see
+ * {@link #getBytesQueued()} and {@link #getWriteStalls()}.</p>
  */
 public class NioClient implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClient.class);
 
-    private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
-    private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
-
-    @Nonnull private final ByteBuffer dbuf;
+    @Nonnull private final ConnectionHandler handler;
     @Nonnull private final SocketChannel sc;
+    @Nonnull private final Selector selector;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -51,34 +53,31 @@ public class NioClient implements MessageWriteTarget {
      */
     public NioClient(final InetSocketAddress serverAddress, final StreamParser parser,
                      final int connectTimeoutMillis) throws IOException {
-        // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
-        // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        parser.setWriteTarget(this);
         sc = SocketChannel.open();
+        selector = SelectorProvider.provider().openSelector();
+        // Messages written before the connection is open are queued in the handler and go out once it is registered
+        handler = new ConnectionHandler(parser, sc);
 
         new Thread() {
             @Override
             public void run() {
                 try {
+                    // Connect in blocking mode so the timeout applies, then hand the socket over to the selector
                     sc.socket().connect(serverAddress, connectTimeoutMillis);
+                    sc.configureBlocking(false);
+                    SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+                    key.attach(handler);
+                    handler.setKey(key);
                     parser.connectionOpened();
 
-                    while (true) {
-                        int read = sc.read(dbuf);
-                        if (read == 0)
-                            continue;
-                        else if (read == -1)
-                            return;
-                        // "flip" the buffer - setting the limit to the current position and setting position to 0
-                        dbuf.flip();
-                        // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
-                        // location
-                        int bytesConsumed = parser.receiveBytes(dbuf);
-                        checkState(dbuf.position() == bytesConsumed);
-                        // Now drop the bytes which were read by compacting dbuf (resetting limit and keeping relative
-                        // position)
-                        dbuf.compact();
+                    while (sc.isOpen()) {
+                        selector.select();
+                        Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                        while (keyIterator.hasNext()) {
+                            SelectionKey selected = keyIterator.next();
+                            keyIterator.remove();
+                            ConnectionHandler.handleKey(selected);
+                        }
                     }
                 } catch (AsynchronousCloseException e) {// Expected if the connection is closed
                 } catch (ClosedChannelException e) { // Expected if the connection is closed
@@ -86,11 +85,12 @@ public class NioClient implements MessageWriteTarget {
                     log.error("Error trying to open/read from connection", e);
                 } finally {
                     try {
-                        sc.close();
+                        selector.close();
                     } catch (IOException e1) {
-                        // At this point there isn't much we can do, and we can probably assume the channel is closed
+                        // At this point there isn't much we can do
                     }
-                    parser.connectionClosed();
+                    // Closes the channel (if it is not already) and calls parser.connectionClosed() exactly once
+                    handler.closeConnection();
                 }
             }
         }.start();
@@ -101,23 +101,32 @@ public class NioClient implements MessageWriteTarget {
      * event on the network-handling thread where all callbacks occur.
      */
     public void closeConnection() {
-        // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
+        // Closes the channel and wakes up the network-handling thread, which then calls connectionClosed()
         try {
             sc.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        selector.wakeup();
     }
 
-    // Writes raw bytes to the channel (used by the write method in StreamParser)
+    // Queues raw bytes for writing to the channel (used by the write method in StreamParser)
     @Override
-    public synchronized void writeBytes(byte[] message) {
+    public void writeBytes(byte[] message) {
         try {
-            if (sc.write(ByteBuffer.wrap(message)) != message.length)
-                throw new IOException("Couldn't write all of message to socket");
+            handler.writeBytes(message);
         } catch (IOException e) {
-            log.error("Error writing message to connection, closing connection", e);
-            closeConnection();
+            // Already logged and the connection closed by the handler
         }
     }
+
+    /** Returns the number of bytes which have been written to this connection but not yet sent to the socket. */
+    public long getBytesQueued() {
+        return handler.getBytesQueued();
+    }
+
+    /** Returns the number of times the socket filled up and we had to wait for it to become writable again. */
+    public long getWriteStalls() {
+        return handler.getWriteStalls();
+    }
 }
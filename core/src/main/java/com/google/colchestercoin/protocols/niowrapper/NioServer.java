@@ -50,7 +50,9 @@ public class NioServer {
             SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
             ConnectionHandler handler = new ConnectionHandler(parserFactory, newChannel);
-            newChannel.register(selector, SelectionKey.OP_READ).attach(handler);
+            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+            newKey.attach(handler);
+            handler.setKey(newKey);
             handler.parser.connectionOpened();
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
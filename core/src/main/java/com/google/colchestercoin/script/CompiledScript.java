@@ -0,0 +1,814 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.crypto.TransactionSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A script decoded into the form run by the interpreter: a flat array of opcodes with the data pushed by each
+ * chunk and its location in the program alongside. Decoding happens once per script, and the decoded forms of
+ * scriptPubKeys and P2SH redeem scripts are shared between all scripts with the same program via a bounded cache,
+ * because the same few output templates get spent over and over.</p>
+ *
+ * <p>Things that make a script fail wherever they appear, like disabled opcodes and oversized pushes, are found when
+ * decoding so {@link #execute(Transaction, int, Stack)} fails straight away. Execution uses array backed stacks and
+ * does numeric operations on longs, which cover the 4 byte numbers scripts may use.</p>
+ *
+ * <p>Instances are immutable and thread safe. Stack elements, including the pushed data, are shared and must never be
+ * modified.</p>
+ */
+final class CompiledScript {
+    private static final Logger log = LoggerFactory.getLogger(CompiledScript.class);
+
+    // Marks a chunk that pushes data in the opcodes array.
+    private static final int PUSH = -1;
+    private static final int MAX_OPS = 201;
+    private static final int MAX_STACK_SIZE = 1000;
+    /** How many decoded scriptPubKeys and redeem scripts are kept around for reuse. */
+    static final int SHARED_CACHE_SIZE = 10000;
+    // Only short programs go into the shared cache, long ones are unlikely to be seen again.
+    private static final int MAX_SHARED_PROGRAM_LENGTH = 1000;
+
+    // Stack elements are never modified, so the common ones can be shared.
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] FALSE = new byte[] {0};
+    private static final byte[] TRUE = new byte[] {1};
+    // Encodings of -1 to 16, which is all numeric ops produce most of the time.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = doEncodeNumber(i);
+    }
+
+    // OP_SHA1 is rare, but a script that uses it may use it many times, and looking up a digest each time is slow.
+    private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+    };
+
+    private static final Map<ByteBuffer, CompiledScript> sharedCache =
+            new LinkedHashMap<ByteBuffer, CompiledScript>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CompiledScript> eldest) {
+            return size() > SHARED_CACHE_SIZE;
+        }
+    };
+
+    private final byte[] program;
+    private final int[] opcodes;
+    private final int[] locations;
+    private final byte[][] pushData;
+    // Why the script can never succeed, or null.
+    private final String error;
+    private final boolean pushOnly;
+
+    CompiledScript(Script script) {
+        List<ScriptChunk> chunks = script.chunks;
+        program = script.getProgram();
+        opcodes = new int[chunks.size()];
+        locations = new int[chunks.size()];
+        pushData = new byte[chunks.size()][];
+        String error = null;
+        boolean pushOnly = true;
+        for (int i = 0; i < opcodes.length; i++) {
+            ScriptChunk chunk = chunks.get(i);
+            // Scripts made with ScriptBuilder don't know where their chunks are, which only matters for
+            // OP_CODESEPARATOR.
+            locations[i] = chunk.getStartLocationIfKnown();
+            if (!chunk.isOpCode()) {
+                opcodes[i] = PUSH;
+                pushData[i] = chunk.data;
+                if (chunk.data.length > Script.MAX_SCRIPT_ELEMENT_SIZE && error == null)
+                    error = "Attempted to push a data string larger than 520 bytes";
+                continue;
+            }
+            int opcode = 0xFF & chunk.data[0];
+            opcodes[i] = opcode;
+            if (opcode > OP_16)
+                pushOnly = false;
+            if (error != null)
+                continue;
+            if (opcode == OP_VERIF || opcode == OP_VERNOTIF)
+                error = "Script included OP_VERIF or OP_VERNOTIF";
+            else if (isDisabled(opcode))
+                error = "Script included a disabled Script Op.";
+        }
+        this.error = error;
+        this.pushOnly = pushOnly;
+    }
+
+    /**
+     * Returns the decoded form of the given scriptPubKey or redeem script, from the shared cache if another script
+     * with the same program was decoded recently.
+     */
+    static CompiledScript getShared(Script script) {
+        byte[] program = script.program;
+        if (program == null || program.length > MAX_SHARED_PROGRAM_LENGTH)
+            return new CompiledScript(script);
+        ByteBuffer key = ByteBuffer.wrap(program);
+        synchronized (sharedCache) {
+            CompiledScript compiled = sharedCache.get(key);
+            if (compiled != null)
+                return compiled;
+        }
+        CompiledScript compiled = new CompiledScript(script);
+        synchronized (sharedCache) {
+            sharedCache.put(ByteBuffer.wrap(compiled.program), compiled);
+        }
+        return compiled;
+    }
+
+    /** Returns true if the script contains only pushes (including OP_N and OP_RESERVED, as the reference client does). */
+    boolean isPushOnly() {
+        return pushOnly;
+    }
+
+    private static boolean isDisabled(int opcode) {
+        switch (opcode) {
+        case OP_CAT:
+        case OP_SUBSTR:
+        case OP_LEFT:
+        case OP_RIGHT:
+        case OP_INVERT:
+        case OP_AND:
+        case OP_OR:
+        case OP_XOR:
+        case OP_2MUL:
+        case OP_2DIV:
+        case OP_MUL:
+        case OP_DIV:
+        case OP_MOD:
+        case OP_LSHIFT:
+        case OP_RSHIFT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** An array backed stack of byte arrays, top of the stack last. */
+    static final class Stack {
+        private byte[][] elements;
+        private int size;
+
+        Stack() {
+            elements = new byte[16][];
+        }
+
+        Stack(Stack other) {
+            elements = Arrays.copyOf(other.elements, other.elements.length);
+            size = other.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void push(byte[] element) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = element;
+        }
+
+        byte[] pop() {
+            byte[] element = elements[--size];
+            elements[size] = null;
+            return element;
+        }
+
+        /** Returns the element the given distance from the top, where 0 is the top. */
+        byte[] peek(int depth) {
+            return elements[size - 1 - depth];
+        }
+
+        /** Removes and returns the element the given distance from the top, where 0 is the top. */
+        byte[] remove(int depth) {
+            int index = size - 1 - depth;
+            byte[] element = elements[index];
+            System.arraycopy(elements, index + 1, elements, index, depth);
+            elements[--size] = null;
+            return element;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    buf.append(", ");
+                buf.append(Utils.bytesToHexString(elements[i]));
+            }
+            return buf.append("]").toString();
+        }
+    }
+
+    static boolean castToBool(byte[] data) {
+        for (int i = 0; i < data.length; i++)
+        {
+            // "Can be negative zero" -reference client (see OpenSSL's BN_bn2mpi)
+            if (data[i] != 0)
+                return !(i == data.length - 1 && (data[i] & 0xFF) == 0x80);
+        }
+        return false;
+    }
+
+    /** Decodes a little endian, sign and magnitude number of at most 4 bytes. */
+    static long castToNumber(byte[] chunk) throws ScriptException {
+        if (chunk.length > 4)
+            throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
+        if (chunk.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        long signBit = 0x80L << (8 * (chunk.length - 1));
+        if ((result & signBit) != 0)
+            return -(result & ~signBit);
+        return result;
+    }
+
+    /** The inverse of {@link #castToNumber(byte[])}, producing the same minimal encoding as the reference client. */
+    static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        return doEncodeNumber(value);
+    }
+
+    private static byte[] doEncodeNumber(long value) {
+        if (value == 0)
+            return EMPTY;
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int length = 0;
+        for (long v = magnitude; v != 0; v >>>= 8)
+            length++;
+        // If the top bit of the magnitude is set an extra byte is needed to hold the sign.
+        boolean extraByte = ((magnitude >>> (8 * (length - 1))) & 0x80) != 0;
+        byte[] result = new byte[extraByte ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (negative)
+            result[result.length - 1] |= 0x80;
+        return result;
+    }
+
+    private static byte[] bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * Runs the script on the given stack.
+     *
+     * @param txContainingThis The transaction whose input is being verified, for signature checks.
+     * @param index The index of the input being verified.
+     */
+    void execute(Transaction txContainingThis, int index, Stack stack) throws ScriptException {
+        if (error != null)
+            throw new ScriptException(error);
+        int opCount = 0;
+        int lastCodeSepLocation = 0;
+
+        Stack altstack = null;
+        // The results of the enclosing OP_IF/OP_NOTIF/OP_ELSE, innermost last. We execute if none of them are false.
+        boolean[] ifStack = null;
+        int ifDepth = 0;
+        int falseCount = 0;
+
+        for (int i = 0; i < opcodes.length; i++) {
+            int opcode = opcodes[i];
+            boolean shouldExecute = falseCount == 0;
+            if (opcode == PUSH) {
+                if (shouldExecute) {
+                    stack.push(pushData[i]);
+                    if (stack.size() + (altstack == null ? 0 : altstack.size()) > MAX_STACK_SIZE)
+                        throw new ScriptException("Stack size exceeded range");
+                }
+                continue;
+            }
+            if (opcode > OP_16) {
+                opCount++;
+                if (opCount > MAX_OPS)
+                    throw new ScriptException("More script operations than is allowed");
+            }
+
+            switch (opcode) {
+            case OP_IF:
+            case OP_NOTIF:
+                boolean value = false;
+                if (shouldExecute) {
+                    if (stack.size() < 1)
+                        throw new ScriptException("Attempted OP_IF/OP_NOTIF on an empty stack");
+                    value = castToBool(stack.pop()) == (opcode == OP_IF);
+                }
+                if (ifStack == null)
+                    ifStack = new boolean[8];
+                else if (ifDepth == ifStack.length)
+                    ifStack = Arrays.copyOf(ifStack, ifDepth * 2);
+                ifStack[ifDepth++] = value;
+                if (!value)
+                    falseCount++;
+                continue;
+            case OP_ELSE:
+                if (ifDepth == 0)
+                    throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
+                ifStack[ifDepth - 1] = !ifStack[ifDepth - 1];
+                falseCount += ifStack[ifDepth - 1] ? -1 : 1;
+                continue;
+            case OP_ENDIF:
+                if (ifDepth == 0)
+                    throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
+                if (!ifStack[--ifDepth])
+                    falseCount--;
+                continue;
+            }
+
+            if (!shouldExecute)
+                continue;
+
+            switch (opcode) {
+            case OP_0:
+                // This is also OP_FALSE (they are both zero).
+                stack.push(FALSE);
+                break;
+            case OP_1NEGATE:
+            case OP_1:
+            case OP_2:
+            case OP_3:
+            case OP_4:
+            case OP_5:
+            case OP_6:
+            case OP_7:
+            case OP_8:
+            case OP_9:
+            case OP_10:
+            case OP_11:
+            case OP_12:
+            case OP_13:
+            case OP_14:
+            case OP_15:
+            case OP_16:
+                stack.push(encodeNumber(Script.decodeFromOpN(opcode)));
+                break;
+            case OP_NOP:
+                break;
+            case OP_VERIFY:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_VERIFY on an empty stack");
+                if (!castToBool(stack.pop()))
+                    throw new ScriptException("OP_VERIFY failed");
+                break;
+            case OP_RETURN:
+                throw new ScriptException("Script called OP_RETURN");
+            case OP_TOALTSTACK:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
+                if (altstack == null)
+                    altstack = new Stack();
+                altstack.push(stack.pop());
+                break;
+            case OP_FROMALTSTACK:
+                if (altstack == null || altstack.size() < 1)
+                    throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
+                stack.push(altstack.pop());
+                break;
+            case OP_2DROP:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
+                stack.pop();
+                stack.pop();
+                break;
+            case OP_2DUP:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
+                stack.push(stack.peek(1));
+                stack.push(stack.peek(1));
+                break;
+            case OP_3DUP:
+                if (stack.size() < 3)
+                    throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
+                stack.push(stack.peek(2));
+                stack.push(stack.peek(2));
+                stack.push(stack.peek(2));
+                break;
+            case OP_2OVER:
+                if (stack.size() < 4)
+                    throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
+                stack.push(stack.peek(3));
+                stack.push(stack.peek(3));
+                break;
+            case OP_2ROT:
+                if (stack.size() < 6)
+                    throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
+                byte[] rot1 = stack.remove(5);
+                byte[] rot2 = stack.remove(4);
+                stack.push(rot1);
+                stack.push(rot2);
+                break;
+            case OP_2SWAP:
+                if (stack.size() < 4)
+                    throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
+                byte[] swap1 = stack.remove(3);
+                byte[] swap2 = stack.remove(2);
+                stack.push(swap1);
+                stack.push(swap2);
+                break;
+            case OP_IFDUP:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_IFDUP on an empty stack");
+                if (castToBool(stack.peek(0)))
+                    stack.push(stack.peek(0));
+                break;
+            case OP_DEPTH:
+                stack.push(encodeNumber(stack.size()));
+                break;
+            case OP_DROP:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_DROP on an empty stack");
+                stack.pop();
+                break;
+            case OP_DUP:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_DUP on an empty stack");
+                stack.push(stack.peek(0));
+                break;
+            case OP_NIP:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
+                stack.remove(1);
+                break;
+            case OP_OVER:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
+                stack.push(stack.peek(1));
+                break;
+            case OP_PICK:
+            case OP_ROLL:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
+                long depth = castToNumber(stack.pop());
+                if (depth < 0 || depth >= stack.size())
+                    throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
+                stack.push(opcode == OP_ROLL ? stack.remove((int) depth) : stack.peek((int) depth));
+                break;
+            case OP_ROT:
+                if (stack.size() < 3)
+                    throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
+                stack.push(stack.remove(2));
+                break;
+            case OP_SWAP:
+            case OP_TUCK:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
+                byte[] top = stack.pop();
+                byte[] second = stack.pop();
+                stack.push(top);
+                stack.push(second);
+                if (opcode == OP_TUCK)
+                    stack.push(top);
+                break;
+            case OP_SIZE:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_SIZE on an empty stack");
+                stack.push(encodeNumber(stack.peek(0).length));
+                break;
+            case OP_EQUAL:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
+                stack.push(bool(Arrays.equals(stack.pop(), stack.pop())));
+                break;
+            case OP_EQUALVERIFY:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
+                if (!Arrays.equals(stack.pop(), stack.pop()))
+                    throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+                break;
+            case OP_1ADD:
+            case OP_1SUB:
+            case OP_NEGATE:
+            case OP_ABS:
+            case OP_NOT:
+            case OP_0NOTEQUAL:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted a numeric op on an empty stack");
+                long num = castToNumber(stack.pop());
+                switch (opcode) {
+                case OP_1ADD:
+                    num = num + 1;
+                    break;
+                case OP_1SUB:
+                    num = num - 1;
+                    break;
+                case OP_NEGATE:
+                    num = -num;
+                    break;
+                case OP_ABS:
+                    num = Math.abs(num);
+                    break;
+                case OP_NOT:
+                    num = num == 0 ? 1 : 0;
+                    break;
+                case OP_0NOTEQUAL:
+                    num = num == 0 ? 0 : 1;
+                    break;
+                default:
+                    throw new AssertionError("Unreachable");
+                }
+                stack.push(encodeNumber(num));
+                break;
+            case OP_ADD:
+            case OP_SUB:
+            case OP_BOOLAND:
+            case OP_BOOLOR:
+            case OP_NUMEQUAL:
+            case OP_NUMNOTEQUAL:
+            case OP_LESSTHAN:
+            case OP_GREATERTHAN:
+            case OP_LESSTHANOREQUAL:
+            case OP_GREATERTHANOREQUAL:
+            case OP_MIN:
+            case OP_MAX:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted a numeric op on a stack with size < 2");
+                long num2 = castToNumber(stack.pop());
+                long num1 = castToNumber(stack.pop());
+                long result;
+                switch (opcode) {
+                case OP_ADD:
+                    result = num1 + num2;
+                    break;
+                case OP_SUB:
+                    result = num1 - num2;
+                    break;
+                case OP_BOOLAND:
+                    result = num1 != 0 && num2 != 0 ? 1 : 0;
+                    break;
+                case OP_BOOLOR:
+                    result = num1 != 0 || num2 != 0 ? 1 : 0;
+                    break;
+                case OP_NUMEQUAL:
+                    result = num1 == num2 ? 1 : 0;
+                    break;
+                case OP_NUMNOTEQUAL:
+                    result = num1 != num2 ? 1 : 0;
+                    break;
+                case OP_LESSTHAN:
+                    result = num1 < num2 ? 1 : 0;
+                    break;
+                case OP_GREATERTHAN:
+                    result = num1 > num2 ? 1 : 0;
+                    break;
+                case OP_LESSTHANOREQUAL:
+                    result = num1 <= num2 ? 1 : 0;
+                    break;
+                case OP_GREATERTHANOREQUAL:
+                    result = num1 >= num2 ? 1 : 0;
+                    break;
+                case OP_MIN:
+                    result = Math.min(num1, num2);
+                    break;
+                case OP_MAX:
+                    result = Math.max(num1, num2);
+                    break;
+                default:
+                    throw new RuntimeException("Opcode switched at runtime?");
+                }
+                stack.push(encodeNumber(result));
+                break;
+            case OP_NUMEQUALVERIFY:
+                if (stack.size() < 2)
+                    throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
+                if (castToNumber(stack.pop()) != castToNumber(stack.pop()))
+                    throw new ScriptException("OP_NUMEQUALVERIFY failed");
+                break;
+            case OP_WITHIN:
+                if (stack.size() < 3)
+                    throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
+                long max = castToNumber(stack.pop());
+                long min = castToNumber(stack.pop());
+                long x = castToNumber(stack.pop());
+                stack.push(encodeNumber(min <= x && x < max ? 1 : 0));
+                break;
+            case OP_RIPEMD160:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
+                RIPEMD160Digest digest = new RIPEMD160Digest();
+                byte[] dataToHash = stack.pop();
+                digest.update(dataToHash, 0, dataToHash.length);
+                byte[] ripmemdHash = new byte[20];
+                digest.doFinal(ripmemdHash, 0);
+                stack.push(ripmemdHash);
+                break;
+            case OP_SHA1:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_SHA1 on an empty stack");
+                MessageDigest sha1 = CompiledScript.sha1.get();
+                sha1.reset();
+                stack.push(sha1.digest(stack.pop()));
+                break;
+            case OP_SHA256:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_SHA256 on an empty stack");
+                stack.push(Utils.singleDigest(stack.pop()));
+                break;
+            case OP_HASH160:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_HASH160 on an empty stack");
+                stack.push(Utils.sha256hash160(stack.pop()));
+                break;
+            case OP_HASH256:
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_SHA256 on an empty stack");
+                stack.push(Utils.doubleDigest(stack.pop()));
+                break;
+            case OP_CODESEPARATOR:
+                checkState(locations[i] >= 0);
+                lastCodeSepLocation = locations[i] + 1;
+                break;
+            case OP_CHECKSIG:
+            case OP_CHECKSIGVERIFY:
+                executeCheckSig(txContainingThis, index, stack, lastCodeSepLocation, opcode);
+                break;
+            case OP_CHECKMULTISIG:
+            case OP_CHECKMULTISIGVERIFY:
+                opCount = executeMultiSig(txContainingThis, index, stack, opCount, lastCodeSepLocation, opcode);
+                break;
+            case OP_NOP1:
+            case OP_NOP2:
+            case OP_NOP3:
+            case OP_NOP4:
+            case OP_NOP5:
+            case OP_NOP6:
+            case OP_NOP7:
+            case OP_NOP8:
+            case OP_NOP9:
+            case OP_NOP10:
+                break;
+
+            default:
+                throw new ScriptException("Script used a reserved opcode " + opcode);
+            }
+
+            if (stack.size() + (altstack == null ? 0 : altstack.size()) > MAX_STACK_SIZE)
+                throw new ScriptException("Stack size exceeded range");
+        }
+
+        if (ifDepth != 0)
+            throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
+    }
+
+    // Returns the part of the program signatures commit to: everything after the last OP_CODESEPARATOR, minus the
+    // signatures themselves.
+    private byte[] getConnectedScript(int lastCodeSepLocation, byte[]... sigs) {
+        byte[] connectedScript = Arrays.copyOfRange(program, lastCodeSepLocation, program.length);
+        for (byte[] sig : sigs) {
+            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
+            try {
+                Script.writeBytes(outStream, sig);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen
+            }
+            connectedScript = Script.removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        }
+        return connectedScript;
+    }
+
+    private void executeCheckSig(Transaction txContainingThis, int index, Stack stack, int lastCodeSepLocation,
+                                 int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+        if (sigBytes.length == 0 || pubKey.length == 0) {
+            if (opcode == OP_CHECKSIG)
+                stack.push(FALSE);
+            else if (opcode == OP_CHECKSIGVERIFY)
+                throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) with a sig or pubkey of length 0");
+            return;
+        }
+
+        byte[] connectedScript = getConnectedScript(lastCodeSepLocation, sigBytes);
+
+        boolean sigValid = false;
+        try {
+            TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            sigValid = SignatureCache.getDefault().verify(hash.getBytes(), sig, pubKey);
+        } catch (Exception e1) {
+            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+            // Because I can't verify there aren't more, we use a very generic Exception catch
+            log.warn(e1.toString());
+        }
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(bool(sigValid));
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    }
+
+    private int executeMultiSig(Transaction txContainingThis, int index, Stack stack, int opCount,
+                                int lastCodeSepLocation, int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
+        int pubKeyCount = (int) castToNumber(stack.pop());
+        if (pubKeyCount < 0 || pubKeyCount > 20)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
+        opCount += pubKeyCount;
+        if (opCount > MAX_OPS)
+            throw new ScriptException("Total op count > 201 during OP_CHECKMULTISIG(VERIFY)");
+        if (stack.size() < pubKeyCount + 1)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
+
+        byte[][] pubKeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++) {
+            pubKeys[i] = stack.pop();
+            if (pubKeys[i].length == 0)
+                throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) with a pubkey of length 0");
+        }
+
+        int sigCount = (int) castToNumber(stack.pop());
+        if (sigCount < 0 || sigCount > pubKeyCount)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
+        if (stack.size() < sigCount + 1)
+            throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
+
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++) {
+            sigs[i] = stack.pop();
+            if (sigs[i].length == 0)
+                throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) with a sig of length 0");
+        }
+
+        byte[] connectedScript = getConnectedScript(lastCodeSepLocation, sigs);
+
+        // Signatures must be in the same order as the keys, so each key is tried against the next unmatched signature.
+        boolean valid = true;
+        int sig = 0, key = 0;
+        while (sig < sigCount) {
+            byte[] pubKey = pubKeys[key++];
+            // We could reasonably move this out of the loop, but because signature verification is significantly
+            // more expensive than hashing, its not a big deal.
+            try {
+                TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigs[sig], false);
+                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) signature.sighashFlags);
+                if (SignatureCache.getDefault().verify(hash.getBytes(), signature, pubKey))
+                    sig++;
+            } catch (Exception e) {
+                // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+                // Because I can't verify there aren't more, we use a very generic Exception catch
+            }
+
+            if (sigCount - sig > pubKeyCount - key) {
+                valid = false;
+                break;
+            }
+        }
+
+        // We uselessly remove a stack object to emulate a reference client bug.
+        stack.pop();
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(bool(valid));
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+}
@@ -60,6 +60,11 @@ public class ScriptChunk {
         return startLocationInProgram;
     }
 
+    /** Returns where the chunk starts in the program, or -1 if it was made by {@link ScriptBuilder}. */
+    int getStartLocationIfKnown() {
+        return startLocationInProgram;
+    }
+
     public void write(OutputStream stream) throws IOException {
         if (isOpCode) {
             checkState(data.length == 1);
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.core.Utils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples have already been verified, so that a transaction
+ * whose scripts were run when it was first seen, for example by {@link com.google.colchestercoin.core.Transaction#signInputs}
+ * or a payment channel, doesn't need its signatures checked again when the block containing it is connected.</p>
+ *
+ * <p>Only valid signatures are remembered. Entries are keyed by a hash of the triple with a random salt chosen when the
+ * cache is created, so a peer can't construct entries that collide or find out what is in the cache. The cache holds as
+ * many entries as fit in the memory budget it is created with, evicting the least recently used first, and is safe to
+ * use from many threads at once.</p>
+ *
+ * <p>{@link Script} uses the cache returned by {@link #getDefault()} for all signature checks.</p>
+ */
+public class SignatureCache {
+    /** The memory budget of the default cache, enough for about 100,000 signatures. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    // Rough size of an entry: the Sha256Hash key and its array, plus the cache's own entry object and table slot.
+    static final int ENTRY_SIZE = 160;
+
+    // Keys are worked out on every signature check, from many threads at once.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Utils.newSha256Digest();
+        }
+    };
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MEMORY_BUDGET);
+
+    private final byte[] salt;
+    private final Cache<Sha256Hash, Boolean> cache;
+
+    /**
+     * Creates a cache that uses roughly no more than the given number of bytes. A budget of zero makes a cache that
+     * never remembers anything.
+     */
+    public SignatureCache(long memoryBudget) {
+        checkArgument(memoryBudget >= 0);
+        salt = new byte[32];
+        new SecureRandom().nextBytes(salt);
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(memoryBudget / ENTRY_SIZE)
+                .recordStats()
+                .build();
+    }
+
+    /** Returns the cache used by {@link Script} when verifying signatures. */
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache used by {@link Script}, for example with one of a different size, or one with a budget of
+     * zero to turn caching off.
+     */
+    public static void setDefault(SignatureCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Verifies the signature in the same way as {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, but
+     * returns straight away if the same signature was found to be valid before.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature The signature.
+     * @param pub       The public key bytes to use.
+     */
+    public boolean verify(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        Sha256Hash key = entryKey(data, signature, pub);
+        if (cache.getIfPresent(key) != null)
+            return true;
+        if (!ECKey.verify(data, signature, pub))
+            return false;
+        cache.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Verifies many signatures with {@link ECKey#verifyBatch(List)}, skipping any that were found to be valid before.
+     *
+     * @return whether each signature is valid, in the same order as the checks
+     */
+    public boolean[] verifyBatch(List<ECKey.SignatureCheck> checks) {
+        boolean[] results = new boolean[checks.size()];
+        Sha256Hash[] keys = new Sha256Hash[checks.size()];
+        List<ECKey.SignatureCheck> misses = new ArrayList<ECKey.SignatureCheck>();
+        for (int i = 0; i < checks.size(); i++) {
+            ECKey.SignatureCheck check = checks.get(i);
+            keys[i] = entryKey(check.data, check.signature, check.pub);
+            if (cache.getIfPresent(keys[i]) != null)
+                results[i] = true;
+            else
+                misses.add(check);
+        }
+        boolean[] verified = ECKey.verifyBatch(misses);
+        for (int i = 0, miss = 0; i < results.length; i++) {
+            if (results[i])
+                continue;
+            results[i] = verified[miss++];
+            if (results[i])
+                cache.put(keys[i], Boolean.TRUE);
+        }
+        return results;
+    }
+
+    private Sha256Hash entryKey(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        MessageDigest digest = SignatureCache.digest.get();
+        digest.reset();
+        digest.update(salt);
+        // Each part is prefixed with its length so that no two different triples hash the same data.
+        update(digest, data);
+        update(digest, pub);
+        update(digest, signature.r.toByteArray());
+        update(digest, signature.s.toByteArray());
+        return new Sha256Hash(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] bytes) {
+        digest.update((byte) (bytes.length >> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Forgets all the signatures, leaving the statistics alone. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /** Returns the number of verifications that were answered from the cache. */
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /** Returns the number of verifications that had to check the signature. */
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    /** Returns the fraction of verifications answered from the cache, or 1.0 if there haven't been any. */
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("%d signatures cached, %d hits, %d misses (%.1f%% hit rate)", cache.size(),
+                stats.hitCount(), stats.missCount(), stats.hitRate() * 100);
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.crypto.PublicKeyCache;
+import com.google.colchestercoin.crypto.TransactionSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>Verifies the standard kinds of input directly from the raw bytes of the scriptSig and scriptPubKey, without
+ * running the interpreter. Almost every input in the chain is one of these:</p>
+ *
+ * <ul>
+ *     <li>Pay to address: {@code <sig> <pubkey>} spending {@code DUP HASH160 <hash> EQUALVERIFY CHECKSIG}, which
+ *     takes one hash160 comparison and one signature check.</li>
+ *     <li>Pay to script hash multisig: {@code 0 <sig>... <m <pubkey>... n CHECKMULTISIG>} spending
+ *     {@code HASH160 <hash> EQUAL}, when P2SH is enforced.</li>
+ * </ul>
+ *
+ * <p>The templates only accept forms where the result is certain to be the same as the interpreter's. Anything else,
+ * including unusual pushes and the corner cases where the interpreter would remove a signature from the signed
+ * script, isn't recognised and goes to the interpreter.</p>
+ */
+class StandardScripts {
+    private static final Logger log = LoggerFactory.getLogger(StandardScripts.class);
+
+    private static final int PAY_TO_ADDRESS_LENGTH = 25;
+    private static final int PAY_TO_SCRIPT_HASH_LENGTH = 23;
+
+    /**
+     * Verifies the given input if it is one of the standard forms. If deferredChecks isn't null, the signature check of
+     * a pay to address input, which must pass for the input to be valid, is added to it instead of being done.
+     *
+     * @return true if the input was verified, false if it is not a standard form and must be run by the interpreter.
+     * @throws ScriptException if the input is of a standard form but doesn't correctly spend the output.
+     */
+    static boolean correctlySpends(Transaction txContainingThis, int index, byte[] scriptSig, byte[] scriptPubKey,
+                                   boolean enforceP2SH, @Nullable List<ECKey.SignatureCheck> deferredChecks)
+            throws ScriptException {
+        if (isPayToAddress(scriptPubKey))
+            return spendPayToAddress(txContainingThis, index, scriptSig, scriptPubKey, deferredChecks);
+        if (enforceP2SH && isPayToScriptHash(scriptPubKey))
+            return spendMultiSigScriptHash(txContainingThis, index, scriptSig, scriptPubKey);
+        return false;
+    }
+
+    private static boolean isPayToAddress(byte[] script) {
+        return script.length == PAY_TO_ADDRESS_LENGTH &&
+               (script[0] & 0xFF) == OP_DUP &&
+               (script[1] & 0xFF) == OP_HASH160 &&
+               script[2] == Address.LENGTH &&
+               (script[23] & 0xFF) == OP_EQUALVERIFY &&
+               (script[24] & 0xFF) == OP_CHECKSIG;
+    }
+
+    private static boolean isPayToScriptHash(byte[] script) {
+        return script.length == PAY_TO_SCRIPT_HASH_LENGTH &&
+               (script[0] & 0xFF) == OP_HASH160 &&
+               script[1] == Address.LENGTH &&
+               (script[22] & 0xFF) == OP_EQUAL;
+    }
+
+    private static boolean hash160Equals(byte[] hash, byte[] script, int hashOffset) {
+        for (int i = 0; i < hash.length; i++)
+            if (hash[i] != script[hashOffset + i])
+                return false;
+        return true;
+    }
+
+    // Returns the length of the data pushed by a single byte push opcode at the given position, or -1 if there isn't
+    // one there or it runs off the end of the script.
+    private static int directPushLength(byte[] script, int cursor) {
+        if (cursor >= script.length)
+            return -1;
+        int length = script[cursor] & 0xFF;
+        if (length < 1 || length >= OP_PUSHDATA1 || cursor + 1 + length > script.length)
+            return -1;
+        return length;
+    }
+
+    private static boolean spendPayToAddress(Transaction txContainingThis, int index, byte[] scriptSig,
+                                             byte[] scriptPubKey, @Nullable List<ECKey.SignatureCheck> deferredChecks)
+            throws ScriptException {
+        int sigLength = directPushLength(scriptSig, 0);
+        if (sigLength < 0)
+            return false;
+        int keyLength = directPushLength(scriptSig, 1 + sigLength);
+        if (keyLength < 0 || 2 + sigLength + keyLength != scriptSig.length)
+            return false;
+        // A 20 byte "signature" could match the hash push, which the interpreter would then remove from the script
+        // that was signed. No real signature is that short, so leave it to the interpreter.
+        if (sigLength == Address.LENGTH)
+            return false;
+        byte[] sig = Arrays.copyOfRange(scriptSig, 1, 1 + sigLength);
+        byte[] pubKey = Arrays.copyOfRange(scriptSig, 2 + sigLength, scriptSig.length);
+
+        if (!hash160Equals(PublicKeyCache.getDefault().getHash160(pubKey), scriptPubKey, 3))
+            throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+        if (deferredChecks != null) {
+            ECKey.SignatureCheck check = prepareCheck(txContainingThis, index, sig, pubKey, scriptPubKey, true);
+            if (check == null)
+                throw new ScriptException("Script resulted in a non-true stack");
+            deferredChecks.add(check);
+        } else if (!checkSig(txContainingThis, index, sig, pubKey, scriptPubKey, true)) {
+            throw new ScriptException("Script resulted in a non-true stack");
+        }
+        return true;
+    }
+
+    private static boolean spendMultiSigScriptHash(Transaction txContainingThis, int index, byte[] scriptSig,
+                                                   byte[] scriptPubKey) throws ScriptException {
+        // The scriptSig: OP_0, then the signatures, then the redeem script.
+        if (scriptSig.length == 0 || scriptSig[0] != OP_0)
+            return false;
+        int cursor = 1;
+        int sigCount = 0;
+        byte[][] sigs = new byte[16][];
+        int length;
+        while ((length = directPushLength(scriptSig, cursor)) >= 0 && cursor + 1 + length < scriptSig.length) {
+            if (sigCount == sigs.length)
+                return false;
+            sigs[sigCount++] = Arrays.copyOfRange(scriptSig, cursor + 1, cursor + 1 + length);
+            cursor += 1 + length;
+        }
+        byte[] redeemScript = readLastPush(scriptSig, cursor);
+        if (redeemScript == null)
+            return false;
+
+        // The redeem script: m, the keys, n, CHECKMULTISIG.
+        int redeemLength = redeemScript.length;
+        if (redeemLength < 3 || (redeemScript[redeemLength - 1] & 0xFF) != OP_CHECKMULTISIG)
+            return false;
+        int threshold = decodeOpN(redeemScript[0]);
+        int keyCount = decodeOpN(redeemScript[redeemLength - 2]);
+        if (threshold < 1 || keyCount < threshold || sigCount != threshold)
+            return false;
+        byte[][] pubKeys = new byte[keyCount][];
+        cursor = 1;
+        for (int i = 0; i < keyCount; i++) {
+            length = directPushLength(redeemScript, cursor);
+            if (length < 0)
+                return false;
+            pubKeys[i] = Arrays.copyOfRange(redeemScript, cursor + 1, cursor + 1 + length);
+            cursor += 1 + length;
+        }
+        if (cursor != redeemLength - 2)
+            return false;
+        // The interpreter removes signatures from the signed script, which only matters if one equals a key.
+        for (int i = 0; i < sigCount; i++)
+            for (byte[] pubKey : pubKeys)
+                if (Arrays.equals(sigs[i], pubKey))
+                    return false;
+
+        if (!hash160Equals(Utils.sha256hash160(redeemScript), scriptPubKey, 2))
+            throw new ScriptException("Script resulted in a non-true stack");
+
+        // Each key is checked against the next unmatched signature, starting from the last of each as
+        // OP_CHECKMULTISIG does.
+        int sig = sigCount - 1, key = keyCount - 1;
+        while (sig >= 0) {
+            if (checkSig(txContainingThis, index, sigs[sig], pubKeys[key--], redeemScript, false))
+                sig--;
+            if (sig > key)
+                throw new ScriptException("P2SH script execution resulted in a non-true stack");
+        }
+        return true;
+    }
+
+    // Reads the push at the cursor, which must be the last thing in the script and at most 520 bytes.
+    private static byte[] readLastPush(byte[] script, int cursor) {
+        if (cursor >= script.length)
+            return null;
+        int opcode = script[cursor++] & 0xFF;
+        int length;
+        if (opcode < OP_PUSHDATA1) {
+            length = opcode;
+        } else if (opcode == OP_PUSHDATA1 && cursor + 1 <= script.length) {
+            length = script[cursor++] & 0xFF;
+        } else if (opcode == OP_PUSHDATA2 && cursor + 2 <= script.length) {
+            length = (script[cursor] & 0xFF) | ((script[cursor + 1] & 0xFF) << 8);
+            cursor += 2;
+        } else {
+            return null;
+        }
+        if (cursor + length != script.length || length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            return null;
+        return Arrays.copyOfRange(script, cursor, script.length);
+    }
+
+    private static int decodeOpN(byte opcode) {
+        int op = opcode & 0xFF;
+        return op >= OP_1 && op <= OP_16 ? op + 1 - OP_1 : -1;
+    }
+
+    // Decodes the signature and works out the hash it signs, or returns null if the signature can't be decoded.
+    @Nullable
+    private static ECKey.SignatureCheck prepareCheck(Transaction txContainingThis, int index, byte[] sigBytes,
+                                                     byte[] pubKey, byte[] connectedScript, boolean logFailure) {
+        try {
+            TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            return new ECKey.SignatureCheck(hash.getBytes(), sig, pubKey);
+        } catch (Exception e) {
+            if (logFailure)
+                log.warn(e.toString());
+            return null;
+        }
+    }
+
+    private static boolean checkSig(Transaction txContainingThis, int index, byte[] sigBytes, byte[] pubKey,
+                                    byte[] connectedScript, boolean logFailure) {
+        ECKey.SignatureCheck check = prepareCheck(txContainingThis, index, sigBytes, pubKey, connectedScript, logFailure);
+        if (check == null)
+            return false;
+        try {
+            return SignatureCache.getDefault().verify(check.data, check.signature, check.pub);
+        } catch (Exception e) {
+            // As in the interpreter, anything wrong with the signature or key just means it doesn't verify.
+            if (logFailure)
+                log.warn(e.toString());
+            return false;
+        }
+    }
+}
@@ -394,12 +394,16 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        // A FullPrunedBlockChain importing in bulk only sets the verified head once for many blocks, so forget every
+        // height that has fallen out of the window since the last call, not just the newest one.
+        int lowestHeight = chainHead.getHeight() - fullStoreDepth;
+        if (verifiedChainHead != null)
+            lowestHeight = Math.min(lowestHeight, verifiedChainHead.getHeight() - fullStoreDepth + 1);
         this.verifiedChainHead = chainHead;
         if (this.chainHead.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        // Potential leak here if not all blocks get setChainHead'd
-        // Though the FullPrunedBlockStore allows for this, the current AbstractBlockChain will not do it.
-        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+        for (int height = lowestHeight; height <= chainHead.getHeight() - fullStoreDepth; height++)
+            fullBlockMap.removeByMultiKey(height);
     }
     
     public void close() {
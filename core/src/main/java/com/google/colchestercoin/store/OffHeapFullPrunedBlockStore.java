@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.store;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.store.MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag;
+import com.google.colchestercoin.utils.OutPointLongMap;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Keeps {@link StoredBlock}s and {@link StoredUndoableBlock}s in memory like {@link MemoryFullPrunedBlockStore},
+ * but keeps the unspent outputs outside the Java heap, so that a full set of them neither needs a huge heap nor makes
+ * the garbage collector stop everything to look through tens of millions of objects. Each output is a record of its
+ * value, height and script in direct memory, found through an {@link OutPointLongMap} that is off the heap too,
+ * about 100 bytes an output in all. Direct memory is limited by -XX:MaxDirectMemorySize, which is the maximum heap
+ * size unless set.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are applied
+ * straight away and recorded, so they can be undone by {@link #abortDatabaseBatchWrite()}. Unlike
+ * MemoryFullPrunedBlockStore, other threads see outputs written in a batch before it is committed.</p>
+ */
+public class OffHeapFullPrunedBlockStore implements FullPrunedBlockStore {
+    // Record layout: the value, the height (see StoredTransactionOutput), the length of the script and the script.
+    private static final int VALUE = 0;
+    private static final int HEIGHT = 8;
+    private static final int SCRIPT_LENGTH = 12;
+    private static final int SCRIPT = 16;
+
+    private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    @GuardedBy("this") private OutPointLongMap outputIndex;
+    @GuardedBy("this") private OutputSlab outputs;
+    @GuardedBy("this") private StoredBlock chainHead;
+    @GuardedBy("this") private StoredBlock verifiedChainHead;
+    private final int fullStoreDepth;
+    // The outputs added and removed since the batch began, in order, or null outside a batch.
+    @GuardedBy("this") private List<Change> changes;
+
+    private static class Change {
+        final Sha256Hash hash;
+        final long index;
+        final long address;
+        final boolean added;
+
+        Change(Sha256Hash hash, long index, long address, boolean added) {
+            this.hash = hash;
+            this.index = index;
+            this.address = address;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Sets up the store, with room for about a million unspent outputs before its index has to grow.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, 1000000);
+    }
+
+    /**
+     * Sets up the store, with room for the given number of unspent outputs before its index has to grow, which means
+     * briefly holding the old index and the new one twice the size at once.
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, long expectedOutputs) {
+        blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        outputIndex = new OutPointLongMap(expectedOutputs, true);
+        outputs = new OutputSlab();
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = block.getHeader().getHash();
+        blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "OffHeapFullPrunedBlockStore is closed");
+        return fullBlockMap.get(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        // As in MemoryFullPrunedBlockStore, forget every height that has fallen out of the window since the last call.
+        int lowestHeight = chainHead.getHeight() - fullStoreDepth;
+        if (verifiedChainHead != null)
+            lowestHeight = Math.min(lowestHeight, verifiedChainHead.getHeight() - fullStoreDepth + 1);
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        for (int height = lowestHeight; height <= chainHead.getHeight() - fullStoreDepth; height++)
+            fullBlockMap.removeByMultiKey(height);
+    }
+
+    /** Drops everything. The direct memory is given back once the store is garbage collected. */
+    public synchronized void close() {
+        blockMap = null;
+        fullBlockMap = null;
+        outputIndex = null;
+        outputs = null;
+        changes = null;
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputIndex, "OffHeapFullPrunedBlockStore is closed");
+        long address = outputIndex.get(hash, index, 0);
+        if (address == 0)
+            return null;
+        long value = outputs.getLong(address + VALUE);
+        byte[] scriptBytes = new byte[outputs.getInt(address + SCRIPT_LENGTH)];
+        outputs.get(address + SCRIPT, scriptBytes);
+        // The height is stored as StoredTransactionOutput keeps it, so passing it back as a coinbase restores it.
+        return new StoredTransactionOutput(hash, index, value, outputs.getInt(address + HEIGHT), true, scriptBytes);
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputIndex, "OffHeapFullPrunedBlockStore is closed");
+        byte[] scriptBytes = out.getScriptBytes();
+        if (SCRIPT + scriptBytes.length > OutputSlab.MAX_RECORD_SIZE)
+            throw new BlockStoreException("Output script too large to store: " + scriptBytes.length);
+        long address = outputs.allocate(SCRIPT + scriptBytes.length);
+        outputs.putLong(address + VALUE, out.getValueAsLong());
+        outputs.putInt(address + HEIGHT, out.getHeight());
+        outputs.putInt(address + SCRIPT_LENGTH, scriptBytes.length);
+        outputs.put(address + SCRIPT, scriptBytes);
+
+        long previous = outputIndex.get(out.getHash(), out.getIndex(), 0);
+        outputIndex.put(out.getHash(), out.getIndex(), address);
+        if (previous != 0)
+            released(out.getHash(), out.getIndex(), previous);
+        if (changes != null)
+            changes.add(new Change(out.getHash(), out.getIndex(), address, true));
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputIndex, "OffHeapFullPrunedBlockStore is closed");
+        long address = outputIndex.get(out.getHash(), out.getIndex(), 0);
+        if (address == 0)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from OffHeapFullPrunedBlockStore that it didn't have!");
+        outputIndex.remove(out.getHash(), out.getIndex());
+        released(out.getHash(), out.getIndex(), address);
+    }
+
+    // A record is only freed once nothing can bring it back.
+    @GuardedBy("this")
+    private void released(Sha256Hash hash, long index, long address) {
+        if (changes != null)
+            changes.add(new Change(hash, index, address, false));
+        else
+            free(address);
+    }
+
+    @GuardedBy("this")
+    private void free(long address) {
+        outputs.free(address, SCRIPT + outputs.getInt(address + SCRIPT_LENGTH));
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.beginDatabaseBatchWrite();
+        fullBlockMap.BeginTransaction();
+        // A re-org begins a batch for every block it disconnects and connects, and commits them all at once.
+        if (changes == null)
+            changes = new ArrayList<Change>();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.commitDatabaseBatchWrite();
+        fullBlockMap.CommitTransaction();
+        if (changes != null) {
+            for (Change change : changes)
+                if (!change.added)
+                    free(change.address);
+        }
+        changes = null;
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.abortDatabaseBatchWrite();
+        fullBlockMap.AbortTransaction();
+        if (changes != null) {
+            // Undo everything in reverse, so an output added and then removed in the batch ends up gone.
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                Change change = changes.get(i);
+                if (change.added) {
+                    outputIndex.remove(change.hash, change.index);
+                    free(change.address);
+                } else {
+                    outputIndex.put(change.hash, change.index, change.address);
+                }
+            }
+        }
+        changes = null;
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    /** Returns the number of unspent outputs in the store. */
+    public synchronized long getUnspentOutputCount() {
+        return outputIndex.size();
+    }
+
+    /** Returns the number of bytes of direct memory used by the unspent outputs and their index. */
+    public synchronized long getOffHeapBytes() {
+        return outputs.getAllocatedBytes() + outputIndex.sizeInBytes();
+    }
+}
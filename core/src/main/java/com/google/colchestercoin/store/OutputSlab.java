@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.store;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Variable sized records in direct memory, for {@link OffHeapFullPrunedBlockStore}. Memory is taken from the
+ * operating system in 64MB chunks and handed out in multiples of eight bytes. A freed record goes on a list for its
+ * size and is reused by the next record of the same size, which suits unspent outputs, as nearly all of them are one
+ * of a handful of sizes. Records are addressed by a long, and no record has the address zero.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+final class OutputSlab {
+    private static final int CHUNK_BITS = 26;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int ALIGNMENT = 8;
+    static final int MAX_RECORD_SIZE = CHUNK_SIZE / 2;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long top;
+    // The first free record of each size, in units of ALIGNMENT. Each free record holds the address of the next.
+    private long[] freeLists = new long[64];
+    private long usedBytes;
+
+    /** Returns the address of a new record of at least the given size. */
+    long allocate(int size) {
+        checkArgument(size > 0 && size <= MAX_RECORD_SIZE, "Bad record size: %s", size);
+        int units = (size + ALIGNMENT - 1) / ALIGNMENT;
+        int bytes = units * ALIGNMENT;
+        usedBytes += bytes;
+        if (units < freeLists.length && freeLists[units] != 0) {
+            long address = freeLists[units];
+            freeLists[units] = getLong(address);
+            return address;
+        }
+        long address = top;
+        int chunk = (int) (address >>> CHUNK_BITS);
+        if (chunk >= chunks.size() || (address & CHUNK_MASK) + bytes > CHUNK_SIZE) {
+            // Whatever is left at the end of the last chunk is kept as a free record.
+            if (chunk < chunks.size())
+                release(address, (int) (CHUNK_SIZE - (address & CHUNK_MASK)));
+            address = (long) chunks.size() << CHUNK_BITS;
+            chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder()));
+            if (address == 0)
+                address = ALIGNMENT;
+        }
+        top = address + bytes;
+        return address;
+    }
+
+    /** Frees a record, which must have been allocated with the given size. */
+    void free(long address, int size) {
+        int bytes = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        usedBytes -= bytes;
+        release(address, bytes);
+    }
+
+    private void release(long address, int bytes) {
+        int units = bytes / ALIGNMENT;
+        if (units >= freeLists.length)
+            freeLists = Arrays.copyOf(freeLists, Math.max(units + 1, freeLists.length * 2));
+        putLong(address, freeLists[units]);
+        freeLists[units] = address;
+    }
+
+    /** Returns the number of bytes taken from the operating system. */
+    long getAllocatedBytes() {
+        return (long) chunks.size() * CHUNK_SIZE;
+    }
+
+    /** Returns the number of bytes in records that haven't been freed. */
+    long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get((int) (address >>> CHUNK_BITS));
+    }
+
+    long getLong(long address) {
+        return chunk(address).getLong((int) (address & CHUNK_MASK));
+    }
+
+    void putLong(long address, long value) {
+        chunk(address).putLong((int) (address & CHUNK_MASK), value);
+    }
+
+    int getInt(long address) {
+        return chunk(address).getInt((int) (address & CHUNK_MASK));
+    }
+
+    void putInt(long address, int value) {
+        chunk(address).putInt((int) (address & CHUNK_MASK), value);
+    }
+
+    void get(long address, byte[] bytes) {
+        ByteBuffer chunk = chunk(address);
+        chunk.position((int) (address & CHUNK_MASK));
+        chunk.get(bytes);
+    }
+
+    void put(long address, byte[] bytes) {
+        ByteBuffer chunk = chunk(address);
+        chunk.position((int) (address & CHUNK_MASK));
+        chunk.put(bytes);
+    }
+}
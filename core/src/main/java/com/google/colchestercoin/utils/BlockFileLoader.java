@@ -19,21 +19,42 @@ package com.google.colchestercoin.utils;
 import com.google.colchestercoin.core.Block;
 import com.google.colchestercoin.core.NetworkParameters;
 import com.google.colchestercoin.core.ProtocolException;
-import com.google.colchestercoin.core.Utils;
+import com.google.colchestercoin.core.Transaction;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
+ *
+ * <p>Each file is memory mapped and scanned for blocks by a background thread. The blocks are parsed, and their
+ * hashes, scrypt proof of work hashes and transaction hashes (the leaves of the merkle tree) calculated, on a pool
+ * of threads, up to a fixed number of blocks ahead of the consumer. They are still returned one at a time and in the
+ * order they appear in the files, so all the consumer has left to do is add them to the chain. Leaving a loader
+ * before the end of the files leaves its reader thread waiting, which doesn't stop the JVM from exiting. On a machine
+ * with only one core, the consumer reads and parses each block itself when it asks for it.</p>
  * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
@@ -67,20 +88,95 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
+    /** The default number of blocks that may be read and parsed ahead of the consumer. */
+    public static final int DEFAULT_LOOK_AHEAD = 32;
+
+    // Put in the queue after the last block.
+    private static final FutureTask<Block> END = new FutureTask<Block>(new Callable<Block>() {
+        @Override
+        public Block call() {
+            return null;
+        }
+    });
+
+    private final NetworkParameters params;
+    @Nullable private final Executor parser;
+    private final Iterator<File> fileIt;
+    // Blocks being parsed, in file order.
+    private final BlockingQueue<FutureTask<Block>> queue;
+    private boolean started, finished;
     private Block nextBlock = null;
-    private NetworkParameters params;
-    
+
+    // Only used by the reader thread, or by the consumer if there isn't one.
+    private MappedByteBuffer currentFile;
+    private int position;
+
     public BlockFileLoader(NetworkParameters params, List<File> files) {
-        fileIt = files.iterator();
+        this(params, files, DEFAULT_LOOK_AHEAD);
+    }
+
+    /**
+     * Creates a loader that reads and parses up to lookAhead blocks before they are asked for, parsing them on the
+     * {@link Threading#getCpuPool() CPU pool}. With only one core there are no parser or reader threads and the
+     * consumer does everything, as handing blocks between threads would only add work.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int lookAhead) {
+        this(params, files, lookAhead, Runtime.getRuntime().availableProcessors() > 1 ? Threading.getCpuPool() : null);
+    }
+
+    /**
+     * Creates a loader that reads and parses up to lookAhead blocks before they are asked for, parsing them on the
+     * given executor. Blocks are parsed in any order but handed over in the order they were read. If parser is null
+     * the consumer reads and parses each block itself when it asks for it.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int lookAhead, @Nullable Executor parser) {
+        checkArgument(lookAhead > 0);
         this.params = params;
+        this.parser = parser;
+        this.fileIt = files.iterator();
+        this.queue = new ArrayBlockingQueue<FutureTask<Block>>(lookAhead);
     }
-    
+
     @Override
     public boolean hasNext() {
-        if (nextBlock == null)
-            loadNextBlock();
+        if (parser == null) {
+            while (nextBlock == null && !finished) {
+                byte[] bytes = readNextBlock();
+                if (bytes == null)
+                    finished = true;
+                else
+                    nextBlock = parse(bytes);  // Null if it couldn't be parsed, in which case we go on to the next.
+            }
+            return nextBlock != null;
+        }
+        if (!started) {
+            started = true;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readBlocks();
+                }
+            }, "Block file reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        while (nextBlock == null && !finished) {
+            FutureTask<Block> future = Uninterruptibles.takeUninterruptibly(queue);
+            if (future == END) {
+                finished = true;
+                break;
+            }
+            // If no parser thread has started on this block yet, do it here rather than wait. Otherwise this returns
+            // straight away.
+            future.run();
+            try {
+                nextBlock = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
         return nextBlock != null;
     }
 
@@ -92,72 +188,96 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         nextBlock = null;
         return next;
     }
-    
-    private void loadNextBlock() {
+
+    private void readBlocks() {
+        try {
+            byte[] bytes;
+            while ((bytes = readNextBlock()) != null) {
+                final byte[] blockBytes = bytes;
+                FutureTask<Block> future = new FutureTask<Block>(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        return parse(blockBytes);
+                    }
+                });
+                Uninterruptibles.putUninterruptibly(queue, future);
+                parser.execute(future);
+            }
+        } finally {
+            Uninterruptibles.putUninterruptibly(queue, END);
+        }
+    }
+
+    // Returns the bytes of the next block in the files, or null at the end of the last file.
+    @Nullable
+    private byte[] readNextBlock() {
+        int magic = (int) params.getPacketMagic();
         while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            if (currentFile == null || position + 8 > currentFile.limit()) {
                 if (!fileIt.hasNext())
-                    break;
+                    return null;
+                currentFile = map(fileIt.next());
+                position = 0;
+                continue;
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            // Each block is the network magic, the length as a little endian uint32, then the block itself. The magic
+            // is searched for byte by byte, as the reference client leaves zeros at the end of the files it
+            // preallocates.
+            if (currentFile.getInt(position) != magic) {
+                position++;
+                continue;
             }
+            long size = Integer.reverseBytes(currentFile.getInt(position + 4)) & 0xFFFFFFFFL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE * 2 || size <= 0 || position + 8 + size > currentFile.limit()) {
+                position++;
+                continue;
+            }
+            byte[] bytes = new byte[(int) size];
+            currentFile.position(position + 8);
+            currentFile.get(bytes);
+            position += 8 + (int) size;
+            return bytes;
+        }
+    }
+
+    @Nullable
+    private static MappedByteBuffer map(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    log.error("Skipping {}, which is too big to be a block file", file);
+                    return null;
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                continue;
+                // The mapping stays valid after the file is closed.
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
             }
+        } catch (IOException e) {
+            log.error("Could not read " + file, e);
+            return null;
+        }
+    }
+
+    private Block parse(byte[] bytes) {
+        Block block;
+        try {
+            block = new Block(params, bytes);
+        } catch (ProtocolException e) {
+            return null;
+        }
+        // Do the hashing the chain will need now, on a parser thread if there are any. The results are cached in the
+        // block.
+        block.getHash();
+        block.getScryptHash();
+        if (bytes.length > Block.HEADER_SIZE) {
+            for (Transaction tx : block.getTransactions())
+                tx.getHash();
         }
+        return block;
     }
 
     @Override
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A fixed size array of longs, all zero to start with, which is either an ordinary array on the heap or memory
+ * outside it. Off heap memory isn't scanned or moved by the garbage collector however much of it there is, and can be
+ * larger than the biggest Java array. It counts against -XX:MaxDirectMemorySize, which is the maximum heap size
+ * unless set, and is given back when the array is garbage collected.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public abstract class LongArray {
+    public static LongArray onHeap(long size) {
+        checkArgument(size >= 0 && size <= Integer.MAX_VALUE - 8, "Too big for the heap: %s", size);
+        return new HeapLongArray((int) size);
+    }
+
+    public static LongArray offHeap(long size) {
+        checkArgument(size >= 0);
+        return new DirectLongArray(size);
+    }
+
+    public abstract long size();
+
+    public abstract long get(long index);
+
+    public abstract void set(long index, long value);
+
+    public abstract boolean isOffHeap();
+
+    /** Returns the number of bytes of memory the array takes up. */
+    public long sizeInBytes() {
+        return size() * 8;
+    }
+
+    private static class HeapLongArray extends LongArray {
+        private final long[] array;
+
+        HeapLongArray(int size) {
+            array = new long[size];
+        }
+
+        @Override
+        public long size() {
+            return array.length;
+        }
+
+        @Override
+        public long get(long index) {
+            return array[(int) index];
+        }
+
+        @Override
+        public void set(long index, long value) {
+            array[(int) index] = value;
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return false;
+        }
+    }
+
+    private static class DirectLongArray extends LongArray {
+        // A direct buffer is indexed by int, so big arrays are split into chunks of 128MB.
+        private static final int CHUNK_BITS = 24;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+        private final LongBuffer[] chunks;
+        private final long size;
+
+        DirectLongArray(long size) {
+            this.size = size;
+            chunks = new LongBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long longs = Math.min(size - ((long) i << CHUNK_BITS), 1L << CHUNK_BITS);
+                // Direct buffers are zeroed when allocated.
+                chunks[i] = ByteBuffer.allocateDirect((int) longs * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long get(long index) {
+            return chunks[(int) (index >>> CHUNK_BITS)].get((int) (index & CHUNK_MASK));
+        }
+
+        @Override
+        public void set(long index, long value) {
+            chunks[(int) (index >>> CHUNK_BITS)].put((int) (index & CHUNK_MASK), value);
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import java.security.SecureRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The hash table behind the maps keyed by hashes and outpoints. Each slot is the key's longs followed by a long
+ * value, all in one {@link LongArray}, so there is no object per entry. Collisions are resolved by linear probing, and
+ * removal shifts the entries after it back rather than leaving tombstones, so lookups never get slower over time.</p>
+ *
+ * <p>Keys come from the network, so the slot a key starts probing from is a hash of all of it with a random seed chosen
+ * when the table is made. Nobody outside can work out which keys would pile up in one long probe chain.</p>
+ *
+ * <p>A slot whose key is all zeros is empty. The all zero key itself, which is a real hash, lives in an extra slot at
+ * the end of the table. Subclasses set {@link #key} and then call {@link #find()}, {@link #insert()} or
+ * {@link #delete()}.</p>
+ */
+abstract class OpenHashTable {
+    private static final long MIN_CAPACITY = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int keyWidth;
+    private final int stride;
+    private final boolean offHeap;
+    // Secret that makes the home slot of a key unpredictable to whoever chose it.
+    private final long seed;
+    // The key of the current operation. Tables aren't thread safe, so one is enough.
+    protected final long[] key;
+    private LongArray slots;
+    private long capacity;
+    private long mask;
+    private long size;
+    private boolean hasZeroKey;
+
+    OpenHashTable(int keyWidth, long expectedSize, boolean offHeap) {
+        checkArgument(expectedSize >= 0);
+        this.keyWidth = keyWidth;
+        this.stride = keyWidth + 1;
+        this.offHeap = offHeap;
+        this.key = new long[keyWidth];
+        this.seed = random.nextLong();
+        capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity *= 2;
+        mask = capacity - 1;
+        slots = allocate(capacity);
+    }
+
+    private LongArray allocate(long capacity) {
+        long longs = (capacity + 1) * stride;
+        return offHeap ? LongArray.offHeap(longs) : LongArray.onHeap(longs);
+    }
+
+    /** Returns the number of entries. */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** Returns the number of bytes the table takes up, on or off the heap. */
+    public long sizeInBytes() {
+        return slots.sizeInBytes();
+    }
+
+    /** Removes every entry, keeping the memory allocated. */
+    public void clear() {
+        for (long i = 0; i < (capacity + 1) * stride; i++)
+            slots.set(i, 0);
+        for (long slot = 0; slot <= capacity; slot++)
+            cleared(slot);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /** Returns the slot holding {@link #key}, or -1. */
+    protected final long find() {
+        if (isZeroKey())
+            return hasZeroKey ? capacity : -1;
+        for (long slot = home(); ; slot = (slot + 1) & mask) {
+            if (isEmpty(slots, slot))
+                return -1;
+            if (matches(slot))
+                return slot;
+        }
+    }
+
+    /**
+     * Returns the slot holding {@link #key}, adding it with a value of zero if it isn't there. A slot that was just
+     * added is returned as -1 - slot.
+     */
+    protected final long insert() {
+        if (isZeroKey()) {
+            if (hasZeroKey)
+                return capacity;
+            hasZeroKey = true;
+            size++;
+            return -1 - capacity;
+        }
+        if (size + 1 > capacity * 3 / 4)
+            resize(capacity * 2);
+        long slot;
+        for (slot = home(); !isEmpty(slots, slot); slot = (slot + 1) & mask) {
+            if (matches(slot))
+                return slot;
+        }
+        long base = slot * stride;
+        for (int i = 0; i < keyWidth; i++)
+            slots.set(base + i, key[i]);
+        size++;
+        return -1 - slot;
+    }
+
+    /** Removes {@link #key}, returning whether it was there. */
+    protected final boolean delete() {
+        long slot = find();
+        if (slot < 0)
+            return false;
+        size--;
+        if (slot == capacity) {
+            hasZeroKey = false;
+            slots.set(capacity * stride + keyWidth, 0);
+            cleared(capacity);
+            return true;
+        }
+        // Move back any entry after the hole that would otherwise no longer be found from its home slot.
+        long hole = slot;
+        for (long next = (hole + 1) & mask; !isEmpty(slots, next); next = (next + 1) & mask) {
+            long home = home(slots, next);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copy(slots, next, slots, hole);
+                moved(next, hole);
+                hole = next;
+            }
+        }
+        for (int i = 0; i < stride; i++)
+            slots.set(hole * stride + i, 0);
+        cleared(hole);
+        return true;
+    }
+
+    protected final long value(long slot) {
+        return slots.get(slot * stride + keyWidth);
+    }
+
+    protected final void setValue(long slot, long value) {
+        slots.set(slot * stride + keyWidth, value);
+    }
+
+    /** Returns the highest slot number, which is where the all zero key lives. */
+    protected final long lastSlot() {
+        return capacity;
+    }
+
+    /** Called when an entry moves from one slot to another, or into a new table during a resize. */
+    protected void moved(long from, long to) {
+    }
+
+    /** Called when a slot is emptied. */
+    protected void cleared(long slot) {
+    }
+
+    /** Called before a resize, which is followed by a {@link #moved(long, long)} for every entry. */
+    protected void resizing(long newCapacity) {
+    }
+
+    /** Called after a resize. */
+    protected void resized() {
+    }
+
+    private void resize(long newCapacity) {
+        LongArray old = slots;
+        long oldCapacity = capacity;
+        LongArray table = allocate(newCapacity);
+        resizing(newCapacity);
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            if (isEmpty(old, slot))
+                continue;
+            long to = home(old, slot);
+            while (!isEmpty(table, to))
+                to = (to + 1) & mask;
+            copy(old, slot, table, to);
+            moved(slot, to);
+        }
+        // The zero key keeps its place at the end.
+        if (hasZeroKey) {
+            table.set(newCapacity * stride + keyWidth, old.get(oldCapacity * stride + keyWidth));
+            moved(oldCapacity, newCapacity);
+        }
+        slots = table;
+        resized();
+    }
+
+    private void copy(LongArray from, long fromSlot, LongArray to, long toSlot) {
+        for (int i = 0; i < stride; i++)
+            to.set(toSlot * stride + i, from.get(fromSlot * stride + i));
+    }
+
+    private boolean isZeroKey() {
+        for (int i = 0; i < keyWidth; i++)
+            if (key[i] != 0)
+                return false;
+        return true;
+    }
+
+    private boolean isEmpty(LongArray table, long slot) {
+        long base = slot * stride;
+        for (int i = keyWidth - 1; i >= 0; i--)
+            if (table.get(base + i) != 0)
+                return false;
+        return true;
+    }
+
+    private boolean matches(long slot) {
+        long base = slot * stride;
+        // The last long first, as for outpoints it's the index, which is all that tells the outputs of one
+        // transaction apart.
+        for (int i = keyWidth - 1; i >= 0; i--)
+            if (slots.get(base + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private long home() {
+        long h = seed;
+        for (int i = 0; i < keyWidth; i++)
+            h = mix(h, key[i]);
+        return finish(h);
+    }
+
+    private long home(LongArray table, long slot) {
+        long base = slot * stride;
+        long h = seed;
+        for (int i = 0; i < keyWidth; i++)
+            h = mix(h, table.get(base + i));
+        return finish(h);
+    }
+
+    // Every long of the key goes in, as one that is the same for many keys can be found by grinding hashes, and the
+    // outpoints of one transaction share all but their index.
+    private static long mix(long h, long k) {
+        h ^= k * 0x9E3779B97F4A7C15L;
+        return Long.rotateLeft(h, 31) * 0xBF58476D1CE4E5B9L;
+    }
+
+    // The finalizer of MurmurHash3, so that every bit of the seed and the key affects the bits of the slot.
+    private long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h & mask;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import com.google.colchestercoin.core.HashKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.core.TransactionOutPoint;
+
+/**
+ * <p>A map from transaction outpoints, a hash and an output index, to longs, stored in one array of longs at 48 bytes
+ * an entry plus free space. Suits indexes of unspent outputs, where the long is where the output is kept. The array
+ * can be kept off the heap, see {@link LongArray}.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public class OutPointLongMap extends OpenHashTable {
+    // Set alongside the index, so no key is ever all zeros and so mistaken for an empty slot.
+    private static final long PRESENT = 1L << 32;
+
+    public OutPointLongMap() {
+        this(0, false);
+    }
+
+    /**
+     * Creates a map with room for the given number of entries before it has to grow, on the heap or off it.
+     */
+    public OutPointLongMap(long expectedSize, boolean offHeap) {
+        super(5, expectedSize, offHeap);
+    }
+
+    private void setKey(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        key[0] = HashKey.readLong(bytes, 0);
+        key[1] = HashKey.readLong(bytes, 8);
+        key[2] = HashKey.readLong(bytes, 16);
+        key[3] = HashKey.readLong(bytes, 24);
+        key[4] = (index & 0xFFFFFFFFL) | PRESENT;
+    }
+
+    public boolean containsKey(Sha256Hash hash, long index) {
+        setKey(hash, index);
+        return find() >= 0;
+    }
+
+    public boolean containsKey(TransactionOutPoint outPoint) {
+        return containsKey(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    /** Returns the value for the given output, or defaultValue if there isn't one. */
+    public long get(Sha256Hash hash, long index, long defaultValue) {
+        setKey(hash, index);
+        long slot = find();
+        return slot < 0 ? defaultValue : value(slot);
+    }
+
+    public long get(TransactionOutPoint outPoint, long defaultValue) {
+        return get(outPoint.getHash(), outPoint.getIndex(), defaultValue);
+    }
+
+    public void put(Sha256Hash hash, long index, long value) {
+        setKey(hash, index);
+        long slot = insert();
+        setValue(slot < 0 ? -1 - slot : slot, value);
+    }
+
+    public void put(TransactionOutPoint outPoint, long value) {
+        put(outPoint.getHash(), outPoint.getIndex(), value);
+    }
+
+    /** Removes the given output, returning whether it was there. */
+    public boolean remove(Sha256Hash hash, long index) {
+        setKey(hash, index);
+        return delete();
+    }
+
+    public boolean remove(TransactionOutPoint outPoint) {
+        return remove(outPoint.getHash(), outPoint.getIndex());
+    }
+}
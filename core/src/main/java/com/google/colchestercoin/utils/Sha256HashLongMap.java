@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import com.google.colchestercoin.core.HashKey;
+import com.google.colchestercoin.core.Sha256Hash;
+
+/**
+ * <p>A map from hashes to longs that stores both in one array of longs, 40 bytes an entry plus free space, instead
+ * of a {@link Sha256Hash}, a boxed Long and a map entry for each, which is around 150 bytes in a HashMap. The array
+ * can be kept off the heap, see {@link LongArray}. Keys can be looked up straight from the bytes of a message without
+ * making a Sha256Hash first.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public class Sha256HashLongMap extends OpenHashTable {
+    public Sha256HashLongMap() {
+        this(0, false);
+    }
+
+    /**
+     * Creates a map with room for the given number of entries before it has to grow, on the heap or off it.
+     */
+    public Sha256HashLongMap(long expectedSize, boolean offHeap) {
+        super(4, expectedSize, offHeap);
+    }
+
+    private void setKey(byte[] bytes, int offset) {
+        key[0] = HashKey.readLong(bytes, offset);
+        key[1] = HashKey.readLong(bytes, offset + 8);
+        key[2] = HashKey.readLong(bytes, offset + 16);
+        key[3] = HashKey.readLong(bytes, offset + 24);
+    }
+
+    public boolean containsKey(Sha256Hash hash) {
+        setKey(hash.getBytes(), 0);
+        return find() >= 0;
+    }
+
+    /** Returns the value for the given hash, or defaultValue if there isn't one. */
+    public long get(Sha256Hash hash, long defaultValue) {
+        return get(hash.getBytes(), 0, defaultValue);
+    }
+
+    /** Returns the value for the hash in the 32 bytes at the given offset, or defaultValue if there isn't one. */
+    public long get(byte[] bytes, int offset, long defaultValue) {
+        setKey(bytes, offset);
+        long slot = find();
+        return slot < 0 ? defaultValue : value(slot);
+    }
+
+    public void put(Sha256Hash hash, long value) {
+        setKey(hash.getBytes(), 0);
+        long slot = insert();
+        setValue(slot < 0 ? -1 - slot : slot, value);
+    }
+
+    /** Removes the given hash, returning whether it was there. */
+    public boolean remove(Sha256Hash hash) {
+        setKey(hash.getBytes(), 0);
+        return delete();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import com.google.colchestercoin.core.HashKey;
+import com.google.colchestercoin.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A map from hashes to objects that keeps the hashes as longs in one array, rather than a {@link Sha256Hash} and a
+ * map entry for every value, saving around 90 bytes an entry over a HashMap. Values can't be null.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public class Sha256HashMap<V> extends OpenHashTable {
+    private Object[] values;
+    // Only while resizing.
+    private Object[] newValues;
+
+    public Sha256HashMap() {
+        this(0);
+    }
+
+    /** Creates a map with room for the given number of entries before it has to grow. */
+    public Sha256HashMap(long expectedSize) {
+        super(4, expectedSize, false);
+        values = new Object[(int) lastSlot() + 1];
+    }
+
+    private void setKey(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        key[0] = HashKey.readLong(bytes, 0);
+        key[1] = HashKey.readLong(bytes, 8);
+        key[2] = HashKey.readLong(bytes, 16);
+        key[3] = HashKey.readLong(bytes, 24);
+    }
+
+    public boolean containsKey(Sha256Hash hash) {
+        setKey(hash);
+        return find() >= 0;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(Sha256Hash hash) {
+        setKey(hash);
+        long slot = find();
+        return slot < 0 ? null : (V) values[(int) slot];
+    }
+
+    /** Sets the value for the given hash, returning the previous one or null. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V put(Sha256Hash hash, V value) {
+        checkNotNull(value);
+        setKey(hash);
+        long slot = insert();
+        if (slot < 0) {
+            values[(int) (-1 - slot)] = value;
+            return null;
+        }
+        V previous = (V) values[(int) slot];
+        values[(int) slot] = value;
+        return previous;
+    }
+
+    /** Removes the given hash, returning its value or null if it wasn't there. */
+    @Nullable
+    public V remove(Sha256Hash hash) {
+        V value = get(hash);
+        if (value != null)
+            delete();
+        return value;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        // Assuming compressed references.
+        return super.sizeInBytes() + values.length * 4L;
+    }
+
+    @Override
+    protected void moved(long from, long to) {
+        if (newValues != null)
+            newValues[(int) to] = values[(int) from];
+        else
+            values[(int) to] = values[(int) from];
+    }
+
+    @Override
+    protected void cleared(long slot) {
+        values[(int) slot] = null;
+    }
+
+    @Override
+    protected void resizing(long newCapacity) {
+        newValues = new Object[(int) newCapacity + 1];
+    }
+
+    @Override
+    protected void resized() {
+        values = newValues;
+        newValues = null;
+    }
+}
@@ -19,19 +19,23 @@ package com.google.colchestercoin.utils;
 import com.google.common.util.concurrent.Callables;
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Various threading related utilities. Provides a wrapper around explicit lock creation that lets you control whether
  * bitcoinj performs cycle detection or not. Cycle detection is useful to detect bugs but comes with a small cost.
- * Also provides a worker thread that is designed for event listeners to be dispatched on.
+ * Also provides a worker thread that is designed for event listeners to be dispatched on, and the pool of threads that
+ * CPU bound work is spread across.
  */
 public class Threading {
     /**
@@ -84,6 +88,55 @@ public class Threading {
     @Nullable
     public static volatile Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
+    // The pool returned by getCpuPool(), made when it is first asked for unless one was set before that.
+    private static ExecutorService cpuPool;
+
+    /**
+     * Returns the executor that CPU bound work is spread across: parsing block files, checking the proof of work of
+     * headers and verifying scripts and batches of signatures, and hashing the Merkle trees of big blocks. Unless
+     * another was set with {@link #setCpuPool(ExecutorService)}, it is a pool with a daemon thread for each core.
+     */
+    public static synchronized ExecutorService getCpuPool() {
+        if (cpuPool == null) {
+            cpuPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                    Thread t = new Thread(runnable);
+                    synchronized (this) {
+                        t.setName("bitcoinj worker " + count++);
+                    }
+                    t.setDaemon(true);
+                    t.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+                    return t;
+                }
+            });
+        }
+        return cpuPool;
+    }
+
+    /**
+     * Sets the executor that {@link #getCpuPool()} returns, for example to share threads with the rest of an
+     * application or to keep some cores free. It affects work started after the call. The old pool isn't shut down.
+     */
+    public static synchronized void setCpuPool(ExecutorService pool) {
+        cpuPool = checkNotNull(pool);
+    }
+
+    /**
+     * Waits for tasks that were handed to an executor to finish. Any task no thread has started yet is run on this
+     * one rather than waited for, so code running on a thread of the {@link #getCpuPool() CPU pool} can hand work to
+     * the pool and wait for it without deadlocking, however few threads the pool has.
+     *
+     * @throws ExecutionException with the exception thrown by the first task that failed, in list order
+     */
+    public static void runOrAwait(List<? extends FutureTask<?>> tasks) throws ExecutionException {
+        for (FutureTask<?> task : tasks) {
+            task.run();
+            Uninterruptibles.getUninterruptibly(task);
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     static {
@@ -34,7 +34,7 @@ public class DefaultCoinSelector implements CoinSelector {
             // Only pick chain-included transactions, or transactions that are ours and pending.
             if (!shouldSelect(output.getParentTransaction())) continue;
             selected.add(output);
-            total += output.getValue().longValue();
+            total += output.getValueAsLong();
         }
         // Total may be lower than target here, if the given candidates were insufficient to create to requested
         // transaction.
@@ -52,14 +52,12 @@ public class DefaultCoinSelector implements CoinSelector {
                     depth1 = conf1.getDepthInBlocks();
                 if (conf2.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
                     depth2 = conf2.getDepthInBlocks();
-                BigInteger aValue = a.getValue();
-                BigInteger bValue = b.getValue();
-                BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
+                long aValue = a.getValueAsLong();
+                long bValue = b.getValueAsLong();
+                int c1 = compareProducts(bValue, depth2, aValue, depth1);
                 if (c1 != 0) return c1;
                 // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
+                int c2 = compareValues(bValue, aValue);
                 if (c2 != 0) return c2;
                 // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
                 BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
@@ -69,6 +67,19 @@ public class DefaultCoinSelector implements CoinSelector {
         });
     }
 
+    private static int compareValues(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // Compares a * x with b * y, for values and depths that aren't negative. The products are worked out in longs when
+    // they fit, as they do for all but the oldest and largest outputs.
+    private static int compareProducts(long a, int x, long b, int y) {
+        if ((x == 0 || a <= Long.MAX_VALUE / x) && (y == 0 || b <= Long.MAX_VALUE / y))
+            return compareValues(a * x, b * y);
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(x))
+                .compareTo(BigInteger.valueOf(b).multiply(BigInteger.valueOf(y)));
+    }
+
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
     protected boolean shouldSelect(Transaction tx) {
         return isSelectable(tx);
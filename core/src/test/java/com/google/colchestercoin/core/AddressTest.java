@@ -18,6 +18,7 @@ package com.google.colchestercoin.core;
 
 import com.google.colchestercoin.params.MainNetParams;
 import com.google.colchestercoin.params.TestNet3Params;
+import com.google.colchestercoin.params.UnitTestParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -116,4 +117,33 @@ public class AddressTest {
         Address b = new Address(testParams, TestNet3Params.get().p2shHeader, Hex.decode("18a0e827269b5211eb51a4af1b2fa69333efa722"));
         assertEquals("2MuVSxtfivPKJe93EC1Tb9UhJtGhsoWEHCe", b.toString());
     }
+
+    @Test
+    public void cache() throws Exception {
+        // Strings are made here from hashes, as the network headers are this chain's own.
+        String testAddress = new Address(testParams, Hex.decode("fda79a24e50ff70ff42f7d89585da5bd19d9e5cc")).toString();
+        String otherAddress = new Address(UnitTestParams.get(), Hex.decode("4a22c3c4cbb31e4d03b15550636762bda0baf85a")).toString();
+        AddressCache cache = new AddressCache(testParams, 2);
+        Address a = cache.parse(testAddress);
+        assertEquals("fda79a24e50ff70ff42f7d89585da5bd19d9e5cc", Utils.bytesToHexString(a.getHash160()));
+        assertSame(a, cache.parse(testAddress));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        // Bad strings and other networks' addresses throw as the constructor does, and aren't remembered.
+        char last = testAddress.charAt(testAddress.length() - 1);
+        try {
+            cache.parse(testAddress.substring(0, testAddress.length() - 1) + (last == 'z' ? 'y' : 'z'));
+            fail();
+        } catch (AddressFormatException e) {
+            // Expected.
+        }
+        try {
+            cache.parse(otherAddress);
+            fail();
+        } catch (WrongNetworkException e) {
+            // Expected.
+        }
+        assertEquals(1, cache.size());
+        assertEquals(testAddress, a.toString());
+    }
 }
@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Random;
 
 public class Base58Test extends TestCase {
     @Test
@@ -88,4 +89,52 @@ public class Base58Test extends TestCase {
         byte[] input = Base58.decode("129");
         assertEquals(new BigInteger(1, input), Base58.decodeToBigInteger("129"));
     }
+
+    // The straightforward conversion through BigInteger, to check the limb arithmetic against.
+    private static String slowEncode(byte[] input) {
+        StringBuilder s = new StringBuilder();
+        BigInteger n = new BigInteger(1, input);
+        BigInteger base = BigInteger.valueOf(58);
+        while (n.signum() > 0) {
+            BigInteger[] qr = n.divideAndRemainder(base);
+            s.append(Base58.ALPHABET[qr[1].intValue()]);
+            n = qr[0];
+        }
+        for (int i = 0; i < input.length && input[i] == 0; i++)
+            s.append(Base58.ALPHABET[0]);
+        return s.reverse().toString();
+    }
+
+    @Test
+    public void testRandomRoundTrips() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[random.nextInt(80)];
+            random.nextBytes(bytes);
+            // Some leading zeroes, and some runs of 0xFF to push the carries.
+            for (int j = 0; j < bytes.length && random.nextInt(4) == 0; j++)
+                bytes[j] = 0;
+            if (i % 5 == 0)
+                Arrays.fill(bytes, bytes.length / 2, bytes.length, (byte) 0xFF);
+            String encoded = Base58.encode(bytes);
+            assertEquals(slowEncode(bytes), encoded);
+            assertTrue(Arrays.equals(bytes, Base58.decode(encoded)));
+        }
+    }
+
+    @Test
+    public void testDecodeCheckedRejectsEveryChangedDigit() throws Exception {
+        String good = "93VYUMzRG9DdbRP72uQXjaWibbQwygnvaCu9DumcqDjGybD864T";
+        byte[] expected = Base58.decodeChecked(good);
+        assertEquals(Base58.decode(good).length - 4, expected.length);
+        for (int i = 0; i < good.length(); i++) {
+            char c = good.charAt(i) == 'z' ? 'y' : 'z';
+            try {
+                Base58.decodeChecked(good.substring(0, i) + c + good.substring(i + 1));
+                fail();
+            } catch (AddressFormatException e) {
+                // expected
+            }
+        }
+    }
 }
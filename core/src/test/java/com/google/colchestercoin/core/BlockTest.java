@@ -151,6 +151,29 @@ public class BlockTest {
         // the bytestreams are the same! A true "deep equals" is not implemented for Transaction. The primary purpose
         // of this test is to ensure no errors occur during the Java serialization/deserialization process.
         assertEquals(tx, tx2);
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            assertEquals(tx.getOutput(i).getValue(), tx2.getOutput(i).getValue());
+            assertEquals(tx.getOutput(i).getValueAsLong(), tx2.getOutput(i).getValueAsLong());
+        }
+    }
+
+    @Test
+    public void testOutputValuesThatOverflow() throws Exception {
+        Block block = new Block(params, blockBytes);
+        Transaction tx = block.transactions.get(1);
+        tx.verify();
+        // Two outputs whose values add up to more than a long holds must not wrap around to a total that passes.
+        Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+        copy.addOutput(Utils.COIN, new ECKey());
+        copy.getOutput(0).setValue(BigInteger.valueOf(Long.MAX_VALUE));
+        copy.getOutput(1).setValue(BigInteger.valueOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, copy.getOutput(0).getValueAsLong());
+        try {
+            copy.verify();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
     }
     
     @Test
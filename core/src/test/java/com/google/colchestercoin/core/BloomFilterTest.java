@@ -4,7 +4,10 @@ import com.google.colchestercoin.params.MainNetParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -47,6 +50,59 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(Hex.decode("03ce4299050000000100008002"), filter.bitcoinSerialize()));
     }
 
+    @Test
+    public void batchInsert() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 2147483649L);
+        List<byte[]> objects = Arrays.asList(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"),
+                Hex.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee"),
+                Hex.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c5"));
+        filter.insert(objects);
+        // Same value as insertSerializeTestWithTweak
+        assertTrue(Arrays.equals(Hex.decode("03ce4299050000000100008002"), filter.bitcoinSerialize()));
+        List<byte[]> checked = new ArrayList<byte[]>(objects);
+        checked.add(Hex.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        assertTrue(Arrays.equals(new boolean[] {true, true, true, false}, filter.contains(checked)));
+        assertTrue(filter.containsAny(checked));
+        assertFalse(filter.containsAny(checked.subList(3, 4)));
+    }
+
+    @Test
+    public void insertAgreesWithContains() {
+        // Insert works out all the hash functions in one pass, contains one at a time. Each object alone in a filter
+        // must match, for every length of tail.
+        Random random = new Random(1);
+        for (int length = 0; length < 40; length++) {
+            byte[] object = new byte[length];
+            random.nextBytes(object);
+            BloomFilter filter = new BloomFilter(100, 0.01, random.nextInt() & 0xFFFFFFFFL);
+            filter.insert(object);
+            assertTrue(filter.contains(object));
+        }
+    }
+
+    @Test
+    public void largeWallet() {
+        // Too many elements for the largest filter still gives one that doesn't match everything.
+        BloomFilter filter = new BloomFilter(1000 * 1000, 0.001, 0);
+        assertFalse(filter.contains(new byte[] {1, 2, 3}));
+        filter.insert(new byte[] {1, 2, 3});
+        assertTrue(filter.contains(new byte[] {1, 2, 3}));
+    }
+
+    @Test
+    public void emptyFilterRejected() throws Exception {
+        // No data, one hash function, no tweak, no flags.
+        try {
+            new BloomFilter(MainNetParams.get(), Hex.decode("00010000000000000000"));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        // Without hash functions it just matches everything.
+        BloomFilter filter = new BloomFilter(MainNetParams.get(), Hex.decode("00000000000000000000"));
+        assertTrue(filter.contains(new byte[] {1, 2, 3}));
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = MainNetParams.get();
@@ -113,6 +113,28 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        // Enough signatures to be spread over several threads, with a few bad ones in each share.
+        ECKey key = new ECKey();
+        List<ECKey.SignatureCheck> checks = Lists.newArrayList();
+        boolean[] expected = new boolean[200];
+        for (int i = 0; i < expected.length; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            ECKey.ECDSASignature sig = key.sign(hash);
+            expected[i] = i % 7 != 0;
+            if (i % 14 == 0)
+                checks.add(new ECKey.SignatureCheck(hash.getBytes(), sig, new ECKey().getPubKey()));
+            else if (i % 7 == 0)
+                checks.add(new ECKey.SignatureCheck(hash.getBytes(), sig, new byte[] {4, 1, 2, 3}));
+            else
+                checks.add(new ECKey.SignatureCheck(hash.getBytes(), sig, key.getPubKey()));
+        }
+        assertTrue(Arrays.equals(expected, ECKey.verifyBatch(checks)));
+        assertEquals(0, ECKey.verifyBatch(checks.subList(0, 0)).length);
+        assertTrue(ECKey.verifyBatch(checks.subList(1, 2))[0]);
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = Hex.decode(
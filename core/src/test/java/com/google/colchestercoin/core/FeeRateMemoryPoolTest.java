@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.store.MemoryBlockStore;
+import com.google.colchestercoin.store.MemoryFullPrunedBlockStore;
+import com.google.colchestercoin.utils.Threading;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FeeRateMemoryPoolTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Address address = new ECKey().toAddress(params);
+    private int nonce;
+
+    // Makes a transaction spending the given output, with an output of each value.
+    private Transaction spend(Sha256Hash hash, int index, long... values) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {(byte) nonce++},
+                new TransactionOutPoint(params, index, hash)));
+        for (long value : values)
+            tx.addOutput(BigInteger.valueOf(value), address);
+        return tx;
+    }
+
+    // Makes a transaction spending an output that isn't in the pool.
+    private Transaction root(long... values) {
+        return spend(Sha256Hash.create(new byte[] {(byte) nonce++}), 0, values);
+    }
+
+    @Test
+    public void fees() throws Exception {
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(1000000);
+        Transaction parent = root(50000, 20000);
+        Transaction child = spend(parent.getHash(), 1, 15000);
+        // The child arrives first, and its fee is only known once the parent is there.
+        assertTrue(pool.add(child, null));
+        assertNull(pool.getFee(child.getHash()));
+        assertTrue(pool.add(parent, BigInteger.valueOf(3000)));
+        assertEquals(BigInteger.valueOf(3000), pool.getFee(parent.getHash()));
+        assertEquals(BigInteger.valueOf(5000), pool.getFee(child.getHash()));
+        assertEquals(BigInteger.valueOf(5000 * 1000 / child.getMessageSize()), pool.getFeePerKb(child.getHash()));
+
+        assertEquals(ImmutableSet.of(parent.getHash()), pool.getAncestors(child.getHash()));
+        assertEquals(ImmutableSet.of(child.getHash()), pool.getDescendants(parent.getHash()));
+        assertEquals(parent.getMessageSize() + child.getMessageSize(), pool.getSizeInBytes());
+
+        // Once the parent is confirmed, the child keeps its fee.
+        assertTrue(pool.remove(parent.getHash()));
+        assertFalse(pool.contains(parent.getHash()));
+        assertEquals(BigInteger.valueOf(5000), pool.getFee(child.getHash()));
+        assertTrue(pool.getAncestors(child.getHash()).isEmpty());
+        assertEquals(child.getMessageSize(), pool.getSizeInBytes());
+    }
+
+    @Test
+    public void evictsLowestScore() throws Exception {
+        Transaction low = root(10000);
+        Transaction high = root(10000);
+        // A parent that pays little, with a child that pays a lot.
+        Transaction poorParent = root(100000);
+        Transaction richChild = spend(poorParent.getHash(), 0, 92000);
+        Transaction later = root(10000);
+        int size = low.getMessageSize();
+        for (Transaction tx : Arrays.asList(high, poorParent, richChild, later))
+            assertEquals(size, tx.getMessageSize());
+
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(4 * size + size / 2);
+        assertTrue(pool.add(low, BigInteger.valueOf(1000)));
+        assertTrue(pool.add(high, BigInteger.valueOf(5000)));
+        assertTrue(pool.add(poorParent, BigInteger.valueOf(100)));
+        assertTrue(pool.add(richChild, null));
+        assertEquals(Arrays.asList(richChild, high, poorParent, low), pool.getTransactionsByScore(10));
+
+        assertTrue(pool.add(later, BigInteger.valueOf(2000)));
+        assertFalse(pool.contains(low.getHash()));
+        assertTrue(pool.contains(poorParent.getHash()));
+        assertEquals(4, pool.getTransactionCount());
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(BigInteger.valueOf(8000), pool.getFee(richChild.getHash()));
+
+        // Something paying less than everything there doesn't stay, and a parent goes with its child.
+        assertFalse(pool.add(root(10000), BigInteger.ZERO));
+        assertTrue(pool.add(root(10000), BigInteger.valueOf(1000000)));
+        assertTrue(pool.add(root(10000), BigInteger.valueOf(1000000)));
+        assertFalse(pool.contains(later.getHash()));
+        assertFalse(pool.contains(poorParent.getHash()));
+        assertFalse(pool.contains(richChild.getHash()));
+        assertTrue(pool.contains(high.getHash()));
+        assertTrue(pool.getSizeInBytes() <= pool.getMaxBytes());
+    }
+
+    @Test
+    public void unknownFeesEvictedOldestFirst() throws Exception {
+        Transaction first = root(10000);
+        Transaction second = root(10000);
+        Transaction third = root(10000);
+        int size = first.getMessageSize();
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(3 * size + size / 2);
+        for (Transaction tx : Arrays.asList(first, second, third))
+            assertTrue(pool.add(tx, null));
+        assertTrue(pool.add(root(10000), null));
+        assertFalse(pool.contains(first.getHash()));
+        assertTrue(pool.add(root(10000), null));
+        assertFalse(pool.contains(second.getHash()));
+        assertTrue(pool.contains(third.getHash()));
+    }
+
+    @Test
+    public void confirmedTransactionsLeave() throws Exception {
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(1000000);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        pool.setBlockChain(chain);
+        Transaction inBlock = root(10000);
+        Transaction building = root(10000);
+        Transaction pending = root(10000);
+        for (Transaction tx : Arrays.asList(inBlock, building, pending))
+            assertTrue(pool.add(tx, null));
+        // A block including the transaction arrives.
+        Block block = params.getGenesisBlock().createNextBlock(address);
+        block.addTransaction(inBlock);
+        block.solve();
+        assertTrue(chain.add(block));
+        assertFalse(pool.contains(inBlock.getHash()));
+        // A wallet finds the transaction in the best chain.
+        building.getConfidence().setAppearedAtChainHeight(1);
+        building.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+        Threading.waitForUserCode();
+        assertFalse(pool.contains(building.getHash()));
+        assertFalse(pool.add(building, null));
+        assertTrue(pool.contains(pending.getHash()));
+    }
+
+    @Test
+    public void feesFromUnspentOutputs() throws Exception {
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(1000000);
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, 10);
+        pool.setBlockChain(new FullPrunedBlockChain(params, store));
+        Sha256Hash confirmed = Sha256Hash.create(new byte[] {1, 2, 3});
+        store.addUnspentTransactionOutput(new StoredTransactionOutput(confirmed, 1, 50000, 1, false, new byte[0]));
+        Transaction tx = spend(confirmed, 1, 45000);
+        assertTrue(pool.add(tx, null));
+        assertEquals(BigInteger.valueOf(5000), pool.getFee(tx.getHash()));
+        // Outputs that aren't there leave the fee unknown.
+        Transaction unknown = spend(confirmed, 2, 45000);
+        assertTrue(pool.add(unknown, null));
+        assertNull(pool.getFee(unknown.getHash()));
+    }
+
+    @Test
+    public void ancestorLimit() throws Exception {
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(1000000);
+        Transaction tx = root(100000);
+        assertTrue(pool.add(tx, BigInteger.ZERO));
+        for (int i = 0; i < FeeRateMemoryPool.MAX_ANCESTORS; i++) {
+            tx = spend(tx.getHash(), 0, 100000);
+            assertTrue(pool.add(tx, null));
+        }
+        assertFalse(pool.add(spend(tx.getHash(), 0, 100000), null));
+    }
+
+    @Test
+    public void seenTransactionsAreAdded() throws Exception {
+        FeeRateMemoryPool pool = new FeeRateMemoryPool(1000000);
+        Transaction tx = root(100000);
+        PeerAddress peer = new PeerAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}));
+        assertEquals(tx, pool.seen(tx, peer));
+        assertTrue(pool.contains(tx.getHash()));
+        assertEquals(1, pool.numBroadcastPeers(tx.getHash()));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilteredBlockServerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ECKey key;
+    private Block block;
+    private Transaction toKey, spend, unrelated, toAddress;
+    private FilteredBlockServer server;
+
+    private static Transaction tx(TransactionOutPoint spent) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1, 2, 3}, spent));
+        return tx;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        key = new ECKey();
+        ECKey other = new ECKey();
+        block = params.getGenesisBlock().createNextBlockWithCoinbase(other.getPubKey(), Utils.toNanoCoins(50, 0));
+        // Pays to the key, spends that, pays elsewhere, and pays to the address of the key.
+        toKey = tx(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {1})));
+        toKey.addOutput(BigInteger.valueOf(1000), key);
+        spend = tx(new TransactionOutPoint(params, 0, toKey));
+        spend.addOutput(BigInteger.valueOf(900), other);
+        unrelated = tx(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {2})));
+        unrelated.addOutput(BigInteger.valueOf(800), other);
+        toAddress = tx(new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {3})));
+        toAddress.addOutput(BigInteger.valueOf(700), key.toAddress(params));
+        for (Transaction tx : Arrays.asList(toKey, spend, unrelated, toAddress))
+            block.addTransaction(tx);
+        block.solve();
+        server = new FilteredBlockServer(params);
+        server.addBlock(block);
+    }
+
+    private List<Sha256Hash> serve(BloomFilter.BloomUpdate update, byte[] element) throws Exception {
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0, update);
+        filter.insert(element);
+        List<Message> messages = server.serve(block.getHash(), filter);
+        // Sent over the wire and checked the way a client does.
+        FilteredBlock filtered = new FilteredBlock(params, messages.get(0).bitcoinSerialize());
+        assertEquals(block.getHash(), filtered.getHash());
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(filtered.getTransactionHashes());
+        assertEquals(hashes.size(), messages.size() - 1);
+        for (int i = 1; i < messages.size(); i++) {
+            assertEquals(hashes.get(i - 1), ((Transaction) messages.get(i)).getHash());
+            assertTrue(filtered.provideTransaction((Transaction) messages.get(i)));
+        }
+        return hashes;
+    }
+
+    @Test
+    public void updatesFilter() throws Exception {
+        // Paying to the key puts the output in the filter, so spending it matches too.
+        assertEquals(Arrays.asList(toKey.getHash(), spend.getHash()),
+                serve(BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY, key.getPubKey()));
+        assertEquals(Arrays.asList(toKey.getHash(), spend.getHash()),
+                serve(BloomFilter.BloomUpdate.UPDATE_ALL, key.getPubKey()));
+        assertEquals(Arrays.asList(toKey.getHash()), serve(BloomFilter.BloomUpdate.UPDATE_NONE, key.getPubKey()));
+        // By the hash of the key in an address.
+        assertEquals(Arrays.asList(toAddress.getHash()),
+                serve(BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY, key.getPubKeyHash()));
+    }
+
+    @Test
+    public void matchesNothing() throws Exception {
+        assertEquals(0, serve(BloomFilter.BloomUpdate.UPDATE_ALL, new byte[] {4, 5, 6}).size());
+        BloomFilter all = new BloomFilter(10, 0.000001, 0);
+        all.setMatchAll();
+        assertEquals(block.getTransactions().size(), server.serve(block.getHash(), all).size() - 1);
+    }
+
+    // Sends the message over the wire to the server, as from the given peer.
+    private void receive(Peer peer, Message m) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(m, out);
+        assertNull(server.onPreMessageReceived(peer, serializer.deserialize(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void filterAddAndClear() throws Exception {
+        Peer peer = new Peer(params, null, new VersionMessage(params, 0), null);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, block.getHash()));
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0, BloomFilter.BloomUpdate.UPDATE_NONE);
+        filter.insert(new byte[] {4, 5, 6});
+        receive(peer, filter);
+        assertEquals(1, server.serve(peer, getdata).size());
+        // Adding the key to the filter makes the transaction paying to it match.
+        receive(peer, new FilterAddMessage(key.getPubKey()));
+        List<Message> messages = server.serve(peer, getdata);
+        assertEquals(2, messages.size());
+        assertEquals(toKey.getHash(), ((Transaction) messages.get(1)).getHash());
+        // Once the filter is cleared nothing is served until another is loaded.
+        receive(peer, new FilterClearMessage());
+        assertNull(server.getFilter(peer));
+        assertEquals(0, server.serve(peer, getdata).size());
+        receive(peer, new FilterAddMessage(key.getPubKey()));
+        assertNull(server.getFilter(peer));
+    }
+
+    @Test
+    public void emptyFilterLoadRejected() throws Exception {
+        // A filterload with no data but a hash function never reaches the server, as it would have no bits to map to.
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("filterload", new byte[] {0, 1, 0, 0, 0, 0, 0, 0, 0, 0}, out);
+        try {
+            serializer.deserialize(new ByteArrayInputStream(out.toByteArray()));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void headerOnlyBlocksSkipped() throws Exception {
+        Block next = block.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        server.onBlocksDownloaded(null, next.cloneAsHeader(), 0);
+        assertFalse(server.hasBlock(next.getHash()));
+        server.onBlocksDownloaded(null, next, 0);
+        assertTrue(server.hasBlock(next.getHash()));
+    }
+
+    @Test
+    public void unknownBlocks() throws Exception {
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0);
+        assertNull(server.serve(params.getGenesisBlock().getHash(), filter));
+        FilteredBlockServer small = new FilteredBlockServer(params, 1);
+        small.addBlock(block);
+        Block next = block.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        small.addBlock(next);
+        assertFalse(small.hasBlock(block.getHash()));
+        assertTrue(small.hasBlock(next.getHash()));
+        try {
+            small.addBlock(next.cloneAsHeader());
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
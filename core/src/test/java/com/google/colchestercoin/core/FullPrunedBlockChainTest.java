@@ -22,6 +22,7 @@ import com.google.colchestercoin.params.UnitTestParams;
 import com.google.colchestercoin.script.Script;
 import com.google.colchestercoin.store.FullPrunedBlockStore;
 import com.google.colchestercoin.store.MemoryFullPrunedBlockStore;
+import com.google.colchestercoin.store.OffHeapFullPrunedBlockStore;
 import com.google.colchestercoin.utils.BlockFileLoader;
 import com.google.colchestercoin.utils.BriefLogFormatter;
 import org.junit.Before;
@@ -31,7 +32,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -191,6 +195,145 @@ public class FullPrunedBlockChainTest {
         assertNull(out.get());
     }
     
+    // Builds blocks up to the first height where a coinbase can be spent, and at that height a block spending the
+    // first coinbase with an invalid script.
+    private List<Block> buildChainWithInvalidScript() throws Exception {
+        return buildChainWithInvalidScript(new ECKey());
+    }
+
+    private List<Block> buildChainWithInvalidScript(ECKey outKey) throws Exception {
+        List<Block> blocks = new ArrayList<Block>();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        TransactionInput input = t.addInput(spendableOutput);
+        input.setScriptBytes(new byte[]{});
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        blocks.add(rollingBlock);
+        return blocks;
+    }
+
+    @Test
+    public void offHeapStore() throws Exception {
+        OffHeapFullPrunedBlockStore offHeapStore = new OffHeapFullPrunedBlockStore(params, 10);
+        store = offHeapStore;
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        List<Block> blocks = buildChainWithInvalidScript(outKey);
+        Block bad = blocks.remove(blocks.size() - 1);
+        for (Block block : blocks)
+            assertTrue(chain.add(block));
+        long outputs = offHeapStore.getUnspentOutputCount();
+        Transaction coinbase = blocks.get(0).getTransactions().get(0);
+
+        // A block that fails is rolled back out of the store.
+        try {
+            chain.add(bad);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(outputs, offHeapStore.getUnspentOutputCount());
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+
+        // One that spends the output removes it.
+        Block good = blocks.get(blocks.size() - 1).createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t.addSignedInput(new TransactionOutPoint(params, 0, coinbase.getHash()), coinbase.getOutput(0).getScriptPubKey(),
+                outKey);
+        good.addTransaction(t);
+        good.solve();
+        assertTrue(chain.add(good));
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t.getHash(), 0));
+    }
+
+    @Test
+    public void bulkImport() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        List<Block> blocks = buildChainWithInvalidScript();
+        int last = blocks.size() - 1;
+
+        chain.beginBulkImport(null, 2);
+        for (Block block : blocks.subList(0, last))
+            assertTrue(chain.add(block));
+        assertEquals(last, chain.getBestChainHeight());
+        // Only whole batches have been committed.
+        assertEquals(last / 2 * 2, store.getVerifiedChainHead().getHeight());
+        assertEquals(last / 2, chain.getImportStatistics().getCommits());
+
+        // The scripts are still run, and a block that fails takes the blocks since the last commit with it.
+        try {
+            chain.add(blocks.get(last));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(last / 2 * 2, chain.getBestChainHeight());
+        assertEquals(last / 2 * 2, store.getVerifiedChainHead().getHeight());
+        assertEquals(last, chain.getImportStatistics().getBlocks());
+
+        for (Block block : blocks.subList(last / 2 * 2, last))
+            assertTrue(chain.add(block));
+        chain.endBulkImport();
+        assertEquals(last, store.getVerifiedChainHead().getHeight());
+        assertEquals(chain.getChainHead(), store.getVerifiedChainHead());
+    }
+
+    @Test
+    public void bulkImportTrustedCheckpoint() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        List<Block> blocks = buildChainWithInvalidScript();
+        Block top = blocks.get(blocks.size() - 1);
+        StoredBlock checkpoint = new StoredBlock(top.cloneAsHeader(), BigInteger.ONE, blocks.size());
+
+        // Scripts aren't run up to the checkpoint, and nothing is committed until it has matched.
+        chain.beginBulkImport(checkpoint, 2);
+        for (Block block : blocks.subList(0, blocks.size() - 1))
+            assertTrue(chain.add(block));
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+        assertTrue(chain.add(top));
+        assertEquals(top.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        chain.endBulkImport();
+        assertEquals(blocks.size(), chain.getImportStatistics().getBlocks());
+        assertEquals(1, chain.getImportStatistics().getCommits());
+
+        // Ending the import before the checkpoint throws away the blocks whose scripts weren't run.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.beginBulkImport(checkpoint, 2);
+        for (Block block : blocks.subList(0, blocks.size() - 1))
+            assertTrue(chain.add(block));
+        chain.endBulkImport();
+        assertEquals(0, chain.getBestChainHeight());
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+
+        // A different block at the checkpoint's height is rejected.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.beginBulkImport(checkpoint, 2);
+        for (Block block : blocks.subList(0, blocks.size() - 1))
+            assertTrue(chain.add(block));
+        try {
+            chain.add(blocks.get(blocks.size() - 2).createNextBlock(null));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
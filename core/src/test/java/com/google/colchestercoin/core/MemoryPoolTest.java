@@ -23,8 +23,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class MemoryPoolTest {
@@ -75,4 +79,76 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void bounded() throws Exception {
+        MemoryPool pool = new MemoryPool(2);
+        pool.seen(tx1.getHash(), address1);
+        pool.seen(Sha256Hash.create(new byte[] {1}), address1);
+        pool.seen(Sha256Hash.create(new byte[] {2}), address1);
+        // The oldest is forgotten.
+        assertFalse(pool.maybeWasSeen(tx1.getHash()));
+        assertTrue(pool.maybeWasSeen(Sha256Hash.create(new byte[] {1})));
+        assertTrue(pool.maybeWasSeen(Sha256Hash.create(new byte[] {2})));
+    }
+
+    @Test
+    public void boundedAfterCollection() throws Exception {
+        MemoryPool pool = new MemoryPool(2);
+        Sha256Hash hash1 = Sha256Hash.create(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[] {2});
+        pool.seen(hash1, address1);
+        // A downloaded transaction nothing keeps hold of is forgotten once it is collected, and no longer counts.
+        Sha256Hash collected = pool.intern(TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0),
+                new ECKey().toAddress(params))).getHash();
+        for (int i = 0; i < 100 && pool.maybeWasSeen(collected); i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.numBroadcastPeers(collected);
+        }
+        assertFalse(pool.maybeWasSeen(collected));
+        pool.seen(hash2, address1);
+        assertTrue(pool.maybeWasSeen(hash1));
+        assertTrue(pool.maybeWasSeen(hash2));
+        pool.seen(tx1.getHash(), address1);
+        assertFalse(pool.maybeWasSeen(hash1));
+        assertTrue(pool.maybeWasSeen(hash2));
+        assertTrue(pool.maybeWasSeen(tx1.getHash()));
+    }
+
+    @Test
+    public void concurrentRelay() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        final PeerAddress[] peers = new PeerAddress[16];
+        for (int i = 0; i < peers.length; i++)
+            peers[i] = new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i}));
+        // Each peer announces the transaction and half of them send it too, all at once.
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < peers.length; i++) {
+            final int peer = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    pool.seen(tx1.getHash(), peers[peer]);
+                    if (peer % 2 == 0)
+                        pool.seen(new Transaction(params, tx1.bitcoinSerialize()), peers[peer]);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        Transaction interned = pool.get(tx1.getHash());
+        assertEquals(peers.length, interned.getConfidence().numBroadcastPeers());
+        assertEquals(peers.length, pool.numBroadcastPeers(tx1.getHash()));
+        assertEquals(interned, pool.intern(tx2));
+    }
 }
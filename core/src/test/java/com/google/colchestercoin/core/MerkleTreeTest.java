@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    // The tree worked out one level at a time, a new list per level, as Block used to.
+    private static byte[] naiveRoot(List<byte[]> level) {
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Utils.doubleDigestTwoBuffers(level.get(i), 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    private static List<byte[]> leaves(int count) {
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++)
+            leaves.add(Utils.singleDigest(new byte[] {(byte) i, (byte) (i >> 8)}));
+        return leaves;
+    }
+
+    private static byte[] flatten(List<byte[]> hashes) {
+        byte[] flat = new byte[hashes.size() * 32];
+        for (int i = 0; i < hashes.size(); i++)
+            System.arraycopy(hashes.get(i), 0, flat, i * 32, 32);
+        return flat;
+    }
+
+    @Test
+    public void matchesNaiveTree() throws Exception {
+        for (int count = 1; count <= 70; count++) {
+            List<byte[]> leaves = leaves(count);
+            byte[] flat = flatten(leaves);
+            MerkleTree.calculateRoot(flat, count, 1);
+            assertArrayEquals("count " + count, naiveRoot(leaves), copyOfRoot(flat));
+        }
+    }
+
+    @Test
+    public void parallelLevels() throws Exception {
+        // Enough leaves for the lower levels to be split between threads, with odd levels along the way.
+        for (int count : new int[] {1023, 1024, 1025, 4097}) {
+            List<byte[]> leaves = leaves(count);
+            byte[] expected = naiveRoot(leaves);
+            for (int threads : new int[] {1, 2, 3, 4}) {
+                byte[] flat = flatten(leaves);
+                MerkleTree.calculateRoot(flat, count, threads);
+                assertArrayEquals(count + " leaves, " + threads + " threads", expected, copyOfRoot(flat));
+            }
+        }
+    }
+
+    @Test
+    public void transactions() throws Exception {
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        for (int i = 0; i < 300; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addInput(new TransactionInput(params, tx, new byte[] {(byte) i},
+                    new TransactionOutPoint(params, i, Sha256Hash.ZERO_HASH)));
+            tx.addOutput(BigInteger.valueOf(1000 + i), key);
+            block.addTransaction(tx);
+        }
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        for (Transaction tx : block.getTransactions())
+            leaves.add(Utils.reverseBytes(tx.getHash().getBytes()));
+        Sha256Hash expected = new Sha256Hash(Utils.reverseBytes(naiveRoot(leaves)));
+        assertEquals(expected, block.getMerkleRoot());
+        assertEquals(expected, MerkleTree.calculateRoot(block.getTransactions(), 4));
+    }
+
+    @Test
+    public void partialMerkleTree() throws Exception {
+        for (int count : new int[] {1, 2, 3, 7, 8, 9, 100, 1000}) {
+            List<byte[]> leaves = leaves(count);
+            Sha256Hash root = new Sha256Hash(Utils.reverseBytes(naiveRoot(leaves)));
+            // Nothing, the first, the last, every third, and everything.
+            for (int every : new int[] {0, count + 1, -1, 3, 1}) {
+                boolean[] matched = new boolean[count];
+                List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+                for (int i = 0; i < count; i++) {
+                    matched[i] = every > 0 ? i % every == 0 : every < 0 && i == count - 1;
+                    if (matched[i])
+                        expected.add(new Sha256Hash(Utils.reverseBytes(leaves.get(i))));
+                }
+                byte[] bytes = encode(leaves, matched);
+                List<Sha256Hash> txids = new ArrayList<Sha256Hash>();
+                for (byte[] leaf : leaves)
+                    txids.add(new Sha256Hash(Utils.reverseBytes(leaf)));
+                assertArrayEquals(bytes, PartialMerkleTree.buildFromLeaves(params, matched, txids).bitcoinSerialize());
+                PartialMerkleTree tree = new PartialMerkleTree(params, bytes, 0);
+                List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+                assertEquals(root, tree.getTxnHashAndMerkleRoot(hashes));
+                assertEquals(expected, hashes);
+                assertArrayEquals(bytes, tree.bitcoinSerialize());
+            }
+        }
+    }
+
+    @Test
+    public void partialMerkleTreeLeftovers() throws Exception {
+        List<byte[]> leaves = leaves(5);
+        byte[] bytes = encode(leaves, new boolean[] {false, true, false, false, false});
+        // One more hash than the tree uses.
+        byte[] longer = new byte[bytes.length + 32];
+        System.arraycopy(bytes, 0, longer, 0, 4);
+        longer[4] = (byte) (bytes[4] + 1);
+        System.arraycopy(bytes, 5, longer, 5 + 32, bytes.length - 5);
+        try {
+            new PartialMerkleTree(params, longer, 0).getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // More hashes than the message holds.
+        bytes[4] = 100;
+        try {
+            new PartialMerkleTree(params, bytes, 0);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    // Encodes a partial tree as TraverseAndBuild in the reference client does.
+    private static byte[] encode(List<byte[]> leaves, boolean[] matched) throws Exception {
+        int height = 0;
+        while (width(leaves.size(), height) > 1)
+            height++;
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        List<Boolean> bits = new ArrayList<Boolean>();
+        build(leaves, matched, height, 0, hashes, bits);
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(leaves.size(), stream);
+        stream.write(new VarInt(hashes.size()).encode());
+        for (byte[] hash : hashes)
+            stream.write(hash);
+        byte[] flags = new byte[(bits.size() + 7) / 8];
+        for (int i = 0; i < bits.size(); i++) {
+            if (bits.get(i))
+                Utils.setBitLE(flags, i);
+        }
+        stream.write(new VarInt(flags.length).encode());
+        stream.write(flags);
+        return stream.toByteArray();
+    }
+
+    private static void build(List<byte[]> leaves, boolean[] matched, int height, int pos, List<byte[]> hashes,
+                              List<Boolean> bits) {
+        boolean parentOfMatch = false;
+        for (int i = pos << height; i < (pos + 1) << height && i < leaves.size(); i++)
+            parentOfMatch |= matched[i];
+        bits.add(parentOfMatch);
+        if (height == 0 || !parentOfMatch) {
+            hashes.add(subtreeHash(leaves, height, pos));
+        } else {
+            build(leaves, matched, height - 1, pos * 2, hashes, bits);
+            if (pos * 2 + 1 < width(leaves.size(), height - 1))
+                build(leaves, matched, height - 1, pos * 2 + 1, hashes, bits);
+        }
+    }
+
+    private static byte[] subtreeHash(List<byte[]> leaves, int height, int pos) {
+        if (height == 0)
+            return leaves.get(pos);
+        byte[] left = subtreeHash(leaves, height - 1, pos * 2);
+        byte[] right = pos * 2 + 1 < width(leaves.size(), height - 1) ? subtreeHash(leaves, height - 1, pos * 2 + 1)
+                : left;
+        return Utils.doubleDigestTwoBuffers(left, 0, 32, right, 0, 32);
+    }
+
+    private static int width(int count, int height) {
+        return (count + (1 << height) - 1) >> height;
+    }
+
+    private static byte[] copyOfRoot(byte[] hashes) {
+        byte[] root = new byte[32];
+        System.arraycopy(hashes, 0, root, 0, 32);
+        return root;
+    }
+}
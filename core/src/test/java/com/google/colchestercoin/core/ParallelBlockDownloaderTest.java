@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.store.MemoryBlockStore;
+import com.google.colchestercoin.utils.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelBlockDownloaderTest extends TestWithPeerGroup {
+    // Stays below the difficulty transition interval of the unit test params.
+    private static final int CHAIN_LENGTH = 8;
+    private List<Block> blocks;
+    private Map<Sha256Hash, Block> blocksByHash;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+        super.setUp(new MemoryBlockStore(UnitTestParams.get()));
+        blocks = new ArrayList<Block>();
+        blocksByHash = new HashMap<Sha256Hash, Block>();
+        Block prev = blockChain.getChainHead().getHeader();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            Utils.rollMockClock(60);
+            prev = TestUtils.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            blocksByHash.put(prev.getHash(), prev);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        peerGroup.stopAndWait();
+    }
+
+    private FakeChannel connectPeerWithChain(int id) {
+        VersionMessage ver = new VersionMessage(params, CHAIN_LENGTH);
+        ver.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        return connectPeerWithoutFilter(id, ver);
+    }
+
+    private Block[] headers(int from, int to) {
+        Block[] headers = new Block[to - from];
+        for (int i = from; i < to; i++)
+            headers[i - from] = blocks.get(i).cloneAsHeader();
+        return headers;
+    }
+
+    private List<Block> requestedBlocks(FakeChannel p) {
+        List<Block> result = new ArrayList<Block>();
+        Object message;
+        while ((message = outbound(p)) != null) {
+            assertTrue(message.toString(), message instanceof GetDataMessage);
+            for (InventoryItem item : ((GetDataMessage) message).getItems()) {
+                assertEquals(InventoryItem.Type.Block, item.type);
+                result.add(blocksByHash.get(item.hash));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void downloadFromAllPeers() throws Exception {
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.startAndWait();
+        FakeChannel p1 = connectPeerWithChain(1);
+        FakeChannel p2 = connectPeerWithChain(2);
+        final int[] blocksLeft = new int[] { -1 };
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, int left) {
+                blocksLeft[0] = left;
+            }
+        });
+        ParallelBlockDownloader downloader = peerGroup.getParallelBlockDownloader();
+        assertNotNull(downloader);
+        assertNull(peerGroup.getDownloadPeer());
+
+        // Headers come first, from a single peer.
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        assertNull(outbound(p2));
+        inbound(p1, new HeadersMessage(params, headers(0, CHAIN_LENGTH)));
+
+        // Then the blocks are shared out between both peers.
+        List<Block> fromP1 = requestedBlocks(p1);
+        List<Block> fromP2 = requestedBlocks(p2);
+        assertEquals(CHAIN_LENGTH, fromP1.size() + fromP2.size());
+        assertEquals(fromP1.size(), fromP2.size());
+
+        // Peer 2 answers first, so its blocks have to wait for peer 1's before they can go into the chain.
+        for (Block block : fromP2)
+            inbound(p2, block);
+        assertEquals(0, blockChain.getBestChainHeight());
+        assertEquals(fromP2.size(), downloader.getBlocksBuffered());
+        for (Block block : fromP1)
+            inbound(p1, block);
+        assertEquals(CHAIN_LENGTH, blockChain.getBestChainHeight());
+        assertEquals(CHAIN_LENGTH, downloader.getBlocksDelivered());
+        assertEquals(0, blocksLeft[0]);
+        assertTrue(downloader.getFuture().isDone());
+
+        // Once caught up, a single download peer takes over as usual.
+        assertNull(peerGroup.getParallelBlockDownloader());
+        assertNotNull(peerGroup.getDownloadPeer());
+    }
+
+    @Test
+    public void stalledRequestsAreReassigned() throws Exception {
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.startAndWait();
+        FakeChannel p1 = connectPeerWithChain(1);
+        FakeChannel p2 = connectPeerWithChain(2);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        ParallelBlockDownloader downloader = peerGroup.getParallelBlockDownloader();
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, headers(0, CHAIN_LENGTH)));
+        List<Block> fromP1 = requestedBlocks(p1);
+        List<Block> fromP2 = requestedBlocks(p2);
+
+        // Peer 1 answers promptly but peer 2 never does, so only the first block can go into the chain.
+        for (Block block : fromP1)
+            inbound(p1, block);
+        assertEquals(1, blockChain.getBestChainHeight());
+        Utils.rollMockClock((int) (ParallelBlockDownloader.DEFAULT_STALL_TIMEOUT_MSEC / 1000) + 1);
+        downloader.checkForStalls();
+        assertEquals(fromP2.size(), downloader.getRequestsReassigned());
+        List<Block> retried = requestedBlocks(p1);
+        assertEquals(fromP2, retried);
+        assertNull(outbound(p2));
+        // A late answer from peer 2 for a request it lost is ignored.
+        inbound(p2, fromP2.get(0));
+        for (Block block : retried)
+            inbound(p1, block);
+        assertEquals(CHAIN_LENGTH, blockChain.getBestChainHeight());
+        assertTrue(downloader.getFuture().isDone());
+    }
+
+    @Test
+    public void peerDeathRequeues() throws Exception {
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.startAndWait();
+        FakeChannel p1 = connectPeerWithChain(1);
+        FakeChannel p2 = connectPeerWithChain(2);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        ParallelBlockDownloader downloader = peerGroup.getParallelBlockDownloader();
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, headers(0, CHAIN_LENGTH)));
+        List<Block> fromP1 = requestedBlocks(p1);
+        List<Block> fromP2 = requestedBlocks(p2);
+        closePeer(peerOf(p2));
+        assertEquals(fromP2, requestedBlocks(p1));
+        for (Block block : fromP1)
+            inbound(p1, block);
+        for (Block block : fromP2)
+            inbound(p1, block);
+        assertEquals(CHAIN_LENGTH, blockChain.getBestChainHeight());
+        assertTrue(downloader.getFuture().isDone());
+    }
+
+    @Test
+    public void headersFirstSkipsOldBlocks() throws Exception {
+        // Blocks from before the fast catchup time only go into the chain as headers, their bodies are never fetched.
+        final int firstBody = 5;
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.setFastCatchupTimeSecs(blocks.get(firstBody).getTimeSeconds());
+        peerGroup.startAndWait();
+        FakeChannel p1 = connectPeerWithChain(1);
+        FakeChannel p2 = connectPeerWithChain(2);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        ParallelBlockDownloader downloader = peerGroup.getParallelBlockDownloader();
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, headers(0, CHAIN_LENGTH)));
+        assertEquals(firstBody, blockChain.getBestChainHeight());
+        List<Block> fromP1 = requestedBlocks(p1);
+        List<Block> fromP2 = requestedBlocks(p2);
+        assertEquals(CHAIN_LENGTH - firstBody, fromP1.size() + fromP2.size());
+        assertFalse(fromP1.contains(blocks.get(firstBody - 1)) || fromP2.contains(blocks.get(firstBody - 1)));
+        for (Block block : fromP1)
+            inbound(p1, block);
+        for (Block block : fromP2)
+            inbound(p2, block);
+        assertEquals(CHAIN_LENGTH, blockChain.getBestChainHeight());
+        assertTrue(downloader.getFuture().isDone());
+    }
+
+    @Test
+    public void badHeadersFallBackToSinglePeer() throws Exception {
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.startAndWait();
+        FakeChannel p1 = connectPeerWithChain(1);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        ParallelBlockDownloader downloader = peerGroup.getParallelBlockDownloader();
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        // Headers that skip a block don't connect.
+        Block[] headers = headers(0, CHAIN_LENGTH);
+        headers[5] = headers[6];
+        inbound(p1, new HeadersMessage(params, headers));
+        assertTrue(downloader.getFuture().isDone());
+        assertNull(peerGroup.getParallelBlockDownloader());
+        // The regular download takes over.
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+    }
+}
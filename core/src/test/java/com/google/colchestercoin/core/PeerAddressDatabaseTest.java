@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressDatabaseTest {
+    private PeerAddressDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+        db = new PeerAddressDatabase();
+    }
+
+    private static PeerAddress address(int a, int b, int c, int d) throws Exception {
+        PeerAddress address = new PeerAddress(InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d }), 9333);
+        address.setTime(Utils.now().getTime() / 1000);
+        return address;
+    }
+
+    @Test
+    public void addAndSelect() throws Exception {
+        Set<InetSocketAddress> none = Collections.emptySet();
+        assertNull(db.select(none));
+        PeerAddress address = address(10, 1, 2, 3);
+        assertTrue(db.add(address, null));
+        assertFalse(db.add(address, null));
+        assertEquals(1, db.size());
+        assertEquals(address.toSocketAddress(), db.select(none).toSocketAddress());
+        // Nothing left once the only address is excluded.
+        assertNull(db.select(Collections.singleton(address.toSocketAddress())));
+    }
+
+    @Test
+    public void markGoodMovesToTried() throws Exception {
+        PeerAddress a = address(10, 1, 2, 3);
+        PeerAddress b = address(10, 2, 2, 3);
+        db.add(a, null);
+        db.add(b, null);
+        assertEquals(0, db.getTriedCount());
+        db.markAttempt(a.toSocketAddress());
+        db.markGood(a.toSocketAddress());
+        assertEquals(1, db.getTriedCount());
+        assertEquals(2, db.size());
+        // Addresses we connect to without having heard of them are remembered too.
+        db.markGood(address(10, 3, 2, 3).toSocketAddress());
+        assertEquals(2, db.getTriedCount());
+        assertEquals(3, db.size());
+    }
+
+    @Test
+    public void failingAddressesAreForgotten() throws Exception {
+        // Every attempt to connect to the first address failed, so it is left behind when the database is reloaded.
+        PeerAddress a = address(10, 1, 2, 3);
+        File file = File.createTempFile("peeraddressdb", null);
+        file.delete();
+        file.deleteOnExit();
+        PeerAddressDatabase saved = new PeerAddressDatabase(file);
+        saved.add(a, null);
+        saved.add(address(10, 2, 2, 3), null);
+        for (int i = 0; i < 3; i++)
+            saved.markAttempt(a.toSocketAddress());
+        saved.save();
+        Utils.rollMockClock(60 * 60);
+        assertEquals(1, new PeerAddressDatabase(file).size());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = File.createTempFile("peeraddressdb", null);
+        file.delete();
+        file.deleteOnExit();
+        PeerAddressDatabase saved = new PeerAddressDatabase(file);
+        InetAddress source = InetAddress.getByAddress(new byte[] { 10, 9, 9, 9 });
+        for (int i = 0; i < 20; i++)
+            saved.add(address(10, i, 0, 1), source);
+        saved.markGood(address(10, 3, 0, 1).toSocketAddress());
+        saved.save();
+        assertTrue(file.exists());
+
+        PeerAddressDatabase loaded = new PeerAddressDatabase(file);
+        assertEquals(20, loaded.size());
+        assertEquals(1, loaded.getTriedCount());
+        Set<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+        for (int i = 0; i < 1000; i++)
+            seen.add(loaded.select(Collections.<InetSocketAddress>emptySet()).toSocketAddress());
+        assertTrue(seen.contains(address(10, 3, 0, 1).toSocketAddress()));
+    }
+
+    @Test
+    public void singleSourceIsLimited() throws Exception {
+        // A single node telling us about lots of addresses can only fill a small part of the new table.
+        InetAddress source = InetAddress.getByAddress(new byte[] { 10, 9, 9, 9 });
+        for (int i = 0; i < 20000; i++)
+            db.add(address(11 + i / 65536, (i >> 8) & 0xFF, i & 0xFF, 1), source);
+        assertTrue(db.size() <= 32 * PeerAddressDatabase.BUCKET_SIZE);
+        assertTrue(db.size() > PeerAddressDatabase.BUCKET_SIZE);
+    }
+}
@@ -327,4 +327,50 @@ public class PeerGroupTest extends TestWithPeerGroup {
         Peer d = PeerGroup.peerFromChannel(connectPeer(5, versionMessage4));
         assertEquals(d, peerGroup.getDownloadPeer());
     }
+
+    @Test
+    public void newPeerDoesNotTakeOverDownload() throws Exception {
+        peerGroup.startAndWait();
+        peerGroup.setPingIntervalMsec(0);
+        VersionMessage ver = new VersionMessage(params, 2);
+        ver.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        Peer a = peerOf(connectPeerWithoutFilter(1, ver));
+        Peer b = peerOf(connectPeerWithoutFilter(2, ver));
+        assertEquals(a, peerGroup.getDownloadPeer());
+        // Once the peers' pings are measured, one that connects after them and has no ping time yet doesn't take over.
+        a.getScore().recordPingTime(200);
+        b.getScore().recordPingTime(200);
+        Peer c = peerOf(connectPeerWithoutFilter(3, ver));
+        assertEquals(a, peerGroup.getDownloadPeer());
+        // Nor does it once measured, unless it scores better by the margin.
+        c.getScore().recordPingTime(100);
+        peerOf(connectPeerWithoutFilter(4, ver));
+        assertEquals(a, peerGroup.getDownloadPeer());
+    }
+
+    @Test
+    public void stalledDownloadPeerIsReplaced() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+        peerGroup.startAndWait();
+        VersionMessage ver = new VersionMessage(params, 10);
+        ver.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        Peer a = peerOf(connectPeerWithoutFilter(1, ver));
+        FakeChannel p2 = connectPeerWithoutFilter(2, ver);
+        Peer b = peerOf(p2);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertEquals(a, peerGroup.getDownloadPeer());
+        // The download peer never answers. Nothing happens until the stall timeout has passed.
+        peerGroup.checkDownloadPeer();
+        assertEquals(a, peerGroup.getDownloadPeer());
+        Utils.rollMockClock((int) (PeerGroup.DOWNLOAD_PEER_STALL_TIMEOUT_MSEC / 1000));
+        peerGroup.checkDownloadPeer();
+        assertEquals(b, peerGroup.getDownloadPeer());
+        assertEquals(1, a.getScore().getStalls());
+        assertTrue(a.getScore().getScore() < b.getScore().getScore());
+        // The new download peer carries on with the chain download.
+        Message message = (Message) outbound(p2);
+        assertTrue(String.valueOf(message), message instanceof GetBlocksMessage || message instanceof GetHeadersMessage);
+        assertEquals(2, peerGroup.getPeerScores().size());
+    }
 }
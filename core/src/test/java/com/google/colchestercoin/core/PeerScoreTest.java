@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerScoreTest {
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);  // Use mock clock
+    }
+
+    @Test
+    public void unknownPingIsSlowest() throws Exception {
+        assertEquals(PeerScore.UNKNOWN_SCORE, new PeerScore().getScore(), 0);
+        // A newly connected peer doesn't beat one that answers pings, even slowly.
+        PeerScore measured = new PeerScore();
+        measured.recordConnected();
+        measured.recordPingTime(1000);
+        PeerScore unmeasured = new PeerScore();
+        unmeasured.recordConnected();
+        assertTrue(measured.getScore() > unmeasured.getScore());
+    }
+
+    @Test
+    public void fastBeatsSlow() throws Exception {
+        PeerScore fast = new PeerScore();
+        PeerScore slow = new PeerScore();
+        fast.recordPingTime(50);
+        slow.recordPingTime(800);
+        assertTrue(fast.getScore() > slow.getScore());
+        // Throughput counts for more than a small difference in ping time.
+        for (int i = 0; i < 10; i++) {
+            Utils.rollMockClock(1);
+            slow.recordBlock(1024 * 1024);
+        }
+        assertTrue(slow.getBytesPerSecond() > 512 * 1024);
+        assertTrue(slow.getScore() > fast.getScore());
+        // Long gaps between blocks aren't held against the peer.
+        Utils.rollMockClock(60 * 60);
+        double before = slow.getBytesPerSecond();
+        slow.recordBlock(1024 * 1024);
+        assertEquals(before, slow.getBytesPerSecond(), 0);
+        assertEquals(11, slow.getBlocksReceived());
+    }
+
+    @Test
+    public void penaltiesDecay() throws Exception {
+        PeerScore score = new PeerScore();
+        score.recordConnected();
+        double good = score.getScore();
+        score.recordStall();
+        score.recordMisbehaviour();
+        double bad = score.getScore();
+        assertTrue(bad < 0);
+        assertEquals(1, score.getStalls());
+        assertEquals(1, score.getMisbehaviours());
+        Utils.rollMockClock(PeerScore.PENALTY_HALF_LIFE_SECS);
+        double better = score.getScore();
+        assertEquals(good - (good - bad) / 2, better, 0.001);
+        Utils.rollMockClock(PeerScore.PENALTY_HALF_LIFE_SECS * 20);
+        assertEquals(good, score.getScore(), 0.001);
+    }
+
+    @Test
+    public void connectionFailures() throws Exception {
+        PeerScore score = new PeerScore();
+        score.recordConnectionFailure();
+        score.recordConnectionFailure();
+        assertTrue(score.getScore() < PeerScore.UNKNOWN_SCORE);
+        score.recordConnected();
+        assertTrue(score.getScore() > PeerScore.UNKNOWN_SCORE);
+    }
+}
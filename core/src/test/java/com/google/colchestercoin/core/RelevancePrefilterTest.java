@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.colchestercoin.utils.TestUtils.createFakeTx;
+import static com.google.colchestercoin.utils.TestUtils.roundTripTransaction;
+import static org.junit.Assert.*;
+
+public class RelevancePrefilterTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final BigInteger VALUE = Utils.toNanoCoins(1, 0);
+
+    private Wallet wallet;
+    private ECKey key;
+    private Address stranger;
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        stranger = new ECKey().toAddress(params);
+    }
+
+    private Transaction spend(TransactionOutPoint outpoint) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1, 2, 3}, outpoint));
+        tx.addOutput(VALUE, stranger);
+        return tx;
+    }
+
+    // The prefilter must never rule out what the full check finds relevant, and the checks that use it must agree.
+    private boolean check(Transaction tx) throws Exception {
+        boolean possiblyRelevant = wallet.isTransactionPossiblyRelevant(tx);
+        if (!possiblyRelevant)
+            assertFalse(wallet.isPendingTransactionRelevant(tx));
+        boolean relevant = wallet.isTransactionRelevant(tx);
+        assertTrue(possiblyRelevant || !relevant);
+        assertEquals(relevant, wallet.isTransactionRelevant(roundTripTransaction(params, tx)));
+        assertEquals(relevant, wallet.isTransactionRelevant(TransactionView.of(tx)));
+        return possiblyRelevant;
+    }
+
+    @Test
+    public void outputs() throws Exception {
+        assertTrue(check(createFakeTx(params, VALUE, key.toAddress(params))));
+        assertTrue(check(createFakeTx(params, VALUE, key)));
+        assertTrue(check(roundTripTransaction(params, createFakeTx(params, VALUE, key.toAddress(params)))));
+        assertFalse(check(createFakeTx(params, VALUE, stranger)));
+        assertFalse(check(roundTripTransaction(params, createFakeTx(params, VALUE, stranger))));
+        // Keys and watched scripts added later are picked up straight away.
+        ECKey other = new ECKey();
+        assertFalse(check(createFakeTx(params, VALUE, other)));
+        wallet.addKey(other);
+        assertTrue(check(createFakeTx(params, VALUE, other)));
+        assertFalse(check(createFakeTx(params, VALUE, stranger)));
+        wallet.addWatchedAddress(stranger);
+        assertTrue(check(createFakeTx(params, VALUE, stranger)));
+    }
+
+    @Test
+    public void inputs() throws Exception {
+        Transaction received = createFakeTx(params, VALUE, key.toAddress(params));
+        Transaction unrelated = createFakeTx(params, VALUE, stranger);
+        assertFalse(check(spend(new TransactionOutPoint(params, 0, received))));
+        wallet.receivePending(received, null);
+        // Spending the wallet's own output, and spending what its pending transaction spends.
+        assertTrue(check(spend(new TransactionOutPoint(params, 0, received))));
+        assertTrue(check(spend(received.getInput(0).getOutpoint())));
+        assertFalse(check(spend(new TransactionOutPoint(params, 0, unrelated))));
+        assertFalse(check(spend(unrelated.getInput(0).getOutpoint())));
+        // The same outpoint hash with a different index isn't a double spend.
+        TransactionOutPoint spent = received.getInput(0).getOutpoint();
+        assertFalse(check(spend(new TransactionOutPoint(params, spent.getIndex() + 1, spent.getHash()))));
+        // Forgotten transactions are dropped when the wallet rebuilds its prefilter.
+        wallet.clearTransactions(0);
+        assertFalse(check(spend(new TransactionOutPoint(params, 0, received))));
+        assertTrue(check(createFakeTx(params, VALUE, key)));
+    }
+
+    @Test
+    public void grows() throws Exception {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 300; i++) {
+            ECKey k = new ECKey();
+            keys.add(k);
+            wallet.addKey(k);
+        }
+        for (ECKey k : keys) {
+            assertTrue(check(createFakeTx(params, VALUE, k)));
+            assertTrue(check(createFakeTx(params, VALUE, k.toAddress(params))));
+        }
+        int ruledOut = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!check(createFakeTx(params, VALUE, new ECKey().toAddress(params))))
+                ruledOut++;
+        }
+        assertEquals(1000, ruledOut);
+    }
+
+    @Test
+    public void fingerprints() throws Exception {
+        Random random = new Random(1);
+        RelevancePrefilter prefilter = new RelevancePrefilter(0);
+        for (int i = 0; i < 100; i++) {
+            byte[] object = new byte[i % 40];
+            random.nextBytes(object);
+            long fingerprint = RelevancePrefilter.fingerprint(object, 0, object.length);
+            assertTrue(fingerprint != 0);
+            // The same bytes anywhere in an array make the same fingerprint.
+            byte[] padded = new byte[object.length + 7];
+            System.arraycopy(object, 0, padded, 5, object.length);
+            assertEquals(fingerprint, RelevancePrefilter.fingerprint(padded, 5, object.length));
+        }
+        assertTrue(RelevancePrefilter.fingerprint(new byte[8], 0, 8) != RelevancePrefilter.fingerprint(new byte[9], 0, 9));
+        // A full set refuses more, leaving the wallet to make a bigger one.
+        int added = 0;
+        while (prefilter.addKey(new ECKey()))
+            added += 2;
+        assertEquals(48, added);
+        assertEquals(48, prefilter.size());
+    }
+}
@@ -85,4 +85,15 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
         }
         return p;
     }
+
+    // Peers must speak at least the pong protocol version to be accepted, and PeerGroup doesn't send new peers a
+    // filter, so this is the way to connect a peer that stays connected.
+    protected FakeChannel connectPeerWithoutFilter(int id, VersionMessage versionMessage) {
+        InetSocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 2000 + id);
+        FakeChannel p = (FakeChannel) peerGroup.connectTo(remoteAddress).getChannel();
+        assertTrue(p.nextEvent() instanceof ChannelStateEvent);
+        inbound(p, versionMessage);
+        inbound(p, new VersionAck());
+        return p;
+    }
 }
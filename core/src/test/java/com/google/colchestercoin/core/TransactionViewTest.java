@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.core;
+
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.script.Script;
+import com.google.colchestercoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class TransactionViewTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ECKey mine, other;
+    private Block block;
+    private List<Transaction> txns;
+
+    private static Sha256Hash hash(int n) {
+        return Sha256Hash.create(new byte[] {(byte) n});
+    }
+
+    private static Transaction tx(Sha256Hash spent, long index, byte[]... outputScripts) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1, 2, 3}, new TransactionOutPoint(params, index, spent)));
+        for (int i = 0; i < outputScripts.length; i++)
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(1000 + i), outputScripts[i]));
+        return tx;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mine = new ECKey();
+        other = new ECKey();
+        block = params.getGenesisBlock().createNextBlockWithCoinbase(other.getPubKey(), Utils.toNanoCoins(50, 0));
+        txns = new ArrayList<Transaction>();
+        // Pays to the address of a key, to a key, to a script hash, and to nobody in particular.
+        txns.add(tx(hash(1), 0, ScriptBuilder.createOutputScript(mine.toAddress(params)).getProgram()));
+        txns.add(tx(hash(2), 1, ScriptBuilder.createOutputScript(other).getProgram(),
+                ScriptBuilder.createOutputScript(mine).getProgram()));
+        txns.add(tx(hash(3), 2, new byte[] {(byte) OP_HASH160, 20, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+                17, 18, 19, 20, (byte) OP_EQUAL}));
+        // A script that doesn't parse, whose last push runs off the end.
+        txns.add(tx(hash(4), 3, new byte[] {(byte) OP_DUP, 3, 7, 7, 7, 75, 1, 2}));
+        for (Transaction tx : txns)
+            block.addTransaction(tx);
+        block.solve();
+    }
+
+    @Test
+    public void matchesParsedTransactions() throws Exception {
+        byte[] bytes = block.bitcoinSerialize();
+        BlockView view = BlockView.of(params, bytes);
+        assertEquals(block.getHash(), view.getHash());
+        assertEquals(block.getTransactions().size(), view.getTransactionCount());
+        int count = 0;
+        for (TransactionView tx = view.nextTransaction(); tx != null; tx = view.nextTransaction()) {
+            Transaction full = block.getTransactions().get(count++);
+            assertEquals(full.getHash(), tx.getHash());
+            assertEquals(full.isCoinBase(), tx.isCoinBase());
+            assertEquals(full.getLockTime(), tx.getLockTime());
+            assertArrayEquals(full.bitcoinSerialize(), tx.toTransaction().bitcoinSerialize());
+            assertEquals(full.getInputs().size(), tx.getInputCount());
+            for (int i = 0; i < tx.getInputCount(); i++) {
+                TransactionInput input = full.getInput(i);
+                assertEquals(input.getOutpoint().getHash(), tx.getOutPointHash(i));
+                assertEquals(input.getOutpoint().getIndex(), tx.getOutPointIndex(i));
+                assertTrue(tx.spends(i, input.getOutpoint()));
+                assertFalse(tx.spends(i, new TransactionOutPoint(params, input.getOutpoint().getIndex() + 1,
+                        input.getOutpoint().getHash())));
+                assertArrayEquals(input.getScriptBytes(), Arrays.copyOfRange(bytes, tx.getScriptSigOffset(i),
+                        tx.getScriptSigOffset(i) + tx.getScriptSigLength(i)));
+                assertEquals(input.getSequenceNumber(), tx.getSequenceNumber(i));
+            }
+            assertEquals(full.getOutputs().size(), tx.getOutputCount());
+            for (int i = 0; i < tx.getOutputCount(); i++) {
+                TransactionOutput output = full.getOutput(i);
+                assertEquals(output.getValueAsLong(), tx.getValue(i));
+                byte[] script = output.getScriptBytes();
+                int start = tx.getScriptPubKeyOffset(i);
+                assertArrayEquals(script, Arrays.copyOfRange(bytes, start, start + tx.getScriptPubKeyLength(i)));
+                // The templates agree with the ones Script has.
+                Script parsed = null;
+                try {
+                    parsed = output.getScriptPubKey();
+                } catch (ScriptException e) {
+                    // Doesn't parse.
+                }
+                int hash = tx.findPubKeyHash(i);
+                if (parsed != null && (parsed.isSentToAddress() || parsed.isSentToP2SH()))
+                    assertArrayEquals(parsed.getPubKeyHash(), Arrays.copyOfRange(bytes, hash, hash + 20));
+                else
+                    assertEquals(-1, hash);
+                int key = tx.findPubKey(i);
+                if (parsed != null && parsed.isSentToRawPubKey())
+                    assertArrayEquals(parsed.getPubKey(), Arrays.copyOfRange(bytes, key, start + script.length - 1));
+                else
+                    assertEquals(-1, key);
+            }
+        }
+        assertEquals(block.getTransactions().size(), count);
+        assertNull(view.nextTransaction());
+        view.rewind();
+        assertEquals(block.getTransactions().get(0).getHash(), view.nextTransaction().getHash());
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] bytes = txns.get(1).bitcoinSerialize();
+        try {
+            new TransactionView(params).wrap(Arrays.copyOf(bytes, bytes.length - 1), 0);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        // A count far larger than the transaction.
+        bytes[4] = (byte) 0xfe;
+        try {
+            new TransactionView(params).wrap(bytes, 0);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void bloomFilter() throws Exception {
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0);
+        filter.insert(mine.getPubKeyHash());
+        BlockView view = BlockView.of(block);
+        List<Sha256Hash> matched = new ArrayList<Sha256Hash>();
+        for (TransactionView tx = view.nextTransaction(); tx != null; tx = view.nextTransaction()) {
+            if (filter.matches(tx))
+                matched.add(tx.getHash());
+        }
+        assertEquals(Arrays.asList(txns.get(0).getHash()), matched);
+
+        // By key, by outpoint and by the transaction's own hash.
+        filter.insert(mine.getPubKey());
+        assertTrue(filter.matches(txns.get(1)));
+        filter.insert(new TransactionOutPoint(params, 2, hash(3)).bitcoinSerialize());
+        assertTrue(filter.matches(txns.get(2)));
+        assertFalse(filter.matches(txns.get(3)));
+        filter.insert(txns.get(3).getHash().getBytes());
+        assertFalse(filter.matches(txns.get(3)));
+        filter.insert(Utils.reverseBytes(txns.get(3).getHash().getBytes()));
+        assertTrue(filter.matches(txns.get(3)));
+        // The chunks of a script before the one that doesn't parse still count.
+        BloomFilter pushes = new BloomFilter(10, 0.000001, 0);
+        pushes.insert(new byte[] {7, 7, 7});
+        assertTrue(pushes.matches(txns.get(3)));
+    }
+
+    @Test
+    public void walletRelevance() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(mine);
+        // Transactions parsed lazily with their bytes kept, as ones from the network can be, are only parsed in full
+        // if they might be relevant.
+        byte[] bytes = block.bitcoinSerialize();
+        BlockView view = BlockView.of(params, bytes);
+        for (int i = 0; i < view.getTransactionCount(); i++) {
+            TransactionView tx = view.nextTransaction();
+            Transaction full = tx.toTransaction();
+            boolean relevant = wallet.isTransactionRelevant(full);
+            assertEquals(i == 1 || i == 2, relevant);
+            assertEquals(relevant, wallet.isTransactionRelevant(tx));
+            Transaction lazy = new Transaction(params, bytes, tx.getOffset(), null, true, true, Message.UNKNOWN_LENGTH);
+            assertEquals(relevant, wallet.isTransactionRelevant(lazy));
+            assertEquals(relevant, lazy.isParsed());
+        }
+
+        // Spending an output of a transaction in the wallet, or one a pending transaction spends.
+        Transaction received = txns.get(0);
+        wallet.receivePending(received, null);
+        Transaction spend = tx(received.getHash(), 0, new byte[0]);
+        assertTrue(wallet.isTransactionRelevant(TransactionView.of(spend)));
+        Transaction doubleSpend = tx(hash(1), 0, new byte[0]);
+        assertTrue(wallet.isTransactionRelevant(TransactionView.of(doubleSpend)));
+        assertFalse(wallet.isTransactionRelevant(TransactionView.of(tx(hash(1), 1, new byte[0]))));
+    }
+}
@@ -20,6 +20,13 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.colchestercoin.core.Utils.*;
 import static org.junit.Assert.*;
@@ -115,4 +122,53 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void digests() throws Exception {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("US-ASCII");
+        byte[] single = MessageDigest.getInstance("SHA-256").digest(data);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(single);
+        assertArrayEquals(single, singleDigest(data));
+        assertArrayEquals(expected, doubleDigest(data));
+        // The same bytes in the middle of a bigger array, and in a direct buffer.
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 5, data.length);
+        assertArrayEquals(expected, doubleDigest(padded, 5, data.length));
+        assertArrayEquals(expected, doubleDigestTwoBuffers(padded, 5, 10, padded, 15, data.length - 10));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(padded.length);
+        buffer.put(padded);
+        buffer.position(5).limit(5 + data.length);
+        assertArrayEquals(expected, doubleDigest(buffer));
+        assertEquals(5 + data.length, buffer.position());
+    }
+
+    @Test
+    public void digestsOnManyThreads() throws Exception {
+        final byte[][] inputs = new byte[64][];
+        final byte[][] expected = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new byte[i * 37];
+            new Random(i).nextBytes(inputs[i]);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            expected[i] = digest.digest(digest.digest(inputs[i]));
+        }
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 200; round++)
+                        for (int i = 0; i < inputs.length; i++)
+                            if (!Arrays.equals(expected[i], doubleDigest(inputs[i])))
+                                wrong.incrementAndGet();
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, wrong.get());
+    }
 }
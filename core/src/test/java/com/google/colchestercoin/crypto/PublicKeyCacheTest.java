@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.crypto;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PublicKeyCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private PublicKeyCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new PublicKeyCache(PublicKeyCache.DEFAULT_MEMORY_BUDGET);
+        PublicKeyCache.setDefault(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PublicKeyCache.setDefault(new PublicKeyCache(PublicKeyCache.DEFAULT_MEMORY_BUDGET));
+        ECKey.setBackend(ECKey.Backend.BOUNCY_CASTLE);
+    }
+
+    @Test
+    public void hash160() throws Exception {
+        byte[] pub = new ECKey().getPubKey();
+        byte[] expected = Utils.sha256hash160(pub);
+        assertArrayEquals(expected, cache.getHash160(pub));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        // Changing the caller's array doesn't change what's cached.
+        byte[] copy = pub.clone();
+        pub[1] ^= 1;
+        assertArrayEquals(Utils.sha256hash160(pub), cache.getHash160(pub));
+        assertArrayEquals(expected, cache.getHash160(copy));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+        assertEquals(2 * PublicKeyCache.ENTRY_SIZE, cache.getMemoryUsage());
+        assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void verification() throws Exception {
+        for (ECKey.Backend backend : ECKey.Backend.values()) {
+            ECKey.setBackend(backend);
+            cache.clear();
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+            ECKey.ECDSASignature sig = key.sign(hash);
+            long misses = cache.getMissCount();
+            assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+            assertEquals(misses + 1, cache.getMissCount());
+            long hits = cache.getHitCount();
+            assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+            assertFalse(ECKey.verify(Sha256Hash.create(new byte[] {2}).getBytes(), sig, key.getPubKey()));
+            assertEquals(hits + 2, cache.getHitCount());
+            assertEquals(misses + 1, cache.getMissCount());
+        }
+    }
+
+    @Test
+    public void invalidKeysNotCached() throws Exception {
+        // The specialised backend rejects bad encodings with IllegalArgumentException.
+        ECKey.setBackend(ECKey.Backend.SECP256K1);
+        byte[] pub = new byte[33];
+        pub[0] = 2;
+        pub[32] = 5;  // Not the x co-ordinate of any point.
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = new ECKey().sign(hash);
+        for (int i = 0; i < 2; i++) {
+            try {
+                ECKey.verify(hash.getBytes(), sig, pub);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        cache = new PublicKeyCache(10 * PublicKeyCache.ENTRY_SIZE);
+        for (int i = 0; i < 50; i++)
+            cache.getHash160(new ECKey().getPubKey());
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.getMemoryUsage() <= cache.getMemoryBudget());
+
+        cache = new PublicKeyCache(0);
+        byte[] pub = new ECKey().getPubKey();
+        assertArrayEquals(Utils.sha256hash160(pub), cache.getHash160(pub));
+        assertArrayEquals(Utils.sha256hash160(pub), cache.getHash160(pub));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void addressesAndWallets() throws Exception {
+        ECKey key = new ECKey();
+        ECKey pubOnly = new ECKey(null, key.getPubKey());
+        assertEquals(key.toAddress(params), pubOnly.toAddress(params));
+        try {
+            // Paying straight to a key has no address.
+            ScriptBuilder.createOutputScript(pubOnly).getToAddress(params);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        // Changing the key's hash doesn't change anyone else's.
+        pubOnly.getPubKeyHash()[0] ^= 1;
+        assertArrayEquals(Utils.sha256hash160(key.getPubKey()), key.getPubKeyHash());
+        assertArrayEquals(Utils.sha256hash160(key.getPubKey()), cache.getHash160(key.getPubKey()));
+        assertEquals(key.toAddress(params), ScriptBuilder.createOutputScript(key.toAddress(params)).getToAddress(params));
+
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        long hits = cache.getHitCount();
+        assertTrue(wallet.isPubKeyMine(key.getPubKey()));
+        assertFalse(wallet.isPubKeyMine(new ECKey().getPubKey()));
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.crypto;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.colchestercoin.crypto.Secp256k1.N;
+import static com.google.colchestercoin.crypto.Secp256k1.P;
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Secp256k1} against Bouncy Castle.
+ */
+public class Secp256k1Test {
+    private final Random random = new Random(1);
+
+    @After
+    public void tearDown() {
+        ECKey.setBackend(ECKey.Backend.BOUNCY_CASTLE);
+    }
+
+    private BigInteger randomBelow(BigInteger limit) {
+        BigInteger value;
+        do {
+            value = new BigInteger(limit.bitLength(), random);
+        } while (value.compareTo(limit) >= 0);
+        return value;
+    }
+
+    private BigInteger[] edgeCases(BigInteger modulus) {
+        return new BigInteger[] { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(2), modulus.subtract(BigInteger.ONE),
+                modulus.subtract(BigInteger.valueOf(2)), BigInteger.ONE.shiftLeft(255), BigInteger.ONE.shiftLeft(32),
+                BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE), modulus.shiftRight(1) };
+    }
+
+    @Test
+    public void fieldArithmetic() throws Exception {
+        BigInteger[] values = new BigInteger[109];
+        System.arraycopy(edgeCases(P), 0, values, 0, 9);
+        for (int i = 9; i < values.length; i++)
+            values[i] = randomBelow(P);
+        for (BigInteger x : values) {
+            for (BigInteger y : values) {
+                int[] product = new int[8];
+                Secp256k1.mul(Secp256k1.fe(x), Secp256k1.fe(y), product);
+                assertEquals(x.multiply(y).mod(P), Secp256k1.toBigInteger(product));
+            }
+            if (x.signum() != 0)
+                assertEquals(x.modInverse(P), Secp256k1.toBigInteger(Secp256k1.inverse(Secp256k1.fe(x))));
+            BigInteger square = x.multiply(x).mod(P);
+            BigInteger root = Secp256k1.toBigInteger(Secp256k1.sqrt(Secp256k1.fe(square)));
+            assertEquals(square, root.multiply(root).mod(P));
+        }
+        // P = 3 mod 4, so -1 has no square root.
+        assertNull(Secp256k1.sqrt(Secp256k1.fe(P.subtract(BigInteger.ONE))));
+    }
+
+    @Test
+    public void scalarDecomposition() throws Exception {
+        BigInteger[] scalars = new BigInteger[109];
+        System.arraycopy(edgeCases(N), 0, scalars, 0, 9);
+        for (int i = 9; i < scalars.length; i++)
+            scalars[i] = randomBelow(N);
+        for (BigInteger k : scalars) {
+            BigInteger[] split = Secp256k1.splitScalar(k);
+            assertEquals(k, split[0].add(split[1].multiply(Secp256k1.LAMBDA)).mod(N));
+            assertTrue(split[0].abs().bitLength() <= 129 && split[1].abs().bitLength() <= 129);
+
+            int[] digits = Secp256k1.wnaf(k);
+            BigInteger sum = BigInteger.ZERO;
+            for (int i = digits.length - 1; i >= 0; i--) {
+                sum = sum.shiftLeft(1).add(BigInteger.valueOf(digits[i]));
+                assertTrue(digits[i] == 0 || (Math.abs(digits[i]) % 2 == 1 && Math.abs(digits[i]) < 16));
+            }
+            assertEquals(k, sum);
+        }
+    }
+
+    @Test
+    public void publicKeys() throws Exception {
+        BigInteger[] privKeys = new BigInteger[59];
+        System.arraycopy(edgeCases(N), 1, privKeys, 0, 8);
+        privKeys[8] = BigInteger.valueOf(15).shiftLeft(252);
+        for (int i = 9; i < privKeys.length; i++)
+            privKeys[i] = randomBelow(N.subtract(BigInteger.ONE)).add(BigInteger.ONE);
+        for (BigInteger privKey : privKeys) {
+            ECPoint point = ECKey.CURVE.getG().multiply(privKey);
+            byte[] uncompressed = point.getEncoded();
+            byte[] compressed = ECKey.CURVE.getCurve().createPoint(point.getX().toBigInteger(),
+                    point.getY().toBigInteger(), true).getEncoded();
+            assertArrayEquals(uncompressed, Secp256k1.publicKeyFromPrivate(privKey, false));
+            assertArrayEquals(compressed, Secp256k1.publicKeyFromPrivate(privKey, true));
+            assertArrayEquals(uncompressed, Secp256k1.decompress(compressed));
+
+            // k * G + pub, as in BIP 32 public derivation.
+            BigInteger k = randomBelow(N);
+            ECPoint sum = ECKey.CURVE.getG().multiply(k).add(point);
+            assertArrayEquals(sum.getEncoded(), Secp256k1.multiplyGAndAdd(k, compressed, false));
+        }
+        // n - 1 plus G is the point at infinity.
+        assertNull(Secp256k1.multiplyGAndAdd(N.subtract(BigInteger.ONE), Secp256k1.publicKeyFromPrivate(BigInteger.ONE, true),
+                true));
+    }
+
+    private boolean verifyBoth(byte[] hash, ECKey.ECDSASignature sig, byte[] pub) {
+        ECKey.setBackend(ECKey.Backend.BOUNCY_CASTLE);
+        boolean expected = ECKey.verify(hash, sig, pub);
+        ECKey.setBackend(ECKey.Backend.SECP256K1);
+        assertEquals(expected, ECKey.verify(hash, sig, pub));
+        return expected;
+    }
+
+    @Test
+    public void signaturesMatchBouncyCastle() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            ECKey.setBackend(i % 2 == 0 ? ECKey.Backend.BOUNCY_CASTLE : ECKey.Backend.SECP256K1);
+            ECKey key = new ECKey();
+            byte[] uncompressed = Secp256k1.decompress(key.getPubKey());
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            ECKey.ECDSASignature sig = key.sign(hash);
+
+            assertTrue(verifyBoth(hash.getBytes(), sig, key.getPubKey()));
+            assertTrue(verifyBoth(hash.getBytes(), sig, uncompressed));
+            // The other S is valid too; it's only non-canonical.
+            assertTrue(verifyBoth(hash.getBytes(), new ECKey.ECDSASignature(sig.r, N.subtract(sig.s)), key.getPubKey()));
+            assertFalse(verifyBoth(Sha256Hash.create(new byte[] {(byte) i, 1}).getBytes(), sig, key.getPubKey()));
+            assertFalse(verifyBoth(hash.getBytes(), new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE)),
+                    key.getPubKey()));
+            assertFalse(verifyBoth(hash.getBytes(), new ECKey.ECDSASignature(sig.r.add(N), sig.s), key.getPubKey()));
+            assertFalse(verifyBoth(hash.getBytes(), new ECKey.ECDSASignature(BigInteger.ZERO, sig.s), key.getPubKey()));
+            assertFalse(verifyBoth(hash.getBytes(), sig, new ECKey().getPubKey()));
+        }
+    }
+
+    @Test
+    public void strictPublicKeyEncoding() throws Exception {
+        byte[] compressed = new ECKey().getPubKey();
+        byte[] uncompressed = Secp256k1.decompress(compressed);
+        assertEquals(uncompressed[64] & 1, compressed[0] & 1);
+
+        byte[] hybrid = uncompressed.clone();
+        hybrid[0] = (byte) (6 + (uncompressed[64] & 1));
+        assertArrayEquals(uncompressed, Secp256k1.decompress(hybrid));
+        hybrid[0] ^= 1;
+        assertInvalid(hybrid);
+
+        byte[] offCurve = uncompressed.clone();
+        offCurve[64] ^= 1;
+        assertInvalid(offCurve);
+        assertInvalid(Arrays.copyOf(compressed, 34));
+        assertInvalid(Arrays.copyOf(compressed, 32));
+        assertInvalid(new byte[] {0});
+        assertInvalid(new byte[0]);
+        byte[] tooBig = new byte[33];
+        Arrays.fill(tooBig, (byte) 0xFF);
+        tooBig[0] = 2;
+        assertInvalid(tooBig);
+        byte[] notOnCurve = new byte[33];
+        notOnCurve[0] = 2;
+        notOnCurve[32] = 5;  // 5^3 + 7 isn't a square.
+        assertInvalid(notOnCurve);
+    }
+
+    private static void assertInvalid(byte[] pub) {
+        try {
+            Secp256k1.decompress(pub);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void publicDerivationMatchesBouncyCastle() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("colchestercoin".getBytes());
+        DeterministicKey pubOnly = HDKeyDerivation.createMasterPubKeyFromBytes(master.getPubKeyBytes(),
+                master.getChainCode());
+        for (int i = 0; i < 10; i++) {
+            ECKey.setBackend(ECKey.Backend.BOUNCY_CASTLE);
+            byte[] expected = HDKeyDerivation.deriveChildKey(pubOnly, i).getPubKeyBytes();
+            byte[] expectedFromPrivate = HDKeyDerivation.deriveChildKey(master, i).getPubKeyBytes();
+            ECKey.setBackend(ECKey.Backend.SECP256K1);
+            assertArrayEquals(expected, HDKeyDerivation.deriveChildKey(pubOnly, i).getPubKeyBytes());
+            assertArrayEquals(expectedFromPrivate, HDKeyDerivation.deriveChildKey(master, i).getPubKeyBytes());
+            assertArrayEquals(expected, expectedFromPrivate);
+        }
+    }
+}
@@ -510,4 +510,80 @@ public class NioWrapperTest {
 
         server.stop();
     }
+
+    @Test
+    public void queuedWritesTest() throws Exception {
+        // Tests that a burst of writes much larger than the socket buffers is queued and flushed in order
+        final int messageCount = 12;
+        final int messageSize = 0x40000;
+        final SettableFuture<Void> serverConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> allMessagesReceived = SettableFuture.create();
+        final SettableFuture<Void> clientConnectionClosed = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    int received = 0;
+
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        if (msg.getClientVersion().getMajor() != received)
+                            fail.set(true);
+                        if (++received == messageCount)
+                            allMessagesReceived.set(null);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        serverConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), messageSize + 32, 0);
+            }
+        });
+        server.start(new InetSocketAddress("localhost", 4243));
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                        fail.set(true);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        clientConnectionClosed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), messageSize + 32, 0);
+
+        NioClient client = new NioClient(new InetSocketAddress("localhost", 4243), clientHandler, 0);
+
+        clientConnectionOpen.get();
+        serverConnectionOpen.get();
+
+        // 3MB written in one go will not usually fit in the socket buffers, so at least some of it has to be queued
+        for (int i = 0; i < messageCount; i++) {
+            clientHandler.write(Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                    .setClientVersion(Protos.ClientVersion.newBuilder()
+                            .setMajor(i)
+                            .setPreviousChannelContractHash(ByteString.copyFrom(new byte[messageSize])))
+                    .build());
+        }
+        allMessagesReceived.get();
+        assertEquals(0, client.getBytesQueued());
+
+        client.closeConnection();
+        clientConnectionClosed.get();
+        server.stop();
+    }
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.NetworkParameters;
+import com.google.colchestercoin.core.ScriptException;
+import com.google.colchestercoin.core.Transaction;
+import com.google.colchestercoin.core.TransactionInput;
+import com.google.colchestercoin.core.Utils;
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class CompiledScriptTest {
+    @Test
+    public void numbersMatchMPIEncoding() throws Exception {
+        long[] values = { 0, 1, -1, 16, 17, 127, 128, -128, 255, 256, -32768, 32767, 0x7FFFFF, 0x800000,
+                Integer.MAX_VALUE, -Integer.MAX_VALUE, 2L * Integer.MAX_VALUE };
+        for (long value : values) {
+            byte[] expected = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+            byte[] encoded = CompiledScript.encodeNumber(value);
+            assertArrayEquals("Encoding " + value, expected, encoded);
+            if (encoded.length <= 4)
+                assertEquals(value, CompiledScript.castToNumber(encoded));
+        }
+        // Negative zero.
+        assertEquals(0, CompiledScript.castToNumber(new byte[] {0, (byte) 0x80}));
+        try {
+            CompiledScript.castToNumber(new byte[5]);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    private static void run(Script script, CompiledScript.Stack stack) throws ScriptException {
+        new CompiledScript(script).execute(new Transaction(UnitTestParams.get()), 0, stack);
+    }
+
+    @Test
+    public void stackOps() throws Exception {
+        // 1 2 3 4 5 6 2ROT -> 3 4 5 6 1 2, then ROT -> 3 4 5 1 2 6, then 2 PICK -> ... 1
+        Script script = new ScriptBuilder().smallNum(1).smallNum(2).smallNum(3).smallNum(4).smallNum(5).smallNum(6)
+                .op(OP_2ROT).op(OP_ROT).smallNum(2).op(OP_PICK).build();
+        CompiledScript.Stack stack = new CompiledScript.Stack();
+        run(script, stack);
+        long[] expected = { 3, 4, 5, 1, 2, 6, 1 };
+        assertEquals(expected.length, stack.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[expected.length - 1 - i], CompiledScript.castToNumber(stack.peek(i)));
+    }
+
+    @Test
+    public void nestedConditionals() throws Exception {
+        // 0 IF 1 ELSE 1 IF 2 ELSE 3 ENDIF ENDIF -> 2
+        Script script = new ScriptBuilder().smallNum(0).op(OP_IF).smallNum(1).op(OP_ELSE).smallNum(1).op(OP_IF)
+                .smallNum(2).op(OP_ELSE).smallNum(3).op(OP_ENDIF).op(OP_ENDIF).build();
+        CompiledScript.Stack stack = new CompiledScript.Stack();
+        run(script, stack);
+        assertEquals(1, stack.size());
+        assertEquals(2, CompiledScript.castToNumber(stack.pop()));
+    }
+
+    @Test
+    public void disabledOpsFailEvenWhenNotExecuted() throws Exception {
+        Script script = new ScriptBuilder().smallNum(0).op(OP_IF).op(OP_CAT).op(OP_ENDIF).smallNum(1).build();
+        try {
+            run(script, new CompiledScript.Stack());
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    // Pushes count towards the stack limit like any other operation.
+    private static void spendWithPushes(int count) throws ScriptException {
+        ScriptBuilder scriptSig = new ScriptBuilder();
+        for (int i = 0; i < count; i++)
+            scriptSig.data(new byte[] {1});
+        Script scriptPubKey = new ScriptBuilder().data(new byte[] {1}).build();
+        NetworkParameters params = UnitTestParams.get();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0]));
+        scriptSig.build().correctlySpends(tx, 0, scriptPubKey, true);
+    }
+
+    @Test
+    public void stackLimitCountsPushes() throws Exception {
+        spendWithPushes(999);
+        try {
+            spendWithPushes(1001);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals("Stack size exceeded range", e.getMessage());
+        }
+    }
+
+    @Test
+    public void sharedScriptPubKeys() throws Exception {
+        byte[] program = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        Script a = new Script(program);
+        Script b = new Script(program.clone());
+        assertSame(a.getCompiled(true), b.getCompiled(true));
+        assertNotSame(new Script(program).getCompiled(false), a.getCompiled(true));
+    }
+}
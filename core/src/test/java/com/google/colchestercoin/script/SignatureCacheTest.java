@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(new SignatureCache(SignatureCache.DEFAULT_MEMORY_BUDGET));
+    }
+
+    @Test
+    public void onlyValidSignaturesAreRemembered() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MEMORY_BUDGET);
+        ECKey key = new ECKey();
+        byte[] hash = Sha256Hash.create(new byte[] {1}).getBytes();
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRate(), 0);
+
+        // Changing any part of the triple misses, and invalid signatures are never added.
+        byte[] otherHash = Sha256Hash.create(new byte[] {2}).getBytes();
+        ECKey.ECDSASignature badSig = new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE));
+        for (int i = 0; i < 2; i++) {
+            assertFalse(cache.verify(otherHash, sig, key.getPubKey()));
+            assertFalse(cache.verify(hash, sig, new ECKey().getPubKey()));
+            assertFalse(cache.verify(hash, badSig, key.getPubKey()));
+        }
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void memoryBudget() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.ENTRY_SIZE * 2);
+        ECKey key = new ECKey();
+        byte[][] hashes = new byte[3][];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[3];
+        for (int i = 0; i < 3; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i}).getBytes();
+            sigs[i] = key.sign(new Sha256Hash(hashes[i]));
+            assertTrue(cache.verify(hashes[i], sigs[i], key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 2);
+        // The most recent one is still there.
+        assertTrue(cache.verify(hashes[2], sigs[2], key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+
+        SignatureCache disabled = new SignatureCache(0);
+        assertTrue(disabled.verify(hashes[0], sigs[0], key.getPubKey()));
+        assertTrue(disabled.verify(hashes[0], sigs[0], key.getPubKey()));
+        assertEquals(0, disabled.getHitCount());
+    }
+
+    @Test
+    public void scriptsUseTheDefaultCache() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MEMORY_BUDGET);
+        SignatureCache.setDefault(cache);
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key);
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        Script scriptPubKey = prev.getOutput(0).getScriptPubKey();
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(
+                tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false)));
+
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(0, cache.getHitCount());
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.script;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the standard form fast paths give the same results as the interpreter.
+ */
+public class StandardScriptsTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private ECKey key1, key2, key3;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        key1 = new ECKey();
+        key2 = new ECKey();
+        key3 = new ECKey();
+    }
+
+    private void spend(Script scriptPubKey) {
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), scriptPubKey);
+        tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+    }
+
+    private byte[] sign(ECKey key, Script connectedScript, Transaction.SigHash mode, boolean anyoneCanPay) {
+        return tx.calculateSignature(0, key, connectedScript, mode, anyoneCanPay).encodeToBitcoin();
+    }
+
+    private byte[] sign(ECKey key, Script connectedScript) {
+        return sign(key, connectedScript, Transaction.SigHash.ALL, false);
+    }
+
+    // Checks whether the fast path recognises the input and if so that it gets the same result as the interpreter,
+    // which is returned.
+    private boolean check(boolean recognised, byte[] scriptSig, Script scriptPubKey, boolean enforceP2SH)
+            throws Exception {
+        boolean fastRecognised;
+        boolean fastValid = false;
+        try {
+            fastRecognised = StandardScripts.correctlySpends(tx, 0, scriptSig, scriptPubKey.getProgram(), enforceP2SH,
+                    null);
+            fastValid = true;
+        } catch (ScriptException e) {
+            fastRecognised = true;
+        }
+        assertEquals(recognised, fastRecognised);
+        boolean valid = true;
+        try {
+            new Script(scriptSig).runScripts(tx, 0, scriptPubKey, enforceP2SH);
+        } catch (ScriptException e) {
+            valid = false;
+        }
+        if (fastRecognised)
+            assertEquals(valid, fastValid);
+        return valid;
+    }
+
+    private Script payToAddress(ECKey key) {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        spend(scriptPubKey);
+        return scriptPubKey;
+    }
+
+    private static byte[] scriptSig(byte[]... pushes) {
+        ScriptBuilder builder = new ScriptBuilder();
+        for (byte[] push : pushes)
+            builder.data(push);
+        return builder.build().getProgram();
+    }
+
+    @Test
+    public void payToAddress() throws Exception {
+        Script scriptPubKey = payToAddress(key1);
+        assertTrue(check(true, scriptSig(sign(key1, scriptPubKey), key1.getPubKey()), scriptPubKey, true));
+        assertTrue(check(true, scriptSig(sign(key1, scriptPubKey, Transaction.SigHash.NONE, false), key1.getPubKey()),
+                scriptPubKey, true));
+        assertTrue(check(true, scriptSig(sign(key1, scriptPubKey, Transaction.SigHash.ALL, true), key1.getPubKey()),
+                scriptPubKey, true));
+        // Wrong key for the address, wrong key for the signature, and a signature over the wrong script.
+        assertFalse(check(true, scriptSig(sign(key2, scriptPubKey), key2.getPubKey()), scriptPubKey, true));
+        assertFalse(check(true, scriptSig(sign(key2, scriptPubKey), key1.getPubKey()), scriptPubKey, true));
+        assertFalse(check(true, scriptSig(sign(key1, payToAddress(key2)), key1.getPubKey()), payToAddress(key1), true));
+        // Garbage instead of a signature.
+        assertFalse(check(true, scriptSig(new byte[] {1, 2, 3}, key1.getPubKey()), scriptPubKey, true));
+    }
+
+    @Test
+    public void payToAddressNonStandard() throws Exception {
+        Script scriptPubKey = payToAddress(key1);
+        byte[] sig = sign(key1, scriptPubKey);
+        // Extra pushes, pushes in an unusual encoding and 20 byte signatures all go to the interpreter.
+        check(false, scriptSig(sig, sig, key1.getPubKey()), scriptPubKey, true);
+        check(false, scriptSig(new byte[Address.LENGTH], key1.getPubKey()), scriptPubKey, true);
+        byte[] pubKey = key1.getPubKey();
+        byte[] pushData1 = new byte[2 + sig.length + 1 + pubKey.length];
+        pushData1[0] = (byte) OP_PUSHDATA1;
+        pushData1[1] = (byte) sig.length;
+        System.arraycopy(sig, 0, pushData1, 2, sig.length);
+        pushData1[2 + sig.length] = (byte) pubKey.length;
+        System.arraycopy(pubKey, 0, pushData1, 3 + sig.length, pubKey.length);
+        assertTrue(check(false, pushData1, scriptPubKey, true));
+        check(false, new byte[0], scriptPubKey, true);
+    }
+
+    private Script multiSig(int threshold, ECKey... keys) {
+        return ScriptBuilder.createMultiSigOutputScript(threshold, Arrays.asList(keys));
+    }
+
+    private Script payToScriptHash(Script redeemScript) {
+        Script scriptPubKey = new ScriptBuilder().op(OP_HASH160).data(Utils.sha256hash160(redeemScript.getProgram()))
+                .op(OP_EQUAL).build();
+        spend(scriptPubKey);
+        return scriptPubKey;
+    }
+
+    private static byte[] multiSigScriptSig(Script redeemScript, byte[]... sigs) {
+        ScriptBuilder builder = new ScriptBuilder().smallNum(0);
+        for (byte[] sig : sigs)
+            builder.data(sig);
+        return builder.data(redeemScript.getProgram()).build().getProgram();
+    }
+
+    @Test
+    public void payToScriptHashMultiSig() throws Exception {
+        Script redeem = multiSig(2, key1, key2, key3);
+        Script scriptPubKey = payToScriptHash(redeem);
+        byte[] sig1 = sign(key1, redeem), sig2 = sign(key2, redeem), sig3 = sign(key3, redeem);
+        assertTrue(check(true, multiSigScriptSig(redeem, sig1, sig2), scriptPubKey, true));
+        assertTrue(check(true, multiSigScriptSig(redeem, sig1, sig3), scriptPubKey, true));
+        assertTrue(check(true, multiSigScriptSig(redeem, sig2, sig3), scriptPubKey, true));
+        // Signatures must be in key order, and all valid.
+        assertFalse(check(true, multiSigScriptSig(redeem, sig2, sig1), scriptPubKey, true));
+        assertFalse(check(true, multiSigScriptSig(redeem, sig1, sig1), scriptPubKey, true));
+        assertFalse(check(true, multiSigScriptSig(redeem, sig1, new byte[] {1, 2, 3}), scriptPubKey, true));
+        // A redeem script that doesn't match the hash.
+        Script other = multiSig(2, key1, key2);
+        assertFalse(check(true, multiSigScriptSig(other, sign(key1, other), sign(key2, other)), scriptPubKey, true));
+        // Without P2SH, or with the wrong number of signatures, the interpreter does it.
+        check(false, multiSigScriptSig(redeem, sig1, sig2), scriptPubKey, false);
+        check(false, multiSigScriptSig(redeem, sig1), scriptPubKey, true);
+        check(false, multiSigScriptSig(redeem, sig1, sig2, sig3), scriptPubKey, true);
+
+        // Redeem scripts short enough for a single byte push and long enough for OP_PUSHDATA1.
+        redeem = multiSig(1, key1);
+        scriptPubKey = payToScriptHash(redeem);
+        assertTrue(check(true, multiSigScriptSig(redeem, sign(key1, redeem)), scriptPubKey, true));
+        redeem = multiSig(3, key1, key2, key3);
+        scriptPubKey = payToScriptHash(redeem);
+        assertTrue(check(true, multiSigScriptSig(redeem, sign(key1, redeem), sign(key2, redeem), sign(key3, redeem)),
+                scriptPubKey, true));
+    }
+
+    @Test
+    public void randomlyCorrupted() throws Exception {
+        // Whatever a corrupted byte does, both must agree on the result (or the fast path must pass).
+        Random random = new Random(1);
+        Script redeem = multiSig(2, key1, key2, key3);
+        Script p2shPubKey = payToScriptHash(redeem);
+        byte[] p2shSig = multiSigScriptSig(redeem, sign(key1, redeem), sign(key3, redeem));
+        Transaction p2shTx = tx;
+        Script addressPubKey = payToAddress(key1);
+        byte[] addressSig = scriptSig(sign(key1, addressPubKey), key1.getPubKey());
+        Transaction addressTx = tx;
+        for (int i = 0; i < 30; i++) {
+            tx = addressTx;
+            byte[] corrupted = addressSig.clone();
+            corrupted[random.nextInt(corrupted.length)] ^= 1 << random.nextInt(8);
+            checkCorrupted(corrupted, addressPubKey);
+            tx = p2shTx;
+            corrupted = p2shSig.clone();
+            corrupted[random.nextInt(corrupted.length)] ^= 1 << random.nextInt(8);
+            checkCorrupted(corrupted, p2shPubKey);
+        }
+    }
+
+    private void checkCorrupted(byte[] scriptSig, Script scriptPubKey) throws Exception {
+        boolean recognised;
+        try {
+            recognised = StandardScripts.correctlySpends(tx, 0, scriptSig, scriptPubKey.getProgram(), true, null);
+        } catch (ScriptException e) {
+            recognised = true;
+        }
+        try {
+            new Script(scriptSig);
+        } catch (ScriptException e) {
+            return;  // Doesn't even parse, so the interpreter can't run it. The fast path must have rejected it.
+        }
+        check(recognised, scriptSig, scriptPubKey, true);
+    }
+}
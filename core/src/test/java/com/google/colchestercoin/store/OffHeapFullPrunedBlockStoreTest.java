@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.store;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static StoredTransactionOutput output(int n, int scriptLength, boolean coinbase) {
+        byte[] script = new byte[scriptLength];
+        for (int i = 0; i < scriptLength; i++)
+            script[i] = (byte) (n + i);
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) n, (byte) (n >> 8)}), n & 3,
+                BigInteger.valueOf(n * 1000L), n, coinbase, script);
+    }
+
+    private static void assertSame(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void outputs() throws Exception {
+        OffHeapFullPrunedBlockStore store = new OffHeapFullPrunedBlockStore(params, 10, 0);
+        List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 2000; i++) {
+            StoredTransactionOutput out = output(i, i % 300, i % 7 == 0);
+            outs.add(out);
+            store.addUnspentTransactionOutput(out);
+        }
+        for (StoredTransactionOutput out : outs)
+            assertSame(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertTrue(store.hasUnspentOutputs(outs.get(5).getHash(), 4));
+        assertFalse(store.hasUnspentOutputs(outs.get(5).getHash(), 1));
+
+        for (int i = 0; i < 2000; i += 2)
+            store.removeUnspentTransactionOutput(outs.get(i));
+        assertEquals(1000, store.getUnspentOutputCount());
+        // The freed records are reused.
+        long bytes = store.getOffHeapBytes();
+        for (int i = 0; i < 2000; i += 2)
+            store.addUnspentTransactionOutput(outs.get(i));
+        assertEquals(bytes, store.getOffHeapBytes());
+        for (StoredTransactionOutput out : outs)
+            assertSame(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+
+        try {
+            store.removeUnspentTransactionOutput(output(5000, 25, false));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void batches() throws Exception {
+        OffHeapFullPrunedBlockStore store = new OffHeapFullPrunedBlockStore(params, 10);
+        StoredTransactionOutput kept = output(1, 25, false);
+        StoredTransactionOutput spent = output(2, 25, false);
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+
+        // An aborted batch leaves everything as it was.
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput added = output(3, 35, true);
+        StoredTransactionOutput addedAndSpent = output(4, 25, false);
+        store.addUnspentTransactionOutput(added);
+        store.addUnspentTransactionOutput(addedAndSpent);
+        store.removeUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(addedAndSpent);
+        assertSame(added, store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertNull(store.getTransactionOutput(addedAndSpent.getHash(), addedAndSpent.getIndex()));
+        assertSame(spent, store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertSame(kept, store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertEquals(2, store.getUnspentOutputCount());
+
+        // A committed one keeps its changes.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(added);
+        store.removeUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        assertSame(added, store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertEquals(2, store.getUnspentOutputCount());
+
+        // A re-org begins again for each block without committing in between, and aborts them all together.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(added);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(spent);
+        store.abortDatabaseBatchWrite();
+        assertSame(added, store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 6; i++) {
+            block = block.createNextBlock(new ECKey().toAddress(params));
+            blocks.add(block);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, long magic, long size, byte[] bytes) throws IOException {
+        byte[] magicBytes = new byte[4];
+        Utils.uint32ToByteArrayBE(magic, magicBytes, 0);
+        out.write(magicBytes);
+        Utils.uint32ToByteStreamLE(size, out);
+        out.write(bytes);
+    }
+
+    private static File writeFile(ByteArrayOutputStream out) throws IOException {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.toByteArray());
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    private List<File> writeFiles() throws IOException {
+        long magic = params.getPacketMagic();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            writeRecord(out, magic, blocks.get(i).bitcoinSerialize().length, blocks.get(i).bitcoinSerialize());
+            // Junk between blocks, including a record with an impossible length.
+            out.write(new byte[] {1, 2, 3});
+            writeRecord(out, magic, Block.MAX_BLOCK_SIZE * 4, new byte[0]);
+        }
+        File first = writeFile(out);
+
+        out = new ByteArrayOutputStream();
+        for (int i = 3; i < blocks.size(); i++) {
+            // The first byte of the magic just before a record.
+            out.write((int) (magic >>> 24));
+            writeRecord(out, magic, blocks.get(i).bitcoinSerialize().length, blocks.get(i).bitcoinSerialize());
+        }
+        // Preallocated space, then a record that runs past the end of the file.
+        out.write(new byte[10000]);
+        byte[] last = blocks.get(0).bitcoinSerialize();
+        writeRecord(out, magic, last.length, Arrays.copyOf(last, last.length - 1));
+        File second = writeFile(out);
+        return Arrays.asList(first, new File(first.getPath() + ".missing"), second);
+    }
+
+    @Test
+    public void readsBlocksInOrder() throws Exception {
+        List<File> files = writeFiles();
+        ExecutorService parser = Executors.newFixedThreadPool(3);
+        try {
+            // Parsed by the consumer, on the shared pool, and by parser threads with different amounts of look ahead.
+            check(new BlockFileLoader(params, files, 1, null));
+            check(new BlockFileLoader(params, files));
+            for (int lookAhead : new int[] {1, 2, BlockFileLoader.DEFAULT_LOOK_AHEAD})
+                check(new BlockFileLoader(params, files, lookAhead, parser));
+        } finally {
+            parser.shutdown();
+        }
+    }
+
+    private void check(BlockFileLoader loader) throws Exception {
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : loader)
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+        assertFalse(loader.hasNext());
+        for (Block block : loaded)
+            block.verify();
+    }
+
+    @Test
+    public void noFiles() throws Exception {
+        assertFalse(new BlockFileLoader(params, new ArrayList<File>()).hasNext());
+        ExecutorService parser = Executors.newSingleThreadExecutor();
+        assertFalse(new BlockFileLoader(params, new ArrayList<File>(), 1, parser).hasNext());
+        parser.shutdown();
+    }
+}
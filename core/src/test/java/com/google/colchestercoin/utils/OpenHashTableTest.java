@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.colchestercoin.utils;
+
+import com.google.colchestercoin.core.HashKey;
+import com.google.colchestercoin.core.OutPointKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OpenHashTableTest {
+    private static Sha256Hash hash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        // Share the low bits of the last long with other keys now and then, so probe chains form and get broken up.
+        if (random.nextBoolean())
+            bytes[31] = bytes[30] = 0;
+        return new Sha256Hash(bytes);
+    }
+
+    @Test
+    public void keys() throws Exception {
+        Sha256Hash hash = hash(new Random(1));
+        HashKey key = HashKey.of(hash);
+        assertEquals(hash, key.toSha256Hash());
+        assertEquals(hash.hashCode(), key.hashCode());
+        assertEquals(key, HashKey.of(hash.duplicate()));
+        byte[] padded = new byte[40];
+        System.arraycopy(hash.getBytes(), 0, padded, 8, 32);
+        assertEquals(key, HashKey.of(padded, 8));
+
+        OutPointKey outPoint = new OutPointKey(hash, 0xFFFFFFFFL);
+        assertEquals(hash, outPoint.getHash());
+        assertEquals(0xFFFFFFFFL, outPoint.getIndex());
+        assertEquals(outPoint, new OutPointKey(hash, 0xFFFFFFFFL));
+        assertFalse(outPoint.equals(new OutPointKey(hash, 0)));
+    }
+
+    @Test
+    public void longMapsOnAndOffHeap() throws Exception {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            Random random = new Random(2);
+            Sha256HashLongMap map = new Sha256HashLongMap(0, offHeap);
+            assertEquals(offHeap, map.isOffHeap());
+            Map<Sha256Hash, Long> expected = new HashMap<Sha256Hash, Long>();
+            List<Sha256Hash> keys = new ArrayList<Sha256Hash>();
+            keys.add(Sha256Hash.ZERO_HASH);
+            for (int i = 0; i < 5000; i++)
+                keys.add(hash(random));
+            // Puts, overwrites and removes in a random order, through several resizes.
+            for (int i = 0; i < 20000; i++) {
+                Sha256Hash key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                } else {
+                    long value = random.nextLong();
+                    map.put(key, value);
+                    expected.put(key, value);
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            for (Sha256Hash key : keys) {
+                Long value = expected.get(key);
+                assertEquals(value != null, map.containsKey(key));
+                assertEquals(value == null ? -1 : value, map.get(key, -1));
+                assertEquals(value == null ? -1 : value, map.get(key.getBytes(), 0, -1));
+            }
+            map.clear();
+            assertTrue(map.isEmpty());
+            assertFalse(map.containsKey(keys.get(1)));
+        }
+    }
+
+    @Test
+    public void outPoints() throws Exception {
+        OutPointLongMap map = new OutPointLongMap(0, true);
+        Sha256Hash hash = hash(new Random(3));
+        for (int i = 0; i < 1000; i++)
+            map.put(hash, i, i * 10);
+        map.put(Sha256Hash.ZERO_HASH, 0xFFFFFFFFL, 7);
+        assertEquals(1001, map.size());
+        for (int i = 0; i < 1000; i += 2)
+            assertTrue(map.remove(hash, i));
+        assertFalse(map.remove(hash, 0));
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? -1 : i * 10, map.get(hash, i, -1));
+        assertEquals(7, map.get(Sha256Hash.ZERO_HASH, 0xFFFFFFFFL, -1));
+        assertFalse(map.containsKey(Sha256Hash.ZERO_HASH, 0));
+    }
+
+    @Test
+    public void seeded() throws Exception {
+        // Hashes that share their last eight bytes, as someone grinding them could find.
+        Random random = new Random(5);
+        List<Sha256Hash> keys = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            for (int j = 24; j < 32; j++)
+                bytes[j] = (byte) j;
+            keys.add(new Sha256Hash(bytes));
+        }
+        Sha256HashLongMap map = new Sha256HashLongMap(keys.size(), false);
+        Sha256HashLongMap other = new Sha256HashLongMap(keys.size(), false);
+        for (Sha256Hash key : keys) {
+            map.put(key, 1);
+            other.put(key, 1);
+        }
+        // They don't all pile up after one home slot, and two tables put them in different places.
+        long[] slots = new long[keys.size()];
+        int differ = 0;
+        for (int i = 0; i < slots.length; i++) {
+            assertTrue(map.containsKey(keys.get(i)));
+            slots[i] = map.find();
+            assertTrue(other.containsKey(keys.get(i)));
+            if (other.find() != slots[i])
+                differ++;
+        }
+        Arrays.sort(slots);
+        int runs = 1;
+        for (int i = 1; i < slots.length; i++) {
+            if (slots[i] != slots[i - 1] + 1)
+                runs++;
+        }
+        assertTrue(runs > slots.length / 5);
+        assertTrue(differ > slots.length / 2);
+    }
+
+    @Test
+    public void objectValues() throws Exception {
+        Random random = new Random(4);
+        Sha256HashMap<String> map = new Sha256HashMap<String>();
+        Map<Sha256Hash, String> expected = new HashMap<Sha256Hash, String>();
+        List<Sha256Hash> keys = new ArrayList<Sha256Hash>();
+        keys.add(Sha256Hash.ZERO_HASH);
+        for (int i = 0; i < 2000; i++)
+            keys.add(hash(random));
+        for (int i = 0; i < 10000; i++) {
+            Sha256Hash key = keys.get(random.nextInt(keys.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = Integer.toString(i);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Sha256Hash key : keys)
+            assertEquals(expected.get(key), map.get(key));
+    }
+}
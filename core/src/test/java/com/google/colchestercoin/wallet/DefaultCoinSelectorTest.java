@@ -105,4 +105,32 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
         assertEquals(t1.getOutput(0), candidates.get(1));
         assertEquals(t3.getOutput(0), candidates.get(2));
     }
+
+    private static TransactionOutput buildingOutput(BigInteger value, int depth) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(value, new ECKey());
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        tx.getConfidence().setDepthInBlocks(depth);
+        return tx.getOutput(0);
+    }
+
+    @Test
+    public void largeCoinAgeOrdering() throws Exception {
+        // Value times depth doesn't fit in a long for these, but they must still sort by it.
+        BigInteger large = NetworkParameters.MAX_MONEY.subtract(BigInteger.ONE);
+        TransactionOutput older = buildingOutput(large, 3000000);
+        TransactionOutput old = buildingOutput(large, 2000000);
+        TransactionOutput larger = buildingOutput(large.divide(BigInteger.valueOf(2)), 7000000);
+        TransactionOutput young = buildingOutput(Utils.COIN, 1);
+        ArrayList<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        candidates.add(young);
+        candidates.add(old);
+        candidates.add(larger);
+        candidates.add(older);
+        DefaultCoinSelector.sortOutputs(candidates);
+        assertEquals(larger, candidates.get(0));
+        assertEquals(older, candidates.get(1));
+        assertEquals(old, candidates.get(2));
+        assertEquals(young, candidates.get(3));
+    }
 }
@@ -0,0 +1,181 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.Address;
+import com.google.colchestercoin.core.AddressCache;
+import com.google.colchestercoin.core.Base58;
+import com.google.colchestercoin.core.DumpedPrivateKey;
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.NetworkParameters;
+import com.google.colchestercoin.params.MainNetParams;
+
+import java.util.Random;
+
+/**
+ * Times base58 encoding and decoding of addresses and private keys, parsing and rendering {@link Address}es, and
+ * parsing them through an {@link AddressCache} when a few hot addresses make up most of the strings. The byte at a
+ * time division the codec used to do is timed alongside for comparison. Takes the number of rounds as an optional
+ * argument.
+ */
+public class Base58Benchmark {
+    private static final NetworkParameters params = MainNetParams.get();
+    private static final int COUNT = 10000;
+
+    private interface Operation {
+        int run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Random random = new Random(1);
+        final byte[][] addressBytes = new byte[COUNT][];
+        final String[] addresses = new String[COUNT];
+        final Address[] parsed = new Address[COUNT];
+        final String[] keys = new String[COUNT / 10];
+        for (int i = 0; i < COUNT; i++) {
+            byte[] hash160 = new byte[20];
+            random.nextBytes(hash160);
+            addresses[i] = new Address(params, hash160).toString();
+            addressBytes[i] = Base58.decode(addresses[i]);
+        }
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new ECKey().getPrivateKeyEncoded(params).toString();
+        // Nine strings in ten are one of a hundred hot addresses.
+        final String[] hot = new String[COUNT];
+        for (int i = 0; i < COUNT; i++)
+            hot[i] = addresses[random.nextInt(10) != 0 ? random.nextInt(100) : random.nextInt(COUNT)];
+        final AddressCache cache = new AddressCache(params, 1000);
+
+        for (int round = 0; round < rounds; round++) {
+            System.out.println("Round " + (round + 1));
+            measure("Base58.encode, bytewise", new Operation() {
+                public int run(int i) {
+                    return slowEncode(addressBytes[i]).length();
+                }
+            });
+            measure("Base58.encode", new Operation() {
+                public int run(int i) {
+                    return Base58.encode(addressBytes[i]).length();
+                }
+            });
+            measure("Base58.decode, bytewise", new Operation() {
+                public int run(int i) throws Exception {
+                    return slowDecode(addresses[i]).length;
+                }
+            });
+            measure("Base58.decode", new Operation() {
+                public int run(int i) throws Exception {
+                    return Base58.decode(addresses[i]).length;
+                }
+            });
+            measure("Base58.decodeChecked", new Operation() {
+                public int run(int i) throws Exception {
+                    return Base58.decodeChecked(addresses[i]).length;
+                }
+            });
+            measure("new Address(params, String)", new Operation() {
+                public int run(int i) throws Exception {
+                    return (parsed[i] = new Address(params, addresses[i])).getVersion();
+                }
+            });
+            measure("Address.toString, new", new Operation() {
+                public int run(int i) {
+                    return new Address(params, parsed[i].getHash160()).toString().length();
+                }
+            });
+            measure("Address.toString, again", new Operation() {
+                public int run(int i) {
+                    return parsed[i].toString().length();
+                }
+            });
+            measure("new DumpedPrivateKey", new Operation() {
+                public int run(int i) throws Exception {
+                    return new DumpedPrivateKey(params, keys[i % keys.length]).getVersion();
+                }
+            });
+            measure("hot addresses, no cache", new Operation() {
+                public int run(int i) throws Exception {
+                    return new Address(params, hot[i]).getVersion();
+                }
+            });
+            measure("hot addresses, AddressCache", new Operation() {
+                public int run(int i) throws Exception {
+                    return cache.parse(hot[i]).getVersion();
+                }
+            });
+        }
+    }
+
+    private static void measure(String name, Operation operation) throws Exception {
+        int sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++)
+            sum += operation.run(i);
+        double nanos = (System.nanoTime() - start) / (double) COUNT;
+        System.out.println(String.format("  %-30s %8.0f ns  %10.0f/sec  (%d)", name, nanos, 1e9 / nanos, sum & 1));
+    }
+
+    // The codec as it was, dividing the whole number by 58 or 256 a byte at a time for every digit.
+
+    private static String slowEncode(byte[] input) {
+        input = input.clone();
+        int zeroCount = 0;
+        while (zeroCount < input.length && input[zeroCount] == 0)
+            ++zeroCount;
+        byte[] temp = new byte[input.length * 2];
+        int j = temp.length;
+        int startAt = zeroCount;
+        while (startAt < input.length) {
+            int remainder = 0;
+            for (int i = startAt; i < input.length; i++) {
+                int t = remainder * 256 + (input[i] & 0xFF);
+                input[i] = (byte) (t / 58);
+                remainder = t % 58;
+            }
+            if (input[startAt] == 0)
+                ++startAt;
+            temp[--j] = (byte) Base58.ALPHABET[remainder];
+        }
+        while (j < temp.length && temp[j] == Base58.ALPHABET[0])
+            ++j;
+        while (--zeroCount >= 0)
+            temp[--j] = (byte) Base58.ALPHABET[0];
+        char[] chars = new char[temp.length - j];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = (char) temp[j + i];
+        return new String(chars);
+    }
+
+    private static final int[] INDEXES = new int[128];
+    static {
+        for (int i = 0; i < Base58.ALPHABET.length; i++)
+            INDEXES[Base58.ALPHABET[i]] = i;
+    }
+
+    private static byte[] slowDecode(String input) {
+        byte[] input58 = new byte[input.length()];
+        for (int i = 0; i < input.length(); ++i)
+            input58[i] = (byte) INDEXES[input.charAt(i)];
+        int zeroCount = 0;
+        while (zeroCount < input58.length && input58[zeroCount] == 0)
+            ++zeroCount;
+        byte[] temp = new byte[input.length()];
+        int j = temp.length;
+        int startAt = zeroCount;
+        while (startAt < input58.length) {
+            int remainder = 0;
+            for (int i = startAt; i < input58.length; i++) {
+                int t = remainder * 58 + (input58[i] & 0xFF);
+                input58[i] = (byte) (t / 256);
+                remainder = t % 256;
+            }
+            if (input58[startAt] == 0)
+                ++startAt;
+            temp[--j] = (byte) remainder;
+        }
+        while (j < temp.length && temp[j] == 0)
+            ++j;
+        byte[] result = new byte[temp.length - j + zeroCount];
+        System.arraycopy(temp, j - zeroCount, result, 0, result.length);
+        return result;
+    }
+}
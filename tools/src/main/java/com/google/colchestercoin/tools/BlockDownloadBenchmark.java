@@ -0,0 +1,61 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.MainNetParams;
+import com.google.colchestercoin.store.SPVBlockStore;
+import com.google.colchestercoin.utils.BriefLogFormatter;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Syncs an empty SPV chain twice, once from a single download peer and once using
+ * {@link PeerGroup#setParallelBlockDownload(boolean)} (headers first, then blocks from all peers), and prints the time
+ * each took to get in sync. Block bodies are only needed from one week ago, as for a freshly created wallet. Takes the
+ * hosts to connect to as arguments, or uses the local node if there are none. Give it several peers or the parallel
+ * download has nothing to spread the requests over.
+ */
+public class BlockDownloadBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.init();
+        final NetworkParameters params = MainNetParams.get();
+        List<InetAddress> hosts = new ArrayList<InetAddress>();
+        for (String arg : args)
+            hosts.add(InetAddress.getByName(arg));
+        if (hosts.isEmpty())
+            hosts.add(InetAddress.getLocalHost());
+        long fastCatchupTimeSecs = System.currentTimeMillis() / 1000 - 86400 * 7;
+
+        run(params, hosts, fastCatchupTimeSecs, false);
+        run(params, hosts, fastCatchupTimeSecs, true);
+    }
+
+    private static void run(NetworkParameters params, List<InetAddress> hosts, long fastCatchupTimeSecs,
+                            boolean parallel) throws Exception {
+        File file = File.createTempFile("benchmark", ".spvchain");
+        file.delete();
+        file.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, file);
+        BlockChain chain = new BlockChain(params, store);
+        PeerGroup peerGroup = new PeerGroup(params, chain);
+        peerGroup.setMaxConnections(hosts.size());
+        peerGroup.setFastCatchupTimeSecs(fastCatchupTimeSecs);
+        peerGroup.setParallelBlockDownload(parallel);
+        for (InetAddress host : hosts)
+            peerGroup.addAddress(host);
+        peerGroup.startAndWait();
+        peerGroup.waitForPeers(hosts.size()).get();
+
+        long start = System.currentTimeMillis();
+        peerGroup.downloadBlockChain();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        int blocks = chain.getBestChainHeight();
+        System.out.println(String.format("%s sync from %d peers: %d blocks in %.1f seconds, %.1f blocks/sec",
+                parallel ? "Headers first parallel" : "Single peer", hosts.size(), blocks, elapsed / 1000.0,
+                blocks * 1000.0 / elapsed));
+        peerGroup.stopAndWait();
+        store.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.utils.BlockFileLoader;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a set of block files in the reference client format and measures how fast they can be read, parsed and
+ * checked with {@link Block#verify()}: first with a stream on a single thread, as {@link BlockFileLoader} used to,
+ * then with {@link BlockFileLoader}. Takes the total size of the files in megabytes and the directory to write them
+ * to as optional arguments. The files are deleted afterwards.
+ */
+public class BlockFileLoaderBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    // The reference client starts a new file at this size.
+    private static final int FILE_SIZE = 128 * 1024 * 1024;
+    private static final int TRANSACTIONS_PER_BLOCK = 1500;
+    private static final int DISTINCT_BLOCKS = 16;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+        File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"));
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+
+        List<File> files = generate(directory, megabytes * 1024 * 1024);
+        try {
+            long bytes = 0;
+            for (File file : files)
+                bytes += file.length();
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                int count = 0;
+                for (File file : files)
+                    count += readSerially(file);
+                report("Stream, one thread", count, bytes, start);
+
+                start = System.nanoTime();
+                count = 0;
+                for (Block block : new BlockFileLoader(params, files)) {
+                    block.verify();
+                    count++;
+                }
+                report("BlockFileLoader", count, bytes, start);
+            }
+        } finally {
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    private static List<File> generate(File directory, long totalBytes) throws Exception {
+        System.out.println("Generating " + totalBytes / 1024 / 1024 + " MB of blocks in " + directory);
+        Random random = new Random(1);
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < DISTINCT_BLOCKS; i++) {
+            block = block.createNextBlock(new ECKey().toAddress(params));
+            for (int j = 0; j < TRANSACTIONS_PER_BLOCK; j++)
+                block.addTransaction(randomTransaction(random));
+            block.solve();
+            blocks.add(block.bitcoinSerialize());
+        }
+
+        List<File> files = new ArrayList<File>();
+        long written = 0;
+        while (written < totalBytes) {
+            File file = new File(directory, String.format("blk%05d.dat", files.size()));
+            files.add(file);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            byte[] magic = new byte[4];
+            Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+            try {
+                for (long fileBytes = 0; fileBytes < FILE_SIZE && written < totalBytes; ) {
+                    byte[] bytes = blocks.get(random.nextInt(blocks.size()));
+                    out.write(magic);
+                    Utils.uint32ToByteStreamLE(bytes.length, out);
+                    out.write(bytes);
+                    fileBytes += 8 + bytes.length;
+                    written += 8 + bytes.length;
+                }
+            } finally {
+                out.close();
+            }
+        }
+        return files;
+    }
+
+    private static Transaction randomTransaction(Random random) {
+        Transaction tx = new Transaction(params);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        // About the size of a signature and a compressed public key.
+        byte[] scriptSig = new byte[107];
+        random.nextBytes(scriptSig);
+        tx.addInput(new TransactionInput(params, tx, scriptSig, new TransactionOutPoint(params, 0, new Sha256Hash(hash))));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        tx.addOutput(BigInteger.valueOf(random.nextInt(1000000) + 1), new ECKey().toAddress(params));
+        return tx;
+    }
+
+    private static int readSerially(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int count = 0;
+        try {
+            byte[] header = new byte[8];
+            while (in.read(header) == header.length) {
+                byte[] bytes = new byte[(int) Utils.readUint32(header, 4)];
+                in.readFully(bytes);
+                new Block(params, bytes).verify();
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private static void report(String name, int blocks, long bytes, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("  %-20s %8.0f blocks/sec %8.1f MB/sec", name, blocks / seconds,
+                bytes / seconds / 1024 / 1024));
+    }
+}
@@ -8,15 +8,44 @@ import com.google.colchestercoin.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-/** Very thin wrapper around {@link com.google.colchestercoin.utils.BlockFileLoader} */
+/**
+ * Very thin wrapper around {@link com.google.colchestercoin.utils.BlockFileLoader}. With --bulk, a full store is filled
+ * using {@link FullPrunedBlockChain#beginBulkImport(StoredBlock, int)}.
+ */
 public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+    private static final int REPORT_INTERVAL = 10000;
+
+    public static void main(String[] rawArgs)
+            throws BlockStoreException, VerificationException, PrunedException, IOException {
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore] [options]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
+        System.out.println("       --bulk                     Commit blocks to a full store in batches");
+        System.out.println("       --blocks-per-commit=N      Size of the batches, 1000 by default");
+        System.out.println("       --checkpoints=FILE         With --bulk, don't run scripts up to the last checkpoint");
+        boolean bulk = false;
+        int blocksPerCommit = 1000;
+        String checkpoints = null;
+        List<String> argList = new ArrayList<String>();
+        for (String arg : rawArgs) {
+            if (arg.equals("--bulk"))
+                bulk = true;
+            else if (arg.startsWith("--blocks-per-commit="))
+                blocksPerCommit = Integer.parseInt(arg.substring("--blocks-per-commit=".length()));
+            else if (arg.startsWith("--checkpoints="))
+                checkpoints = arg.substring("--checkpoints=".length());
+            else
+                argList.add(arg);
+        }
+        String[] args = argList.toArray(new String[argList.size()]);
         Preconditions.checkArgument(args.length == 2 || args.length == 3);
+        Preconditions.checkArgument(checkpoints == null || bulk, "--checkpoints needs --bulk");
         
         NetworkParameters params;
         if (args[0].equals("test"))
@@ -48,9 +77,42 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
+        if (bulk) {
+            Preconditions.checkArgument(chain instanceof FullPrunedBlockChain, "--bulk needs a full store");
+            StoredBlock trusted = null;
+            if (checkpoints != null) {
+                trusted = new CheckpointManager(params, new FileInputStream(checkpoints)).getLatestCheckpoint();
+                System.out.println("Not running scripts up to height " + trusted.getHeight());
+            }
+            ((FullPrunedBlockChain) chain).beginBulkImport(trusted, blocksPerCommit);
+        }
+
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
+
+        // Time spent in hasNext() and next() is time the loader hadn't finished reading and parsing the next block.
+        long start = System.nanoTime(), parseNanos = 0;
+        int blocks = 0;
+        while (true) {
+            long parseStart = System.nanoTime();
+            if (!loader.hasNext())
+                break;
+            Block block = loader.next();
+            parseNanos += System.nanoTime() - parseStart;
             chain.add(block);
+            if (++blocks % REPORT_INTERVAL == 0)
+                report(chain, blocks, start, parseNanos);
+        }
+        if (bulk)
+            ((FullPrunedBlockChain) chain).endBulkImport();
+        report(chain, blocks, start, parseNanos);
+    }
+
+    private static void report(AbstractBlockChain chain, int blocks, long start, long parseNanos) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String line = String.format("Height %d: %d blocks, %.0f blocks/sec, %d ms waiting for blocks to be parsed",
+                chain.getBestChainHeight(), blocks, blocks / seconds, parseNanos / 1000000);
+        if (chain instanceof FullPrunedBlockChain)
+            line += ", " + ((FullPrunedBlockChain) chain).getImportStatistics();
+        System.out.println(line);
     }
 }
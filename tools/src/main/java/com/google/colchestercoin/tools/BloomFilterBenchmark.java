@@ -0,0 +1,157 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.BloomFilter;
+import com.google.colchestercoin.core.VarInt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Times filling {@link BloomFilter}s the size a wallet of the given number of elements would ask for, and checking
+ * objects against them, mixing keys and key hashes as a wallet does. Filling is timed with a copy of the old insert,
+ * which hashed the object again for every hash function, with one insert per object and with a single batch insert.
+ * The filters are checked to come out the same whichever way they were filled.</p>
+ *
+ * <p>Takes the element counts as optional arguments.</p>
+ */
+public class BloomFilterBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = {1000, 10 * 1000, 100 * 1000, 200 * 1000};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                counts[i] = Integer.parseInt(args[i]);
+        }
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + (round + 1));
+            for (int count : counts) {
+                List<byte[]> elements = randomObjects(random, count);
+                List<byte[]> others = randomObjects(random, count);
+                long tweak = random.nextInt() & 0xFFFFFFFFL;
+                BloomFilter batch = new BloomFilter(count, 0.0005, tweak);
+                BloomFilter single = new BloomFilter(count, 0.0005, tweak);
+                byte[] template = batch.bitcoinSerialize();
+                VarInt size = new VarInt(template, 0);
+                long hashFuncs = readUint32(template, size.getOriginalSizeInBytes() + (int) size.value);
+                String name = String.format("%7d elements, %5d bytes, %2d hashes", count, size.value, hashFuncs);
+
+                long start = System.nanoTime();
+                byte[] reference = new byte[(int) size.value];
+                for (byte[] element : elements)
+                    referenceInsert(reference, hashFuncs, tweak, element);
+                report(name, "insert, hash per function", count, start);
+
+                start = System.nanoTime();
+                for (byte[] element : elements)
+                    single.insert(element);
+                report(name, "insert", count, start);
+
+                start = System.nanoTime();
+                batch.insert(elements);
+                report(name, "batch insert", count, start);
+
+                byte[] expected = template.clone();
+                System.arraycopy(reference, 0, expected, size.getOriginalSizeInBytes(), reference.length);
+                if (!Arrays.equals(expected, batch.bitcoinSerialize()) || !batch.equals(single))
+                    throw new IllegalStateException("Filters differ for " + count + " elements");
+
+                start = System.nanoTime();
+                boolean[] inserted = batch.contains(elements);
+                report(name, "contains, inserted", count, start);
+                start = System.nanoTime();
+                boolean[] other = batch.contains(others);
+                report(name, "contains, not inserted", count, start);
+                int falsePositives = 0;
+                for (int i = 0; i < count; i++) {
+                    if (!inserted[i])
+                        throw new IllegalStateException("Inserted element not found");
+                    if (other[i])
+                        falsePositives++;
+                }
+                System.out.println(String.format("  %s  false positive rate %.5f, expected %.5f", name,
+                        (double) falsePositives / count, batch.getFalsePositiveRate(count)));
+            }
+        }
+        System.exit(0);
+    }
+
+    // Keys and key hashes, as a wallet inserts.
+    private static List<byte[]> randomObjects(Random random, int count) {
+        List<byte[]> objects = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] object = new byte[i % 2 == 0 ? 33 : 20];
+            random.nextBytes(object);
+            objects.add(object);
+        }
+        return objects;
+    }
+
+    private static void report(String name, String test, int count, long start) {
+        double nanos = (double) (System.nanoTime() - start) / count;
+        System.out.println(String.format("  %s  %-26s %8.1f ns per object", name, test, nanos));
+    }
+
+    private static long readUint32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8) | ((bytes[offset + 2] & 0xFFL) << 16) |
+                ((bytes[offset + 3] & 0xFFL) << 24);
+    }
+
+    // As BloomFilter.insert did.
+    private static void referenceInsert(byte[] data, long hashFuncs, long tweak, byte[] object) {
+        for (int i = 0; i < hashFuncs; i++) {
+            int bit = murmur3(i, tweak, object, data.length * 8);
+            data[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    private static int rotl32(int x, int r) {
+        return (x << r) | (x >>> (32 - r));
+    }
+
+    private static int murmur3(int hashNum, long tweak, byte[] object, int bits) {
+        int h1 = (int) (hashNum * 0xFBA4C795L + tweak);
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int numBlocks = (object.length / 4) * 4;
+        for (int i = 0; i < numBlocks; i += 4) {
+            int k1 = (object[i] & 0xFF) | ((object[i + 1] & 0xFF) << 8) | ((object[i + 2] & 0xFF) << 16) |
+                    ((object[i + 3] & 0xFF) << 24);
+            k1 *= c1;
+            k1 = rotl32(k1, 15);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = rotl32(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        int k1 = 0;
+        switch (object.length & 3) {
+            case 3:
+                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[numBlocks] & 0xff);
+                k1 *= c1;
+                k1 = rotl32(k1, 15);
+                k1 *= c2;
+                h1 ^= k1;
+                // Fall through.
+            default:
+                break;
+        }
+        h1 ^= object.length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return (int) ((h1 & 0xFFFFFFFFL) % bits);
+    }
+}
@@ -0,0 +1,216 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Times a {@link FilteredBlockServer} serving light clients over loopback. A minimal node accepts connections and
+ * answers filterload and getdata messages from the server, one thread per connection as with real peers. Each client
+ * has wallet keys of its own, loads a filter of them and asks for every block at once, then reads filtered blocks and
+ * transactions until it has them all.</p>
+ *
+ * <p>The blocks are full of transactions with two inputs and two outputs paying to addresses, of which one in two
+ * hundred pays one of the clients. Takes the number of blocks, of transactions per block and the numbers of clients to
+ * try as optional arguments.</p>
+ */
+public class FilteredBlockServingBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int KEYS_PER_CLIENT = 20;
+
+    public static void main(String[] args) throws Exception {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int[] clientCounts = {1, 4, 16, 64};
+        if (args.length > 2) {
+            clientCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                clientCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+        int maxClients = 0;
+        for (int count : clientCounts)
+            maxClients = Math.max(maxClients, count);
+
+        Random random = new Random(1);
+        List<List<ECKey>> clientKeys = new ArrayList<List<ECKey>>();
+        for (int c = 0; c < maxClients; c++) {
+            List<ECKey> keys = new ArrayList<ECKey>();
+            for (int i = 0; i < KEYS_PER_CLIENT; i++)
+                keys.add(new ECKey());
+            clientKeys.add(keys);
+        }
+        final FilteredBlockServer server = new FilteredBlockServer(params, blockCount);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        ECKey stranger = new ECKey();
+        Block last = params.getGenesisBlock();
+        long addTime = 0;
+        for (int b = 0; b < blockCount; b++) {
+            Block block = last.createNextBlockWithCoinbase(stranger.getPubKey(), Utils.toNanoCoins(50, 0));
+            for (int t = 0; t < txsPerBlock; t++) {
+                Transaction tx = new Transaction(params);
+                for (int i = 0; i < 2; i++) {
+                    byte[] prevHash = new byte[32];
+                    random.nextBytes(prevHash);
+                    byte[] scriptSig = new byte[107];
+                    random.nextBytes(scriptSig);
+                    scriptSig[0] = 72;
+                    scriptSig[73] = 33;
+                    tx.addInput(new TransactionInput(params, tx, scriptSig,
+                            new TransactionOutPoint(params, i, new Sha256Hash(prevHash))));
+                }
+                for (int i = 0; i < 2; i++) {
+                    byte[] hash = new byte[20];
+                    random.nextBytes(hash);
+                    Address to = random.nextInt(200) == 0
+                            ? clientKeys.get(random.nextInt(maxClients)).get(random.nextInt(KEYS_PER_CLIENT)).toAddress(params)
+                            : new Address(params, hash);
+                    tx.addOutput(BigInteger.valueOf(1 + random.nextInt(100000000)), to);
+                }
+                block.addTransaction(tx);
+            }
+            block = new Block(params, block.bitcoinSerialize());
+            long start = System.nanoTime();
+            server.addBlock(block);
+            addTime += System.nanoTime() - start;
+            hashes.add(block.getHash());
+            last = block;
+        }
+        System.out.println(String.format("%d blocks of %d transactions, %.2f ms per block to add", blockCount,
+                txsPerBlock + 1, addTime / 1e6 / blockCount));
+
+        final ServerSocket socket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+        Thread node = new Thread("loopback node") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        serve(server, socket.accept());
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        node.setDaemon(true);
+        node.start();
+
+        for (int round = 0; round < 2; round++) {
+            for (int clients : clientCounts) {
+                final CountDownLatch done = new CountDownLatch(clients);
+                final AtomicLong matched = new AtomicLong();
+                final AtomicLong bytes = new AtomicLong();
+                long start = System.nanoTime();
+                for (int c = 0; c < clients; c++) {
+                    final BloomFilter filter = new BloomFilter(KEYS_PER_CLIENT * 2, 0.0001, random.nextInt());
+                    for (ECKey key : clientKeys.get(c)) {
+                        filter.insert(key.getPubKey());
+                        filter.insert(key.getPubKeyHash());
+                    }
+                    Thread client = new Thread("client " + c) {
+                        @Override
+                        public void run() {
+                            try {
+                                download(socket.getLocalPort(), filter, hashes, matched, bytes);
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    };
+                    client.start();
+                }
+                done.await();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format("%3d clients: %7.0f ms, %7.1f filtered blocks per second, " +
+                        "%5d transactions matched, %8d bytes received", clients, seconds * 1000,
+                        clients * blockCount / seconds, matched.get(), bytes.get()));
+            }
+        }
+        socket.close();
+        System.exit(0);
+    }
+
+    // Answers filterload and getdata from one client until it goes away.
+    private static void serve(final FilteredBlockServer server, final Socket socket) {
+        Thread thread = new Thread("loopback connection") {
+            @Override
+            public void run() {
+                BitcoinSerializer serializer = new BitcoinSerializer(params);
+                BloomFilter filter = null;
+                try {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    while (true) {
+                        Message message = serializer.deserialize(in);
+                        if (message instanceof BloomFilter) {
+                            filter = (BloomFilter) message;
+                        } else if (message instanceof GetDataMessage && filter != null) {
+                            for (InventoryItem item : ((GetDataMessage) message).getItems()) {
+                                List<Message> served = server.serve(item.hash, filter);
+                                for (Message m : served)
+                                    serializer.serialize(m, out);
+                            }
+                            out.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    // Client went away.
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void download(int port, BloomFilter filter, List<Sha256Hash> hashes, AtomicLong matched,
+                                 AtomicLong bytes) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            BitcoinSerializer serializer = new BitcoinSerializer(params);
+            OutputStream out = socket.getOutputStream();
+            serializer.serialize(filter, out);
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (Sha256Hash hash : hashes)
+                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
+            serializer.serialize(getdata, out);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            int blocksLeft = hashes.size();
+            int transactionsLeft = 0;
+            while (blocksLeft > 0 || transactionsLeft > 0) {
+                Message message = serializer.deserialize(in);
+                bytes.addAndGet(message.getMessageSize());
+                if (message instanceof FilteredBlock) {
+                    blocksLeft--;
+                    int count = ((FilteredBlock) message).getTransactionHashes().size();
+                    transactionsLeft += count;
+                    matched.addAndGet(count);
+                } else if (message instanceof Transaction) {
+                    transactionsLeft--;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures double SHA-256 hashing throughput on 1, 2, 4 ... up to twice the number of cores threads, with
+ * {@link Utils#doubleDigest(byte[], int, int)} and with a single digest shared behind a lock, as Utils used to have.
+ * Hashes block headers, transaction sized inputs and whole one megabyte blocks, then works out transaction hashes
+ * from a parsed block. Takes the number of seconds to spend on each measurement as an optional argument.
+ */
+public class HashBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private interface Hasher {
+        byte[] doubleDigest(byte[] input, int offset, int length);
+    }
+
+    private static final Hasher PER_THREAD = new Hasher() {
+        @Override
+        public byte[] doubleDigest(byte[] input, int offset, int length) {
+            return Utils.doubleDigest(input, offset, length);
+        }
+    };
+
+    private static final Hasher SHARED = new Hasher() {
+        private final MessageDigest digest = Utils.newSha256Digest();
+
+        @Override
+        public byte[] doubleDigest(byte[] input, int offset, int length) {
+            synchronized (digest) {
+                digest.reset();
+                digest.update(input, offset, length);
+                return digest.digest(digest.digest());
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(cores + " cores");
+        Random random = new Random(1);
+        for (int size : new int[] {Block.HEADER_SIZE, 250, Block.MAX_BLOCK_SIZE}) {
+            byte[] input = new byte[size];
+            random.nextBytes(input);
+            System.out.println(size + " byte inputs");
+            // Untimed, so the first measurement isn't of the JIT.
+            run(PER_THREAD, input, 1, seconds);
+            run(SHARED, input, 1, seconds);
+            for (int threads = 1; threads <= cores * 2; threads *= 2) {
+                report("Per thread", threads, size, run(PER_THREAD, input, threads, seconds));
+                report("Shared", threads, size, run(SHARED, input, threads, seconds));
+            }
+        }
+
+        // Transaction hashes of a parsed block, which are worked out from the block's own bytes.
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        for (int i = 0; i < 2000; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] scriptSig = new byte[107];
+            random.nextBytes(scriptSig);
+            tx.addInput(new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, 0, Sha256Hash.create(scriptSig))));
+            tx.addOutput(BigInteger.valueOf(1000000), new ECKey().toAddress(params));
+            block.addTransaction(tx);
+        }
+        byte[] blockBytes = block.bitcoinSerialize();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int count = 0;
+            while (System.nanoTime() - start < seconds * 1e9) {
+                for (Transaction tx : new Block(params, blockBytes).getTransactions())
+                    tx.getHash();
+                count++;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("  Parse and hash block %10.0f tx/sec",
+                    count * block.getTransactions().size() / elapsed));
+        }
+    }
+
+    // Returns the number of hashes done per second by the given number of threads.
+    private static double run(final Hasher hasher, final byte[] input, int threadCount, final double seconds)
+            throws InterruptedException {
+        final long[] counts = new long[threadCount];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    long end = System.nanoTime() + (long) (seconds * 1e9);
+                    long count = 0;
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < 16; i++)
+                            hasher.doubleDigest(input, 0, input.length);
+                        count += 16;
+                    }
+                    counts[index] = count;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        return total / elapsed;
+    }
+
+    private static void report(String name, int threads, int size, double perSecond) {
+        System.out.println(String.format("  %-10s %2d threads %12.0f hashes/sec %8.1f MB/sec", name, threads,
+                perSecond, perSecond * size / 1024 / 1024));
+    }
+}
@@ -0,0 +1,154 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.HashKey;
+import com.google.colchestercoin.core.OutPointKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.utils.OutPointLongMap;
+import com.google.colchestercoin.utils.Sha256HashLongMap;
+import com.google.colchestercoin.utils.Sha256HashMap;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Fills maps keyed by hashes and by outpoints with random entries and reports how much heap each entry takes up, how
+ * much memory each map uses outside the heap and how long a lookup takes, for a HashMap with the usual key objects,
+ * a HashMap with {@link HashKey}s or {@link OutPointKey}s, and the open addressing maps on and off the heap. Takes the
+ * number of entries as an optional argument, a million by default. Run with a heap of a gigabyte or more.
+ */
+public class HashMapBenchmark {
+    private static final int LOOKUPS = 2000000;
+
+    private interface Filler {
+        Object fill(Sha256Hash[] hashes);
+        long lookup(Object map, Sha256Hash hash);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(1);
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            hashes[i] = new Sha256Hash(bytes);
+        }
+        // Lookups are of copies, as they would be of hashes just read from the network.
+        final Sha256Hash[] probes = new Sha256Hash[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            probes[i] = new Sha256Hash(hashes[random.nextInt(count)].getBytes().clone());
+
+        System.out.println(count + " hashes");
+        measure("HashMap<Sha256Hash, Long>", new Filler() {
+            public Object fill(Sha256Hash[] hashes) {
+                HashMap<Sha256Hash, Long> map = new HashMap<Sha256Hash, Long>();
+                for (int i = 0; i < hashes.length; i++)
+                    map.put(new Sha256Hash(hashes[i].getBytes().clone()), (long) i);
+                return map;
+            }
+            @SuppressWarnings("unchecked")
+            public long lookup(Object map, Sha256Hash hash) {
+                return ((HashMap<Sha256Hash, Long>) map).get(hash);
+            }
+        }, hashes, probes);
+        measure("HashMap<HashKey, Long>", new Filler() {
+            public Object fill(Sha256Hash[] hashes) {
+                HashMap<HashKey, Long> map = new HashMap<HashKey, Long>();
+                for (int i = 0; i < hashes.length; i++)
+                    map.put(HashKey.of(hashes[i]), (long) i);
+                return map;
+            }
+            @SuppressWarnings("unchecked")
+            public long lookup(Object map, Sha256Hash hash) {
+                return ((HashMap<HashKey, Long>) map).get(HashKey.of(hash));
+            }
+        }, hashes, probes);
+        for (final boolean offHeap : new boolean[] {false, true}) {
+            measure("Sha256HashLongMap" + (offHeap ? " off heap" : ""), new Filler() {
+                public Object fill(Sha256Hash[] hashes) {
+                    Sha256HashLongMap map = new Sha256HashLongMap(0, offHeap);
+                    for (int i = 0; i < hashes.length; i++)
+                        map.put(hashes[i], i);
+                    return map;
+                }
+                public long lookup(Object map, Sha256Hash hash) {
+                    return ((Sha256HashLongMap) map).get(hash, -1);
+                }
+            }, hashes, probes);
+        }
+        measure("Sha256HashMap<Long>", new Filler() {
+            public Object fill(Sha256Hash[] hashes) {
+                Sha256HashMap<Long> map = new Sha256HashMap<Long>();
+                for (int i = 0; i < hashes.length; i++)
+                    map.put(hashes[i], (long) i);
+                return map;
+            }
+            @SuppressWarnings("unchecked")
+            public long lookup(Object map, Sha256Hash hash) {
+                return ((Sha256HashMap<Long>) map).get(hash);
+            }
+        }, hashes, probes);
+
+        // Outpoints: the same hashes, each with an output index.
+        System.out.println(count + " outpoints");
+        measure("HashMap<OutPointKey, Long>", new Filler() {
+            public Object fill(Sha256Hash[] hashes) {
+                HashMap<OutPointKey, Long> map = new HashMap<OutPointKey, Long>();
+                for (int i = 0; i < hashes.length; i++)
+                    map.put(new OutPointKey(hashes[i], i & 3), (long) i);
+                return map;
+            }
+            @SuppressWarnings("unchecked")
+            public long lookup(Object map, Sha256Hash hash) {
+                Long value = ((HashMap<OutPointKey, Long>) map).get(new OutPointKey(hash, 0));
+                return value == null ? -1 : value;
+            }
+        }, hashes, probes);
+        for (final boolean offHeap : new boolean[] {false, true}) {
+            measure("OutPointLongMap" + (offHeap ? " off heap" : ""), new Filler() {
+                public Object fill(Sha256Hash[] hashes) {
+                    OutPointLongMap map = new OutPointLongMap(0, offHeap);
+                    for (int i = 0; i < hashes.length; i++)
+                        map.put(hashes[i], i & 3, i);
+                    return map;
+                }
+                public long lookup(Object map, Sha256Hash hash) {
+                    return ((OutPointLongMap) map).get(hash, 0, -1);
+                }
+            }, hashes, probes);
+        }
+    }
+
+    private static void measure(String name, Filler filler, Sha256Hash[] hashes, Sha256Hash[] probes) {
+        long before = usedHeap();
+        Object map = filler.fill(hashes);
+        long heap = usedHeap() - before;
+        long offHeap = 0;
+        if (map instanceof Sha256HashLongMap && ((Sha256HashLongMap) map).isOffHeap())
+            offHeap = ((Sha256HashLongMap) map).sizeInBytes();
+        if (map instanceof OutPointLongMap && ((OutPointLongMap) map).isOffHeap())
+            offHeap = ((OutPointLongMap) map).sizeInBytes();
+        long best = Long.MAX_VALUE;
+        long sum = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (Sha256Hash probe : probes)
+                sum += filler.lookup(map, probe);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perMillion = 1000000.0 / hashes.length;
+        System.out.println(String.format("  %-28s heap %6.1f MB/million  off heap %6.1f MB/million  lookup %5.0f ns" +
+                        "  (%d)", name, heap * perMillion / 1024 / 1024, offHeap * perMillion / 1024 / 1024,
+                (double) best / probes.length, sum & 1));
+        // Keeps the map alive until the lookups are done.
+        if (map.hashCode() == 42)
+            System.out.println();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,196 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Fills a {@link FeeRateMemoryPool} with transactions, a fifth of which spend an earlier one, and measures how fast
+ * they can be added, how fast fees can be looked up from several threads at once and how fast the best paying
+ * transactions can be listed. The pool holds half of what is added, so the rest are evicted on the way.</p>
+ *
+ * <p>Then simulates many peers relaying the same transactions at once, each on its own thread announcing every
+ * transaction with an inv and some of them sending it, through a {@link MemoryPool} and through one that puts a single
+ * lock around everything, as MemoryPool used to.</p>
+ *
+ * <p>Takes the number of transactions as an optional argument, 100,000 by default.</p>
+ */
+public class MemoryPoolBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int LOOKUP_THREADS = 4;
+    private static final int LOOKUPS = 1000000;
+    private static final int RELAY_PEERS = 32;
+    private static final int RELAY_TRANSACTIONS = 5000;
+    // One peer in this many sends the whole transaction after announcing it.
+    private static final int SENDERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+        // Relaying logs every new announcement at info.
+        java.util.logging.Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        feeRates(count);
+        relay();
+    }
+
+    private static void feeRates(int count) throws Exception {
+        System.out.println("FeeRateMemoryPool with " + count + " transactions");
+        Random random = new Random(1);
+        Address address = new ECKey().toAddress(params);
+        List<Transaction> txns = new ArrayList<Transaction>(count);
+        List<BigInteger> fees = new ArrayList<BigInteger>(count);
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] scriptSig = new byte[107];
+            random.nextBytes(scriptSig);
+            boolean child = i > 0 && random.nextInt(5) == 0;
+            Sha256Hash spent = child ? txns.get(i - 1 - random.nextInt(Math.min(i, 100))).getHash()
+                                     : Sha256Hash.create(scriptSig);
+            tx.addInput(new TransactionInput(params, tx, scriptSig, new TransactionOutPoint(params, 0, spent)));
+            tx.addOutput(BigInteger.valueOf(1000000 + random.nextInt(1000000)), address);
+            tx.addOutput(BigInteger.valueOf(1000000 + random.nextInt(1000000)), address);
+            txns.add(tx);
+            // Children have their fees worked out from their parents.
+            fees.add(child ? null : BigInteger.valueOf(random.nextInt(100000)));
+            bytes += tx.getMessageSize();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            final FeeRateMemoryPool pool = new FeeRateMemoryPool(bytes / 2);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                pool.add(txns.get(i), fees.get(i));
+            report("Add", count, start);
+            System.out.println("  " + pool);
+
+            final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(count);
+            for (Transaction tx : txns)
+                hashes.add(tx.getHash());
+            final AtomicInteger found = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < LOOKUP_THREADS; t++) {
+                final int seed = t;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        int hits = 0;
+                        for (int i = 0; i < LOOKUPS / LOOKUP_THREADS; i++)
+                            if (pool.getFeePerKb(hashes.get(random.nextInt(hashes.size()))) != null)
+                                hits++;
+                        found.addAndGet(hits);
+                    }
+                });
+            }
+            start = System.nanoTime();
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            report("Fee lookup, " + LOOKUP_THREADS + " threads", LOOKUPS, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100; i++)
+                pool.getTransactionsByScore(1000);
+            report("List best 1000", 100, start);
+        }
+    }
+
+    // A MemoryPool as it used to be, with every call going through one lock.
+    private static class LockedMemoryPool extends MemoryPool {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        LockedMemoryPool(int size) {
+            super(size);
+        }
+
+        @Override
+        public Transaction intern(Transaction tx) {
+            lock.lock();
+            try {
+                return super.intern(tx);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Transaction seen(Transaction tx, PeerAddress byPeer) {
+            lock.lock();
+            try {
+                return super.seen(tx, byPeer);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void seen(Sha256Hash hash, PeerAddress byPeer) {
+            lock.lock();
+            try {
+                super.seen(hash, byPeer);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void relay() throws Exception {
+        System.out.println(RELAY_PEERS + " peers relaying " + RELAY_TRANSACTIONS + " transactions");
+        Address address = new ECKey().toAddress(params);
+        final List<Transaction> txns = new ArrayList<Transaction>(RELAY_TRANSACTIONS);
+        for (int i = 0; i < RELAY_TRANSACTIONS; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] scriptSig = new byte[] {(byte) i, (byte) (i >> 8)};
+            tx.addInput(new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, 0, Sha256Hash.create(scriptSig))));
+            tx.addOutput(BigInteger.valueOf(1000000), address);
+            txns.add(tx);
+        }
+        final PeerAddress[] peers = new PeerAddress[RELAY_PEERS];
+        for (int i = 0; i < RELAY_PEERS; i++)
+            peers[i] = new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i}));
+
+        for (int round = 0; round < 3; round++) {
+            for (final MemoryPool pool : new MemoryPool[] {new MemoryPool(RELAY_TRANSACTIONS),
+                                                           new LockedMemoryPool(RELAY_TRANSACTIONS)}) {
+                List<Thread> threads = new ArrayList<Thread>();
+                for (int p = 0; p < RELAY_PEERS; p++) {
+                    final int peer = p;
+                    threads.add(new Thread() {
+                        @Override
+                        public void run() {
+                            // Each peer starts at a different place, so they overlap but aren't in lock step.
+                            for (int i = 0; i < RELAY_TRANSACTIONS; i++) {
+                                Transaction tx = txns.get((i + peer * 97) % RELAY_TRANSACTIONS);
+                                pool.seen(tx.getHash(), peers[peer]);
+                                if (peer % SENDERS == 0)
+                                    pool.seen(new Transaction(params, tx.bitcoinSerialize()), peers[peer]);
+                            }
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread thread : threads)
+                    thread.start();
+                for (Thread thread : threads)
+                    thread.join();
+                int messages = RELAY_PEERS * RELAY_TRANSACTIONS + RELAY_PEERS / SENDERS * RELAY_TRANSACTIONS;
+                report(pool instanceof LockedMemoryPool ? "One lock" : "MemoryPool", messages, start);
+            }
+        }
+    }
+
+    private static void report(String name, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("  %-26s %10.0f ops/sec", name, count / seconds));
+    }
+}
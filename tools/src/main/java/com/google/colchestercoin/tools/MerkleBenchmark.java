@@ -0,0 +1,114 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.MerkleTree;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.core.Utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Times calculating the Merkle root of blocks from 1 KB to 1 MB, taking a transaction to be 250 bytes, the way
+ * {@link com.google.colchestercoin.core.Block} used to, with a list holding every hash of the tree, and with
+ * {@link MerkleTree}, which works in place on a flat array. Reports the time and the bytes allocated per root.</p>
+ *
+ * <p>Takes the number of milliseconds to spend on each case as an optional argument.</p>
+ */
+public class MerkleBenchmark {
+    private static final int TRANSACTION_SIZE = 250;
+    private static final int[] BLOCK_SIZES = {1000, 10 * 1000, 100 * 1000, 1000 * 1000};
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + (round + 1));
+            for (int blockSize : BLOCK_SIZES) {
+                int count = Math.max(1, blockSize / TRANSACTION_SIZE);
+                final List<Sha256Hash> leaves = new ArrayList<Sha256Hash>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] hash = new byte[32];
+                    random.nextBytes(hash);
+                    leaves.add(new Sha256Hash(hash));
+                }
+                Sha256Hash expected = listRoot(leaves);
+                if (!expected.equals(flatRoot(leaves)))
+                    throw new IllegalStateException("Roots differ for " + count + " transactions");
+                String name = String.format("%7d bytes, %4d txns", blockSize, count);
+                run(name + ", list", millis, new Runnable() {
+                    @Override
+                    public void run() {
+                        listRoot(leaves);
+                    }
+                });
+                run(name + ", flat", millis, new Runnable() {
+                    @Override
+                    public void run() {
+                        flatRoot(leaves);
+                    }
+                });
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, long millis, Runnable test) {
+        long deadline = System.nanoTime() + millis * 1000000;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        int runs = 0;
+        do {
+            test.run();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double micros = (System.nanoTime() - start) / 1e3 / runs;
+        allocated = allocatedBytes() - allocated;
+        System.out.println(String.format("  %-36s %10.2f us per root, %10.0f bytes allocated per root", name, micros,
+                (double) allocated / runs));
+    }
+
+    // As Block.buildMerkleTree did.
+    private static Sha256Hash listRoot(List<Sha256Hash> leaves) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            tree.add(leaf.getBytes());
+        int levelOffset = 0;
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+
+    private static Sha256Hash flatRoot(List<Sha256Hash> leaves) {
+        byte[] hashes = new byte[leaves.size() * 32];
+        for (int i = 0; i < leaves.size(); i++) {
+            byte[] hash = leaves.get(i).getBytes();
+            for (int j = 0; j < 32; j++)
+                hashes[i * 32 + j] = hash[31 - j];
+        }
+        MerkleTree.calculateRoot(hashes, leaves.size());
+        byte[] root = new byte[32];
+        for (int j = 0; j < 32; j++)
+            root[j] = hashes[31 - j];
+        return new Sha256Hash(root);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            total += Math.max(0, bytes);
+        return total;
+    }
+}
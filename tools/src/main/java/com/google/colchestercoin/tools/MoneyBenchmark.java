@@ -0,0 +1,170 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.crypto.TransactionSignature;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.script.Script;
+import com.google.colchestercoin.script.ScriptBuilder;
+import com.google.colchestercoin.store.MemoryBlockStore;
+import com.google.colchestercoin.store.MemoryFullPrunedBlockStore;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.OP_TRUE;
+
+/**
+ * <p>Times the code that adds up transaction values, and counts the bytes it allocates on every thread, in the two
+ * places it runs most: connecting blocks to a {@link FullPrunedBlockChain}, which sums the inputs, outputs and fees of
+ * every transaction, and a wallet with many unspent outputs working out its balance and completing a send, which
+ * sorts and adds up all of its outputs.</p>
+ *
+ * <p>The blocks are full of small transactions spending outputs that anyone can spend, so the script checks cost
+ * little. Takes the number of blocks and of transactions per block as optional arguments, and the number of outputs
+ * in the wallet as a third.</p>
+ */
+public class MoneyBenchmark {
+    // No difficulty changes, so blocks can be made without regard to their timestamps.
+    private static final NetworkParameters params = new UnitTestParams() {
+        @Override public int getInterval() {
+            return 10000;
+        }
+    };
+    private static final byte[] ANYONE_CAN_SPEND = new byte[] {(byte) OP_TRUE};
+    private static final int WALLET_ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int walletOutputs = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        connectBlocks(blockCount, txsPerBlock);
+        wallet(walletOutputs);
+        System.exit(0);
+    }
+
+    private static void connectBlocks(int blockCount, int txsPerBlock) throws Exception {
+        ECKey key = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+        // A coinbase to the key, left to mature, then split into an output for every transaction in a block.
+        Block last = params.getGenesisBlock().createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        blocks.add(last);
+        Transaction coinbase = last.getTransactions().get(0);
+        for (int i = 0; i < params.getSpendableCoinbaseDepth(); i++)
+            blocks.add(last = last.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0)));
+        Transaction split = new Transaction(params);
+        split.addInput(coinbase.getOutput(0));
+        BigInteger each = Utils.toNanoCoins(50, 0).divide(BigInteger.valueOf(txsPerBlock));
+        for (int i = 0; i < txsPerBlock; i++)
+            split.addOutput(each, new Script(ANYONE_CAN_SPEND));
+        Script coinbaseScript = coinbase.getOutput(0).getScriptPubKey();
+        TransactionSignature sig = split.calculateSignature(0, key, coinbaseScript, Transaction.SigHash.ALL, false);
+        split.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig));
+        last = nextBlock(last, key, split);
+        blocks.add(last);
+        int setUpBlocks = blocks.size();
+        // Each block then spends every output of the one before, paying a small fee each time.
+        List<TransactionOutput> outputs = split.getOutputs();
+        for (int b = 0; b < blockCount; b++) {
+            List<Transaction> txs = new ArrayList<Transaction>();
+            List<TransactionOutput> next = new ArrayList<TransactionOutput>();
+            for (TransactionOutput output : outputs) {
+                Transaction tx = new Transaction(params);
+                tx.addInput(output);
+                tx.addOutput(output.getValue().subtract(BigInteger.TEN), new Script(ANYONE_CAN_SPEND));
+                txs.add(tx);
+                next.add(tx.getOutput(0));
+            }
+            last = nextBlock(last, key, txs.toArray(new Transaction[txs.size()]));
+            blocks.add(last);
+            outputs = next;
+        }
+        // Connect the blocks from their serialized form, as they would arrive from the network.
+        List<Block> parsed = new ArrayList<Block>();
+        for (Block block : blocks)
+            parsed.add(new Block(params, block.bitcoinSerialize()));
+
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+        for (int i = 0; i < setUpBlocks; i++)
+            chain.add(parsed.get(i));
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = setUpBlocks; i < parsed.size(); i++)
+            chain.add(parsed.get(i));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = allocatedBytes() - allocated;
+        long txs = (long) blockCount * txsPerBlock;
+        System.out.println(String.format("Connected %d blocks of %d transactions: %.0f transactions/sec, " +
+                "%.0f bytes allocated per transaction", blockCount, txsPerBlock, txs / seconds,
+                (double) allocated / txs));
+    }
+
+    private static Block nextBlock(Block last, ECKey key, Transaction... txs) {
+        Block block = last.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        for (Transaction tx : txs)
+            block.addTransaction(tx);
+        block.solve();
+        return block;
+    }
+
+    private static void wallet(int outputCount) throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address address = key.toAddress(params);
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        // Outputs of varied value spread over a hundred blocks, so they sort by both depth and value.
+        Random random = new Random(1);
+        Block last = params.getGenesisBlock();
+        int perBlock = Math.max(1, outputCount / 100);
+        for (int made = 0; made < outputCount; made += perBlock) {
+            Block block = last.createNextBlock(null);
+            for (int i = 0; i < perBlock; i++) {
+                Transaction tx = new Transaction(params);
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                tx.addInput(new TransactionInput(params, tx, new byte[0],
+                        new TransactionOutPoint(params, 0, new Sha256Hash(prevHash))));
+                tx.addOutput(BigInteger.valueOf(Utils.CENT.longValue() + random.nextInt(100000000)), address);
+                block.addTransaction(tx);
+            }
+            block.solve();
+            chain.add(block);
+            last = block;
+        }
+        Address destination = new ECKey().toAddress(params);
+
+        for (int round = 0; round < 2; round++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            BigInteger balance = BigInteger.ZERO;
+            for (int i = 0; i < WALLET_ROUNDS; i++)
+                balance = wallet.getBalance();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            allocated = allocatedBytes() - allocated;
+            System.out.println(String.format("Wallet of %d outputs, getBalance: %.2f ms, %.0f bytes allocated (%s)",
+                    outputCount, seconds * 1000 / WALLET_ROUNDS, (double) allocated / WALLET_ROUNDS,
+                    Utils.bitcoinValueToFriendlyString(balance)));
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < WALLET_ROUNDS; i++)
+                wallet.completeTx(Wallet.SendRequest.to(destination, Utils.toNanoCoins(1, 0)));
+            seconds = (System.nanoTime() - start) / 1e9;
+            allocated = allocatedBytes() - allocated;
+            System.out.println(String.format("Wallet of %d outputs, completeTx: %.2f ms, %.0f bytes allocated",
+                    outputCount, seconds * 1000 / WALLET_ROUNDS, (double) allocated / WALLET_ROUNDS));
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            total += Math.max(0, bytes);
+        return total;
+    }
+}
@@ -0,0 +1,118 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.utils.TestUtils;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Times ruling out broadcast transactions that aren't relevant to a wallet, as a {@link Peer} must for every
+ * transaction that only matched its Bloom filter by chance. Each transaction is checked with
+ * {@link Wallet#isPendingTransactionRelevant(Transaction)}, which takes the wallet's lock, and with the prefilter in
+ * {@link Wallet#isTransactionPossiblyRelevant(Transaction)}, which doesn't. Both are timed on their own and again
+ * whilst another thread keeps taking the wallet's lock, as the user interface or a block being received would. Every
+ * transaction the prefilter rules out must be one the full check finds irrelevant too.</p>
+ *
+ * <p>The transactions are parsed from bytes, as they arrive from a peer, with two inputs and two outputs paying to
+ * addresses. Takes the number of keys, of wallet transactions and of broadcast transactions as optional arguments.</p>
+ */
+public class RelevancePrefilterBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int walletTxCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int broadcastCount = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        final Wallet wallet = new Wallet(params);
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < keyCount; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        Random random = new Random(1);
+        for (int i = 0; i < walletTxCount; i++) {
+            Address to = keys.get(random.nextInt(keyCount)).toAddress(params);
+            Transaction tx = TestUtils.createFakeTx(params, BigInteger.valueOf(1 + random.nextInt(100000000)), to);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        List<Transaction> broadcast = new ArrayList<Transaction>(broadcastCount);
+        for (int t = 0; t < broadcastCount; t++) {
+            Transaction tx = new Transaction(params);
+            for (int i = 0; i < 2; i++) {
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                byte[] scriptSig = new byte[107];
+                random.nextBytes(scriptSig);
+                tx.addInput(new TransactionInput(params, tx, scriptSig,
+                        new TransactionOutPoint(params, i, new Sha256Hash(prevHash))));
+            }
+            for (int i = 0; i < 2; i++) {
+                byte[] hash = new byte[20];
+                random.nextBytes(hash);
+                tx.addOutput(BigInteger.valueOf(1 + random.nextInt(100000000)), new Address(params, hash));
+            }
+            broadcast.add(new Transaction(params, tx.bitcoinSerialize()));
+        }
+        System.out.println(String.format("%d keys, %d wallet transactions, %d broadcast transactions", keyCount,
+                walletTxCount, broadcastCount));
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + (round + 1));
+            run(wallet, broadcast, false);
+            run(wallet, broadcast, true);
+        }
+        System.exit(0);
+    }
+
+    private static void run(final Wallet wallet, List<Transaction> broadcast, boolean busy) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread other = null;
+        if (busy) {
+            other = new Thread("wallet user") {
+                @Override
+                public void run() {
+                    while (!done.get())
+                        wallet.getBalance();
+                }
+            };
+            other.start();
+        }
+        String name = busy ? "wallet busy" : "wallet idle";
+        long start = System.nanoTime();
+        int relevant = 0;
+        for (Transaction tx : broadcast) {
+            if (wallet.isPendingTransactionRelevant(tx))
+                relevant++;
+        }
+        long full = System.nanoTime() - start;
+        start = System.nanoTime();
+        int rejected = 0;
+        boolean[] ruledOut = new boolean[broadcast.size()];
+        for (int i = 0; i < ruledOut.length; i++) {
+            if (!wallet.isTransactionPossiblyRelevant(broadcast.get(i))) {
+                ruledOut[i] = true;
+                rejected++;
+            }
+        }
+        long prefilter = System.nanoTime() - start;
+        done.set(true);
+        if (other != null)
+            other.join();
+        if (relevant > 0)
+            throw new IllegalStateException(relevant + " broadcast transactions were relevant");
+        // Not timed: the prefilter and the full check must agree on every transaction ruled out.
+        for (int i = 0; i < ruledOut.length; i++) {
+            if (ruledOut[i] && wallet.isPendingTransactionRelevant(broadcast.get(i)))
+                throw new IllegalStateException("Prefilter ruled out relevant tx " + broadcast.get(i).getHashAsString());
+        }
+        System.out.println(String.format("  %s  full check %8.1f ns per tx, prefilter %8.1f ns per tx, " +
+                "%d of %d rejected, %.1f ms saved", name, (double) full / broadcast.size(),
+                (double) prefilter / broadcast.size(), rejected, broadcast.size(), (full - prefilter) / 1e6));
+    }
+}
@@ -0,0 +1,172 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.script.Script;
+import com.google.colchestercoin.script.ScriptChunk;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Times picking the relevant transactions out of full blocks, for a wallet and for a {@link BloomFilter}, by
+ * parsing each block into a {@link Block} and its transactions, and by going through the bytes with a
+ * {@link BlockView}. Reports the time and the bytes allocated per block.</p>
+ *
+ * <p>The blocks are full of transactions with two inputs and two outputs paying to addresses, of which one in a
+ * hundred pays the wallet. Takes the number of blocks, of transactions per block and of keys in the wallet as optional
+ * arguments.</p>
+ */
+public class RelevanceScanBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int keyCount = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Random random = new Random(1);
+        Wallet wallet = new Wallet(params);
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < keyCount; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            wallet.addKey(key);
+        }
+        BloomFilter filter = wallet.getBloomFilter(0.0001);
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        ECKey stranger = new ECKey();
+        Block last = params.getGenesisBlock();
+        for (int b = 0; b < blockCount; b++) {
+            Block block = last.createNextBlockWithCoinbase(stranger.getPubKey(), Utils.toNanoCoins(50, 0));
+            for (int t = 0; t < txsPerBlock; t++) {
+                Transaction tx = new Transaction(params);
+                for (int i = 0; i < 2; i++) {
+                    byte[] prevHash = new byte[32];
+                    random.nextBytes(prevHash);
+                    // A signature and a key, as spending from an address takes.
+                    byte[] scriptSig = new byte[107];
+                    random.nextBytes(scriptSig);
+                    scriptSig[0] = 72;
+                    scriptSig[73] = 33;
+                    tx.addInput(new TransactionInput(params, tx, scriptSig,
+                            new TransactionOutPoint(params, i, new Sha256Hash(prevHash))));
+                }
+                for (int i = 0; i < 2; i++) {
+                    byte[] hash = new byte[20];
+                    random.nextBytes(hash);
+                    Address to = random.nextInt(200) == 0 ? keys.get(random.nextInt(keyCount)).toAddress(params)
+                            : new Address(params, hash);
+                    tx.addOutput(BigInteger.valueOf(1 + random.nextInt(100000000)), to);
+                }
+                block.addTransaction(tx);
+            }
+            blocks.add(block.bitcoinSerialize());
+            last = block;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + (round + 1));
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            int relevant = 0;
+            for (byte[] bytes : blocks) {
+                Block block = new Block(params, bytes);
+                for (Transaction tx : block.getTransactions()) {
+                    if (wallet.isTransactionRelevant(tx))
+                        relevant++;
+                }
+            }
+            report("Wallet, parsed blocks", blockCount, relevant, start, allocated);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            relevant = 0;
+            for (byte[] bytes : blocks) {
+                BlockView block = BlockView.of(params, bytes);
+                for (TransactionView tx = block.nextTransaction(); tx != null; tx = block.nextTransaction()) {
+                    if (wallet.isTransactionRelevant(tx))
+                        relevant++;
+                }
+            }
+            report("Wallet, block views", blockCount, relevant, start, allocated);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            relevant = 0;
+            for (byte[] bytes : blocks) {
+                Block block = new Block(params, bytes);
+                for (Transaction tx : block.getTransactions()) {
+                    if (matches(filter, tx))
+                        relevant++;
+                }
+            }
+            report("Bloom filter, parsed blocks", blockCount, relevant, start, allocated);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            relevant = 0;
+            for (byte[] bytes : blocks) {
+                BlockView block = BlockView.of(params, bytes);
+                for (TransactionView tx = block.nextTransaction(); tx != null; tx = block.nextTransaction()) {
+                    if (filter.matches(tx))
+                        relevant++;
+                }
+            }
+            report("Bloom filter, block views", blockCount, relevant, start, allocated);
+        }
+        System.exit(0);
+    }
+
+    // Matches a parsed transaction as BloomFilter.matches does, through the objects it was parsed into.
+    private static boolean matches(BloomFilter filter, Transaction tx) throws Exception {
+        if (filter.contains(Utils.reverseBytes(tx.getHash().getBytes())))
+            return true;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (containsAnyData(filter, output.getScriptBytes()))
+                return true;
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            if (filter.contains(input.getOutpoint().bitcoinSerialize()))
+                return true;
+            if (containsAnyData(filter, input.getScriptBytes()))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean containsAnyData(BloomFilter filter, byte[] program) {
+        Script script;
+        try {
+            script = new Script(program);
+        } catch (ScriptException e) {
+            // Coinbase scripts needn't parse.
+            return false;
+        }
+        for (ScriptChunk chunk : script.getChunks()) {
+            if (!chunk.isOpCode() && chunk.data.length > 0 && filter.contains(chunk.data))
+                return true;
+        }
+        return false;
+    }
+
+    private static void report(String name, int blockCount, int relevant, long start, long allocated) {
+        double millis = (System.nanoTime() - start) / 1e6;
+        allocated = allocatedBytes() - allocated;
+        System.out.println(String.format("  %-28s %7.2f ms per block, %10.0f bytes allocated per block, %d relevant",
+                name, millis / blockCount, (double) allocated / blockCount, relevant));
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            total += Math.max(0, bytes);
+        return total;
+    }
+}
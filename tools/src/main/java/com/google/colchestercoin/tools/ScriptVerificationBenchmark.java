@@ -0,0 +1,162 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.crypto.TransactionSignature;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.script.Script;
+import com.google.colchestercoin.script.ScriptBuilder;
+import com.google.colchestercoin.script.ScriptChunk;
+import com.google.colchestercoin.script.SignatureCache;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.colchestercoin.script.ScriptOpCodes.*;
+
+/**
+ * Measures how many inputs per second {@link Script#correctlySpends(Transaction, long, Script, boolean)} verifies, for
+ * each of the standard kinds of output and for a block like mix of them: mostly pay to address, some pay to script
+ * hash 2-of-3 multisig and a few pay to raw public key. As in {@link FullPrunedBlockChain}, the scriptPubKeys are
+ * parsed from bytes again for every verification. Takes the number of inputs of each kind as an optional argument.
+ *
+ * <p>Standard inputs are normally verified by a template match rather than the interpreter. To compare the two, each
+ * kind is also run with its scriptSig pushes re-encoded as OP_PUSHDATA1, which means the same thing but isn't a form
+ * the templates accept, so those inputs always go through the interpreter.</p>
+ *
+ * <p>The {@link SignatureCache} is turned off for those runs. Afterwards the block mix is verified with the cache on,
+ * once as if none of its transactions had been seen and then again as it would be when connecting a block whose
+ * transactions were all verified on arrival.</p>
+ */
+public class ScriptVerificationBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int ROUNDS = 5;
+
+    // An input to verify: the transaction spending it and the scriptPubKey of the output it spends.
+    private static class Spend {
+        final Transaction tx;
+        final byte[] scriptPubKey;
+
+        Spend(Transaction tx, byte[] scriptPubKey) {
+            this.tx = tx;
+            this.scriptPubKey = scriptPubKey;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        ECKey[] keys = new ECKey[20];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new ECKey();
+
+        List<Spend> toAddress = new ArrayList<Spend>();
+        List<Spend> toP2SH = new ArrayList<Spend>();
+        List<Spend> toPubKey = new ArrayList<Spend>();
+        for (int i = 0; i < count; i++) {
+            toAddress.add(spendToAddress(keys[i % keys.length]));
+            toP2SH.add(spendMultiSig(keys[i % keys.length], keys[(i + 1) % keys.length], keys[(i + 2) % keys.length]));
+            toPubKey.add(spendToPubKey(keys[i % keys.length]));
+        }
+        // Roughly what blocks look like: 85% pay to address, 10% P2SH and 5% pay to public key.
+        List<Spend> mix = new ArrayList<Spend>();
+        for (int i = 0; i < count; i++) {
+            if (i % 20 == 0)
+                mix.add(toPubKey.get(i));
+            else if (i % 10 == 1)
+                mix.add(toP2SH.get(i));
+            else
+                mix.add(toAddress.get(i));
+        }
+
+        SignatureCache.setDefault(new SignatureCache(0));
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + (round + 1) + (round == 0 ? " (warm up)" : ""));
+            run("Pay to address", toAddress);
+            run("P2SH 2-of-3 multisig", toP2SH);
+            run("Pay to public key", toPubKey);
+            run("Block mix", mix);
+            run("Pay to address (interp)", interpreted(toAddress));
+            run("P2SH (interp)", interpreted(toP2SH));
+            run("Block mix (interp)", interpreted(mix));
+        }
+
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MEMORY_BUDGET);
+        SignatureCache.setDefault(cache);
+        System.out.println("Signature cache");
+        run("Block mix (unseen)", mix);
+        run("Block mix (seen)", mix);
+        System.out.println("  " + cache);
+    }
+
+    private static void run(String name, List<Spend> spends) throws ScriptException {
+        long start = System.nanoTime();
+        for (Spend spend : spends) {
+            TransactionInput input = spend.tx.getInput(0);
+            input.getScriptSig().correctlySpends(spend.tx, 0, new Script(spend.scriptPubKey), true);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("  %-26s %8.0f inputs/sec, %6.1f us/input", name, spends.size() / seconds,
+                seconds * 1e6 / spends.size()));
+    }
+
+    // Copies the spends with every non-empty push in the scriptSigs done by OP_PUSHDATA1.
+    private static List<Spend> interpreted(List<Spend> spends) {
+        List<Spend> result = new ArrayList<Spend>(spends.size());
+        for (Spend spend : spends) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (ScriptChunk chunk : spend.tx.getInput(0).getScriptSig().getChunks()) {
+                if (chunk.isOpCode() || chunk.data.length == 0) {
+                    bytes.write(chunk.isOpCode() ? chunk.data[0] : OP_0);
+                } else {
+                    bytes.write(OP_PUSHDATA1);
+                    bytes.write(chunk.data.length);
+                    bytes.write(chunk.data, 0, chunk.data.length);
+                }
+            }
+            Transaction tx = new Transaction(params, spend.tx.bitcoinSerialize());
+            tx.getInput(0).setScriptSig(new Script(bytes.toByteArray()));
+            result.add(new Spend(tx, spend.scriptPubKey));
+        }
+        return result;
+    }
+
+    // Creates a transaction spending an output of a new transaction with the given scriptPubKey.
+    private static Transaction spend(Script scriptPubKey) {
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), scriptPubKey);
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        return tx;
+    }
+
+    private static Spend spendToAddress(ECKey key) {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        Transaction tx = spend(scriptPubKey);
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        return new Spend(tx, scriptPubKey.getProgram());
+    }
+
+    private static Spend spendToPubKey(ECKey key) {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction tx = spend(scriptPubKey);
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig));
+        return new Spend(tx, scriptPubKey.getProgram());
+    }
+
+    private static Spend spendMultiSig(ECKey key1, ECKey key2, ECKey key3) throws Exception {
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, Arrays.asList(key1, key2, key3));
+        byte[] redeemBytes = redeemScript.getProgram();
+        Script scriptPubKey = new ScriptBuilder().op(OP_HASH160).data(Utils.sha256hash160(redeemBytes))
+                .op(OP_EQUAL).build();
+        Transaction tx = spend(scriptPubKey);
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, redeemScript, Transaction.SigHash.ALL, false);
+        TransactionSignature sig2 = tx.calculateSignature(0, key2, redeemScript, Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(new ScriptBuilder().smallNum(0).data(sig1.encodeToBitcoin())
+                .data(sig2.encodeToBitcoin()).data(redeemBytes).build());
+        return new Spend(tx, scriptPubKey.getProgram());
+    }
+}
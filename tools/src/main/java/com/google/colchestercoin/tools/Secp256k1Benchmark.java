@@ -0,0 +1,75 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.crypto.DeterministicKey;
+import com.google.colchestercoin.crypto.HDKeyDerivation;
+import com.google.colchestercoin.crypto.PublicKeyCache;
+import org.colchestercoin.NativeSecp256k1;
+
+import java.math.BigInteger;
+
+/**
+ * Measures key generation, signing, verification with and without the {@link PublicKeyCache} and public BIP 32
+ * derivation in operations per second, with each of the {@link ECKey.Backend}s. Takes the number of operations per
+ * round as an optional argument.
+ */
+public class Secp256k1Benchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        NativeSecp256k1.enabled = false;
+        ECKey key = new ECKey();
+        Sha256Hash[] hashes = new Sha256Hash[count];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)});
+            sigs[i] = key.sign(hashes[i]);
+        }
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(key.getPrivKeyBytes());
+        DeterministicKey pubOnly = HDKeyDerivation.createMasterPubKeyFromBytes(master.getPubKeyBytes(),
+                master.getChainCode());
+
+        for (ECKey.Backend backend : ECKey.Backend.values()) {
+            ECKey.setBackend(backend);
+            System.out.println(backend);
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    ECKey.publicKeyFromPrivate(BigInteger.valueOf(i + 1).shiftLeft(200), true);
+                report("Public key", count, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    key.sign(hashes[i]);
+                report("Sign", count, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    if (!ECKey.verify(hashes[i].getBytes(), sigs[i], key.getPubKey()))
+                        throw new IllegalStateException();
+                report("Verify", count, start);
+
+                // The same again, decoding the key every time.
+                PublicKeyCache.setDefault(new PublicKeyCache(0));
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    if (!ECKey.verify(hashes[i].getBytes(), sigs[i], key.getPubKey()))
+                        throw new IllegalStateException();
+                report("Verify (no key cache)", count, start);
+                PublicKeyCache.setDefault(new PublicKeyCache(PublicKeyCache.DEFAULT_MEMORY_BUDGET));
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    HDKeyDerivation.deriveChildKey(pubOnly, i);
+                report("Derive public", count, start);
+            }
+        }
+    }
+
+    private static void report(String name, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("  %-22s %8.0f ops/sec", name, count / seconds));
+    }
+}
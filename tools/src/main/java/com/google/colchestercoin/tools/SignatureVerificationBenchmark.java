@@ -0,0 +1,68 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.ECKey;
+import com.google.colchestercoin.core.Sha256Hash;
+import org.colchestercoin.NativeSecp256k1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many signatures per second {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} checks one at a
+ * time, and how many {@link ECKey#verifyBatch(List)} checks across all cores, first in pure Java and then with the
+ * native secp256k1 library if it can be loaded (see {@link NativeSecp256k1}). Takes the number of signatures as an
+ * optional argument.
+ */
+public class SignatureVerificationBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        ECKey[] keys = new ECKey[20];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new ECKey();
+        List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>(count);
+        for (int i = 0; i < count; i++) {
+            ECKey key = keys[i % keys.length];
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+
+        System.out.println("Pure Java");
+        NativeSecp256k1.enabled = false;
+        run(checks);
+
+        NativeSecp256k1.enabled = true;
+        try {
+            ECKey.SignatureCheck check = checks.get(0);
+            ECKey.verify(check.data, check.signature, check.pub);
+        } catch (UnsatisfiedLinkError e) {
+            System.out.println("Native secp256k1 library not available, set -Djava.library.path to benchmark it");
+            return;
+        }
+        System.out.println("Native");
+        run(checks);
+    }
+
+    private static void run(List<ECKey.SignatureCheck> checks) {
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (ECKey.SignatureCheck check : checks)
+                if (!ECKey.verify(check.data, check.signature, check.pub))
+                    throw new IllegalStateException();
+            report("One at a time", checks.size(), start);
+
+            start = System.nanoTime();
+            for (boolean valid : ECKey.verifyBatch(checks))
+                if (!valid)
+                    throw new IllegalStateException();
+            report("Batch", checks.size(), start);
+        }
+    }
+
+    private static void report(String name, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("  %-14s %8.0f sigs/sec", name, count / seconds));
+    }
+}
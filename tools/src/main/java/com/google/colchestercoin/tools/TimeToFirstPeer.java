@@ -0,0 +1,128 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.*;
+import com.google.colchestercoin.discovery.PeerDiscovery;
+import com.google.colchestercoin.discovery.PeerDiscoveryException;
+import com.google.colchestercoin.params.MainNetParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a {@link PeerGroup} takes to complete its first connection, starting cold (peer discovery only)
+ * and then warm (with the {@link PeerAddressDatabase} saved by the cold run). Everything runs over loopback: a minimal
+ * node that only does the version handshake stands in for the network, and a discovery that takes a couple of seconds,
+ * like a DNS seed lookup, returns a handful of addresses nobody listens on along with the live one.
+ */
+public class TimeToFirstPeer {
+    private static final long DISCOVERY_DELAY_MSEC = 2000;
+    private static final int DEAD_ADDRESSES = 8;
+
+    public static void main(String[] args) throws Exception {
+        final NetworkParameters params = MainNetParams.get();
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread node = new Thread("loopback node") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        serve(params, server.accept());
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        node.setDaemon(true);
+        node.start();
+
+        File file = File.createTempFile("peers", ".addrdb");
+        file.delete();
+        file.deleteOnExit();
+        InetSocketAddress live = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        run(params, file, live, "Cold start");
+        run(params, file, live, "Warm start");
+        server.close();
+    }
+
+    private static void run(NetworkParameters params, File file, final InetSocketAddress live, String name)
+            throws Exception {
+        PeerGroup peerGroup = new PeerGroup(params);
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+                try {
+                    Thread.sleep(DISCOVERY_DELAY_MSEC);
+                } catch (InterruptedException e) {
+                    throw new PeerDiscoveryException(e);
+                }
+                InetSocketAddress[] addresses = new InetSocketAddress[DEAD_ADDRESSES + 1];
+                for (int i = 0; i < DEAD_ADDRESSES; i++)
+                    addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), findClosedPort());
+                addresses[DEAD_ADDRESSES] = live;
+                return addresses;
+            }
+
+            public void shutdown() {
+            }
+        });
+        peerGroup.setMaxConnections(1);
+        PeerAddressDatabase db = new PeerAddressDatabase(file);
+        peerGroup.setPeerAddressDatabase(db);
+        long start = System.currentTimeMillis();
+        peerGroup.start();
+        peerGroup.waitForPeers(1).get();
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("%s with %d known addresses: first peer after %d ms", name, db.size(),
+                elapsed));
+        peerGroup.stopAndWait();
+    }
+
+    private static int findClosedPort() {
+        try {
+            ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            int port = socket.getLocalPort();
+            socket.close();
+            return port;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Answers the version handshake and then ignores whatever else is sent, until the connection is closed.
+    private static void serve(final NetworkParameters params, final Socket socket) {
+        Thread thread = new Thread("loopback connection") {
+            @Override
+            public void run() {
+                BitcoinSerializer serializer = new BitcoinSerializer(params);
+                try {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    while (true) {
+                        Message message = serializer.deserialize(in);
+                        if (message instanceof VersionMessage) {
+                            VersionMessage ver = new VersionMessage(params, 0);
+                            ver.localServices = VersionMessage.NODE_NETWORK;
+                            serializer.serialize(ver, out);
+                            serializer.serialize(new VersionAck(), out);
+                            out.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,120 @@
+package com.google.colchestercoin.tools;
+
+import com.google.colchestercoin.core.NetworkParameters;
+import com.google.colchestercoin.core.Sha256Hash;
+import com.google.colchestercoin.core.StoredTransactionOutput;
+import com.google.colchestercoin.params.UnitTestParams;
+import com.google.colchestercoin.store.FullPrunedBlockStore;
+import com.google.colchestercoin.store.MemoryFullPrunedBlockStore;
+import com.google.colchestercoin.store.OffHeapFullPrunedBlockStore;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * <p>Plays a synthetic chain into the unspent output set of a {@link MemoryFullPrunedBlockStore} and of an
+ * {@link OffHeapFullPrunedBlockStore}, the way {@link com.google.colchestercoin.core.FullPrunedBlockChain} does: a
+ * batch per block, in which each transaction looks up and removes the outputs it spends and adds two new ones. The set
+ * grows to the target size and then stays there, with as many outputs spent as created. Reports the throughput, the
+ * heap and direct memory in use at the end, and the time the garbage collector took.</p>
+ *
+ * <p>Takes the target number of unspent outputs as an optional argument, three million by default, and which store to
+ * run, "memory", "offheap" or both by default. Run with a heap of three gigabytes or more to give the memory store
+ * room, and once for each store to keep the garbage collector's figures apart.</p>
+ */
+public class UtxoStoreBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int TRANSACTIONS_PER_BLOCK = 1000;
+    private static final int REPORT_INTERVAL = 500;
+
+    public static void main(String[] args) throws Exception {
+        int target = args.length > 0 ? Integer.parseInt(args[0]) : 3000000;
+        String which = args.length > 1 ? args[1] : "both";
+        if (!which.equals("offheap"))
+            run(new MemoryFullPrunedBlockStore(params, 10), target);
+        if (!which.equals("memory"))
+            run(new OffHeapFullPrunedBlockStore(params, 10, target), target);
+    }
+
+    // Outputs are numbered, each number standing for a transaction hash and output index that can be made again
+    // from it, so the benchmark itself doesn't hold millions of objects.
+    private static Sha256Hash hash(long output) {
+        long tx = output >>> 1;
+        return Sha256Hash.create(new byte[] {(byte) tx, (byte) (tx >> 8), (byte) (tx >> 16), (byte) (tx >> 24),
+                (byte) (tx >> 32)});
+    }
+
+    private static StoredTransactionOutput output(long output, byte[] script) {
+        return new StoredTransactionOutput(hash(output), output & 1, BigInteger.valueOf(50000 + output % 1000),
+                (int) (output / 100000), false, script);
+    }
+
+    private static void run(FullPrunedBlockStore store, int target) throws Exception {
+        System.out.println(store.getClass().getSimpleName() + ", " + target + " unspent outputs");
+        Random random = new Random(1);
+        byte[] script = new byte[25];
+        random.nextBytes(script);
+        long[] live = new long[target + 2 * TRANSACTIONS_PER_BLOCK];
+        int liveCount = 0;
+        long nextOutput = 0;
+        long gcStart = gcMillis();
+        long start = System.nanoTime();
+        long intervalStart = start;
+        long operations = 0;
+        // Grow to the target, then keep going for as long again at that size.
+        int blocks = 2 * target / (2 * TRANSACTIONS_PER_BLOCK);
+        for (int block = 1; block <= blocks; block++) {
+            store.beginDatabaseBatchWrite();
+            for (int t = 0; t < TRANSACTIONS_PER_BLOCK; t++) {
+                if (liveCount >= target) {
+                    // Spend two random outputs.
+                    for (int i = 0; i < 2; i++) {
+                        int which = random.nextInt(liveCount);
+                        long spent = live[which];
+                        live[which] = live[--liveCount];
+                        StoredTransactionOutput out = store.getTransactionOutput(hash(spent), spent & 1);
+                        store.removeUnspentTransactionOutput(out);
+                        operations += 2;
+                    }
+                }
+                for (int i = 0; i < 2; i++) {
+                    store.addUnspentTransactionOutput(output(nextOutput, script));
+                    live[liveCount++] = nextOutput++;
+                    operations++;
+                }
+            }
+            store.commitDatabaseBatchWrite();
+            if (block % REPORT_INTERVAL == 0) {
+                long now = System.nanoTime();
+                System.out.println(String.format("  block %6d  %9d unspent  %8.0f blocks/sec", block, liveCount,
+                        REPORT_INTERVAL / ((now - intervalStart) / 1e9)));
+                intervalStart = now;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long gc = gcMillis() - gcStart;
+        System.out.println(String.format("  %.0f store operations/sec, %.1f sec in garbage collection (%.0f%%)",
+                operations / seconds, gc / 1000.0, gc / 10.0 / seconds));
+        System.out.println(String.format("  Heap in use %.0f MB", usedHeap() / 1024.0 / 1024));
+        if (store instanceof OffHeapFullPrunedBlockStore)
+            System.out.println(String.format("  Off heap %.0f MB",
+                    ((OffHeapFullPrunedBlockStore) store).getOffHeapBytes() / 1024.0 / 1024));
+        store.close();
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+            total += bean.getCollectionTime();
+        return total;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -7,17 +7,32 @@ import com.google.colchestercoin.utils.BriefLogFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class WatchMempool {
     private static Logger log = LoggerFactory.getLogger(WatchMempool.class);
+    private static final long POOL_BYTES = 64 * 1024 * 1024;
+    private static final int REPORT_INTERVAL = 1000;
 
     public static void main(String[] args) {
         BriefLogFormatter.init();
         NetworkParameters params = MainNetParams.get();
-        PeerGroup peerGroup = new PeerGroup(params);
+        final FeeRateMemoryPool pool = new FeeRateMemoryPool(POOL_BYTES);
+        final AtomicInteger count = new AtomicInteger();
+        PeerGroup peerGroup = new PeerGroup(params, null, null, pool);
         peerGroup.addPeerDiscovery(new DnsDiscovery(params));
         peerGroup.addEventListener(new AbstractPeerEventListener() {
             @Override
             public void onTransaction(Peer peer, Transaction tx) {
+                if (count.incrementAndGet() % REPORT_INTERVAL == 0) {
+                    log.info("Memory pool: {}", pool);
+                    for (Transaction best : pool.getTransactionsByScore(5)) {
+                        BigInteger feePerKb = pool.getFeePerKb(best.getHash());
+                        log.info("  {} pays {} per kB", best.getHashAsString(),
+                                feePerKb == null ? "unknown" : Utils.bitcoinValueToFriendlyString(feePerKb));
+                    }
+                }
                 try {
                     if (tx.getOutputs().size() != 1) return;
                     if (!tx.getOutput(0).getScriptPubKey().isSentToRawPubKey()) return;